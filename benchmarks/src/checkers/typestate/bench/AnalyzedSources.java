@@ -0,0 +1,128 @@
+package checkers.typestate.bench;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.JavacTask;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Source files parsed and attributed once, so that benchmarks can repeatedly run the typestate analysis on them
+ * without paying for the rest of the compilation.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class AnalyzedSources {
+    /** System property with the directory of the checker's test sources. */
+    public static final String SOURCES_PROPERTY = "typestate.bench.sources";
+
+    private final ProcessingEnvironment env;
+    private final List<CompilationUnitTree> units;
+    private final BenchmarkChecker checker;
+
+    private AnalyzedSources(ProcessingEnvironment env, List<CompilationUnitTree> units) {
+        this.env = env;
+        this.units = units;
+
+        this.checker = new BenchmarkChecker();
+        this.checker.init(env);
+    }
+
+    /**
+     * @param name Name (without the extension) of a file in {@code tests/typestate}.
+     * @return The test source file.
+     */
+    public static File testSource(String name) {
+        return new File(System.getProperty(SOURCES_PROPERTY, "tests/typestate"), name + ".java");
+    }
+
+    /**
+     * Parses and attributes the given sources, using the classpath of the current JVM.
+     * @param sources Source files to analyze.
+     * @return The analyzed sources.
+     * @throws IOException If the sources cannot be read, or don't compile.
+     */
+    public static AnalyzedSources analyze(List<File> sources) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"));
+        JavacTask task = (JavacTask) compiler.getTask(null, fileManager, diagnostics, options, null,
+                fileManager.getJavaFileObjectsFromFiles(sources));
+        EnvironmentCapture capture = new EnvironmentCapture();
+        task.setProcessors(Collections.singletonList(capture));
+
+        List<CompilationUnitTree> units = new ArrayList<CompilationUnitTree>();
+        for (CompilationUnitTree unit : task.parse()) {
+            units.add(unit);
+        }
+        task.analyze();
+
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                throw new IOException("Cannot compile " + sources + ": " + diagnostic);
+            }
+        }
+
+        return new AnalyzedSources(capture.env, units);
+    }
+
+    public ProcessingEnvironment getEnvironment() {
+        return env;
+    }
+
+    public List<CompilationUnitTree> getUnits() {
+        return units;
+    }
+
+    /**
+     * Runs the typestate checker on all units.
+     * @return The number of errors found.
+     */
+    public int check() {
+        int errors = 0;
+        for (CompilationUnitTree unit : units) {
+            errors += checker.check(unit);
+        }
+
+        return errors;
+    }
+
+    @SupportedAnnotationTypes("*")
+    private static class EnvironmentCapture extends AbstractProcessor {
+        private ProcessingEnvironment env;
+
+        @Override
+        public synchronized void init(ProcessingEnvironment processingEnv) {
+            super.init(processingEnv);
+            this.env = processingEnv;
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            return false;
+        }
+    }
+}
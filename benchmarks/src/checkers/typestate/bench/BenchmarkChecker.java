@@ -0,0 +1,31 @@
+package checkers.typestate.bench;
+
+import checkers.source.Result;
+import checkers.typestate.TypestateChecker;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.TreePath;
+
+/**
+ * The typestate checker, run directly on attributed compilation units. Errors are counted instead of being
+ * reported.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class BenchmarkChecker extends TypestateChecker {
+    private int errors;
+
+    @Override
+    public void report(Result r, Object src) {
+        errors++;
+    }
+
+    /**
+     * @param root An attributed compilation unit.
+     * @return The number of errors found in the unit.
+     */
+    public int check(CompilationUnitTree root) {
+        errors = 0;
+        createSourceVisitor(root).scan(new TreePath(root), null);
+        return errors;
+    }
+}
@@ -0,0 +1,70 @@
+package checkers.typestate.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
+
+/**
+ * Checking of call sites: a single method with a straight-line sequence of calls, each of which checks and changes
+ * the state of the receiver. Dividing the score by the number of calls gives the cost of a single call site check.
+ * @author Adam Warski (adam at warski dot org)
+ */
+@State(Scope.Thread)
+public class CallSiteBenchmark {
+    /** Number of call sites in the method. */
+    @Param({"10", "100", "1000"})
+    public int calls;
+
+    private AnalyzedSources sources;
+
+    @Setup
+    public void setUp() throws IOException {
+        File dir = File.createTempFile("typestate-bench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir + ".");
+        }
+
+        File source = new File(dir, "CallSites.java");
+        source.deleteOnExit();
+        dir.deleteOnExit();
+
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(source), "UTF-8"));
+        try {
+            writer.println("import checkers.typestate.State;");
+            writer.println("import checkers.typestate.NoChange;");
+            writer.println("public class CallSites {");
+            writer.println("    @State public static @interface Open { Class<?> after() default NoChange.class; }");
+            writer.println("    @State public static @interface Ready { Class<?> after() default NoChange.class; }");
+            writer.println("    public static class Stream {");
+            writer.println("        public void prepare() /*@Open(after=Ready.class)*/ { }");
+            writer.println("        public void read() /*@Ready*/ { }");
+            writer.println("        public void reset() /*@Ready(after=Open.class)*/ { }");
+            writer.println("    }");
+            writer.println("    public void run(@Open Stream s) {");
+            String[] cycle = { "prepare", "read", "reset" };
+            for (int i = 0; i < calls; i++) {
+                writer.println("        s." + cycle[i % cycle.length] + "();");
+            }
+            writer.println("    }");
+            writer.println("}");
+        } finally {
+            writer.close();
+        }
+
+        sources = AnalyzedSources.analyze(Collections.singletonList(source));
+    }
+
+    @Benchmark
+    public int check() {
+        return sources.check();
+    }
+}
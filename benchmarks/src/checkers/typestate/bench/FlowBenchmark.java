@@ -0,0 +1,35 @@
+package checkers.typestate.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * The whole analysis (state annotations detection and the flow) of representative files from
+ * {@code tests/typestate}: straight-line transitions, conditions split by boolean transitions, and exception states
+ * with try/catch/finally.
+ * @author Adam Warski (adam at warski dot org)
+ */
+@State(Scope.Thread)
+public class FlowBenchmark {
+    @Param({"SimpleReceiverTransitionState", "BooleanMethodReceiverState", "AnyWithExceptInParameterState",
+            "ReceiverExceptionState", "FinallyExceptionState"})
+    public String test;
+
+    private AnalyzedSources sources;
+
+    @Setup
+    public void setUp() throws IOException {
+        sources = AnalyzedSources.analyze(Collections.singletonList(AnalyzedSources.testSource(test)));
+    }
+
+    @Benchmark
+    public int check() {
+        return sources.check();
+    }
+}
@@ -0,0 +1,377 @@
+package checkers.typestate.bench;
+
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.stress.StressSourceGenerator;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Runs the typestate checker over a corpus of sources - e.g. {@code example/src}, generated stress sources, or a
+ * local checkout - and reports:
+ * <ul>
+ * <li>cold time: the wall time of checking the whole corpus in a new JVM, including its startup</li>
+ * <li>warm time: the time of checking the whole corpus in a JVM which already checked it a number of times</li>
+ * <li>peak heap: the peak usage of the heap, in the warm JVM and in the cold ones</li>
+ * <li>per file: the warm time of checking each file on its own, and the bytes allocated meanwhile</li>
+ * </ul>
+ *
+ * The report is a sorted list of {@code metric <tab> value} lines, so that reports of different runs can be diffed,
+ * or compared with the {@code -compare} option, which prints the relative change of each metric.
+ * <br />
+ * <tt>
+ * java checkers.typestate.bench.MacroBenchmark -sourcepath example/jdk:example/src:example/states -out report.tsv
+ * example/src
+ * </tt>
+ * <br />
+ * Options:
+ * <ul>
+ * <li>{@code -sourcepath path}: where the sources needed by the checked files are found</li>
+ * <li>{@code -Aname=value}: an option passed to the checker</li>
+ * <li>{@code -stress knob=value,...}: adds sources generated by {@link StressSourceGenerator} to the corpus</li>
+ * <li>{@code -warmup n}, {@code -iterations n}: warm-up and measured checks of the corpus in this JVM</li>
+ * <li>{@code -cold n}: number of checks in new JVMs</li>
+ * <li>{@code -out file}: where to write the report; by default, it is printed</li>
+ * <li>{@code -compare file}: a previous report, with which to compare this one</li>
+ * </ul>
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class MacroBenchmark {
+    private static final String CHILD = "-child";
+
+    private final List<String> originalArgs = new ArrayList<String>();
+    private final List<File> files = new ArrayList<File>();
+    // Names of the files in the report; generated files are named independently of their temporary directory.
+    private final Map<File, String> fileNames = new HashMap<File, String>();
+    private final List<String> checkerOptions = new ArrayList<String>();
+    private String sourcepath;
+    private int warmup = 3;
+    private int iterations = 5;
+    private int cold = 3;
+    private File out;
+    private File compare;
+    private boolean child;
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private StandardJavaFileManager fileManager;
+
+    public static void main(String[] args) throws Exception {
+        MacroBenchmark benchmark = new MacroBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+    }
+
+    private void parseArgs(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (CHILD.equals(arg)) {
+                child = true;
+                continue;
+            }
+
+            originalArgs.add(arg);
+            if ("-sourcepath".equals(arg)) {
+                sourcepath = args[++i];
+                originalArgs.add(sourcepath);
+            } else if (arg.startsWith("-A")) {
+                checkerOptions.add(arg);
+            } else if ("-stress".equals(arg)) {
+                originalArgs.remove(originalArgs.size() - 1);
+                // The generated sources are passed to the cold JVMs as files.
+                for (File generated : generateStress(args[++i])) {
+                    files.add(generated);
+                    fileNames.put(generated, "stress/" + generated.getName());
+                    originalArgs.add(generated.getPath());
+                }
+            } else if ("-warmup".equals(arg)) {
+                warmup = Integer.parseInt(args[++i]);
+                originalArgs.add(args[i]);
+            } else if ("-iterations".equals(arg)) {
+                iterations = Integer.parseInt(args[++i]);
+                originalArgs.add(args[i]);
+            } else if ("-cold".equals(arg)) {
+                cold = Integer.parseInt(args[++i]);
+                originalArgs.add(args[i]);
+            } else if ("-out".equals(arg)) {
+                out = new File(args[++i]);
+                originalArgs.add(args[i]);
+            } else if ("-compare".equals(arg)) {
+                compare = new File(args[++i]);
+                originalArgs.add(args[i]);
+            } else {
+                collectSources(new File(arg), files);
+            }
+        }
+
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No sources to check.");
+        }
+    }
+
+    private static List<File> generateStress(String knobs) throws IOException {
+        File dir = File.createTempFile("typestate-stress", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir + ".");
+        }
+
+        StressSourceGenerator generator = new StressSourceGenerator("stress", "Stress");
+        for (String knob : knobs.split(",")) {
+            String[] nameValue = knob.split("=", 2);
+            generator.set(nameValue[0], Integer.parseInt(nameValue[1]));
+        }
+
+        return generator.generate(dir);
+    }
+
+    private static void collectSources(File file, List<File> result) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                List<File> sorted = new ArrayList<File>();
+                Collections.addAll(sorted, children);
+                Collections.sort(sorted);
+                for (File child : sorted) {
+                    collectSources(child, result);
+                }
+            }
+        } else if (file.getName().endsWith(".java")) {
+            result.add(file);
+        }
+    }
+
+    private void run() throws Exception {
+        fileManager = compiler.getStandardFileManager(null, null, null);
+
+        if (child) {
+            // A single check in a new JVM; the parent measures the time.
+            resetPeakHeap();
+            check(files);
+            System.out.println("peak.heap.bytes\t" + peakHeap());
+            return;
+        }
+
+        SortedMap<String, Double> report = new TreeMap<String, Double>();
+        report.put("files", (double) files.size());
+
+        if (cold > 0) {
+            measureCold(report);
+        }
+
+        for (int i = 0; i < warmup; i++) {
+            check(files);
+        }
+
+        resetPeakHeap();
+        long totalNanos = 0;
+        long minNanos = Long.MAX_VALUE;
+        int errors = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            errors = check(files);
+            long nanos = System.nanoTime() - start;
+            totalNanos += nanos;
+            minNanos = Math.min(minNanos, nanos);
+        }
+        if (iterations > 0) {
+            report.put("warm.ms", millis(totalNanos / iterations));
+            report.put("warm.min.ms", millis(minNanos));
+            report.put("warm.peak.heap.bytes", (double) peakHeap());
+            report.put("errors", (double) errors);
+        }
+
+        measureFiles(report);
+
+        if (out == null) {
+            PrintWriter writer = new PrintWriter(System.out);
+            writeReport(report, writer);
+            writer.flush();
+        } else {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+            try {
+                writeReport(report, writer);
+            } finally {
+                writer.close();
+            }
+        }
+
+        if (compare != null) {
+            printComparison(readReport(compare), report);
+        }
+    }
+
+    private void measureCold(Map<String, Double> report) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        // Among others, the boot class path with the JSR 308 compiler.
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MacroBenchmark.class.getName());
+        command.add(CHILD);
+        command.addAll(originalArgs);
+
+        long totalNanos = 0;
+        long peakHeap = 0;
+        for (int i = 0; i < cold; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("peak.heap.bytes\t")) {
+                    peakHeap = Math.max(peakHeap, Long.parseLong(line.substring(line.indexOf('\t') + 1)));
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("The cold check failed: " + command);
+            }
+            totalNanos += System.nanoTime() - start;
+        }
+
+        report.put("cold.ms", millis(totalNanos / cold));
+        report.put("cold.peak.heap.bytes", (double) peakHeap);
+    }
+
+    private void measureFiles(Map<String, Double> report) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for (File file : files) {
+            List<File> single = Collections.singletonList(file);
+            long totalNanos = 0;
+            long allocated = 0;
+            // The first check warms up the code specific to the file.
+            check(single);
+            for (int i = 0; i < Math.max(iterations, 1); i++) {
+                long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                check(single);
+                totalNanos += System.nanoTime() - start;
+                allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            }
+
+            String name = fileNames.containsKey(file) ? fileNames.get(file) : file.getPath();
+            report.put("file.ms:" + name, millis(totalNanos / Math.max(iterations, 1)));
+            report.put("file.allocated.bytes:" + name, (double) allocated);
+        }
+    }
+
+    /**
+     * Checks the given files in this JVM, with a new instance of the checker.
+     * @return The number of errors reported.
+     */
+    private int check(List<File> toCheck) {
+        List<String> options = new ArrayList<String>();
+        options.add("-proc:only");
+        options.add("-classpath");
+        options.add(System.getProperty("java.class.path"));
+        if (sourcepath != null) {
+            options.add("-sourcepath");
+            options.add(sourcepath);
+        }
+        options.addAll(checkerOptions);
+
+        TypestateChecker checker = new TypestateChecker();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null,
+                fileManager.getJavaFileObjectsFromFiles(toCheck));
+        task.setProcessors(Collections.singletonList(checker));
+        task.call();
+        checker.writeStatistics();
+
+        int errors = 0;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors++;
+            }
+        }
+
+        return errors;
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private static void writeReport(SortedMap<String, Double> report, PrintWriter writer) {
+        for (Map.Entry<String, Double> entry : report.entrySet()) {
+            writer.println(entry.getKey() + "\t" + String.format(Locale.US, "%.3f", entry.getValue()));
+        }
+    }
+
+    private static SortedMap<String, Double> readReport(File reportFile) throws IOException {
+        SortedMap<String, Double> report = new TreeMap<String, Double>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(reportFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0) {
+                    report.put(line.substring(0, tab), Double.parseDouble(line.substring(tab + 1)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return report;
+    }
+
+    private static void printComparison(SortedMap<String, Double> baseline, SortedMap<String, Double> current) {
+        System.out.println(String.format(Locale.US, "%-60s %15s %15s %9s", "metric", "baseline", "current", "change"));
+        for (Map.Entry<String, Double> entry : current.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+
+            String change = before == 0 ? "" : String.format(Locale.US, "%+8.1f%%",
+                    (entry.getValue() - before) * 100 / before);
+            System.out.println(String.format(Locale.US, "%-60s %15.3f %15.3f %9s", entry.getKey(), before,
+                    entry.getValue(), change));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package checkers.typestate.bench;
+
+import checkers.typestate.runtime.RuntimeSpec;
+import checkers.typestate.runtime.TypestateMonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Overhead of the runtime monitor on a call of a method with a spec: the calls which the agent inserts on entry
+ * ({@link TypestateMonitor#before}) and on return ({@link TypestateMonitor#after}), around a trivial method, as in
+ * an instrumented {@code InputStream.read()}. Subtracting the score of {@link #unmonitored} from the others gives the
+ * cost per call: of a tracked object, and of an object of an unknown state, which costs only a lookup.
+ *
+ * The calls go round-robin over the given number of objects, all of which are in the state table; with many objects,
+ * the lookups miss the caches. Run with {@code -t} to measure concurrent callers.
+ * @author Adam Warski (adam at warski dot org)
+ */
+@State(Scope.Thread)
+public class MonitorBenchmark {
+    /** Number of objects in the state table, a power of two. */
+    @Param({"1", "1024", "1048576"})
+    public int objects;
+
+    private static final int[][] NO_EXCEPT = { new int[0] };
+
+    // The specs are registered once per JVM.
+    private static boolean registered;
+    private static int openSpec;
+    private static int readSpec;
+
+    private Stream[] tracked;
+    private Stream[] untracked;
+    private int next;
+
+    /** The monitored method. */
+    public static class Stream {
+        private int position;
+
+        public int read() {
+            return position++;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        synchronized (MonitorBenchmark.class) {
+            if (!registered) {
+                int open = TypestateMonitor.stateId("Open");
+                int[] noChange = { RuntimeSpec.NO_CHANGE };
+                openSpec = TypestateMonitor.register(new RuntimeSpec("Stream.<init>", "receiver", new int[] { open },
+                        NO_EXCEPT, noChange, noChange, noChange, noChange));
+                readSpec = TypestateMonitor.register(new RuntimeSpec("Stream.read", "receiver", new int[] { open },
+                        NO_EXCEPT, noChange, noChange, noChange, noChange));
+                registered = true;
+            }
+        }
+
+        tracked = new Stream[objects];
+        untracked = new Stream[objects];
+        for (int i = 0; i < objects; i++) {
+            tracked[i] = new Stream();
+            TypestateMonitor.returned(tracked[i], openSpec);
+            untracked[i] = new Stream();
+        }
+    }
+
+    @Benchmark
+    public int unmonitored() {
+        return tracked[next++ & (objects - 1)].read();
+    }
+
+    @Benchmark
+    public int monitoredTracked() {
+        return monitoredRead(tracked[next++ & (objects - 1)]);
+    }
+
+    @Benchmark
+    public int monitoredUntracked() {
+        return monitoredRead(untracked[next++ & (objects - 1)]);
+    }
+
+    // As the code inserted by the agent into read().
+    private static int monitoredRead(Stream stream) {
+        TypestateMonitor.before(stream, readSpec);
+        int result = stream.read();
+        TypestateMonitor.after(stream, readSpec);
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+package checkers.typestate.bench;
+
+import checkers.flow.GenKillBits;
+import checkers.flow.StateVector;
+import checkers.flow.StateVectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Operations on the state vectors of the flow analysis, as done at each branch, merge and loop: copying, "and"-ing,
+ * and merging (a copy followed by an "and"). The "and" is applied to a fresh copy of the vector in each invocation, as
+ * an already "and"-ed vector would not change. Each size class is run with the representation chosen by
+ * {@link StateVectors} ("ADAPTIVE"), with each fixed representation, and with the framework's {@link GenKillBits}.
+ * As in the analysis, each variable is set in a single state, and the merged vectors differ for one in ten variables.
+ * @author Adam Warski (adam at warski dot org)
+ */
+@State(Scope.Thread)
+public class StateVectorBenchmark {
+    /** Size class: small (3 states, 16 variables), large dense (4, 2048) or large sparse (1024, 1024). */
+    @Param({"SMALL", "LARGE_DENSE", "LARGE_SPARSE"})
+    public String size;
+
+    /** Representation: ADAPTIVE, PACKED, SPARSE or GEN_KILL_BITS; LONG fits only the small size class. */
+    @Param({"ADAPTIVE", "PACKED", "SPARSE", "GEN_KILL_BITS"})
+    public String layout;
+
+    private StateVector<String> bits;
+    private StateVector<String> otherBits;
+    // A copy of the bits, "and"-ed by a single invocation.
+    private StateVector<String> andedBits;
+
+    @Setup
+    public void setUp() {
+        int states;
+        int vars;
+        if ("SMALL".equals(size)) {
+            states = 3;
+            vars = 16;
+        } else if ("LARGE_DENSE".equals(size)) {
+            states = 4;
+            vars = 2048;
+        } else {
+            states = 1024;
+            vars = 1024;
+        }
+
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < states; i++) {
+            keys.add("State" + i);
+        }
+
+        Random random = new Random(0);
+        int[] varStates = new int[vars];
+        bits = createBits(keys, vars);
+        for (int i = 0; i < vars; i++) {
+            varStates[i] = random.nextInt(states);
+            bits.set(keys.get(varStates[i]), i);
+        }
+
+        otherBits = bits.copy();
+        for (int i = 0; i < vars; i += 10) {
+            otherBits.clear(keys.get(varStates[i]), i);
+            otherBits.set(keys.get(random.nextInt(states)), i);
+        }
+    }
+
+    private StateVector<String> createBits(List<String> keys, int vars) {
+        if ("GEN_KILL_BITS".equals(layout)) {
+            return new GenKillBitsVector(new GenKillBits<String>(keys));
+        }
+
+        StateVectors<String> vectors = new StateVectors<String>(keys);
+        return "ADAPTIVE".equals(layout) ? vectors.create(vars)
+                : vectors.create(StateVectors.Kind.valueOf(layout), vars);
+    }
+
+    @Benchmark
+    public StateVector<String> copy() {
+        return bits.copy();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyBits() {
+        andedBits = bits.copy();
+    }
+
+    @Benchmark
+    public StateVector<String> and() {
+        andedBits.and(otherBits);
+        return andedBits;
+    }
+
+    @Benchmark
+    public StateVector<String> merge() {
+        StateVector<String> merged = bits.copy();
+        merged.and(otherBits);
+        return merged;
+    }
+
+    /**
+     * The framework's bits, as the fixed layout used before {@link StateVectors}.
+     */
+    private static class GenKillBitsVector implements StateVector<String> {
+        private final GenKillBits<String> bits;
+
+        private GenKillBitsVector(GenKillBits<String> bits) {
+            this.bits = bits;
+        }
+
+        public boolean get(String key, int var) {
+            return bits.get(key, var);
+        }
+
+        public void set(String key, int var) {
+            bits.set(key, var);
+        }
+
+        public void clear(String key, int var) {
+            bits.clear(key, var);
+        }
+
+        public void and(StateVector<String> other) {
+            bits.and(((GenKillBitsVector) other).bits);
+        }
+
+        public StateVector<String> copy() {
+            return new GenKillBitsVector(GenKillBits.copy(bits));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package checkers.typestate.bench;
+
+import checkers.typestate.TransitionElement;
+import checkers.typestate.TypestateUtil;
+import checkers.util.AnnotationUtils;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decoding of state annotations by {@link TypestateUtil}, as done for each checked argument and receiver: filtering
+ * the state annotations, and reading the transition, exception and "except" elements. The annotations are read from
+ * the parameters declared in {@code tests/typestate}.
+ * @author Adam Warski (adam at warski dot org)
+ */
+@State(Scope.Thread)
+public class TypestateUtilBenchmark {
+    private TypestateUtil typestateUtil;
+
+    // All annotations of the parameters, and only the state (and any-state) ones.
+    private Set<AnnotationMirror> annotations;
+    private List<AnnotationMirror> stateAnnotations;
+
+    @Setup
+    public void setUp() throws IOException {
+        AnalyzedSources sources = AnalyzedSources.analyze(Arrays.asList(
+                AnalyzedSources.testSource("FinallyExceptionState"),
+                AnalyzedSources.testSource("AnyWithExceptInParameterState"),
+                AnalyzedSources.testSource("DoubleVariableTransitionState"),
+                AnalyzedSources.testSource("NonNullOnParameterWithoutState")));
+
+        typestateUtil = new TypestateUtil(sources.getEnvironment());
+        annotations = AnnotationUtils.createAnnotationSet();
+
+        final Trees trees = Trees.instance(sources.getEnvironment());
+        for (CompilationUnitTree unit : sources.getUnits()) {
+            new TreePathScanner<Void, Void>() {
+                @Override
+                public Void visitMethod(MethodTree node, Void p) {
+                    for (VariableTree parameter : node.getParameters()) {
+                        Element element = trees.getElement(trees.getPath(getCurrentPath().getCompilationUnit(),
+                                parameter));
+                        annotations.addAll(element.getAnnotationMirrors());
+                    }
+
+                    return super.visitMethod(node, p);
+                }
+            }.scan(unit, null);
+        }
+
+        stateAnnotations = new ArrayList<AnnotationMirror>(typestateUtil.filterStateAnnotations(annotations));
+    }
+
+    @Benchmark
+    public Set<AnnotationMirror> filterStateAnnotations() {
+        return typestateUtil.filterStateAnnotations(annotations);
+    }
+
+    @Benchmark
+    public void readTransitionElements(Blackhole blackhole) {
+        for (AnnotationMirror stateAnnotation : stateAnnotations) {
+            for (TransitionElement transitionElement : TransitionElement.values()) {
+                blackhole.consume(typestateUtil.getTransitionElementValue(stateAnnotation, transitionElement));
+            }
+            blackhole.consume(typestateUtil.getExceptionElementValue(stateAnnotation));
+        }
+    }
+
+    @Benchmark
+    public void readExceptElements(Blackhole blackhole) {
+        for (AnnotationMirror stateAnnotation : stateAnnotations) {
+            if (typestateUtil.isAnyStateAnnotation(stateAnnotation)) {
+                blackhole.consume(typestateUtil.getExceptElementValue(stateAnnotation));
+            }
+        }
+    }
+}
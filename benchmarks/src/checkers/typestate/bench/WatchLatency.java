@@ -0,0 +1,218 @@
+package checkers.typestate.bench;
+
+import checkers.typestate.watch.WatchMode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of {@link WatchMode} on a copy of the example: the wall time from saving an edit of a source
+ * to printing the end of its check, which includes noticing the change. The sources of the example are edited in
+ * turns, by appending a comment, so that each edit re-checks one unit with warm stubs and state annotation types.
+ *
+ * Prints the time of the first check and the median and maximal latency of the edits; exits with a non-zero status if
+ * the median latency exceeds the given limit.
+ * <br />
+ * <tt>
+ * java checkers.typestate.bench.WatchLatency -edits 20 -max 1000 example
+ * </tt>
+ * <br />
+ * Options:
+ * <ul>
+ * <li>{@code -edits n}: number of the measured edits; the first edit of each unit is not measured</li>
+ * <li>{@code -max ms}: the maximal allowed median latency</li>
+ * </ul>
+ * The example directory must hold the {@code jdk} stubs, the {@code states} and the {@code src} to check.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class WatchLatency {
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private int edits = 20;
+    private long maxMillis = Long.MAX_VALUE;
+    private File example;
+
+    // The times at which the checks ended, as printed by the watch mode.
+    private final BlockingQueue<Long> checked = new LinkedBlockingQueue<Long>();
+
+    public static void main(String[] args) throws Exception {
+        WatchLatency benchmark = new WatchLatency();
+        benchmark.parseArgs(args);
+        System.exit(benchmark.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-edits".equals(arg)) {
+                edits = Integer.parseInt(args[++i]);
+            } else if ("-max".equals(arg)) {
+                maxMillis = Long.parseLong(args[++i]);
+            } else {
+                example = new File(arg);
+            }
+        }
+
+        if (example == null) {
+            throw new IllegalArgumentException("No example directory.");
+        }
+    }
+
+    private boolean run() throws Exception {
+        File dir = Files.createTempDirectory("typestate-watch-latency").toFile();
+        copy(example, dir);
+        File src = new File(dir, "src");
+        List<File> sources = new ArrayList<File>();
+        collectSources(src, sources);
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("No sources in " + src + ".");
+        }
+
+        final WatchMode watchMode = new WatchMode(new PrintStream(new OutputStream() {
+            private final StringBuilder line = new StringBuilder();
+
+            @Override
+            public void write(int b) {
+                if (b != '\n') {
+                    line.append((char) b);
+                    return;
+                }
+
+                System.out.println(line);
+                if (line.toString().startsWith("Checked ")) {
+                    checked.add(System.nanoTime());
+                }
+                line.setLength(0);
+            }
+        }, true));
+        watchMode.parseArgs("-stubs", new File(dir, "jdk").getPath(), "-states", new File(dir, "states").getPath(),
+                "-sourcepath", src.getPath(), "-cache", new File(dir, "cache").getPath(),
+                "-deps", new File(dir, "typestate.deps").getPath(), src.getPath());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    watchMode.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        thread.start();
+        long firstCheckNanos = awaitCheck() - start;
+
+        List<Long> latencies = new ArrayList<Long>();
+        try {
+            for (int i = 0; i < sources.size() + edits; i++) {
+                // Letting the watcher settle, so that each edit is checked on its own.
+                Thread.sleep(200);
+                checked.clear();
+
+                File source = sources.get(i % sources.size());
+                long edited = System.nanoTime();
+                append(source, "// Edit " + i + "\n");
+                long latency = awaitCheck() - edited;
+                if (i >= sources.size()) {
+                    latencies.add(latency);
+                }
+            }
+        } finally {
+            watchMode.stop();
+            thread.join();
+            delete(dir);
+        }
+
+        Collections.sort(latencies);
+        double median = millis(latencies.get(latencies.size() / 2));
+        System.out.println(String.format(Locale.US, "first.check.ms\t%.3f", millis(firstCheckNanos)));
+        System.out.println(String.format(Locale.US, "latency.median.ms\t%.3f", median));
+        System.out.println(String.format(Locale.US, "latency.max.ms\t%.3f",
+                millis(latencies.get(latencies.size() - 1))));
+
+        if (median > maxMillis) {
+            System.out.println("The median latency exceeds " + maxMillis + " ms.");
+            return false;
+        }
+
+        return true;
+    }
+
+    private long awaitCheck() throws InterruptedException {
+        Long time = checked.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (time == null) {
+            throw new IllegalStateException("No check within " + TIMEOUT_SECONDS + " s.");
+        }
+
+        return time;
+    }
+
+    private static void append(File file, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            if (!to.isDirectory() && !to.mkdirs()) {
+                throw new IOException("Cannot create " + to + ".");
+            }
+            File[] children = from.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    copy(child, new File(to, child.getName()));
+                }
+            }
+        } else {
+            Files.copy(from.toPath(), to.toPath());
+        }
+    }
+
+    private static void collectSources(File file, List<File> result) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                List<File> sorted = new ArrayList<File>();
+                Collections.addAll(sorted, children);
+                Collections.sort(sorted);
+                for (File child : sorted) {
+                    collectSources(child, result);
+                }
+            }
+        } else if (file.getName().endsWith(".java")) {
+            result.add(file);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -24,3 +24,8 @@ SOURCES=src/checkers/typestate/iteratorexample/Example4.java
 SOURCEPATH=jdk:src:states
 
 javac -processor $CHECKER -proc:only -sourcepath $SOURCEPATH -cp $CLASSPATH $SOURCES
+
+### Alternatively, use the stubs precompiled into a spec index ("ant spec-index"), instead of parsing them on each run.
+
+#SPECINDEX=../dist/spec-index
+#javac -processor $CHECKER -proc:only -Atypestate.specIndex=$SPECINDEX -sourcepath src:states -cp $CLASSPATH $SOURCES
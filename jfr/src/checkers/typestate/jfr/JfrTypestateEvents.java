@@ -0,0 +1,144 @@
+package checkers.typestate.jfr;
+
+import checkers.typestate.events.TypestateEvents;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emits the analysis events as JDK Flight Recorder events, in the "Typestate Checker" category. Whether each kind of
+ * event is recorded is decided by the recording settings; disabled events aren't even created.
+ *
+ * Built by the "build-jfr" target, as it needs a JDK with {@code jdk.jfr}. When its jar is on the processor path,
+ * the checker uses it automatically.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class JfrTypestateEvents extends TypestateEvents {
+    @Name("checkers.typestate.CompilationUnit")
+    @Label("Typestate Compilation Unit")
+    @Category("Typestate Checker")
+    @Description("Analysis of a compilation unit")
+    static class UnitEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Methods")
+        int methods;
+
+        @Label("States")
+        int states;
+    }
+
+    @Name("checkers.typestate.Method")
+    @Label("Typestate Method")
+    @Category("Typestate Checker")
+    @Description("Flow analysis of a method")
+    static class MethodEvent extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Position")
+        String position;
+
+        @Label("Tracked Variables")
+        int trackedVariables;
+
+        @Label("States")
+        int states;
+
+        @Label("Iterations")
+        @Description("Rescans of loops, finally blocks and conditions")
+        int iterations;
+    }
+
+    @Name("checkers.typestate.Construct")
+    @Label("Typestate Construct")
+    @Category("Typestate Checker")
+    @Description("Flow analysis of a loop fixpoint, a try/finally or a condition split")
+    static class ConstructEvent extends Event {
+        @Label("Construct")
+        String construct;
+
+        @Label("Position")
+        String position;
+    }
+
+    private static final EventType UNIT_EVENT_TYPE = EventType.getEventType(UnitEvent.class);
+    private static final EventType METHOD_EVENT_TYPE = EventType.getEventType(MethodEvent.class);
+    private static final EventType CONSTRUCT_EVENT_TYPE = EventType.getEventType(ConstructEvent.class);
+
+    @Override
+    public Object beginUnit() {
+        if (!UNIT_EVENT_TYPE.isEnabled()) {
+            return null;
+        }
+
+        UnitEvent event = new UnitEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endUnit(Object event, String file, int methods, int states) {
+        UnitEvent unitEvent = (UnitEvent) event;
+        unitEvent.end();
+        if (unitEvent.shouldCommit()) {
+            unitEvent.file = file;
+            unitEvent.methods = methods;
+            unitEvent.states = states;
+            unitEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginMethod() {
+        if (!METHOD_EVENT_TYPE.isEnabled()) {
+            return null;
+        }
+
+        MethodEvent event = new MethodEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endMethod(Object event, String method, String position, int trackedVariables, int states,
+                          int iterations) {
+        MethodEvent methodEvent = (MethodEvent) event;
+        methodEvent.end();
+        if (methodEvent.shouldCommit()) {
+            methodEvent.method = method;
+            methodEvent.position = position;
+            methodEvent.trackedVariables = trackedVariables;
+            methodEvent.states = states;
+            methodEvent.iterations = iterations;
+            methodEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginConstruct() {
+        if (!CONSTRUCT_EVENT_TYPE.isEnabled()) {
+            return null;
+        }
+
+        ConstructEvent event = new ConstructEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endConstruct(Object event, Construct construct, String position) {
+        ConstructEvent constructEvent = (ConstructEvent) event;
+        constructEvent.end();
+        if (constructEvent.shouldCommit()) {
+            constructEvent.construct = construct.name();
+            constructEvent.position = position;
+            constructEvent.commit();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package checkers.flow;
+
+/**
+ * Base class of the state vectors, which are sets of bits; the bit of a key and variable is given by
+ * {@link StateVectors#bit(Object, int)}.
+ *
+ * Vectors are equal if they have the same representation and the same bits set. A vector interned by
+ * {@link StateVectors#intern(StateVector)} is frozen: it may be shared, so it can't be modified, and its hash code
+ * is computed once.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+abstract class AbstractStateVector<K> implements StateVector<K> {
+    protected final StateVectors<K> vectors;
+
+    private boolean frozen;
+    private int hash;
+
+    protected AbstractStateVector(StateVectors<K> vectors) {
+        this.vectors = vectors;
+    }
+
+    abstract StateVectors.Kind getKind();
+
+    abstract boolean getBit(int bit);
+
+    abstract void setBit(int bit);
+
+    abstract void clearBit(int bit);
+
+    /**
+     * @return indexes of all bits which are set, in any order
+     */
+    abstract int[] getSetBits();
+
+    /**
+     * Merges a vector of the same representation.
+     */
+    abstract void andSame(AbstractStateVector<K> other);
+
+    /**
+     * @return true iff the given vector, of the same representation, has the same bits set
+     */
+    abstract boolean bitsEqual(AbstractStateVector<K> other);
+
+    /**
+     * @return a hash of the set bits, which doesn't depend on the capacity of the vector
+     */
+    abstract int bitsHash();
+
+    boolean isFrozen() {
+        return frozen;
+    }
+
+    AbstractStateVector<K> frozenCopy() {
+        AbstractStateVector<K> result = (AbstractStateVector<K>) copy();
+        result.frozen = true;
+        result.hash = result.bitsHash();
+        return result;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("An interned state vector can't be modified.");
+        }
+    }
+
+    public boolean get(K key, int var) {
+        return getBit(vectors.bit(key, var));
+    }
+
+    public void set(K key, int var) {
+        checkNotFrozen();
+        setBit(vectors.bit(key, var));
+    }
+
+    public void clear(K key, int var) {
+        checkNotFrozen();
+        clearBit(vectors.bit(key, var));
+    }
+
+    public void and(StateVector<K> other) {
+        checkNotFrozen();
+        if (other == this) {
+            return;
+        }
+
+        AbstractStateVector<K> otherVector = (AbstractStateVector<K>) other;
+        if (otherVector.getClass() == getClass()) {
+            andSame(otherVector);
+        } else {
+            for (int bit : getSetBits()) {
+                if (!otherVector.getBit(bit)) {
+                    clearBit(bit);
+                }
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked"})
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+
+        AbstractStateVector<K> other = (AbstractStateVector<K>) o;
+        if (frozen && other.frozen && hash != other.hash) {
+            return false;
+        }
+        return bitsEqual(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return frozen ? hash : bitsHash();
+    }
+}
@@ -0,0 +1,180 @@
+package checkers.flow;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The transfer of a run of straight-line statements (without branches, loops or nested classes), recorded by
+ * {@link MainFlow} when the run is scanned, so that scanning the run again can be replaced by applying the transfer to
+ * the bits, as bit operations.
+ *
+ * The transfer depends only on the entry bits of the variables which the run reads before writing them; for the other
+ * variables, it is the identity. It consists of:
+ * <ul>
+ * <li>the bits, after the run, of the variables written by it</li>
+ * <li>the bits passed to the exception handlers, given by the bits of the variables read or written by the run (the
+ * other ones are the entry bits)</li>
+ * <li>the liveness after the run</li>
+ * <li>other effects of the run, e.g. reported errors, which are replayed by the analysis</li>
+ * </ul>
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+class BlockTransfer<K> {
+    private final List<K> keys;
+    private final boolean aliveEntry;
+    private final boolean exceptional;
+
+    // Variables read before being written, with the indexes of their keys set on entry.
+    private final Map<Integer, BitSet> entryBits = new HashMap<Integer, BitSet>();
+    private final Set<Integer> written = new HashSet<Integer>();
+    // Variables written, with the indexes of their keys set after the run.
+    private final Map<Integer, BitSet> exitBits = new HashMap<Integer, BitSet>();
+    private final List<Map<Integer, BitSet>> exceptionBits = new ArrayList<Map<Integer, BitSet>>();
+    private final List<Object> effects = new ArrayList<Object>();
+    private boolean aliveExit;
+
+    /**
+     * @param keys the tracked keys, in a fixed order
+     * @param aliveEntry the liveness on entry to the run
+     * @param exceptional true iff the run is in a try or catch block, so that the bits passed to the exception
+     *        handlers are used
+     */
+    BlockTransfer(List<K> keys, boolean aliveEntry, boolean exceptional) {
+        this.keys = keys;
+        this.aliveEntry = aliveEntry;
+        this.exceptional = exceptional;
+    }
+
+    /**
+     * Records that the bits of the variable are read; if it wasn't written yet, the transfer depends on its bits.
+     *
+     * @param var the index of the variable
+     * @param bits the current bits
+     */
+    void read(int var, StateVector<K> bits) {
+        if (!written.contains(var) && !entryBits.containsKey(var)) {
+            entryBits.put(var, bitsOf(bits, var));
+        }
+    }
+
+    void write(int var) {
+        written.add(var);
+    }
+
+    /**
+     * Records bits passed to the exception handlers. They may differ from the current bits only in the variables
+     * read or written so far.
+     *
+     * @param bits the bits passed to the exception handlers
+     */
+    void exception(StateVector<K> bits) {
+        Map<Integer, BitSet> varBits = new HashMap<Integer, BitSet>();
+        for (Integer var : entryBits.keySet()) {
+            varBits.put(var, bitsOf(bits, var));
+        }
+        for (Integer var : written) {
+            varBits.put(var, bitsOf(bits, var));
+        }
+        exceptionBits.add(varBits);
+    }
+
+    void effect(Object effect) {
+        effects.add(effect);
+    }
+
+    /**
+     * Ends the recording of the run.
+     *
+     * @param bits the bits after the run
+     * @param alive the liveness after the run
+     */
+    void finish(StateVector<K> bits, boolean alive) {
+        for (Integer var : written) {
+            exitBits.put(var, bitsOf(bits, var));
+        }
+        aliveExit = alive;
+    }
+
+    /**
+     * @return true iff scanning the run with the given entry state would have the recorded results
+     */
+    boolean matches(StateVector<K> bits, boolean alive, boolean exceptional) {
+        if (alive != aliveEntry || exceptional != this.exceptional) {
+            return false;
+        }
+
+        for (Map.Entry<Integer, BitSet> entry : entryBits.entrySet()) {
+            if (!bitsOf(bits, entry.getKey()).equals(entry.getValue())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true iff the run writes any variables, so that applying the transfer modifies the bits
+     */
+    boolean isWriting() {
+        return !exitBits.isEmpty();
+    }
+
+    /**
+     * Sets the bits after the run, of the variables written by it.
+     *
+     * @param bits the (modifiable) entry bits
+     */
+    void apply(StateVector<K> bits) {
+        set(exitBits, bits);
+    }
+
+    int getExceptions() {
+        return exceptionBits.size();
+    }
+
+    /**
+     * Sets the bits passed to the exception handlers by the run.
+     *
+     * @param exception the index of the recorded exception bits
+     * @param bits a (modifiable) copy of the entry bits
+     */
+    void applyException(int exception, StateVector<K> bits) {
+        set(exceptionBits.get(exception), bits);
+    }
+
+    boolean isAliveExit() {
+        return aliveExit;
+    }
+
+    List<Object> getEffects() {
+        return effects;
+    }
+
+    private BitSet bitsOf(StateVector<K> bits, int var) {
+        BitSet varBits = new BitSet(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (bits.get(keys.get(i), var)) {
+                varBits.set(i);
+            }
+        }
+        return varBits;
+    }
+
+    private void set(Map<Integer, BitSet> varBits, StateVector<K> bits) {
+        for (Map.Entry<Integer, BitSet> entry : varBits.entrySet()) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (entry.getValue().get(i)) {
+                    bits.set(keys.get(i), entry.getKey());
+                } else {
+                    bits.clear(keys.get(i), entry.getKey());
+                }
+            }
+        }
+    }
+}
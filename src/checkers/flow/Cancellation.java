@@ -0,0 +1,16 @@
+package checkers.flow;
+
+/**
+ * Signals that a running analysis should be abandoned. The analysis checks the signal cooperatively, on each scanned
+ * tree (see {@link MainFlow#setCancellation(Cancellation)}), and then throws a
+ * {@link java.util.concurrent.CancellationException}.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public interface Cancellation {
+    /**
+     * @return true iff the analysis should be abandoned; may be called
+     *         from the analysing thread very often, so should be cheap
+     */
+    boolean isCancelled();
+}
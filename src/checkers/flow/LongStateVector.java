@@ -0,0 +1,66 @@
+package checkers.flow;
+
+/**
+ * A state vector held in a single long, for methods with few variables and keys. The number of bits is fixed, so
+ * the vector must be created for an upper bound of the number of variables.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+class LongStateVector<K> extends AbstractStateVector<K> {
+    static final int CAPACITY = 64;
+
+    private long bits;
+
+    LongStateVector(StateVectors<K> vectors) {
+        super(vectors);
+    }
+
+    StateVectors.Kind getKind() {
+        return StateVectors.Kind.LONG;
+    }
+
+    boolean getBit(int bit) {
+        return bit < CAPACITY && (bits & (1L << bit)) != 0;
+    }
+
+    void setBit(int bit) {
+        if (bit >= CAPACITY) {
+            throw new IllegalArgumentException("Bit " + bit + " exceeds the capacity of a single long.");
+        }
+        bits |= 1L << bit;
+    }
+
+    void clearBit(int bit) {
+        if (bit < CAPACITY) {
+            bits &= ~(1L << bit);
+        }
+    }
+
+    int[] getSetBits() {
+        int[] result = new int[Long.bitCount(bits)];
+        long remaining = bits;
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+        }
+        return result;
+    }
+
+    void andSame(AbstractStateVector<K> other) {
+        bits &= ((LongStateVector<K>) other).bits;
+    }
+
+    boolean bitsEqual(AbstractStateVector<K> other) {
+        return bits == ((LongStateVector<K>) other).bits;
+    }
+
+    int bitsHash() {
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    public StateVector<K> copy() {
+        LongStateVector<K> result = new LongStateVector<K>(vectors);
+        result.bits = bits;
+        return result;
+    }
+}
@@ -6,6 +6,7 @@ import checkers.types.AnnotatedTypeMirror.*;
 import checkers.util.*;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 import com.sun.source.tree.*;
 import com.sun.source.util.*;
@@ -27,6 +28,18 @@ import javax.lang.model.util.Elements;
  * - removed the {@code void recordBits(TreePath path)} method and all its usages
  * - modified the analysis of try-catch-finally to be more accurate
  * - modified {@code alive} to be protected
+ * - added hooks for copying and merging bits, and for rescans, so that subclasses can collect statistics
+ * - replaced {@code GenKillBits} with {@link StateVector}s, with the representation chosen for each method
+ * - the variables declared in a method are removed from {@code vars} after the method
+ * - copies of the bits are interned, and modified only after {@link #writable(StateVector)}; the second pass of a
+ *   loop is skipped if it would start with the same bits as the first one
+ * - optionally, the transfers of runs of straight-line statements are recorded, and applied when the runs are
+ *   scanned again with the same relevant bits; see {@link BlockTransfer}
+ * - added a hook through which subclasses can analyse a method instead of it being scanned
+ * - the scan can be cancelled cooperatively, and subclasses can change the order in which the methods of a class are
+ *   scanned
+ * - the bits at breaks and continues are merged into the bits after the target statement and at the end of the loop
+ *   body, respectively; the cases of a switch are entered with the bits after the switch expression
  *
  * @author Adam Warski (adam at warski dot org)
  * @author The authors of the {@link Flow} class.
@@ -71,7 +84,7 @@ public class MainFlow extends TreePathScanner<Void, Void> {
      * true and false branches, however, it may be non-null concurrently with
      * {@link #annosWhenTrue} and {@link #annosWhenFalse}.
      */
-    protected GenKillBits<AnnotationMirror> annos;
+    protected StateVector<AnnotationMirror> annos;
 
     /**
      * Tracks the annotated state of each variable in a true branch. As in
@@ -82,7 +95,7 @@ public class MainFlow extends TreePathScanner<Void, Void> {
      *
      * @see #annos
      */
-    protected GenKillBits<AnnotationMirror> annosWhenTrue;
+    protected StateVector<AnnotationMirror> annosWhenTrue;
 
     /**
      * Tracks the annotated state of each variable in a false branch. As in
@@ -93,7 +106,7 @@ public class MainFlow extends TreePathScanner<Void, Void> {
      *
      * @see #annos
      */
-    protected GenKillBits<AnnotationMirror> annosWhenFalse;
+    protected StateVector<AnnotationMirror> annosWhenFalse;
 
     /**
      * Stores the result of liveness analysis, required by the GEN-KILL analysis
@@ -104,22 +117,56 @@ public class MainFlow extends TreePathScanner<Void, Void> {
     /**
 	 * Tracks annotations in potential exception-throwing statements in try blocks.
 	 */
-    protected final Deque<GenKillBits<AnnotationMirror>> tryBits;
+    protected final Deque<StateVector<AnnotationMirror>> tryBits;
 
 	/**
 	 * Tracks annotations in potential exception-throwing statements in catch blocks.
 	 */
-    protected final Deque<GenKillBits<AnnotationMirror>> catchBits;
+    protected final Deque<StateVector<AnnotationMirror>> catchBits;
 
     /** Visitor state; tracking is required for checking receiver types. */
     private final VisitorState visitorState;
 
+    /** Creates the state vectors, for the tracked annotations. */
+    protected final StateVectors<AnnotationMirror> stateVectors;
+
     /** Utilities for {@link Element}s. */
     protected final Elements elements;
 
     /** Memoization for {@link #varDefHasAnnotation(AnnotationMirror, Element)}. */
     private Map<Element, Boolean> annotatedVarDefs = new HashMap<Element, Boolean>();
 
+    /** The maximum number of transfers recorded for a run of statements, with different entry bits. */
+    private static final int MAX_BLOCK_TRANSFERS = 4;
+
+    /** If true, the transfers of runs of straight-line statements are recorded and reused. */
+    private boolean blockSummaries = false;
+
+    /** The tracked annotations, in a fixed order. */
+    private final List<AnnotationMirror> keys;
+
+    /**
+     * The transfers recorded for runs of straight-line statements, by the first statement of the run. As they use
+     * the indexes of the variables, they are discarded when the variables change: after a method, and on a class.
+     */
+    private final Map<Tree, List<BlockTransfer<AnnotationMirror>>> blockTransfers =
+            new HashMap<Tree, List<BlockTransfer<AnnotationMirror>>>();
+
+    /** Memoization for {@link #isStraightLine(StatementTree)}. */
+    private final Map<Tree, Boolean> straightLine = new HashMap<Tree, Boolean>();
+
+    /** The transfer being recorded, or null. */
+    private BlockTransfer<AnnotationMirror> recording;
+
+    /** If not null, checked on each scanned tree, to abandon the scan when cancelled. */
+    private Cancellation cancellation;
+
+    /** The statements which the breaks and continues being scanned may jump to, innermost first. */
+    private final Deque<JumpTarget> jumpTargets = new LinkedList<JumpTarget>();
+
+    /** The label of the loop which is scanned next, if any. */
+    private Name pendingLabel;
+
 	/**
      * Creates a new analysis. The analysis will use the given {@link
      * AnnotatedTypeFactory} to obtain annotated types.
@@ -149,18 +196,42 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 
         this.vars = new ArrayList<VariableElement>();
 
-        this.annos = new GenKillBits<AnnotationMirror>(this.annotations);
+        this.stateVectors = new StateVectors<AnnotationMirror>(this.annotations);
+        this.keys = new ArrayList<AnnotationMirror>(this.annotations);
+        // The number of variables outside of methods isn't known up front.
+        this.annos = stateVectors.create(StateVectors.Kind.PACKED, 0);
         this.annosWhenTrue = null;
         this.annosWhenFalse = null;
 
-        this.tryBits = new LinkedList<GenKillBits<AnnotationMirror>>();
-		this.catchBits = new LinkedList<GenKillBits<AnnotationMirror>>();
+        this.tryBits = new LinkedList<StateVector<AnnotationMirror>>();
+		this.catchBits = new LinkedList<StateVector<AnnotationMirror>>();
 
         elements = env.getElementUtils();
     }
 
+    /**
+     * @param blockSummaries if true, the transfers of runs of straight-line
+     *        statements are recorded when the runs are first scanned, and
+     *        applied instead of scanning the runs again with the same bits
+     *        of the variables they read
+     */
+    public void setBlockSummaries(boolean blockSummaries) {
+        this.blockSummaries = blockSummaries;
+    }
+
+    /**
+     * @param cancellation checked on each scanned tree; when cancelled, the
+     *        scan throws a {@link CancellationException}. Null to disable
+     *        the checks.
+     */
+    public void setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation;
+    }
+
     @Override
     public Void scan(Tree tree, Void p) {
+        if (tree != null && cancellation != null && cancellation.isCancelled())
+            throw new CancellationException();
         if (tree != null && getCurrentPath() != null)
             this.visitorState.setPath(new TreePath(getCurrentPath(), tree));
         return super.scan(tree, p);
@@ -188,6 +259,8 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 
         // Determine the initial status of the variable by checking its
         // annotated type.
+        writing(idx);
+        annos = writable(annos);
         for (AnnotationMirror annotation : annotations) {
             if (hasAnnotation(type, annotation))
                 annos.set(annotation, idx);
@@ -206,7 +279,7 @@ public class MainFlow extends TreePathScanner<Void, Void> {
      * @return true if the (non-wildcard) type has the annotation or, if a
      *         wildcard, the type has the annotation on its extends bound
      */
-    private boolean hasAnnotation(AnnotatedTypeMirror type,
+    protected boolean hasAnnotation(AnnotatedTypeMirror type,
             AnnotationMirror annotation) {
         if (!(type instanceof AnnotatedWildcardType))
             return type.hasAnnotation(annotation);
@@ -252,7 +325,11 @@ public class MainFlow extends TreePathScanner<Void, Void> {
         // Get the element for the right-hand side.
         Element rElt = InternalUtils.symbol(rhs);
         int rIdx = vars.indexOf(rElt);
+        if (rIdx >= 0)
+            reading(rIdx);
 
+        writing(idx);
+        annos = writable(annos);
         for (AnnotationMirror annotation : annotations) {
             // Propagate/clear the annotation if it's annotated or an annotation
             // had been inferred previously.
@@ -288,6 +365,8 @@ public class MainFlow extends TreePathScanner<Void, Void> {
         int idx = vars.indexOf(elt);
         if (idx < 0) return;
 
+        writing(idx);
+        annos = writable(annos);
         for (AnnotationMirror annotation : annotations) {
             if (hasAnnotation(rhs, annotation))
                 annos.set(annotation, idx);
@@ -299,7 +378,7 @@ public class MainFlow extends TreePathScanner<Void, Void> {
      * Split the bitset before a conditional branch.
      */
     void split() {
-        annosWhenFalse = GenKillBits.copy(annos);
+        annosWhenFalse = copy(annos);
         annosWhenTrue = annos;
         annos = null;
     }
@@ -308,11 +387,186 @@ public class MainFlow extends TreePathScanner<Void, Void> {
      * Merge the bitset after a conditional branch.
      */
     void merge() {
-        annos = GenKillBits.copy(annos);
-        annos.and(annosWhenFalse);
+        annos = and(copy(annos), annosWhenFalse);
         annosWhenTrue = annosWhenFalse = null;
     }
 
+    /**
+     * Copies the given bits. All copies made by the analysis go through this
+     * method. The copies are interned, so equal copies are the same instance,
+     * which can't be modified; see {@link #writable(StateVector)}.
+     *
+     * @param bits the bits to copy
+     * @return a copy of the bits
+     */
+    protected StateVector<AnnotationMirror> copy(StateVector<AnnotationMirror> bits) {
+        return stateVectors.intern(bits);
+    }
+
+    /**
+     * Must be called before the bits are modified.
+     *
+     * @param bits the bits to modify
+     * @return the given bits, if they can be modified; otherwise, a
+     *         modifiable copy
+     */
+    protected StateVector<AnnotationMirror> writable(StateVector<AnnotationMirror> bits) {
+        return stateVectors.writable(bits);
+    }
+
+    /**
+     * Merges the second bits into the first ones, with a boolean "and". All
+     * merges made by the analysis go through this method.
+     *
+     * @param bits the bits to update
+     * @param other the bits to merge
+     * @return the merged bits: the first ones, if they could be modified or
+     *         are the same instance as the second ones; otherwise, a copy
+     */
+    protected StateVector<AnnotationMirror> and(StateVector<AnnotationMirror> bits,
+            StateVector<AnnotationMirror> other) {
+        if (bits == other) {
+            return bits;
+        }
+
+        bits = writable(bits);
+        bits.and(other);
+        return bits;
+    }
+
+    /**
+     * Ends the first pass of a loop: merges the entry bits into the bits of
+     * the condition being true, as the loop may be entered either way. These
+     * bits are also the current ones, unless the body replaced them.
+     *
+     * @param annoEntry the (interned) bits on entry to the first pass
+     * @param aliveEntry the liveness on entry to the first pass
+     * @return true iff the second pass would start as the first one did, so
+     *         it can be skipped
+     */
+    private boolean endFirstLoopPass(StateVector<AnnotationMirror> annoEntry, boolean aliveEntry) {
+        boolean current = annos == annosWhenTrue;
+        annosWhenTrue = and(annosWhenTrue, annoEntry);
+        if (current) {
+            annos = annosWhenTrue;
+        }
+
+        // Interned bits are equal only if they are the same instance.
+        return alive == aliveEntry && copy(annos) == annoEntry;
+    }
+
+    /** Reasons for which a tree is scanned more than once. */
+    public enum Rescan { LOOP, FINALLY, CONDITION }
+
+    /**
+     * Called before a tree which was already scanned is scanned again. Does
+     * nothing by default.
+     *
+     * @param reason why the tree is scanned again
+     * @param tree the tree being scanned again
+     */
+    protected void rescanning(Rescan reason, Tree tree) {
+    }
+
+    /**
+     * Called on each lookup in the memoization of
+     * {@link #varDefHasAnnotation(AnnotationMirror, Element)}. Does nothing by
+     * default.
+     *
+     * @param hit true iff the result was memoized
+     */
+    protected void varDefCacheLookup(boolean hit) {
+    }
+
+    /**
+     * Called after a method is scanned, while the variables declared in it
+     * are still in {@link #vars}. Does nothing by default.
+     *
+     * @param node the scanned method
+     */
+    protected void methodScanned(MethodTree node) {
+    }
+
+    /**
+     * Called before a method is scanned, with the visitor state set for the
+     * method. Returns false by default.
+     *
+     * @param node the method to analyse
+     * @return true iff the method was analysed, so that it isn't scanned
+     */
+    protected boolean analyseMethod(MethodTree node) {
+        return false;
+    }
+
+    /**
+     * Determines the order in which the methods of a class are scanned. As
+     * each method is analysed separately, starting with the bits after the
+     * fields, the order doesn't change the results. Returns the methods in
+     * the order of declaration by default.
+     *
+     * @param node the class
+     * @param methods the methods of the class, in the order of declaration
+     * @return the methods in the order in which they should be scanned
+     */
+    protected List<Tree> orderMethods(ClassTree node, List<Tree> methods) {
+        return methods;
+    }
+
+    /**
+     * Called on each lookup of the transfer of a run of straight-line
+     * statements. Does nothing by default.
+     *
+     * @param hit true iff a transfer was applied instead of scanning the run
+     */
+    protected void blockTransferLookup(boolean hit) {
+    }
+
+    /**
+     * Must be called before the bits of a variable in {@link #annos} are
+     * read, so that the recorded transfer of the statements depends on them.
+     * The bits passed to {@link #updateExceptionBits(StateVector)} may
+     * differ from {@link #annos} only in variables which were read or
+     * written.
+     *
+     * @param var the index of the variable
+     */
+    protected final void reading(int var) {
+        if (recording != null)
+            recording.read(var, annos);
+    }
+
+    /**
+     * Must be called before the bits of a variable in {@link #annos} are
+     * modified.
+     *
+     * @param var the index of the variable
+     */
+    protected final void writing(int var) {
+        if (recording != null)
+            recording.write(var);
+    }
+
+    /**
+     * Records an effect of the statement being scanned, other than on the
+     * bits (e.g. a reported error). If the transfer of the statement is
+     * applied later, the effect is passed to {@link #replayEffect(Object)}.
+     *
+     * @param effect the effect
+     */
+    protected final void recordEffect(Object effect) {
+        if (recording != null)
+            recording.effect(effect);
+    }
+
+    /**
+     * Replays an effect recorded with {@link #recordEffect(Object)}. Does
+     * nothing by default.
+     *
+     * @param effect the effect
+     */
+    protected void replayEffect(Object effect) {
+    }
+
     // **********************************************************************
 
     /**
@@ -341,7 +595,120 @@ public class MainFlow extends TreePathScanner<Void, Void> {
      * @param trees the statements being scanned
      */
     protected void scanStats(List<? extends StatementTree> trees) {
-        scan(trees, null);
+        if (!blockSummaries) {
+            scan(trees, null);
+            return;
+        }
+
+        int start = 0;
+        while (start < trees.size()) {
+            int end = start;
+            while (end < trees.size() && isStraightLine(trees.get(end)))
+                end++;
+
+            if (end > start) {
+                scanStraightLine(trees.subList(start, end));
+                start = end;
+            } else {
+                scan(trees.get(start), null);
+                start++;
+            }
+        }
+    }
+
+    /**
+     * Scans a run of straight-line statements, or applies its transfer, if
+     * one was recorded for the same bits of the variables it reads.
+     *
+     * @param trees the statements being scanned
+     */
+    private void scanStraightLine(List<? extends StatementTree> trees) {
+        if (recording != null) {
+            scan(trees, null);
+            return;
+        }
+
+        boolean exceptional = !tryBits.isEmpty() || !catchBits.isEmpty();
+        List<BlockTransfer<AnnotationMirror>> transfers = blockTransfers.get(trees.get(0));
+        if (transfers != null) {
+            for (BlockTransfer<AnnotationMirror> transfer : transfers) {
+                if (transfer.matches(annos, alive, exceptional)) {
+                    blockTransferLookup(true);
+                    applyTransfer(transfer);
+                    return;
+                }
+            }
+        }
+        blockTransferLookup(false);
+
+        BlockTransfer<AnnotationMirror> transfer = new BlockTransfer<AnnotationMirror>(keys, alive, exceptional);
+        recording = transfer;
+        try {
+            scan(trees, null);
+        } finally {
+            recording = null;
+        }
+        transfer.finish(annos, alive);
+
+        if (transfers == null) {
+            transfers = new LinkedList<BlockTransfer<AnnotationMirror>>();
+            blockTransfers.put(trees.get(0), transfers);
+        } else if (transfers.size() == MAX_BLOCK_TRANSFERS) {
+            transfers.remove(0);
+        }
+        transfers.add(transfer);
+    }
+
+    private void applyTransfer(BlockTransfer<AnnotationMirror> transfer) {
+        for (int i = 0; i < transfer.getExceptions(); i++) {
+            StateVector<AnnotationMirror> exceptionBits = writable(copy(annos));
+            transfer.applyException(i, exceptionBits);
+            updateExceptionBits(exceptionBits);
+        }
+
+        if (transfer.isWriting()) {
+            annos = writable(annos);
+            transfer.apply(annos);
+        }
+        alive = transfer.isAliveExit();
+
+        for (Object effect : transfer.getEffects())
+            replayEffect(effect);
+    }
+
+    /**
+     * Determines whether a statement is straight-line: an expression
+     * statement or a variable declaration, without conditional expressions
+     * and nested classes.
+     *
+     * @param tree the statement to check
+     * @return true iff the statement is straight-line
+     */
+    private boolean isStraightLine(StatementTree tree) {
+        Boolean result = straightLine.get(tree);
+        if (result == null) {
+            if (tree.getKind() != Tree.Kind.EXPRESSION_STATEMENT && tree.getKind() != Tree.Kind.VARIABLE) {
+                result = false;
+            } else {
+                final boolean[] branches = new boolean[1];
+                new TreeScanner<Void, Void>() {
+                    @Override
+                    public Void visitConditionalExpression(ConditionalExpressionTree node, Void p) {
+                        branches[0] = true;
+                        return null;
+                    }
+
+                    @Override
+                    public Void visitClass(ClassTree node, Void p) {
+                        branches[0] = true;
+                        return null;
+                    }
+                }.scan(tree, null);
+                result = !branches[0];
+            }
+            straightLine.put(tree, result);
+        }
+        return result;
     }
 
     /**
@@ -371,6 +738,9 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 
     @Override
     public Void visitClass(ClassTree node, Void p) {
+        // The fields of the class are new variables.
+        blockTransfers.clear();
+
         AnnotatedDeclaredType preClassType = visitorState.getClassType();
         ClassTree preClassTree = visitorState.getClassTree();
         AnnotatedDeclaredType preAMT = visitorState.getMethodReceiver();
@@ -391,8 +761,11 @@ public class MainFlow extends TreePathScanner<Void, Void> {
                 if (t.getKind() == Tree.Kind.METHOD) continue;
                 scan(t, p);
             }
+            List<Tree> methods = new ArrayList<Tree>();
             for (Tree t : node.getMembers()) {
-                if (t.getKind() != Tree.Kind.METHOD) continue;
+                if (t.getKind() == Tree.Kind.METHOD) methods.add(t);
+            }
+            for (Tree t : orderMethods(node, methods)) {
                 scan(t, p);
             }
             return null;
@@ -455,25 +828,33 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 
     @Override
     public Void visitEnhancedForLoop(EnhancedForLoopTree node, Void p) {
-        VariableTree var = node.getVariable();
-        newVar(var);
+        JumpTarget target = pushLoopTarget();
+        try {
+            VariableTree var = node.getVariable();
+            newVar(var);
 
-        ExpressionTree expr = node.getExpression();
-        scanExpr(expr);
+            ExpressionTree expr = node.getExpression();
+            scanExpr(expr);
 
-        AnnotatedTypeMirror rhs = factory.getAnnotatedType(expr);
-        AnnotatedTypeMirror iter = atypes.getIteratedType(rhs);
-        if (iter != null)
-            propagateFromType(var, iter);
+            AnnotatedTypeMirror rhs = factory.getAnnotatedType(expr);
+            AnnotatedTypeMirror iter = atypes.getIteratedType(rhs);
+            if (iter != null)
+                propagateFromType(var, iter);
 
-        return super.visitEnhancedForLoop(node, p);
+            super.visitEnhancedForLoop(node, p);
+        } finally {
+            jumpTargets.pop();
+        }
+        mergeContinues(target);
+        mergeBreaks(target);
+        return null;
     }
 
     @Override
     public Void visitAssert(AssertTree node, Void p) {
         scanCond(node.getCondition());
-        GenKillBits<AnnotationMirror> annosAfterAssert = GenKillBits.copy(annosWhenTrue);
-        annos = GenKillBits.copy(annosWhenFalse);
+        StateVector<AnnotationMirror> annosAfterAssert = copy(annosWhenTrue);
+        annos = copy(annosWhenFalse);
         scanExpr(node.getDetail());
         annos = annosAfterAssert;
         return null;
@@ -483,7 +864,7 @@ public class MainFlow extends TreePathScanner<Void, Void> {
     public Void visitIf(IfTree node, Void p) {
         scanCond(node.getCondition());
 
-        GenKillBits<AnnotationMirror> before = annosWhenFalse;
+        StateVector<AnnotationMirror> before = annosWhenFalse;
         annos = annosWhenTrue;
 
         boolean aliveBefore = alive;
@@ -493,20 +874,20 @@ public class MainFlow extends TreePathScanner<Void, Void> {
         if (elseStmt != null) {
             boolean aliveAfter = alive;
             alive = aliveBefore;
-            GenKillBits<AnnotationMirror> after = GenKillBits.copy(annos);
+            StateVector<AnnotationMirror> after = copy(annos);
             annos = before;
             scanStat(elseStmt);
             alive &= aliveAfter;
             if (!alive)
-                annos = GenKillBits.copy(after);
+                annos = copy(after);
             else
-                annos.and(after);
+                annos = and(annos, after);
         } else {
             alive &= aliveBefore;
             if (!alive)
-                annos = GenKillBits.copy(before);
+                annos = copy(before);
             else
-                annos.and(before);
+                annos = and(annos, before);
         }
 
         return null;
@@ -519,15 +900,15 @@ public class MainFlow extends TreePathScanner<Void, Void> {
         // Split and merge as for an if/else.
         scanCond(node.getCondition());
 
-        GenKillBits<AnnotationMirror> before = annosWhenFalse;
+        StateVector<AnnotationMirror> before = annosWhenFalse;
         annos = annosWhenTrue;
 
         scanExpr(node.getTrueExpression());
-        GenKillBits<AnnotationMirror> after = GenKillBits.copy(annos);
+        StateVector<AnnotationMirror> after = copy(annos);
         annos = before;
 
         scanExpr(node.getFalseExpression());
-        annos.and(after);
+        annos = and(annos, after);
 
         return null;
     }
@@ -535,73 +916,222 @@ public class MainFlow extends TreePathScanner<Void, Void> {
     @Override
     public Void visitWhileLoop(WhileLoopTree node, Void p) {
         boolean pass = false;
-        GenKillBits<AnnotationMirror> annoCond;
-        do {
-            GenKillBits<AnnotationMirror> annoEntry = GenKillBits.copy(annos);
-            scanCond(node.getCondition());
-            annoCond = annosWhenFalse;
-            annos = annosWhenTrue;
-            scanStat(node.getStatement());
-            if (pass) break;
-            annosWhenTrue.and(annoEntry);
-            pass = true;
-        } while (true);
+        StateVector<AnnotationMirror> annoCond;
+        JumpTarget target = pushLoopTarget();
+        try {
+            do {
+                StateVector<AnnotationMirror> annoEntry = copy(annos);
+                boolean aliveEntry = alive;
+                scanCond(node.getCondition());
+                annoCond = annosWhenFalse;
+                annos = annosWhenTrue;
+                scanStat(node.getStatement());
+                mergeContinues(target);
+                if (pass) break;
+                if (endFirstLoopPass(annoEntry, aliveEntry)) break;
+                rescanning(Rescan.LOOP, node);
+                pass = true;
+            } while (true);
+        } finally {
+            jumpTargets.pop();
+        }
         annos = annoCond;
+        mergeBreaks(target);
         return null;
     }
 
     @Override
     public Void visitDoWhileLoop(DoWhileLoopTree node, Void p) {
         boolean pass = false;
-        GenKillBits<AnnotationMirror> annoCond;
-        do {
-            GenKillBits<AnnotationMirror> annoEntry = GenKillBits.copy(annos);
-            scanStat(node.getStatement());
-            scanCond(node.getCondition());
-            annoCond = annosWhenFalse;
-            annos = annosWhenTrue;
-            if (pass) break;
-            annosWhenTrue.and(annoEntry);
-            pass = true;
-        } while (true);
+        StateVector<AnnotationMirror> annoCond;
+        JumpTarget target = pushLoopTarget();
+        try {
+            do {
+                StateVector<AnnotationMirror> annoEntry = copy(annos);
+                boolean aliveEntry = alive;
+                scanStat(node.getStatement());
+                mergeContinues(target);
+                scanCond(node.getCondition());
+                annoCond = annosWhenFalse;
+                annos = annosWhenTrue;
+                if (pass) break;
+                if (endFirstLoopPass(annoEntry, aliveEntry)) break;
+                rescanning(Rescan.LOOP, node);
+                pass = true;
+            } while (true);
+        } finally {
+            jumpTargets.pop();
+        }
         annos = annoCond;
+        mergeBreaks(target);
         return null;
     }
 
     @Override
     public Void visitForLoop(ForLoopTree node, Void p) {
         boolean pass = false;
+        JumpTarget target = pushLoopTarget();
         for (StatementTree initalizer : node.getInitializer())
             scanStat(initalizer);
-        GenKillBits<AnnotationMirror> annoCond;
-        do {
-            GenKillBits<AnnotationMirror> annoEntry = GenKillBits.copy(annos);
-            scanCond(node.getCondition());
-            annoCond = annosWhenFalse;
-            annos = annosWhenTrue;
-            scanStat(node.getStatement());
-            for (StatementTree tree : node.getUpdate())
-                scanStat(tree);
-            if (pass) break;
-            annosWhenTrue.and(annoEntry);
-            pass = true;
-        } while (true);
+        StateVector<AnnotationMirror> annoCond;
+        try {
+            do {
+                StateVector<AnnotationMirror> annoEntry = copy(annos);
+                boolean aliveEntry = alive;
+                scanCond(node.getCondition());
+                annoCond = annosWhenFalse;
+                annos = annosWhenTrue;
+                scanStat(node.getStatement());
+                mergeContinues(target);
+                for (StatementTree tree : node.getUpdate())
+                    scanStat(tree);
+                if (pass) break;
+                if (endFirstLoopPass(annoEntry, aliveEntry)) break;
+                rescanning(Rescan.LOOP, node);
+                pass = true;
+            } while (true);
+        } finally {
+            jumpTargets.pop();
+        }
         annos = annoCond;
+        mergeBreaks(target);
+        return null;
+    }
+
+    @Override
+    public Void visitLabeledStatement(LabeledStatementTree node, Void p) {
+        switch (node.getStatement().getKind()) {
+            case WHILE_LOOP:
+            case DO_WHILE_LOOP:
+            case FOR_LOOP:
+            case ENHANCED_FOR_LOOP:
+                // The loop is the target of the breaks and continues with the label.
+                pendingLabel = node.getLabel();
+                return scan(node.getStatement(), p);
+            default:
+                JumpTarget target = new JumpTarget(node.getLabel(), false, true);
+                jumpTargets.push(target);
+                try {
+                    scan(node.getStatement(), p);
+                } finally {
+                    jumpTargets.pop();
+                }
+                mergeBreaks(target);
+                return null;
+        }
+    }
+
+    @Override
+    public Void visitSwitch(SwitchTree node, Void p) {
+        scanExpr(node.getExpression());
+        StateVector<AnnotationMirror> annoEntry = copy(annos);
+
+        JumpTarget target = new JumpTarget(null, false, false);
+        jumpTargets.push(target);
+        boolean hasDefault = false;
+        try {
+            boolean first = true;
+            for (CaseTree caseTree : node.getCases()) {
+                // A case is entered from the switch, or by falling through the previous case.
+                annos = first || !alive ? annoEntry : and(annos, annoEntry);
+                alive = true;
+                scanStats(caseTree.getStatements());
+                if (caseTree.getExpression() == null)
+                    hasDefault = true;
+                first = false;
+            }
+        } finally {
+            jumpTargets.pop();
+        }
+
+        // The switch completes after the last case, without a matching case, or on a break.
+        StateVector<AnnotationMirror> after = node.getCases().isEmpty() || !alive ? null : annos;
+        if (!hasDefault)
+            after = after == null ? annoEntry : and(after, annoEntry);
+        if (target.breakBits != null)
+            after = after == null ? target.breakBits : and(after, target.breakBits);
+        if (after != null) {
+            annos = after;
+            alive = true;
+        }
         return null;
     }
 
     @Override
     public Void visitBreak(BreakTree node, Void p) {
+        JumpTarget target = jumpTarget(node.getLabel(), false);
+        if (target != null)
+            target.breakBits = target.breakBits == null ? copy(annos) : and(target.breakBits, annos);
         alive = false;
         return null;
     }
 
     @Override
     public Void visitContinue(ContinueTree node, Void p) {
+        JumpTarget target = jumpTarget(node.getLabel(), true);
+        if (target != null)
+            target.continueBits = target.continueBits == null ? copy(annos) : and(target.continueBits, annos);
         alive = false;
         return null;
     }
 
+    /**
+     * A statement which breaks or continues may jump to, with the bits at
+     * these jumps, merged.
+     */
+    private static class JumpTarget {
+        final Name label;
+        final boolean loop;
+        // A labeled statement, other than a loop, is only the target of the breaks with its label.
+        final boolean labeledOnly;
+        StateVector<AnnotationMirror> breakBits;
+        StateVector<AnnotationMirror> continueBits;
+
+        JumpTarget(Name label, boolean loop, boolean labeledOnly) {
+            this.label = label;
+            this.loop = loop;
+            this.labeledOnly = labeledOnly;
+        }
+    }
+
+    private JumpTarget pushLoopTarget() {
+        JumpTarget target = new JumpTarget(pendingLabel, true, false);
+        pendingLabel = null;
+        jumpTargets.push(target);
+        return target;
+    }
+
+    /**
+     * @param label the label of the jump, or null
+     * @param isContinue whether the jump is a continue
+     * @return the statement the jump goes to, or null if it isn't scanned
+     */
+    private JumpTarget jumpTarget(Name label, boolean isContinue) {
+        for (JumpTarget target : jumpTargets) {
+            boolean matches = label == null ? !target.labeledOnly : label.equals(target.label);
+            if (matches && (target.loop || !isContinue))
+                return target;
+        }
+        return null;
+    }
+
+    /**
+     * Merges the bits at the continues of a loop into the bits at the end of
+     * its body.
+     */
+    private void mergeContinues(JumpTarget target) {
+        if (target.continueBits != null)
+            annos = and(annos, target.continueBits);
+    }
+
+    /**
+     * Merges the bits at the breaks out of a statement into the bits after it.
+     */
+    private void mergeBreaks(JumpTarget target) {
+        if (target.breakBits != null)
+            annos = and(annos, target.breakBits);
+    }
+
     @Override
     public Void visitReturn(ReturnTree node, Void p) {
         if (node.getExpression() != null)
@@ -623,23 +1153,23 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 		tryBits.push(null);
 		scan(node.getBlock(), p);
 
-		GenKillBits<AnnotationMirror> annosAfterBlock = annos;
+		StateVector<AnnotationMirror> annosAfterBlock = annos;
 		// This can be null if no exception-throwing statements where found. This bit-set is a conjunction of
 		// annotation bit-sets for all potentially exception-throwing statements.
-		GenKillBits<AnnotationMirror> annosForCatch = tryBits.pop();
+		StateVector<AnnotationMirror> annosForCatch = tryBits.pop();
 
 		// Annotations for the finally block, which will be executed after any dead catches. They have to include
 		// the "annosForCatch", as an exception may pass-through all catches in this try. If an exception passes-through
 		// all catches, this is considered the same as a "dead catch", as the code after finally won't be executed.
-		GenKillBits<AnnotationMirror> annosForFinallyDeadCatches = null;
+		StateVector<AnnotationMirror> annosForFinallyDeadCatches = null;
 		if (annosForCatch != null) {
-			annosForFinallyDeadCatches = GenKillBits.copy(annosForCatch);
+			annosForFinallyDeadCatches = copy(annosForCatch);
 		}
 
 		// The code after the finally block may be executed either when an exception was caught and handled by an
 		// alive catch, or when no excpetion was thrown at all. So the intial annotations for finally in this case
 		// are "annosAfterBlock", and later conjunctions with annotations after alive catches will be added.
-		GenKillBits<AnnotationMirror> annosForFinallyAliveCatches = GenKillBits.copy(annosAfterBlock);
+		StateVector<AnnotationMirror> annosForFinallyAliveCatches = copy(annosAfterBlock);
 
 		if (node.getCatches() != null && annosForCatch != null) {
 			boolean aliveBefore = alive;
@@ -650,29 +1180,29 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 					catchBits.push(null);
 
 					alive = true;
-					annos = GenKillBits.copy(annosForCatch);
+					annos = copy(annosForCatch);
 					scan(ct, p);
 
 					// Updating annotations for finally depending if the catch is alive or not (finally will be executed
 					// after the catch completes, so we have to make a conjunction with "annos")
 					if (alive) {
-						annosForFinallyAliveCatches.and(annos);
+						annosForFinallyAliveCatches = and(annosForFinallyAliveCatches, annos);
 					} else {
 						if (annosForFinallyDeadCatches != null) {
-							annosForFinallyDeadCatches.and(annos);
+							annosForFinallyDeadCatches = and(annosForFinallyDeadCatches, annos);
 						} else {
-							annosForFinallyDeadCatches = GenKillBits.copy(annos);
+							annosForFinallyDeadCatches = copy(annos);
 						}
 					}
 
-					GenKillBits<AnnotationMirror> annosForFinallyFromCatch = catchBits.pop();
+					StateVector<AnnotationMirror> annosForFinallyFromCatch = catchBits.pop();
 					if (annosForFinallyFromCatch != null) {
 						// In such case, the catch may potentially throw an exception. If it does, it's a "dead" catch,
 						// and after executing finally, the exception will be propagated further.
 						if (annosForFinallyDeadCatches != null) {
-							annosForFinallyDeadCatches.and(annosForFinallyFromCatch);
+							annosForFinallyDeadCatches = and(annosForFinallyDeadCatches, annosForFinallyFromCatch);
 						} else {
-							annosForFinallyDeadCatches = GenKillBits.copy(annosForFinallyFromCatch);
+							annosForFinallyDeadCatches = copy(annosForFinallyFromCatch);
 						}
 					}
 				}
@@ -691,6 +1221,9 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 
 		// And then for the alive catches; this is always not-null
 		annos = annosForFinallyAliveCatches;
+		if (annosForFinallyDeadCatches != null && node.getFinallyBlock() != null) {
+			rescanning(Rescan.FINALLY, node.getFinallyBlock());
+		}
 		scan(node.getFinallyBlock(), p);
 		// The annotations after scanning finally with alive-catches are then used to scan the rest
 
@@ -701,12 +1234,15 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 	 * Updates the current try and catch bits on an exception-throwing statement.
 	 * @param exceptionBits The annotations on the statement, in case an exception is thrown.                   
 	 */
-	protected void updateExceptionBits(GenKillBits<AnnotationMirror> exceptionBits) {
+	protected void updateExceptionBits(StateVector<AnnotationMirror> exceptionBits) {
+		if (recording != null) {
+			recording.exception(exceptionBits);
+		}
 		updateExceptionBits(tryBits, exceptionBits);
 		updateExceptionBits(catchBits, exceptionBits);
 	}
 
-	private void updateExceptionBits(Deque<GenKillBits<AnnotationMirror>> bitsStack, GenKillBits<AnnotationMirror> exceptionBits) {
+	private void updateExceptionBits(Deque<StateVector<AnnotationMirror>> bitsStack, StateVector<AnnotationMirror> exceptionBits) {
 		int popped = 0;
 
 		// First removing any null bits
@@ -715,14 +1251,17 @@ public class MainFlow extends TreePathScanner<Void, Void> {
 			popped++;
 		}
 
-		// Updating all catch bits, as the exception can be propagated
-		for (GenKillBits<AnnotationMirror> catchBit : bitsStack) {
-			catchBit.and(exceptionBits);
+		// Updating all catch bits, as the exception can be propagated; the merged bits may be new instances.
+		List<StateVector<AnnotationMirror>> updatedBits = new ArrayList<StateVector<AnnotationMirror>>(bitsStack.size());
+		for (StateVector<AnnotationMirror> catchBit : bitsStack) {
+			updatedBits.add(and(catchBit, exceptionBits));
 		}
+		bitsStack.clear();
+		bitsStack.addAll(updatedBits);
 
 		// And pushing the initial catch bits in place for the null ones
 		while (popped > 0) {
-			bitsStack.push(GenKillBits.copy(exceptionBits));
+			bitsStack.push(copy(exceptionBits));
 			popped--;
 		}
 	}
@@ -745,8 +1284,11 @@ public class MainFlow extends TreePathScanner<Void, Void> {
         for (int i = 0; i < vars.size(); i++) {
             Element var = vars.get(i);
             for (AnnotationMirror a : annotations)
-                if (!isJDKMethod && isNonFinalField(var) && !varDefHasAnnotation(a, var))
+                if (!isJDKMethod && isNonFinalField(var) && !varDefHasAnnotation(a, var)) {
+                    writing(i);
+                    annos = writable(annos);
                     annos.clear(a, i);
+                }
         }
 
 		updateExceptionBits();
@@ -757,15 +1299,16 @@ public class MainFlow extends TreePathScanner<Void, Void> {
     @Override
     public Void visitBlock(BlockTree node, Void p) {
         if (node.isStatic()) {
-            GenKillBits<AnnotationMirror> prev = GenKillBits.copy(annos);
+            StateVector<AnnotationMirror> prev = copy(annos);
             try {
-                super.visitBlock(node, p);
+                scanStats(node.getStatements());
                 return null;
             } finally {
                 annos = prev;
             }
         }
-        return super.visitBlock(node, p);
+        scanStats(node.getStatements());
+        return null;
     }
 
     @Override
@@ -777,17 +1320,44 @@ public class MainFlow extends TreePathScanner<Void, Void> {
         visitorState.setMethodTree(node);
 
         // Intraprocedural, so save and restore bits.
-        GenKillBits<AnnotationMirror> prev = GenKillBits.copy(annos);
+        StateVector<AnnotationMirror> prev = copy(annos);
+        // The variables tracked in the method are the ones tracked so far, and the ones declared in it.
+        int prevVars = vars.size();
+        annos = stateVectors.convert(annos, prevVars + countVariables(node));
         try {
-            super.visitMethod(node, p);
+            if (!analyseMethod(node))
+                super.visitMethod(node, p);
             return null;
         } finally {
+            methodScanned(node);
+            // The variables declared in the method aren't used after it, so their indexes can be reused.
+            vars.subList(prevVars, vars.size()).clear();
+            blockTransfers.clear();
+            straightLine.clear();
             annos = prev;
             visitorState.setMethodReceiver(preMRT);
             visitorState.setMethodTree(preMT);
         }
     }
 
+    /**
+     * Counts the variables declared in a tree.
+     *
+     * @param tree the tree to scan
+     * @return the number of variable declarations in the tree
+     */
+    private static int countVariables(Tree tree) {
+        final int[] count = new int[1];
+        new TreeScanner<Void, Void>() {
+            @Override
+            public Void visitVariable(VariableTree node, Void p) {
+                count[0]++;
+                return super.visitVariable(node, p);
+            }
+        }.scan(tree, null);
+        return count[0];
+    }
+
     // **********************************************************************
 
     /**
@@ -799,8 +1369,12 @@ public class MainFlow extends TreePathScanner<Void, Void> {
      */
     private boolean varDefHasAnnotation(AnnotationMirror annotation, Element var) {
 
-        if (annotatedVarDefs.containsKey(var))
+        if (annotatedVarDefs.containsKey(var)) {
+            varDefCacheLookup(true);
             return annotatedVarDefs.get(var);
+        }
+
+        varDefCacheLookup(false);
 
         boolean result = hasAnnotation(factory.getAnnotatedType(var), annotation);
         annotatedVarDefs.put(var, result);
@@ -0,0 +1,107 @@
+package checkers.flow;
+
+import java.util.Arrays;
+
+/**
+ * A state vector held in an array of longs, growing as needed; for large methods in which a large part of the bits
+ * may be set.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+class PackedStateVector<K> extends AbstractStateVector<K> {
+    private long[] words;
+
+    PackedStateVector(StateVectors<K> vectors, int capacity) {
+        super(vectors);
+        this.words = new long[(Math.max(capacity, 1) + 63) >>> 6];
+    }
+
+    StateVectors.Kind getKind() {
+        return StateVectors.Kind.PACKED;
+    }
+
+    boolean getBit(int bit) {
+        int word = bit >>> 6;
+        return word < words.length && (words[word] & (1L << bit)) != 0;
+    }
+
+    void setBit(int bit) {
+        int word = bit >>> 6;
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, Math.max(word + 1, words.length * 2));
+        }
+        words[word] |= 1L << bit;
+    }
+
+    void clearBit(int bit) {
+        int word = bit >>> 6;
+        if (word < words.length) {
+            words[word] &= ~(1L << bit);
+        }
+    }
+
+    int[] getSetBits() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+
+        int[] result = new int[count];
+        int i = 0;
+        for (int word = 0; word < words.length; word++) {
+            long remaining = words[word];
+            while (remaining != 0) {
+                result[i++] = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+            }
+        }
+        return result;
+    }
+
+    void andSame(AbstractStateVector<K> other) {
+        long[] otherWords = ((PackedStateVector<K>) other).words;
+        int common = Math.min(words.length, otherWords.length);
+        for (int i = 0; i < common; i++) {
+            words[i] &= otherWords[i];
+        }
+        // Bits beyond the other vector aren't set there.
+        Arrays.fill(words, common, words.length, 0L);
+    }
+
+    boolean bitsEqual(AbstractStateVector<K> other) {
+        long[] otherWords = ((PackedStateVector<K>) other).words;
+        long[] longer = words.length > otherWords.length ? words : otherWords;
+        int common = Math.min(words.length, otherWords.length);
+        for (int i = 0; i < common; i++) {
+            if (words[i] != otherWords[i]) {
+                return false;
+            }
+        }
+        for (int i = common; i < longer.length; i++) {
+            if (longer[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int bitsHash() {
+        // Trailing empty words are skipped, so that vectors grown to different capacities have the same hash.
+        int last = words.length - 1;
+        while (last >= 0 && words[last] == 0) {
+            last--;
+        }
+
+        int result = 1;
+        for (int i = 0; i <= last; i++) {
+            result = 31 * result + (int) (words[i] ^ (words[i] >>> 32));
+        }
+        return result;
+    }
+
+    public StateVector<K> copy() {
+        PackedStateVector<K> result = new PackedStateVector<K>(vectors, 0);
+        result.words = words.clone();
+        return result;
+    }
+}
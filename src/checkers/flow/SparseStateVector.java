@@ -0,0 +1,141 @@
+package checkers.flow;
+
+/**
+ * A state vector holding only the indexes of the set bits, in an open-addressing hash set; for large methods with
+ * many keys, where a variable usually is in a single state, so few of the bits are set.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+class SparseStateVector<K> extends AbstractStateVector<K> {
+    // The set bits, stored incremented by one, as 0 marks an empty slot. The length is a power of two.
+    private int[] slots;
+    // 32 - log2(slots.length); the slot of a bit is given by the highest bits of its (Fibonacci) hash.
+    private int shift;
+    private int size;
+
+    SparseStateVector(StateVectors<K> vectors) {
+        super(vectors);
+        this.slots = new int[16];
+        this.shift = 28;
+    }
+
+    StateVectors.Kind getKind() {
+        return StateVectors.Kind.SPARSE;
+    }
+
+    private int slotOf(int bit) {
+        int mask = slots.length - 1;
+        int slot = (bit * 0x9E3779B9) >>> shift;
+        while (slots[slot] != 0 && slots[slot] != bit + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    boolean getBit(int bit) {
+        return slots[slotOf(bit)] != 0;
+    }
+
+    void setBit(int bit) {
+        int slot = slotOf(bit);
+        if (slots[slot] == 0) {
+            slots[slot] = bit + 1;
+            size++;
+            // Keeping the load factor at most 1/2.
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+        }
+    }
+
+    void clearBit(int bit) {
+        int slot = slotOf(bit);
+        if (slots[slot] != 0) {
+            removeSlot(slot);
+        }
+    }
+
+    /**
+     * Empties the given slot. The rest of the cluster is re-inserted, so that no lookup stops at the emptied slot;
+     * the entries can only move to the emptied slot.
+     */
+    private void removeSlot(int slot) {
+        slots[slot] = 0;
+        size--;
+
+        int mask = slots.length - 1;
+        for (int next = (slot + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+            int moved = slots[next];
+            slots[next] = 0;
+            slots[slotOf(moved - 1)] = moved;
+        }
+    }
+
+    private void rehash() {
+        int[] oldSlots = slots;
+        slots = new int[oldSlots.length * 2];
+        shift--;
+        for (int stored : oldSlots) {
+            if (stored != 0) {
+                slots[slotOf(stored - 1)] = stored;
+            }
+        }
+    }
+
+    int[] getSetBits() {
+        int[] result = new int[size];
+        int i = 0;
+        for (int stored : slots) {
+            if (stored != 0) {
+                result[i++] = stored - 1;
+            }
+        }
+        return result;
+    }
+
+    void andSame(AbstractStateVector<K> other) {
+        SparseStateVector<K> otherVector = (SparseStateVector<K>) other;
+        int i = 0;
+        while (i < slots.length) {
+            int stored = slots[i];
+            if (stored != 0 && !otherVector.getBit(stored - 1)) {
+                // Another entry may move into this slot, so it is checked again.
+                removeSlot(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    boolean bitsEqual(AbstractStateVector<K> other) {
+        SparseStateVector<K> otherVector = (SparseStateVector<K>) other;
+        if (size != otherVector.size) {
+            return false;
+        }
+        for (int stored : slots) {
+            if (stored != 0 && !otherVector.getBit(stored - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int bitsHash() {
+        // Independent of the order of the slots.
+        int result = 0;
+        for (int stored : slots) {
+            if (stored != 0) {
+                result += stored * 0x9E3779B9;
+            }
+        }
+        return result;
+    }
+
+    public StateVector<K> copy() {
+        SparseStateVector<K> result = new SparseStateVector<K>(vectors);
+        result.slots = slots.clone();
+        result.shift = shift;
+        result.size = size;
+        return result;
+    }
+}
@@ -0,0 +1,38 @@
+package checkers.flow;
+
+/**
+ * The states of the variables tracked by the flow analysis: for each key (a state annotation) and variable index,
+ * whether the variable is surely in the state.
+ *
+ * Replaces {@link GenKillBits} in {@link MainFlow}, so that the representation can be chosen per method, depending
+ * on the number of variables and keys; see {@link StateVectors}. All vectors merged with each other must be created
+ * by the same {@link StateVectors} instance.
+ *
+ * Vectors with the same representation and the same keys set for the same variables are equal. Interned vectors
+ * (see {@link StateVectors#intern(StateVector)}) can't be modified.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public interface StateVector<K> {
+    /**
+     * @return true iff the variable with the given index has the key set
+     */
+    boolean get(K key, int var);
+
+    void set(K key, int var);
+
+    void clear(K key, int var);
+
+    /**
+     * Merges the other vector into this one, with a boolean "and": a key remains set for a variable only if it is set
+     * in both vectors.
+     *
+     * @param other the vector to merge
+     */
+    void and(StateVector<K> other);
+
+    /**
+     * @return a modifiable copy of this vector, with the same representation
+     */
+    StateVector<K> copy();
+}
@@ -0,0 +1,177 @@
+package checkers.flow;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Creates state vectors for a fixed set of keys, choosing the representation from the number of variables:
+ * <ul>
+ * <li>{@link Kind#LONG}: a single long, if all bits fit</li>
+ * <li>{@link Kind#SPARSE}: a hash set of the set bits, if there are many bits and many keys; as a variable is
+ * usually in a single state, few of the bits are set</li>
+ * <li>{@link Kind#PACKED}: an array of longs, otherwise</li>
+ * </ul>
+ *
+ * The bit of a key and a variable is {@code var * keys + key index}, so that the bits of new variables (which have
+ * the highest indexes) are added at the end.
+ *
+ * Vectors can also be interned: equal interned vectors are a single, unmodifiable instance. The instances are held
+ * weakly, so vectors no longer used by the analysis can be collected.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class StateVectors<K> {
+    /** The representations of state vectors. */
+    public enum Kind { LONG, PACKED, SPARSE }
+
+    /**
+     * The minimal number of keys, for which large vectors are sparse. With fewer keys, the packed representation,
+     * though larger, is faster to merge (see {@code StateVectorBenchmark}).
+     */
+    static final int SPARSE_MIN_KEYS = 512;
+
+    /** The minimal number of bits, for which vectors with many keys are sparse. */
+    static final int SPARSE_MIN_BITS = 4096;
+
+    private final Map<K, Integer> keyIndexes;
+
+    // Interned vectors; the values refer to the keys, which are the canonical instances.
+    private final Map<AbstractStateVector<K>, WeakReference<AbstractStateVector<K>>> interned =
+            new WeakHashMap<AbstractStateVector<K>, WeakReference<AbstractStateVector<K>>>();
+    private long internHits;
+    private long internMisses;
+
+    public StateVectors(Collection<K> keys) {
+        keyIndexes = new HashMap<K, Integer>();
+        for (K key : keys) {
+            if (!keyIndexes.containsKey(key)) {
+                keyIndexes.put(key, keyIndexes.size());
+            }
+        }
+    }
+
+    int bit(K key, int var) {
+        Integer keyIndex = keyIndexes.get(key);
+        if (keyIndex == null) {
+            throw new IllegalArgumentException("Unknown key: " + key);
+        }
+
+        return var * keyIndexes.size() + keyIndex;
+    }
+
+    /**
+     * @param vars an upper bound of the number of variables
+     * @return the representation to use for vectors of the given number of variables
+     */
+    public Kind choose(int vars) {
+        long bits = (long) vars * keyIndexes.size();
+        if (bits <= LongStateVector.CAPACITY) {
+            return Kind.LONG;
+        } else if (keyIndexes.size() >= SPARSE_MIN_KEYS && bits >= SPARSE_MIN_BITS) {
+            return Kind.SPARSE;
+        } else {
+            return Kind.PACKED;
+        }
+    }
+
+    /**
+     * @param kind the representation of the vector
+     * @param vars an upper bound of the number of variables; a {@link Kind#LONG} vector can't hold more than it was
+     *        chosen for, while the other representations grow as needed
+     * @return an empty vector
+     */
+    public StateVector<K> create(Kind kind, int vars) {
+        switch (kind) {
+            case LONG:
+                return new LongStateVector<K>(this);
+            case SPARSE:
+                return new SparseStateVector<K>(this);
+            default:
+                return new PackedStateVector<K>(this, vars * keyIndexes.size());
+        }
+    }
+
+    /**
+     * @param vars an upper bound of the number of variables
+     * @return an empty vector, in the representation chosen for the given number of variables
+     */
+    public StateVector<K> create(int vars) {
+        return create(choose(vars), vars);
+    }
+
+    /**
+     * @param vector the vector to convert
+     * @param vars an upper bound of the number of variables which will be tracked by the new vector
+     * @return a copy of the given vector, in the representation chosen for the given number of variables
+     */
+    public StateVector<K> convert(StateVector<K> vector, int vars) {
+        AbstractStateVector<K> source = (AbstractStateVector<K>) vector;
+        Kind kind = choose(vars);
+        if (source.getKind() == kind) {
+            return source.copy();
+        }
+
+        AbstractStateVector<K> result = (AbstractStateVector<K>) create(kind, vars);
+        for (int bit : source.getSetBits()) {
+            result.setBit(bit);
+        }
+        return result;
+    }
+
+    /**
+     * @param vector the vector to intern, or {@code null}
+     * @return the canonical, unmodifiable instance equal to the given vector; the vector itself, if it is already
+     *         interned or {@code null}
+     */
+    public StateVector<K> intern(StateVector<K> vector) {
+        AbstractStateVector<K> source = (AbstractStateVector<K>) vector;
+        if (source == null || source.isFrozen()) {
+            return source;
+        }
+
+        WeakReference<AbstractStateVector<K>> canonicalRef = interned.get(source);
+        AbstractStateVector<K> canonical = canonicalRef == null ? null : canonicalRef.get();
+        if (canonical != null) {
+            internHits++;
+            return canonical;
+        }
+
+        internMisses++;
+        canonical = source.frozenCopy();
+        interned.put(canonical, new WeakReference<AbstractStateVector<K>>(canonical));
+        return canonical;
+    }
+
+    /**
+     * @param vector a vector created by this instance
+     * @return the given vector, if it can be modified; otherwise (if it is interned), a modifiable copy
+     */
+    public StateVector<K> writable(StateVector<K> vector) {
+        return ((AbstractStateVector<K>) vector).isFrozen() ? vector.copy() : vector;
+    }
+
+    /**
+     * @return the number of vectors for which {@link #intern(StateVector)} found an equal, interned one
+     */
+    public long getInternHits() {
+        return internHits;
+    }
+
+    /**
+     * @return the number of vectors for which {@link #intern(StateVector)} had to create a new interned one
+     */
+    public long getInternMisses() {
+        return internMisses;
+    }
+
+    /**
+     * @param vector a vector created by this instance
+     * @return the representation of the vector
+     */
+    public Kind getKind(StateVector<K> vector) {
+        return ((AbstractStateVector<K>) vector).getKind();
+    }
+}
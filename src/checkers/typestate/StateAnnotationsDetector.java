@@ -7,11 +7,18 @@ import com.sun.source.tree.*;
 import java.util.Set;
 import java.util.List;
 
+import checkers.nullness.quals.Nullable;
 import checkers.util.AnnotationUtils;
+import checkers.util.InternalUtils;
+import checkers.util.TreeUtils;
 import checkers.types.AnnotatedTypeMirror;
 import checkers.types.AnnotatedTypeFactory;
+import checkers.typestate.deps.DependencyIndex;
+import checkers.typestate.spec.SpecKeys;
 
 import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
@@ -19,6 +26,9 @@ import javax.annotation.processing.ProcessingEnvironment;
 
 /**
  * Detects all annotations annotated with {@link State}, used on any program element.
+ *
+ * Optionally, also records the methods and constructors which are invoked, so that the compilation unit can be
+ * re-checked when their specs change, including when a spec annotates a method which had no state annotations.
  * @author Adam Warski (adam at warski dot org)
  */
 public class StateAnnotationsDetector extends TreePathScanner<Void, Set<AnnotationMirror>> {
@@ -27,12 +37,32 @@ public class StateAnnotationsDetector extends TreePathScanner<Void, Set<Annotati
     private final TypestateUtil typestateUtil;
     private final AnnotatedTypeFactory factory;
 
+    // Where to record the invoked methods; may be null.
+    private final DependencyIndex.Dependencies dependencies;
+
     public StateAnnotationsDetector(ProcessingEnvironment env, TypestateUtil typestateUtil,
                                     AnnotatedTypeFactory factory) {
+        this(env, typestateUtil, factory, null);
+    }
+
+    public StateAnnotationsDetector(ProcessingEnvironment env, TypestateUtil typestateUtil,
+                                    AnnotatedTypeFactory factory,
+                                    @Nullable DependencyIndex.Dependencies dependencies) {
         this.annotationUtils = AnnotationUtils.getInstance(env);
         this.env = env;
         this.typestateUtil = typestateUtil;
         this.factory = factory;
+        this.dependencies = dependencies;
+    }
+
+    private void recordDependency(ExecutableElement method) {
+        if (dependencies == null || method == null) {
+            return;
+        }
+
+        // Recorded whether or not the method is state-annotated now: a later spec change may annotate it.
+        dependencies.addMethod(SpecKeys.typeKey(env.getElementUtils(), (TypeElement) method.getEnclosingElement()),
+                SpecKeys.methodKey(env.getTypeUtils(), method));
     }
 
     private void addStateAnnotation(AnnotationMirror stateAnnotation, boolean isPure, Set<AnnotationMirror> to) {
@@ -94,9 +124,18 @@ public class StateAnnotationsDetector extends TreePathScanner<Void, Set<Annotati
             addStateAnnotations(parameter.getAnnotations(), stateAnnotations);
         }
 
+        recordDependency(TreeUtils.elementFromUse(node));
+
         return super.visitMethodInvocation(node, stateAnnotations);
     }
 
+    public Void visitNewClass(NewClassTree node, Set<AnnotationMirror> stateAnnotations) {
+        // The initial state of the constructed object is defined on the constructor receiver.
+        recordDependency((ExecutableElement) InternalUtils.symbol(node));
+
+        return super.visitNewClass(node, stateAnnotations);
+    }
+
     public Void visitMethod(MethodTree node, Set<AnnotationMirror> stateAnnotations) {
         // Adding all annotations that may be present on the declared method return type, parameters and receiver.
         AnnotatedTypeMirror.AnnotatedExecutableType methodType = factory.getAnnotatedType(node);
@@ -1,15 +1,37 @@
 package checkers.typestate;
 
+import checkers.nullness.quals.Nullable;
 import checkers.types.AnnotatedTypeFactory;
 import checkers.types.AnnotatedTypeMirror;
 import checkers.types.TypestateTypeFromExpression;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.SpecAnnotations;
+import checkers.typestate.spec.SpecIndex;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.spec.StateSpec;
+import checkers.typestate.stats.TypestateStatistics;
+import checkers.typestate.summary.MethodSummaries;
+import checkers.util.InternalUtils;
+import checkers.util.TreeUtils;
 
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
 
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -18,11 +40,73 @@ import java.util.Set;
 public class TypestateAnnotatedTypeFactory extends AnnotatedTypeFactory {
     private final TypestateTypeFromExpression.TypestateTypeFromExpressionEnv typestateTypeFromExpressionEnv;
 
+    private final ProcessingEnvironment env;
+    private final TypestateUtil typestateUtil;
+
+    // Precompiled specs, used for methods which don't declare state annotations themselves. May be null.
+    private final SpecIndex specIndex;
+    private final SpecAnnotations specAnnotations;
+
+    // Summaries of the methods of the checked sources, used for methods which don't declare state annotations
+    // themselves. May be null.
+    private MethodSummaries summaries;
+
+    // If not null, the time spent in the factory is recorded.
+    private TypestateStatistics statistics;
+
     public TypestateAnnotatedTypeFactory(ProcessingEnvironment env, TypestateUtil typestateUtil,
                                          CompilationUnitTree root) {
+        this(env, typestateUtil, root, null, null);
+    }
+
+    public TypestateAnnotatedTypeFactory(ProcessingEnvironment env, TypestateUtil typestateUtil,
+                                         CompilationUnitTree root, @Nullable SpecIndex specIndex,
+                                         @Nullable SpecAnnotations specAnnotations) {
         super(env, null, root, TypestateChecker.class);
 
         this.typestateTypeFromExpressionEnv = TypestateTypeFromExpression.makeEnv(this, typestateUtil);
+        this.env = env;
+        this.typestateUtil = typestateUtil;
+        this.specIndex = specIndex;
+        this.specAnnotations = specAnnotations;
+    }
+
+    /**
+     * @param statistics Statistics in which to record the time spent in the factory.
+     */
+    public void setStatistics(TypestateStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @param summaries Summaries of the methods of the checked sources.
+     */
+    public void setSummaries(MethodSummaries summaries) {
+        this.summaries = summaries;
+    }
+
+    @Override
+    public AnnotatedTypeMirror getAnnotatedType(Tree tree) {
+        startTiming();
+        try {
+            AnnotatedTypeMirror result = super.getAnnotatedType(tree);
+            if (summaries != null && tree.getKind() == Tree.Kind.VARIABLE) {
+                addRequiredState((VariableTree) tree, result);
+            }
+            return result;
+        } finally {
+            stopTiming();
+        }
+    }
+
+    @Override
+    public AnnotatedTypeMirror getAnnotatedType(Element elt) {
+        startTiming();
+        try {
+            return super.getAnnotatedType(elt);
+        } finally {
+            stopTiming();
+        }
     }
 
     public AnnotatedTypeMirror fromExpression(ExpressionTree tree) {
@@ -33,7 +117,113 @@ public class TypestateAnnotatedTypeFactory extends AnnotatedTypeFactory {
         for (AnnotationMirror annotation : stateAnnotations) {
             result.addAnnotation(annotation);
         }
-        
+
         return result;
     }
+
+    @Override
+    public AnnotatedTypeMirror.AnnotatedExecutableType methodFromUse(MethodInvocationTree tree) {
+        startTiming();
+        try {
+            AnnotatedTypeMirror.AnnotatedExecutableType result = super.methodFromUse(tree);
+            addIndexedAnnotations(TreeUtils.elementFromUse(tree), result);
+            return result;
+        } finally {
+            stopTiming();
+        }
+    }
+
+    @Override
+    public AnnotatedTypeMirror.AnnotatedExecutableType constructorFromUse(NewClassTree tree) {
+        startTiming();
+        try {
+            AnnotatedTypeMirror.AnnotatedExecutableType result = super.constructorFromUse(tree);
+            addIndexedAnnotations((ExecutableElement) InternalUtils.symbol(tree), result);
+            return result;
+        } finally {
+            stopTiming();
+        }
+    }
+
+    private void startTiming() {
+        if (statistics != null) {
+            statistics.start(TypestateStatistics.Phase.TYPE_FACTORY);
+        }
+    }
+
+    private void stopTiming() {
+        if (statistics != null) {
+            statistics.stop(TypestateStatistics.Phase.TYPE_FACTORY);
+        }
+    }
+
+    /**
+     * Adds state annotations read from the spec index to the given method type, on all positions (receiver, return
+     * type, parameters) where the declaration doesn't specify a state on its own.
+     */
+    private void addIndexedAnnotations(ExecutableElement method, AnnotatedTypeMirror.AnnotatedExecutableType type) {
+        if ((specIndex == null && summaries == null) || method == null) {
+            return;
+        }
+
+        MethodSpec methodSpec = null;
+        if (specIndex != null) {
+            TypeElement owner = (TypeElement) method.getEnclosingElement();
+            methodSpec = specIndex.getMethod(SpecKeys.typeKey(env.getElementUtils(), owner),
+                    SpecKeys.methodKey(env.getTypeUtils(), method));
+        }
+        if (methodSpec == null && summaries != null) {
+            methodSpec = summaries.get(method);
+        }
+        if (methodSpec == null) {
+            return;
+        }
+
+        addIndexedAnnotations(methodSpec.getReceiver(), type.getReceiverType());
+        addIndexedAnnotations(methodSpec.getReturnType(), type.getReturnType());
+
+        Iterator<List<StateSpec>> parameterSpecsIter = methodSpec.getParameters().iterator();
+        Iterator<AnnotatedTypeMirror> parameterTypesIter = type.getParameterTypes().iterator();
+        while (parameterSpecsIter.hasNext() && parameterTypesIter.hasNext()) {
+            addIndexedAnnotations(parameterSpecsIter.next(), parameterTypesIter.next());
+        }
+    }
+
+    /**
+     * Adds the state required by the summary of the method to the declaration of a parameter, if it is a single state,
+     * so that the body of the method is checked with the parameter in that state.
+     */
+    private void addRequiredState(VariableTree tree, AnnotatedTypeMirror type) {
+        VariableElement parameter = TreeUtils.elementFromDeclaration(tree);
+        if (parameter == null || parameter.getKind() != ElementKind.PARAMETER
+                || !(parameter.getEnclosingElement() instanceof ExecutableElement)) {
+            return;
+        }
+
+        ExecutableElement method = (ExecutableElement) parameter.getEnclosingElement();
+        MethodSpec summary = summaries.get(method);
+        int index = method.getParameters().indexOf(parameter);
+        if (summary == null || index < 0 || index >= summary.getParameters().size()) {
+            return;
+        }
+
+        List<StateSpec> specs = summary.getParameters().get(index);
+        if (specs.size() != 1 || Any.class.getName().equals(specs.get(0).getAnnotation())) {
+            return;
+        }
+
+        addIndexedAnnotations(Collections.singletonList(new StateSpec(specs.get(0).getAnnotation(), null, null, null,
+                null, Collections.<String>emptyList())), type);
+    }
+
+    private void addIndexedAnnotations(List<StateSpec> specs, AnnotatedTypeMirror type) {
+        // Annotations present in the sources or stubs take precedence over the index.
+        if (specs.isEmpty() || !typestateUtil.filterStateAnnotations(type.getAnnotations()).isEmpty()) {
+            return;
+        }
+
+        for (AnnotationMirror annotation : specAnnotations.toAnnotations(specs)) {
+            type.addAnnotation(annotation);
+        }
+    }
 }
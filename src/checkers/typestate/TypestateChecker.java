@@ -4,12 +4,38 @@ import checkers.quals.TypeQualifiers;
 import checkers.quals.Unqualified;
 import checkers.source.SourceChecker;
 import checkers.source.SourceVisitor;
+import checkers.typestate.deps.DependencyIndex;
+import checkers.typestate.diff.DiffScope;
+import checkers.typestate.events.TypestateEvents;
+import checkers.typestate.query.StateIndex;
+import checkers.typestate.query.UnitStates;
+import checkers.typestate.schedule.AnalysisScheduler;
+import checkers.typestate.spec.ProvenSites;
+import checkers.typestate.spec.ProvenSitesIndex;
+import checkers.typestate.spec.SpecAnnotations;
+import checkers.typestate.spec.SpecIndex;
+import checkers.typestate.stats.TypestateStatistics;
+import checkers.typestate.stream.MethodListener;
+import checkers.typestate.stream.MethodResultStream;
+import checkers.typestate.summary.MethodSummaries;
 import checkers.util.AnnotationUtils;
 
+import com.sun.source.tree.ClassTree;
 import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
 import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
 
 import javax.lang.model.element.AnnotationMirror;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -17,21 +43,485 @@ import java.util.Set;
  */
 @TypeQualifiers(Unqualified.class)
 public class TypestateChecker extends SourceChecker {
+    // Created on first use, and shared by all compilation units, so that spec files are read at most once per run.
+    private SpecIndex specIndex;
+    private SpecAnnotations specAnnotations;
+
+    // The dependency index and its file, if enabled; loaded once per run.
+    private DependencyIndex dependencyIndex;
+    private File dependencyIndexFile;
+    // Units depending on the changed specs, if only those should be checked; otherwise null.
+    private Set<String> dependentUnits;
+
+    // If checking is restricted to the methods touched by a diff, the scope; otherwise null.
+    private DiffScope diffScope;
+    private boolean diffScopeInitialized;
+
+    // If statistics are collected, the statistics of the whole run, and the file to which they are written.
+    private TypestateStatistics statistics;
+    private File statisticsFile;
+    // Writes the statistics at exit, if they are not written before.
+    private Thread statisticsWriter;
+
+    // Receiver of the analysis events, created on first use.
+    private TypestateEvents events;
+
+    // If the interprocedural mode is enabled, the summaries of the methods of all checked units; otherwise null.
+    private MethodSummaries summaries;
+
+    // If the states of the variables are recorded, the states recorded in all checked units; otherwise null.
+    private StateIndex stateIndex;
+
+    // The streams passing the results of each analysed method to the registered listeners.
+    private final List<MethodResultStream> methodStreams = new ArrayList<MethodResultStream>();
+
+    // If set, the scheduler through which the analysis of each method can be cancelled, and which orders the methods.
+    private AnalysisScheduler scheduler;
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        Set<String> options = new HashSet<String>(super.getSupportedOptions());
+        options.addAll(TypestateOptions.ALL);
+        return options;
+    }
+
     protected SourceVisitor<?, ?> createSourceVisitor(CompilationUnitTree root) {
+        initSpecIndex();
+        initDependencyIndex();
+        initDiffScope();
+        initStatistics();
+        initEvents();
+        initSummaries();
+        initStateIndex();
+
+        final String unitKey = DependencyIndex.keyOf(root);
+        if (dependentUnits != null && dependencyIndex.contains(unitKey) && !dependentUnits.contains(unitKey)) {
+            // The unit doesn't depend on any of the changed specs.
+            return skippingVisitor(root);
+        }
+
+        if (statistics != null) {
+            statistics.increment(TypestateStatistics.Counter.UNITS_CHECKED);
+        }
+        final Object unitEvent = events.beginUnit();
+
+        List<TreePath> methodsInScope = null;
+        if (diffScope != null) {
+            methodsInScope = diffScope.getMethodsInScope(root,
+                    Trees.instance(getProcessingEnvironment()).getSourcePositions());
+            if (methodsInScope.isEmpty()) {
+                // No method of the unit was touched.
+                return skippingVisitor(root);
+            }
+        }
+
         TypestateUtil typestateUtil = new TypestateUtil(getProcessingEnvironment());
         TypestateAnnotatedTypeFactory factory = new TypestateAnnotatedTypeFactory(getProcessingEnvironment(),
-                typestateUtil, root);
+                typestateUtil, root, specIndex, specAnnotations);
+        factory.setStatistics(statistics);
+        if (summaries != null) {
+            factory.setSummaries(summaries);
+            summaries.summarise(root, factory, typestateUtil);
+        }
+
+        DependencyIndex.Dependencies dependencies = dependencyIndex == null ? null : new DependencyIndex.Dependencies();
 
         // Looking for all annotations annotated with @State
         Set<AnnotationMirror> stateAnnotations = AnnotationUtils.createAnnotationSet();
-        new StateAnnotationsDetector(getProcessingEnvironment(), typestateUtil, factory).scan(root, stateAnnotations);
+        StateAnnotationsDetector detector = new StateAnnotationsDetector(getProcessingEnvironment(), typestateUtil,
+                factory, dependencies);
+        if (statistics != null) {
+            statistics.start(TypestateStatistics.Phase.DETECTOR);
+        }
+        if (methodsInScope == null) {
+            detector.scan(root, stateAnnotations);
+        } else {
+            // Only the touched methods, and the fields they may use, have to be scanned.
+            for (TreePath method : methodsInScope) {
+                detector.scan(method, stateAnnotations);
+            }
+            for (TreePath classPath : DiffScope.getEnclosingClasses(methodsInScope)) {
+                for (Tree member : ((ClassTree) classPath.getLeaf()).getMembers()) {
+                    if (member.getKind() == Tree.Kind.VARIABLE) {
+                        detector.scan(new TreePath(classPath, member), stateAnnotations);
+                    }
+                }
+            }
+        }
+        if (statistics != null) {
+            statistics.stop(TypestateStatistics.Phase.DETECTOR);
+        }
+
+        if (dependencies != null) {
+            for (AnnotationMirror stateAnnotation : stateAnnotations) {
+                dependencies.addState(stateAnnotation.getAnnotationType().toString());
+            }
+
+            try {
+                dependencyIndex.putAndAppend(dependencyIndexFile, unitKey, dependencies);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot update the dependency index " + dependencyIndexFile + ".", e);
+            }
+        }
 
-        final TypestateFlow flow = new TypestateFlow(this, stateAnnotations, factory, root, typestateUtil);
+        final TypestateFlow flow = createFlow(stateAnnotations, factory, root, typestateUtil);
+        if (methodsInScope != null) {
+            Set<MethodTree> methods = new HashSet<MethodTree>();
+            for (TreePath method : methodsInScope) {
+                methods.add((MethodTree) method.getLeaf());
+            }
+            flow.setMethodsInScope(methods);
+        }
+        flow.setStatistics(statistics);
+        flow.setEvents(events);
+        TypestateOptions options = new TypestateOptions(getProcessingEnvironment());
+        flow.setBudget(options.getLong(TypestateOptions.BUDGET_TIME, 0) * 1000000L,
+                options.getLong(TypestateOptions.BUDGET_STEPS, 0));
+        flow.setBlockSummaries(options.isSet(TypestateOptions.BLOCK_SUMMARIES));
+        String engine = options.get(TypestateOptions.ENGINE, "dense");
+        if (!"dense".equals(engine) && !"sparse".equals(engine)) {
+            throw new IllegalArgumentException("The value of option " + TypestateOptions.ENGINE
+                    + " must be dense or sparse, got: " + engine);
+        }
+        flow.setSparseEngine("sparse".equals(engine));
+        flow.setAnyStateTransitions(summaries != null);
+        String provenSitesOut = options.get(TypestateOptions.PROVEN_SITES_OUT, null);
+        final File provenSitesRoot = provenSitesOut == null ? null : new File(provenSitesOut);
+        final Map<String, ProvenSites> provenSites = new HashMap<String, ProvenSites>();
+        if (provenSitesRoot != null) {
+            flow.setProvenSites(provenSites);
+        }
+        for (MethodResultStream stream : methodStreams) {
+            flow.addMethodListener(stream);
+        }
+        if (scheduler != null) {
+            flow.setScheduler(scheduler);
+        }
+        final UnitStates.Builder recordedStates = stateIndex == null ? null : new UnitStates.Builder();
+        if (recordedStates != null) {
+            flow.setRecordedStates(recordedStates);
+        }
 
+        final String unitFile = root.getSourceFile().getName();
+        final int statesCount = stateAnnotations.size();
         return new SourceVisitor<Void, Void>(this, root) {
             public Void scan(TreePath path, Void o) {
-                return flow.scan(path, o);
+                if (provenSitesRoot != null || recordedStates != null) {
+                    try {
+                        return scanWithMethodStreams(path, o);
+                    } finally {
+                        if (provenSitesRoot != null) {
+                            writeProvenSites(provenSitesRoot, provenSites);
+                        }
+                        if (recordedStates != null) {
+                            stateIndex.put(unitKey, recordedStates.build());
+                        }
+                    }
+                }
+
+                return scanWithMethodStreams(path, o);
+            }
+
+            private Void scanWithMethodStreams(TreePath path, Void o) {
+                if (!methodStreams.isEmpty()) {
+                    try {
+                        return scanWithStatisticsAndEvents(path, o);
+                    } finally {
+                        for (MethodResultStream stream : methodStreams) {
+                            stream.unitAnalysed(unitKey);
+                        }
+                    }
+                }
+
+                return scanWithStatisticsAndEvents(path, o);
+            }
+
+            private Void scanWithStatisticsAndEvents(TreePath path, Void o) {
+                if (statistics == null && unitEvent == null) {
+                    return flow.scan(path, o);
+                }
+
+                if (statistics != null) {
+                    statistics.start(TypestateStatistics.Phase.FLOW);
+                }
+                try {
+                    return flow.scan(path, o);
+                } finally {
+                    if (statistics != null) {
+                        statistics.stop(TypestateStatistics.Phase.FLOW);
+                    }
+                    if (unitEvent != null) {
+                        events.endUnit(unitEvent, unitFile, flow.getAnalysedMethods(), statesCount);
+                    }
+                }
             }
         };
     }
+
+    /**
+     * Registers a listener, which receives the diagnostics and the metadata of each analysed method as soon as the
+     * method is analysed, on a separate thread. Should be called before the compilation starts, e.g. on the checker
+     * instance passed to {@link javax.tools.JavaCompiler.CompilationTask#setProcessors}.
+     * @param listener The listener.
+     * @param capacity Maximum number of results waiting for the listener; when reached, the analysis waits for the
+     * listener to take one.
+     */
+    public void addMethodListener(MethodListener listener, int capacity) {
+        methodStreams.add(new MethodResultStream(listener, capacity));
+    }
+
+    /**
+     * Waits until the listeners receive the results of all analysed methods, and stops their threads. Should be
+     * called when the compilation completes.
+     * @throws RuntimeException If a listener failed.
+     */
+    public void closeMethodListeners() {
+        RuntimeException failure = null;
+        for (MethodResultStream stream : methodStreams) {
+            try {
+                stream.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        methodStreams.clear();
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Makes the analysis of each method a task of the scheduler: an edit of a unit, reported to the scheduler from
+     * another thread, cancels the running analysis of the unit, and the methods under the cursor are analysed first.
+     * Should be called before the compilation starts.
+     * @param scheduler The scheduler.
+     */
+    public void setScheduler(AnalysisScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Uses the given spec index instead of reading one from {@link TypestateOptions#SPEC_INDEX}, so that a resident
+     * driver checking the sources repeatedly keeps the specs loaded so far. Should be called before the compilation
+     * starts.
+     * @param specIndex The spec index.
+     */
+    public void setSpecIndex(SpecIndex specIndex) {
+        this.specIndex = specIndex;
+    }
+
+    /**
+     * Uses the given dependency index instead of reading it from {@link TypestateOptions#DEPENDENCY_INDEX}; the
+     * dependencies of each checked unit are recorded in it, and appended to the given file. Should be called before
+     * the compilation starts.
+     * @param dependencyIndex The dependency index.
+     * @param dependencyIndexFile File to which to append the dependencies of the checked units.
+     */
+    public void setDependencyIndex(DependencyIndex dependencyIndex, File dependencyIndexFile) {
+        this.dependencyIndex = dependencyIndex;
+        this.dependencyIndexFile = dependencyIndexFile;
+    }
+
+    private static void writeProvenSites(File root, Map<String, ProvenSites> provenSites) {
+        try {
+            for (ProvenSites sites : provenSites.values()) {
+                ProvenSitesIndex.write(root, sites);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the proven call sites to " + root + ".", e);
+        } finally {
+            provenSites.clear();
+        }
+    }
+
+    /**
+     * Creates the flow analysis of a compilation unit.
+     */
+    protected TypestateFlow createFlow(Set<AnnotationMirror> stateAnnotations, TypestateAnnotatedTypeFactory factory,
+                                       CompilationUnitTree root, TypestateUtil typestateUtil) {
+        return new TypestateFlow(this, stateAnnotations, factory, root, typestateUtil);
+    }
+
+    private SourceVisitor<?, ?> skippingVisitor(CompilationUnitTree root) {
+        if (statistics != null) {
+            statistics.increment(TypestateStatistics.Counter.UNITS_SKIPPED);
+        }
+
+        return new SourceVisitor<Void, Void>(this, root) {
+            public Void scan(TreePath path, Void o) {
+                return null;
+            }
+        };
+    }
+
+    private void initSpecIndex() {
+        if (specAnnotations == null) {
+            String specIndexPath = new TypestateOptions(getProcessingEnvironment()).get(TypestateOptions.SPEC_INDEX,
+                    null);
+            if (specIndex == null && specIndexPath != null) {
+                specIndex = SpecIndex.fromPath(specIndexPath);
+            }
+
+            specAnnotations = new SpecAnnotations(getProcessingEnvironment());
+        }
+    }
+
+    private void initDependencyIndex() {
+        TypestateOptions options = new TypestateOptions(getProcessingEnvironment());
+        if (dependencyIndexFile != null || !options.isSet(TypestateOptions.DEPENDENCY_INDEX)) {
+            return;
+        }
+
+        dependencyIndexFile = new File(options.get(TypestateOptions.DEPENDENCY_INDEX, "typestate.deps"));
+        try {
+            dependencyIndex = DependencyIndex.read(dependencyIndexFile);
+            // Compacting the records appended by previous runs.
+            dependencyIndex.write(dependencyIndexFile);
+
+            String changedSpecs = options.get(TypestateOptions.CHANGED_SPECS, null);
+            if (changedSpecs != null) {
+                dependentUnits = dependencyIndex.dependents(Arrays.asList(changedSpecs.split(",")));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read the dependency index " + dependencyIndexFile + ".", e);
+        }
+    }
+
+    private void initDiffScope() {
+        if (diffScopeInitialized) {
+            return;
+        }
+
+        diffScopeInitialized = true;
+        String diffFile = new TypestateOptions(getProcessingEnvironment()).get(TypestateOptions.DIFF, null);
+        if (diffFile != null) {
+            try {
+                diffScope = DiffScope.parse(new File(diffFile));
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read the diff " + diffFile + ".", e);
+            }
+        }
+    }
+
+    private void initStatistics() {
+        TypestateOptions options = new TypestateOptions(getProcessingEnvironment());
+        if (statistics != null || !options.isSet(TypestateOptions.STATS)) {
+            return;
+        }
+
+        statistics = new TypestateStatistics((int) options.getLong(TypestateOptions.STATS_SLOWEST, 10));
+        statisticsFile = new File(options.get(TypestateOptions.STATS, "typestate-stats.txt"));
+
+        // The checker isn't notified when the compilation completes, so the report is written at exit, unless the
+        // driver writes it before.
+        statisticsWriter = new Thread(new Runnable() {
+            public void run() {
+                writeStatistics();
+            }
+        }, "typestate-statistics");
+        Runtime.getRuntime().addShutdownHook(statisticsWriter);
+    }
+
+    /**
+     * @return The statistics of the units checked so far, if enabled with {@link TypestateOptions#STATS}; otherwise
+     * null.
+     */
+    public TypestateStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Writes the statistics of the run, if enabled with {@link TypestateOptions#STATS}. The statistics are written
+     * when the JVM exits; a driver running the compiler in-process should instead call this method when the
+     * compilation completes.
+     */
+    public void writeStatistics() {
+        if (statistics == null) {
+            return;
+        }
+        if (statisticsWriter != null && Thread.currentThread() != statisticsWriter) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(statisticsWriter);
+            } catch (IllegalStateException e) {
+                // The JVM is exiting, and the hook is already running.
+            }
+        }
+        statisticsWriter = null;
+
+        if (specIndex != null) {
+            statistics.set(TypestateStatistics.Counter.SPEC_INDEX_HITS, specIndex.getCacheHits());
+            statistics.set(TypestateStatistics.Counter.SPEC_INDEX_MISSES, specIndex.getCacheMisses());
+        }
+        if (summaries != null) {
+            statistics.set(TypestateStatistics.Counter.METHODS_SUMMARISED, summaries.getSummarised());
+            statistics.set(TypestateStatistics.Counter.SUMMARY_HITS, summaries.getHits());
+            statistics.set(TypestateStatistics.Counter.IFDS_PATH_EDGES, summaries.getPathEdges());
+        }
+
+        try {
+            statistics.write(statisticsFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the statistics to " + statisticsFile + ".", e);
+        }
+    }
+
+    private void initSummaries() {
+        TypestateOptions options = new TypestateOptions(getProcessingEnvironment());
+        if (summaries != null || !options.isSet(TypestateOptions.INTERPROCEDURAL)) {
+            return;
+        }
+
+        long threads = options.getLong(TypestateOptions.INTERPROCEDURAL, Runtime.getRuntime().availableProcessors());
+        if (threads < 1) {
+            throw new IllegalArgumentException("The value of option " + TypestateOptions.INTERPROCEDURAL
+                    + " must be a positive number, got: " + threads);
+        }
+        String solver = options.get(TypestateOptions.INTERPROCEDURAL_SOLVER, "bottomup");
+        if (!"bottomup".equals(solver) && !"ifds".equals(solver)) {
+            throw new IllegalArgumentException("The value of option " + TypestateOptions.INTERPROCEDURAL_SOLVER
+                    + " must be bottomup or ifds, got: " + solver);
+        }
+        summaries = new MethodSummaries(getProcessingEnvironment(), (int) threads,
+                "ifds".equals(solver) ? MethodSummaries.Solver.IFDS : MethodSummaries.Solver.BOTTOM_UP);
+    }
+
+    private void initStateIndex() {
+        TypestateOptions options = new TypestateOptions(getProcessingEnvironment());
+        if (stateIndex != null || !options.isSet(TypestateOptions.RECORD_STATES)) {
+            return;
+        }
+
+        // Recording the states requires all statements to be scanned.
+        if (options.isSet(TypestateOptions.BLOCK_SUMMARIES) || "sparse".equals(options.get(TypestateOptions.ENGINE,
+                "dense"))) {
+            throw new IllegalArgumentException("Option " + TypestateOptions.RECORD_STATES + " can't be combined with "
+                    + TypestateOptions.BLOCK_SUMMARIES + " or with the sparse " + TypestateOptions.ENGINE + ".");
+        }
+        stateIndex = new StateIndex();
+    }
+
+    /**
+     * @return The states of the variables recorded in the units checked so far, if enabled with
+     * {@link TypestateOptions#RECORD_STATES}; otherwise null.
+     */
+    public StateIndex getStateIndex() {
+        return stateIndex;
+    }
+
+    private void initEvents() {
+        if (events != null) {
+            return;
+        }
+
+        String eventsClass = new TypestateOptions(getProcessingEnvironment()).get(TypestateOptions.EVENTS, null);
+        if (eventsClass == null) {
+            // Flight Recorder events are emitted only if available.
+            events = TypestateEvents.load(TypestateEvents.JFR_EVENTS_CLASS, false);
+        } else {
+            events = TypestateEvents.load(eventsClass, true);
+        }
+    }
 }
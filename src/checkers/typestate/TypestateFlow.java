@@ -1,7 +1,7 @@
 package checkers.typestate;
 
 import checkers.flow.MainFlow;
-import checkers.flow.GenKillBits;
+import checkers.flow.StateVector;
 import checkers.types.AnnotatedTypeMirror;
 import checkers.types.AnnotatedTypeFactory;
 import checkers.util.InternalUtils;
@@ -9,7 +9,21 @@ import checkers.util.AnnotationUtils;
 import checkers.util.TreeUtils;
 import checkers.source.Result;
 import checkers.source.SourceChecker;
+import checkers.typestate.deps.DependencyIndex;
+import checkers.typestate.events.TypestateEvents;
+import checkers.typestate.query.UnitStates;
+import checkers.typestate.schedule.AnalysisScheduler;
+import checkers.typestate.schedule.AnalysisTask;
+import checkers.typestate.spec.ProvenSites;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.ssa.SparseEngine;
+import checkers.typestate.ssa.UnsupportedTreeException;
+import checkers.typestate.stats.TypestateStatistics;
+import checkers.typestate.stream.MethodDiagnostic;
+import checkers.typestate.stream.MethodListener;
+import checkers.typestate.stream.MethodResult;
 import com.sun.source.tree.*;
+import com.sun.source.util.TreePathScanner;
 import com.sun.source.util.TreeScanner;
 
 import javax.lang.model.element.*;
@@ -18,6 +32,13 @@ import java.util.Set;
 import java.util.Map;
 import java.util.Iterator;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
 
 /**
  * @author Adam Warski (adam at warski dot org)
@@ -25,7 +46,7 @@ import java.util.HashMap;
 public class TypestateFlow extends MainFlow {
     // Because AnnotationMirror doesn't implement .equals and .hashCode, a translation map is needed from
     // an annotation mirror that is "equal" to some annotation present int the <code>annotations</code>
-    // set, to the annotation mirror used in the <code>GenKillBits</code> set.
+    // set, to the annotation mirror used in the <code>StateVector</code>s.
     private final Map<AnnotationMirror, AnnotationMirror> annotationsTranslation;
 
     private final TypestateUtil typestateUtil;
@@ -33,6 +54,94 @@ public class TypestateFlow extends MainFlow {
 	// The transition element which should be read.
 	protected TransitionElement transitionElement = TransitionElement.AFTER;
 
+	// If not null, only these methods (and methods nested in them) are analysed.
+	private Set<MethodTree> methodsInScope;
+	// The number of analysed methods enclosing the currently visited tree.
+	private int analysedMethodsDepth = 0;
+
+	// If not null, the statistics which are updated by the analysis.
+	private TypestateStatistics statistics;
+	// The effect recorded for each call site when collecting statistics, so that replayed sites are counted.
+	private static final Object CALL_SITE = new Object();
+
+	// Receives the analysis events; by default, all events are disabled.
+	private TypestateEvents events = TypestateEvents.NONE;
+	// Numbers of analysed methods, and of rescans so far.
+	private int analysedMethods = 0;
+	private int rescans = 0;
+	// Number of variables tracked in the last scanned method.
+	private int methodVars = 0;
+
+	// The per-method budget: maximum time of the analysis (in nanoseconds) and number of transfer steps; 0 if
+	// unlimited.
+	private long budgetNanos = 0;
+	private long budgetSteps = 0;
+	// Start time and number of steps so far of the currently analysed outermost method.
+	private long methodStart;
+	private long methodSteps;
+
+	// If true, outermost methods are analysed by the sparse engine, if it supports them.
+	private boolean sparseEngine = false;
+
+	// If true, a transition to the any-state annotation makes the state of the variable unknown; otherwise, such
+	// transitions are ignored.
+	private boolean anyStateTransitions = false;
+
+	// Errors found in the currently analysed outermost method; they are reported only when the analysis of the method
+	// completes, as if the budget is exceeded, they are replaced by the results of the fallback check.
+	private final List<PendingReport> pendingReports = new ArrayList<PendingReport>();
+
+	// If not null, the call sites whose receivers are proved to be in the required states are recorded here, by the
+	// binary names of the classes containing them.
+	private Map<String, ProvenSites> provenSites;
+	// The methods enclosing the currently visited tree, the innermost last.
+	private final List<ExecutableElement> enclosingMethods = new ArrayList<ExecutableElement>();
+	// Calls with checked receivers in the currently analysed outermost method, and the methods containing them; and
+	// the calls for which errors were reported.
+	private final Map<MethodInvocationTree, ExecutableElement> checkedCalls =
+			new LinkedHashMap<MethodInvocationTree, ExecutableElement>();
+	private final Set<Tree> failedCalls = Collections.newSetFromMap(new IdentityHashMap<Tree, Boolean>());
+
+	// If not null, the states of the local variables are recorded here, before and after each statement.
+	private UnitStates.Builder recordedStates;
+	// The variables whose states are recorded in the currently analysed outermost method.
+	private final Set<VariableElement> recordedVariables = new HashSet<VariableElement>();
+
+	// Receivers of the results of each analysed outermost method, and the key of the unit.
+	private final List<MethodListener> methodListeners = new ArrayList<MethodListener>();
+	private String unitKey;
+
+	// If not null, the analysis of each outermost method is a task of the scheduler, which may cancel it; the methods
+	// under the cursor are analysed first. The number of edits of the unit when its analysis started.
+	private AnalysisScheduler scheduler;
+	private long unitGeneration;
+
+	private static class PendingReport {
+		private final Result result;
+		private final Object source;
+		// The parts of the result, which are passed to the method listeners.
+		private final boolean warning;
+		private final String key;
+		private final Object[] args;
+
+		private PendingReport(boolean warning, String key, Object source, Object... args) {
+			this.result = warning ? Result.warning(key, args) : Result.failure(key, args);
+			this.source = source;
+			this.warning = warning;
+			this.key = key;
+			this.args = args;
+		}
+	}
+
+	private static class BudgetExceededException extends RuntimeException {
+		// Which budget was exceeded: "time" or "steps".
+		private final String budget;
+
+		private BudgetExceededException(String budget) {
+			this.budget = budget;
+		}
+	}
+
     public TypestateFlow(SourceChecker checker, Set<AnnotationMirror> annotations, AnnotatedTypeFactory factory,
                          CompilationUnitTree root, TypestateUtil typestateUtil) {
         super(checker, root, annotations, factory);
@@ -46,6 +155,110 @@ public class TypestateFlow extends MainFlow {
         }
     }
 
+	/**
+	 * Restricts the analysis to the given methods; others are skipped, and no errors are reported for them. Field
+	 * initializers are still analysed, as they determine the states of the fields, but no errors are reported for them
+	 * either.
+	 * @param methodsInScope The methods to analyse.
+	 */
+	public void setMethodsInScope(Set<MethodTree> methodsInScope) {
+		this.methodsInScope = methodsInScope;
+	}
+
+	/**
+	 * @param statistics Statistics to update during the analysis.
+	 */
+	public void setStatistics(TypestateStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * @param events Receiver of the analysis events.
+	 */
+	public void setEvents(TypestateEvents events) {
+		this.events = events;
+	}
+
+	/**
+	 * Limits the analysis of each method. If a limit is exceeded, the analysis of the (outermost) method is abandoned;
+	 * instead, only the states of expressions which aren't variables are checked, using the declared annotations, and
+	 * a warning is reported.
+	 * @param budgetNanos Maximum time of the analysis of a method, in nanoseconds, or 0 if unlimited.
+	 * @param budgetSteps Maximum number of transfer steps (visited trees) of a method, or 0 if unlimited.
+	 */
+	public void setBudget(long budgetNanos, long budgetSteps) {
+		this.budgetNanos = budgetNanos;
+		this.budgetSteps = budgetSteps;
+	}
+
+	/**
+	 * @param sparseEngine If true, methods are analysed by the {@link SparseEngine}, except for the ones containing
+	 * constructs which it doesn't support; these are analysed by the flow.
+	 */
+	public void setSparseEngine(boolean sparseEngine) {
+		this.sparseEngine = sparseEngine;
+	}
+
+	/**
+	 * @param anyStateTransitions If true, after a transition (or an exception) to the any-state annotation, e.g.
+	 * {@code @State1(after = Any.class)}, the state of the variable is unknown, so that any state it is later required
+	 * to be in is an error. This is how the summaries of methods with state-dependent exits are expressed. Otherwise,
+	 * such transitions are ignored, and the state doesn't change.
+	 */
+	public void setAnyStateTransitions(boolean anyStateTransitions) {
+		this.anyStateTransitions = anyStateTransitions;
+	}
+
+	/**
+	 * Enables recording the call sites at which the states of the receivers are proved, so that the runtime monitor
+	 * doesn't have to check them. Each analysed class gets an entry, also if no site is proved.
+	 * @param provenSites The map to which the proven sites are added, by the binary names of the classes.
+	 */
+	public void setProvenSites(Map<String, ProvenSites> provenSites) {
+		this.provenSites = provenSites;
+	}
+
+	/**
+	 * Enables recording the states of the local variables of reference types, before and after each statement of the
+	 * analysed methods. The methods must be scanned: the sparse engine and the block summaries must be disabled.
+	 * @param recordedStates The builder to which the states are added.
+	 */
+	public void setRecordedStates(UnitStates.Builder recordedStates) {
+		this.recordedStates = recordedStates;
+	}
+
+	/**
+	 * @param listener Receiver of the results of each analysed outermost method, called when the analysis of the
+	 * method completes.
+	 */
+	public void addMethodListener(MethodListener listener) {
+		if (unitKey == null) {
+			unitKey = DependencyIndex.keyOf(root);
+		}
+		methodListeners.add(listener);
+	}
+
+	/**
+	 * Makes the analysis of each outermost method a cancellable task of the scheduler. A cancelled analysis is
+	 * abandoned, and no errors are reported for the method, as its content is stale. Among the methods of a class,
+	 * the ones under the cursor are analysed first.
+	 * @param scheduler The scheduler.
+	 */
+	public void setScheduler(AnalysisScheduler scheduler) {
+		if (unitKey == null) {
+			unitKey = DependencyIndex.keyOf(root);
+		}
+		this.scheduler = scheduler;
+		this.unitGeneration = scheduler.generation(unitKey);
+	}
+
+	/**
+	 * @return Number of methods analysed so far.
+	 */
+	public int getAnalysedMethods() {
+		return analysedMethods;
+	}
+
 	private AnnotationMirror translateToErrorAnnotation(final AnnotationMirror annotation) {
 		if (typestateUtil.isAnyStateAnnotation(annotation)) {
 			// Creating the same any-state annotation, with the "except" element set, and other elements removed.
@@ -103,7 +316,7 @@ public class TypestateFlow extends MainFlow {
     }
 
 	private void clearStateAnnotation(AnnotationMirror declaredAnnotation, int elementIdx,
-									  GenKillBits<AnnotationMirror> annos) {
+									  StateVector<AnnotationMirror> annos) {
 		AnnotationMirror receiverAnnTranslation = annotationsTranslation.get(declaredAnnotation);
 
 		// If the "after" annotation is a state annotation, changing the state of the
@@ -120,103 +333,736 @@ public class TypestateFlow extends MainFlow {
         // Only checking the state if the declaration specifies any state
         if (declaredAnnotations.size() > 0) {
             Element annotatedElement = InternalUtils.symbol(annotatedTree);
+            @SuppressWarnings({"SuspiciousMethodCalls"}) int elementIdx = vars.indexOf(annotatedElement);
+            annos = checkStateAnnotations(declaredAnnotations, annotatedTree, methodInvocationTree, errorMessageKey,
+                    annos, elementIdx, transitionElement, true);
+        }
+    }
 
-            // Generating the "actual" annotations of the element.
-            Set<AnnotationMirror> actualAnnotations = AnnotationUtils.createAnnotationSet();
+	/**
+	 * Checks the states of the annotated tree, and does the transitions.
+	 * @param bits The states of the variables, if the tree is a tracked variable.
+	 * @param elementIdx Index of the variable in the bits, or -1 if the tree isn't a tracked variable; its states are
+	 * then the ones inferred by the factory.
+	 * @param transitionElement The transition to read.
+	 * @param report True iff an error should be reported if the states don't match.
+	 * @return The states after the transitions: the given bits, or a modified copy.
+	 */
+    private StateVector<AnnotationMirror> checkStateAnnotations(Set<AnnotationMirror> declaredAnnotations,
+                                                                Tree annotatedTree,
+                                                                MethodInvocationTree methodInvocationTree,
+                                                                String errorMessageKey, StateVector<AnnotationMirror> bits,
+                                                                int elementIdx, TransitionElement transitionElement,
+                                                                boolean report) {
+        // Generating the "actual" annotations of the element.
+        Set<AnnotationMirror> actualAnnotations = AnnotationUtils.createAnnotationSet();
 
-            // If the element is a variable, getting all annotations currently inferred by the flow.
-            @SuppressWarnings({"SuspiciousMethodCalls"}) int elementIdx = vars.indexOf(annotatedElement);
-            if (elementIdx >= 0) {
-                for (AnnotationMirror stateAnnotation : annotations) {
-                    if (annos.get(stateAnnotation, elementIdx)) {
-                        actualAnnotations.add(stateAnnotation);
-                    }
+        // If the element is a variable, getting all annotations currently inferred by the flow.
+        if (elementIdx >= 0) {
+            reading(elementIdx);
+            for (AnnotationMirror stateAnnotation : annotations) {
+                if (bits.get(stateAnnotation, elementIdx)) {
+                    actualAnnotations.add(stateAnnotation);
                 }
-            } else {
-                // Otherwise, adding all annotations which the factory can infer on the element.
-                for (AnnotationMirror factoryAnnotation : factory.getAnnotatedType(annotatedTree).getAnnotations()) {
-                    // Only adding state annotations
-                    if (annotations.contains(factoryAnnotation)) {
-                        actualAnnotations.add(factoryAnnotation);
-                    }
+            }
+        } else {
+            // Otherwise, adding all annotations which the factory can infer on the element.
+            for (AnnotationMirror factoryAnnotation : factory.getAnnotatedType(annotatedTree).getAnnotations()) {
+                // Only adding state annotations
+                if (annotations.contains(factoryAnnotation)) {
+                    actualAnnotations.add(factoryAnnotation);
                 }
             }
+        }
 
-            boolean stateMatchFound = false;
-
-            // For all declared annotations: if such an annotation is a state annotation, checking if the
-            // checked element is in this state. If so, doing possible transitions.
-            for (AnnotationMirror declaredAnnotation : declaredAnnotations) {
-                // Checking if the declared annotation is a state annotation, which is also present on the element
-                // checked, or if it is the any-state annotation, and the actual annotations aren't in the
-				// "except" parameter of the annotation.
-                // "contains" here is ok as we use the special annotation set (annotation parameter values are ignored).
-                if ((annotations.contains(declaredAnnotation) && actualAnnotations.contains(declaredAnnotation))
-                        || typestateUtil.anyAnnotationCovers(declaredAnnotation, actualAnnotations)) {
-                    stateMatchFound = true;
-
-					// First checking if we are in a try-catch-finally. If so, looking for an exception annotation. If
-					// it is present, updating the try bits to be in the new state.
-					if (tryBits.size() > 0 || catchBits.size() > 0) {
-						AnnotationMirror exceptionAnnotation = typestateUtil.getExceptionElementValue(
-								declaredAnnotation);
-
-						if (exceptionAnnotation != null) {
-							// Preparing an annotations bits set with the exception state set
-							GenKillBits<AnnotationMirror> exceptionBits = GenKillBits.copy(annos);
-							clearStateAnnotation(declaredAnnotation, elementIdx, exceptionBits);
-							exceptionBits.set(annotationsTranslation.get(exceptionAnnotation), elementIdx);
-
-							// And updating the exception bits
-							updateExceptionBits(exceptionBits);
-						}
-					}
+        boolean stateMatchFound = false;
 
-					// Trying to read the specific transition element
-                    AnnotationMirror afterAnnotation = typestateUtil.getTransitionElementValue(declaredAnnotation, transitionElement);
-					// If no value was found, and the element wasn't the normal one ('after'), trying to read it.
-					if (afterAnnotation == null && transitionElement != TransitionElement.AFTER) {
-						afterAnnotation = typestateUtil.getTransitionElementValue(declaredAnnotation, TransitionElement.AFTER);
-					}
-                    // Currently the transitions will only work for variables - hence checking the elementIdx.
-                    if (elementIdx >= 0 && afterAnnotation != null && annotations.contains(afterAnnotation)) {
-                        // If the "after" annotation is a state annotation, changing the state of the
-                        // element in the flow.
+        // For all declared annotations: if such an annotation is a state annotation, checking if the
+        // checked element is in this state. If so, doing possible transitions.
+        for (AnnotationMirror declaredAnnotation : declaredAnnotations) {
+            // Checking if the declared annotation is a state annotation, which is also present on the element
+            // checked, or if it is the any-state annotation, and the actual annotations aren't in the
+			// "except" parameter of the annotation.
+            // "contains" here is ok as we use the special annotation set (annotation parameter values are ignored).
+            if ((annotations.contains(declaredAnnotation) && actualAnnotations.contains(declaredAnnotation))
+                    || typestateUtil.anyAnnotationCovers(declaredAnnotation, actualAnnotations)) {
+                stateMatchFound = true;
+
+				// First checking if we are in a try-catch-finally. If so, looking for an exception annotation. If
+				// it is present, updating the try bits to be in the new state.
+				if (tryBits.size() > 0 || catchBits.size() > 0) {
+					AnnotationMirror exceptionAnnotation = typestateUtil.getExceptionElementValue(
+							declaredAnnotation);
+
+					if (exceptionAnnotation != null) {
+						// Preparing an annotations bits set with the exception state set
+						StateVector<AnnotationMirror> exceptionBits = writable(copy(bits));
+						clearStateAnnotation(declaredAnnotation, elementIdx, exceptionBits);
+						exceptionBits.set(annotationsTranslation.get(exceptionAnnotation), elementIdx);
 
-						// Clearing any of the old states
+						// And updating the exception bits
+						updateExceptionBits(exceptionBits);
+					} else if (elementIdx >= 0 && anyStateTransitions && typestateUtil.isTransitionToAnyState(
+							declaredAnnotation, TypestateUtil.EXCEPTION_ELEMENT_NAME)) {
+						// On an exception, the element may be in any state.
+						StateVector<AnnotationMirror> exceptionBits = writable(copy(bits));
 						for (AnnotationMirror actualAnnotation : actualAnnotations) {
-							clearStateAnnotation(actualAnnotation, elementIdx, annos);
+							clearStateAnnotation(actualAnnotation, elementIdx, exceptionBits);
 						}
+						updateExceptionBits(exceptionBits);
+					}
+				}
 
-						// Setting the new state
-                        annos.set(annotationsTranslation.get(afterAnnotation), elementIdx);
-                    }
+				// Trying to read the specific transition element
+                AnnotationMirror afterAnnotation = typestateUtil.getTransitionElementValue(declaredAnnotation, transitionElement);
+				boolean afterAny = afterAnnotation == null && anyStateTransitions
+						&& typestateUtil.isTransitionToAnyState(declaredAnnotation, transitionElement.getElementName());
+				// If no value was found, and the element wasn't the normal one ('after'), trying to read it.
+				if (afterAnnotation == null && !afterAny && transitionElement != TransitionElement.AFTER) {
+					afterAnnotation = typestateUtil.getTransitionElementValue(declaredAnnotation, TransitionElement.AFTER);
+					afterAny = afterAnnotation == null && anyStateTransitions && typestateUtil.isTransitionToAnyState(
+							declaredAnnotation, TransitionElement.AFTER.getElementName());
+				}
+                // Currently the transitions will only work for variables - hence checking the elementIdx.
+                if (elementIdx >= 0 && (afterAny || (afterAnnotation != null && annotations.contains(afterAnnotation)))) {
+                    // If the "after" annotation is a state annotation, changing the state of the
+                    // element in the flow. If it is the any-state annotation, the element may be in any state.
+
+					// Clearing any of the old states
+					writing(elementIdx);
+					bits = writable(bits);
+					for (AnnotationMirror actualAnnotation : actualAnnotations) {
+						clearStateAnnotation(actualAnnotation, elementIdx, bits);
+					}
+
+					// Setting the new state
+					if (afterAnnotation != null) {
+						bits.set(annotationsTranslation.get(afterAnnotation), elementIdx);
+					}
                 }
             }
+        }
 
-            // If none of the actual states matches the declared states, reporting an error.
-            if (!stateMatchFound) {
-                checker.report(Result.failure(errorMessageKey, annotatedTree,
-                        // The declared annotations must be translated to their representation as they may
-                        // contain elements - users shouldn't see that in the error message.
-                        getErrorAnnotationSetRepresentation(declaredAnnotations, true),
-                        getErrorAnnotationSetRepresentation(actualAnnotations, false)),
-                        methodInvocationTree);
-            }
+        // If none of the actual states matches the declared states, reporting an error. When the analysis is
+        // restricted to some methods, errors in field initializers are not reported.
+        if (!stateMatchFound && report && (methodsInScope == null || analysedMethodsDepth > 0)) {
+            report(false, errorMessageKey, methodInvocationTree, annotatedTree,
+                    // The declared annotations must be translated to their representation as they may
+                    // contain elements - users shouldn't see that in the error message.
+                    getErrorAnnotationSetRepresentation(declaredAnnotations, true),
+                    getErrorAnnotationSetRepresentation(actualAnnotations, false));
         }
+
+        return bits;
     }
 
+	@Override
+	public Void visitMethod(MethodTree node, Void p) {
+		if (methodsInScope != null && analysedMethodsDepth == 0 && !methodsInScope.contains(node)) {
+			return null;
+		}
+
+		long start = statistics == null ? 0 : System.nanoTime();
+		Object event = events.beginMethod();
+		int rescansBefore = rescans;
+		boolean outermost = analysedMethodsDepth == 0;
+		if (outermost) {
+			methodStart = nanoTime();
+			methodSteps = 0;
+			if (recordedStates != null) {
+				declareRecordedVariables();
+			}
+		}
+		int tryBitsBefore = tryBits.size();
+		int catchBitsBefore = catchBits.size();
+		String exceededBudget = null;
+		boolean cancelled = false;
+		AnalysisTask task = null;
+		if (outermost && scheduler != null) {
+			task = scheduler.begin(unitKey, unitGeneration, methodName(node));
+			setCancellation(task);
+		}
+		analysedMethods++;
+		analysedMethodsDepth++;
+		enclosingMethods.add(TreeUtils.elementFromDeclaration(node));
+		try {
+			return super.visitMethod(node, p);
+		} catch (BudgetExceededException e) {
+			if (!outermost) {
+				throw e;
+			}
+
+			abandonMethodAnalysis(tryBitsBefore, catchBitsBefore);
+			exceededBudget = e.budget;
+			checkDeclaredStates(node, e.budget);
+			return null;
+		} catch (CancellationException e) {
+			if (!outermost) {
+				throw e;
+			}
+
+			// The content of the method is stale, so its errors are discarded.
+			abandonMethodAnalysis(tryBitsBefore, catchBitsBefore);
+			pendingReports.clear();
+			cancelled = true;
+			if (statistics != null) {
+				statistics.increment(TypestateStatistics.Counter.METHODS_CANCELLED);
+			}
+			return null;
+		} finally {
+			analysedMethodsDepth--;
+			enclosingMethods.remove(enclosingMethods.size() - 1);
+			if (task != null) {
+				setCancellation(null);
+				scheduler.end(task);
+			}
+			if (outermost) {
+				if (!methodListeners.isEmpty() && !cancelled) {
+					publishMethodResult(node, rescans - rescansBefore, exceededBudget);
+				}
+				for (PendingReport pendingReport : pendingReports) {
+					checker.report(pendingReport.result, pendingReport.source);
+				}
+				pendingReports.clear();
+				if (provenSites != null) {
+					recordProvenSites(node);
+				}
+				recordedVariables.clear();
+			}
+			if (statistics != null) {
+				statistics.methodAnalysed(methodName(node), position(node), System.nanoTime() - start);
+			}
+			if (event != null) {
+				events.endMethod(event, methodName(node), position(node), methodVars, annotations.size(),
+						rescans - rescansBefore);
+			}
+		}
+	}
+
+	/**
+	 * Restores the state of the analysis from before an abandoned outermost method; the bits are restored by the
+	 * superclass. The states of the variables aren't proved by the abandoned analysis.
+	 */
+	private void abandonMethodAnalysis(int tryBitsBefore, int catchBitsBefore) {
+		while (tryBits.size() > tryBitsBefore) {
+			tryBits.pop();
+		}
+		while (catchBits.size() > catchBitsBefore) {
+			catchBits.pop();
+		}
+		annosWhenTrue = null;
+		annosWhenFalse = null;
+		alive = true;
+		transitionElement = TransitionElement.AFTER;
+
+		checkedCalls.clear();
+		for (VariableElement variable : recordedVariables) {
+			recordedStates.forget(variable);
+		}
+	}
+
+	@Override
+	protected List<Tree> orderMethods(ClassTree node, List<Tree> methods) {
+		if (scheduler == null) {
+			return methods;
+		}
+
+		// The methods under the cursor first, the others in the order of declaration.
+		List<Tree> ordered = new ArrayList<Tree>(methods.size());
+		for (Tree method : methods) {
+			if (scheduler.isFocused(unitKey, source.getStartPosition(root, method),
+					source.getEndPosition(root, method))) {
+				ordered.add(method);
+			}
+		}
+		for (Tree method : methods) {
+			if (!ordered.contains(method)) {
+				ordered.add(method);
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return The current time, in nanoseconds, against which the time budget of a method is checked.
+	 */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public Void scan(Tree tree, Void p) {
+		if (statistics != null && tree != null && analysedMethodsDepth > 0) {
+			statistics.increment(TypestateStatistics.Counter.FLOW_STEPS);
+		}
+		if (tree != null && analysedMethodsDepth > 0 && (budgetNanos > 0 || budgetSteps > 0)) {
+			methodSteps++;
+			if (budgetSteps > 0 && methodSteps > budgetSteps) {
+				throw new BudgetExceededException("steps");
+			}
+			// Reading the clock only every 256 steps.
+			if (budgetNanos > 0 && (methodSteps & 0xff) == 0 && nanoTime() - methodStart > budgetNanos) {
+				throw new BudgetExceededException("time");
+			}
+		}
+
+		if (recordedStates == null || analysedMethodsDepth == 0 || !(tree instanceof StatementTree)) {
+			return super.scan(tree, p);
+		}
+
+		recordStates(source.getStartPosition(root, tree));
+		super.scan(tree, p);
+		recordStates(source.getEndPosition(root, tree));
+		return null;
+	}
+
+	/**
+	 * Declares the local variables of reference types of the currently visited (outermost) method, with their scopes:
+	 * from the end of the declaration to the end of the enclosing tree (block, loop, catch or method).
+	 */
+	private void declareRecordedVariables() {
+		new TreePathScanner<Void, Void>() {
+			@Override
+			public Void visitVariable(VariableTree node, Void p) {
+				VariableElement variable = TreeUtils.elementFromDeclaration(node);
+				if (!variable.getKind().isField() && !variable.asType().getKind().isPrimitive()) {
+					recordedStates.declare(variable, variable.getSimpleName().toString(),
+							source.getStartPosition(root, node), source.getEndPosition(root, node),
+							source.getEndPosition(root, getCurrentPath().getParentPath().getLeaf()));
+					recordedVariables.add(variable);
+				}
+				return super.visitVariable(node, p);
+			}
+		}.scan(getCurrentPath(), null);
+	}
+
+	/**
+	 * Records the states of the tracked variables in scope at the given position, if the position is reachable.
+	 */
+	private void recordStates(long position) {
+		if (!alive || annos == null || position < 0) {
+			return;
+		}
+
+		for (int i = 0; i < vars.size(); i++) {
+			if (!recordedVariables.contains(vars.get(i))) {
+				continue;
+			}
+
+			Set<String> states = new HashSet<String>();
+			for (AnnotationMirror annotation : annotations) {
+				if (annos.get(annotation, i)) {
+					states.add(annotation.getAnnotationType().toString());
+				}
+			}
+			recordedStates.record(vars.get(i), position, states);
+		}
+	}
+
+	private void report(boolean warning, String key, Object source, Object... args) {
+		report(new PendingReport(warning, key, source, args));
+	}
+
+	private void report(PendingReport report) {
+		if (provenSites != null && report.source instanceof MethodInvocationTree) {
+			failedCalls.add((Tree) report.source);
+		}
+
+		// If the transfer of the statement is applied instead of scanning it again, the report is replayed.
+		recordEffect(report);
+		if (analysedMethodsDepth > 0) {
+			pendingReports.add(report);
+		} else {
+			checker.report(report.result, report.source);
+		}
+	}
+
+	@Override
+	protected void replayEffect(Object effect) {
+		if (effect == CALL_SITE) {
+			statistics.increment(TypestateStatistics.Counter.CALL_SITES);
+			return;
+		}
+
+		report((PendingReport) effect);
+	}
+
+	/**
+	 * Passes the errors found in the analysed outermost method, and the metadata of its analysis, to the listeners.
+	 */
+	private void publishMethodResult(MethodTree node, int methodRescans, String exceededBudget) {
+		List<MethodDiagnostic> diagnostics = new ArrayList<MethodDiagnostic>(pendingReports.size());
+		for (PendingReport report : pendingReports) {
+			List<String> args = new ArrayList<String>(report.args.length);
+			for (Object arg : report.args) {
+				args.add(String.valueOf(arg));
+			}
+
+			long position = report.source instanceof Tree ? source.getStartPosition(root, (Tree) report.source) : -1;
+			diagnostics.add(new MethodDiagnostic(report.warning, report.key, args, position,
+					position < 0 ? -1 : root.getLineMap().getLineNumber(position)));
+		}
+
+		MethodResult result = new MethodResult(unitKey, methodName(node), position(node), diagnostics,
+				nanoTime() - methodStart, vars.size(), methodRescans, exceededBudget);
+		for (MethodListener listener : methodListeners) {
+			listener.methodAnalysed(result);
+		}
+	}
+
+	/**
+	 * The fallback check of a method whose analysis exceeded the budget: only the states of expressions which aren't
+	 * variables are checked, as they don't depend on the flow. Errors of the abandoned analysis are discarded.
+	 */
+	private void checkDeclaredStates(MethodTree node, String budget) {
+		if (statistics != null) {
+			statistics.increment(TypestateStatistics.Counter.METHODS_OVER_BUDGET);
+		}
+
+		pendingReports.clear();
+		report(true, "method.over.budget", node, methodName(node), budget);
+
+		new TreeScanner<Void, Void>() {
+			@Override
+			public Void visitMethodInvocation(MethodInvocationTree invocation, Void p) {
+				AnnotatedTypeMirror.AnnotatedExecutableType invocationType = factory.methodFromUse(invocation);
+
+				if (invocation.getMethodSelect().getKind() == Tree.Kind.MEMBER_SELECT) {
+					checkDeclaredStatesOnTree(
+							typestateUtil.filterStateAnnotations(invocationType.getReceiverType().getAnnotations()),
+							((MemberSelectTree) invocation.getMethodSelect()).getExpression(),
+							invocation, "receiver.in.wrong.state");
+				}
+
+				Iterator<AnnotatedTypeMirror> parametersAnnotationsIter =
+						invocationType.getParameterTypes().iterator();
+				Iterator<? extends ExpressionTree> argumentsIter = invocation.getArguments().iterator();
+				while (parametersAnnotationsIter.hasNext()) {
+					checkDeclaredStatesOnTree(
+							typestateUtil.filterStateAnnotations(parametersAnnotationsIter.next().getAnnotations()),
+							argumentsIter.next(), invocation, "parameter.in.wrong.state");
+				}
+
+				return super.visitMethodInvocation(invocation, p);
+			}
+		}.scan(node.getBody(), null);
+	}
+
+	private void receiverChecked(MethodInvocationTree call, Set<AnnotationMirror> declaredAnnotations) {
+		if (provenSites != null && declaredAnnotations.size() > 0 && analysedMethodsDepth > 0) {
+			checkedCalls.put(call, enclosingMethods.get(enclosingMethods.size() - 1));
+		}
+	}
+
+	/**
+	 * Records the calls of the analysed outermost method whose receivers were checked without errors. The calls are
+	 * identified by their lines, so a line's calls of a method are only recorded if all of them are proved; lines of
+	 * enhanced for loops are skipped, as the loops' implicit calls are compiled to the same lines.
+	 */
+	private void recordProvenSites(MethodTree outermost) {
+		final Set<Long> loopLines = new HashSet<Long>();
+		new TreeScanner<Void, Void>() {
+			@Override
+			public Void visitEnhancedForLoop(EnhancedForLoopTree loop, Void p) {
+				loopLines.add(line(loop));
+				loopLines.add(line(loop.getExpression()));
+				return super.visitEnhancedForLoop(loop, p);
+			}
+		}.scan(outermost, null);
+
+		Map<String, CallSite> sites = new LinkedHashMap<String, CallSite>();
+		for (Map.Entry<MethodInvocationTree, ExecutableElement> call : checkedCalls.entrySet()) {
+			ExecutableElement method = call.getValue();
+			CallSite site = new CallSite(
+					SpecKeys.typeKey(env.getElementUtils(), (TypeElement) method.getEnclosingElement()),
+					SpecKeys.methodKey(env.getTypeUtils(), method),
+					// The line of the called method's name, which javac assigns to the call instruction.
+					(int) root.getLineMap().getLineNumber(source.getEndPosition(root,
+							call.getKey().getMethodSelect())),
+					SpecKeys.methodKey(env.getTypeUtils(), TreeUtils.elementFromUse(call.getKey())));
+
+			String key = site.typeKey + " " + site.methodKey + " " + site.line + " " + site.calledKey;
+			CallSite previous = sites.get(key);
+			site.proven = (previous == null || previous.proven) && !failedCalls.contains(call.getKey())
+					&& !loopLines.contains((long) site.line);
+			sites.put(key, site);
+		}
+
+		for (ExecutableElement method : methodsOf(outermost)) {
+			ensureProvenSites(SpecKeys.typeKey(env.getElementUtils(), (TypeElement) method.getEnclosingElement()));
+		}
+		for (CallSite site : sites.values()) {
+			if (site.proven) {
+				ensureProvenSites(site.typeKey).add(site.methodKey, site.line, site.calledKey);
+			}
+		}
+
+		checkedCalls.clear();
+		failedCalls.clear();
+	}
+
+	private static class CallSite {
+		private final String typeKey;
+		private final String methodKey;
+		private final int line;
+		private final String calledKey;
+		private boolean proven;
+
+		private CallSite(String typeKey, String methodKey, int line, String calledKey) {
+			this.typeKey = typeKey;
+			this.methodKey = methodKey;
+			this.line = line;
+			this.calledKey = calledKey;
+		}
+	}
+
+	// The given method, and the methods nested in it.
+	private static List<ExecutableElement> methodsOf(MethodTree outermost) {
+		final List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+		new TreeScanner<Void, Void>() {
+			@Override
+			public Void visitMethod(MethodTree method, Void p) {
+				methods.add(TreeUtils.elementFromDeclaration(method));
+				return super.visitMethod(method, p);
+			}
+		}.scan(outermost, null);
+		return methods;
+	}
+
+	private ProvenSites ensureProvenSites(String typeKey) {
+		ProvenSites sites = provenSites.get(typeKey);
+		if (sites == null) {
+			sites = new ProvenSites(typeKey);
+			provenSites.put(typeKey, sites);
+		}
+		return sites;
+	}
+
+	private long line(Tree tree) {
+		return root.getLineMap().getLineNumber(source.getStartPosition(root, tree));
+	}
+
+	private void checkDeclaredStatesOnTree(Set<AnnotationMirror> declaredAnnotations, Tree annotatedTree,
+										   MethodInvocationTree methodInvocationTree, String errorMessageKey) {
+		// The states of variables depend on the flow, so they can't be checked.
+		if (declaredAnnotations.size() == 0 || InternalUtils.symbol(annotatedTree) instanceof VariableElement) {
+			return;
+		}
+
+		Set<AnnotationMirror> actualAnnotations = AnnotationUtils.createAnnotationSet();
+		for (AnnotationMirror factoryAnnotation : factory.getAnnotatedType(annotatedTree).getAnnotations()) {
+			if (annotations.contains(factoryAnnotation)) {
+				actualAnnotations.add(factoryAnnotation);
+			}
+		}
+
+		for (AnnotationMirror declaredAnnotation : declaredAnnotations) {
+			if ((annotations.contains(declaredAnnotation) && actualAnnotations.contains(declaredAnnotation))
+					|| typestateUtil.anyAnnotationCovers(declaredAnnotation, actualAnnotations)) {
+				return;
+			}
+		}
+
+		report(false, errorMessageKey, methodInvocationTree, annotatedTree,
+				getErrorAnnotationSetRepresentation(declaredAnnotations, true),
+				getErrorAnnotationSetRepresentation(actualAnnotations, false));
+	}
+
+	@Override
+	protected boolean analyseMethod(MethodTree node) {
+		// Methods nested in other methods are in classes, which the sparse engine doesn't support.
+		if (!sparseEngine || analysedMethodsDepth != 1) {
+			return false;
+		}
+
+		SparseEngine<StateVector<AnnotationMirror>> engine;
+		try {
+			engine = SparseEngine.build(node, new SparseSemantics());
+		} catch (UnsupportedTreeException e) {
+			return false;
+		}
+
+		engine.analyse();
+		if (statistics != null) {
+			statistics.increment(TypestateStatistics.Counter.METHODS_SPARSE);
+		}
+		return true;
+	}
+
+	/**
+	 * The semantics of the operations for the {@link SparseEngine}, as in the flow; the states of a variable are
+	 * interned vectors of a single variable.
+	 */
+	private class SparseSemantics implements SparseEngine.Semantics<StateVector<AnnotationMirror>> {
+		public StateVector<AnnotationMirror> declared(VariableTree variable) {
+			return states(factory.getAnnotatedType(variable), null);
+		}
+
+		public StateVector<AnnotationMirror> assigned(ExpressionTree rhs, StateVector<AnnotationMirror> rhsValue) {
+			// As in the flow, only the type of an array element is used.
+			if (TreeUtils.skipParens(rhs).getKind() == Tree.Kind.ARRAY_ACCESS) {
+				rhsValue = null;
+			}
+			return states(factory.getAnnotatedType(rhs), rhsValue);
+		}
+
+		public StateVector<AnnotationMirror> iterated(EnhancedForLoopTree loop) {
+			AnnotatedTypeMirror iterated = atypes.getIteratedType(factory.getAnnotatedType(loop.getExpression()));
+			return iterated == null ? declared(loop.getVariable()) : states(iterated, null);
+		}
+
+		public void call(MethodInvocationTree call, TransitionElement element,
+						 Map<Element, StateVector<AnnotationMirror>> values, boolean report) {
+			if (report && statistics != null) {
+				statistics.increment(TypestateStatistics.Counter.CALL_SITES);
+			}
+
+			AnnotatedTypeMirror.AnnotatedExecutableType invocationType = factory.methodFromUse(call);
+			if (call.getMethodSelect().getKind() == Tree.Kind.MEMBER_SELECT) {
+				Set<AnnotationMirror> declaredReceiverAnnotations =
+						typestateUtil.filterStateAnnotations(invocationType.getReceiverType().getAnnotations());
+				checkStateAnnotations(declaredReceiverAnnotations,
+						((MemberSelectTree) call.getMethodSelect()).getExpression(), call, "receiver.in.wrong.state",
+						element, values, report);
+				if (report) {
+					receiverChecked(call, declaredReceiverAnnotations);
+				}
+			}
+
+			Iterator<AnnotatedTypeMirror> parametersAnnotationsIter = invocationType.getParameterTypes().iterator();
+			Iterator<? extends ExpressionTree> argumentsIter = call.getArguments().iterator();
+			while (parametersAnnotationsIter.hasNext()) {
+				checkStateAnnotations(
+						typestateUtil.filterStateAnnotations(parametersAnnotationsIter.next().getAnnotations()),
+						argumentsIter.next(), call, "parameter.in.wrong.state", element, values, report);
+			}
+		}
+
+		public StateVector<AnnotationMirror> join(StateVector<AnnotationMirror> value,
+												  StateVector<AnnotationMirror> other) {
+			return copy(and(value, other));
+		}
+
+		public boolean isSplit(ExpressionTree condition) {
+			return isSupportedLogic(condition);
+		}
+
+		public boolean isInverted(ExpressionTree condition) {
+			return inverted(condition);
+		}
+
+		public boolean isTrackedOutside(VariableElement variable) {
+			return vars.contains(variable);
+		}
+
+		public boolean isObservedAtCalls(VariableElement variable) {
+			return false;
+		}
+
+		private StateVector<AnnotationMirror> states(AnnotatedTypeMirror type, StateVector<AnnotationMirror> value) {
+			StateVector<AnnotationMirror> states = stateVectors.create(1);
+			for (AnnotationMirror annotation : annotations) {
+				if (hasAnnotation(type, annotation) || (value != null && value.get(annotation, 0))) {
+					states.set(annotation, 0);
+				}
+			}
+			return copy(states);
+		}
+
+		private void checkStateAnnotations(Set<AnnotationMirror> declaredAnnotations, Tree annotatedTree,
+										   MethodInvocationTree call, String errorMessageKey,
+										   TransitionElement element, Map<Element, StateVector<AnnotationMirror>> values,
+										   boolean report) {
+			if (declaredAnnotations.size() == 0) {
+				return;
+			}
+
+			Element annotatedElement = InternalUtils.symbol(annotatedTree);
+			StateVector<AnnotationMirror> value = values.get(annotatedElement);
+			StateVector<AnnotationMirror> after = TypestateFlow.this.checkStateAnnotations(declaredAnnotations,
+					annotatedTree, call, errorMessageKey, value, value == null ? -1 : 0, element, report);
+			if (value != null) {
+				values.put(annotatedElement, copy(after));
+			}
+		}
+	}
+
+	@Override
+	public Void visitWhileLoop(WhileLoopTree node, Void p) {
+		Object event = events.beginConstruct();
+		try {
+			return super.visitWhileLoop(node, p);
+		} finally {
+			endConstruct(event, TypestateEvents.Construct.LOOP, node);
+		}
+	}
+
+	@Override
+	public Void visitDoWhileLoop(DoWhileLoopTree node, Void p) {
+		Object event = events.beginConstruct();
+		try {
+			return super.visitDoWhileLoop(node, p);
+		} finally {
+			endConstruct(event, TypestateEvents.Construct.LOOP, node);
+		}
+	}
+
+	@Override
+	public Void visitForLoop(ForLoopTree node, Void p) {
+		Object event = events.beginConstruct();
+		try {
+			return super.visitForLoop(node, p);
+		} finally {
+			endConstruct(event, TypestateEvents.Construct.LOOP, node);
+		}
+	}
+
+	@Override
+	public Void visitTry(TryTree node, Void p) {
+		Object event = events.beginConstruct();
+		try {
+			return super.visitTry(node, p);
+		} finally {
+			endConstruct(event, TypestateEvents.Construct.TRY, node);
+		}
+	}
+
+	private void endConstruct(Object event, TypestateEvents.Construct construct, Tree tree) {
+		if (event != null) {
+			events.endConstruct(event, construct, position(tree));
+		}
+	}
+
+	private static String methodName(MethodTree node) {
+		ExecutableElement method = TreeUtils.elementFromDeclaration(node);
+		return method.getEnclosingElement() + "." + method;
+	}
+
+	private String position(Tree tree) {
+		return root.getSourceFile().getName() + ":"
+				+ root.getLineMap().getLineNumber(source.getStartPosition(root, tree));
+	}
+
     @Override
     public Void visitMethodInvocation(MethodInvocationTree node, Void p) {
+        if (statistics != null) {
+            statistics.increment(TypestateStatistics.Counter.CALL_SITES);
+            // So that the call site is also counted when the summary of its statement run is replayed.
+            recordEffect(CALL_SITE);
+        }
+
         AnnotatedTypeMirror.AnnotatedExecutableType invocationType = factory.methodFromUse(node);
 
         // Checking the receiver
         Set<AnnotationMirror> receiverAnnotations = invocationType.getReceiverType().getAnnotations();
 
         if (node.getMethodSelect().getKind() == Tree.Kind.MEMBER_SELECT) {
-            checkStateAnnotationsOnTree(typestateUtil.filterStateAnnotations(receiverAnnotations),
+            Set<AnnotationMirror> declaredReceiverAnnotations = typestateUtil.filterStateAnnotations(
+                    receiverAnnotations);
+            checkStateAnnotationsOnTree(declaredReceiverAnnotations,
                     ((MemberSelectTree) node.getMethodSelect()).getExpression(),
                     node, "receiver.in.wrong.state");
+            receiverChecked(node, declaredReceiverAnnotations);
         }
 
         // Checking parameters; both iterators should have the same number of elements.
@@ -231,6 +1077,69 @@ public class TypestateFlow extends MainFlow {
         return super.visitMethodInvocation(node, p);
     }
 
+	@Override
+	protected StateVector<AnnotationMirror> copy(StateVector<AnnotationMirror> bits) {
+		if (statistics == null) {
+			return super.copy(bits);
+		}
+
+		statistics.increment(TypestateStatistics.Counter.STATE_VECTOR_COPIES);
+		long sharedBefore = stateVectors.getInternHits();
+		StateVector<AnnotationMirror> result = super.copy(bits);
+		if (stateVectors.getInternHits() > sharedBefore) {
+			statistics.increment(TypestateStatistics.Counter.STATE_VECTOR_SHARES);
+		}
+		return result;
+	}
+
+	@Override
+	protected StateVector<AnnotationMirror> and(StateVector<AnnotationMirror> bits,
+												StateVector<AnnotationMirror> other) {
+		if (statistics != null) {
+			statistics.increment(TypestateStatistics.Counter.STATE_VECTOR_MERGES);
+		}
+		return super.and(bits, other);
+	}
+
+	@Override
+	protected void rescanning(Rescan reason, Tree tree) {
+		rescans++;
+		if (statistics != null) {
+			switch (reason) {
+				case LOOP:
+					statistics.increment(TypestateStatistics.Counter.LOOP_RESCANS);
+					break;
+				case FINALLY:
+					statistics.increment(TypestateStatistics.Counter.FINALLY_RESCANS);
+					break;
+				case CONDITION:
+					statistics.increment(TypestateStatistics.Counter.CONDITION_RESCANS);
+					break;
+			}
+		}
+	}
+
+	@Override
+	protected void varDefCacheLookup(boolean hit) {
+		if (statistics != null) {
+			statistics.increment(hit ? TypestateStatistics.Counter.VAR_DEF_CACHE_HITS
+					: TypestateStatistics.Counter.VAR_DEF_CACHE_MISSES);
+		}
+	}
+
+	@Override
+	protected void blockTransferLookup(boolean hit) {
+		if (statistics != null) {
+			statistics.increment(hit ? TypestateStatistics.Counter.BLOCK_TRANSFERS_APPLIED
+					: TypestateStatistics.Counter.BLOCK_TRANSFERS_RECORDED);
+		}
+	}
+
+	@Override
+	protected void methodScanned(MethodTree node) {
+		methodVars = vars.size();
+	}
+
 	@Override
 	protected void updateExceptionBits() {
 		// Exception states are handled already. Doing nothing here.
@@ -250,20 +1159,22 @@ public class TypestateFlow extends MainFlow {
 			return;
 		}
 
-		GenKillBits<AnnotationMirror> before = GenKillBits.copy(annos);
+		Object event = events.beginConstruct();
+		StateVector<AnnotationMirror> before = copy(annos);
 
 		// Scanning the condition twice: once with the after-true element active, once with the active-false element
 		// active.
 		transitionElement = TransitionElement.AFTER_TRUE;
 		alive = true;
         scan(tree, null);
-		GenKillBits<AnnotationMirror> afterTrue = annos;
+		StateVector<AnnotationMirror> afterTrue = annos;
 
 		transitionElement = TransitionElement.AFTER_FALSE;
 		annos = before;
+		rescanning(Rescan.CONDITION, tree);
 		alive = true;
 		scan(tree, null);
-		GenKillBits<AnnotationMirror> afterFalse = annos;
+		StateVector<AnnotationMirror> afterFalse = annos;
 
 		transitionElement = TransitionElement.AFTER;
 
@@ -280,13 +1191,15 @@ public class TypestateFlow extends MainFlow {
 			
 			annos = null;
 		}
+
+		endConstruct(event, TypestateEvents.Construct.CONDITION, tree);
     }
 
 	/**
 	 * @param tree Tree to check.
 	 * @return True if the result of the method is checked to be false (not true).
 	 */
-	private static boolean inverted(Tree tree) {
+	public static boolean inverted(Tree tree) {
 		tree = TreeUtils.skipParens(tree);
 		final boolean[] inverted = new boolean[1];
 		switch (tree.getKind()) {
@@ -327,7 +1240,7 @@ public class TypestateFlow extends MainFlow {
 	 * @param tree The tree to check.
 	 * @return True if the logical statement in the given tree is supported.
      */
-	private static boolean isSupportedLogic(Tree tree) {
+	public static boolean isSupportedLogic(Tree tree) {
 		tree = TreeUtils.skipParens(tree);
 		// First checking the kind of the tree
 		switch (tree.getKind()) {
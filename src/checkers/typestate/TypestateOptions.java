@@ -0,0 +1,166 @@
+package checkers.typestate;
+
+import checkers.nullness.quals.Nullable;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Options (passed to javac as {@code -Aname=value}) understood by the typestate checker.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateOptions {
+    /** Path (directories or jars, separated with the path separator) of precompiled spec indexes to use. */
+    public static final String SPEC_INDEX = "typestate.specIndex";
+
+    /** Directory into which {@link checkers.typestate.spec.SpecIndexBuilder} writes the spec index. */
+    public static final String SPEC_INDEX_OUT = "typestate.specIndexOut";
+
+    /**
+     * File of the dependency index, which records the methods called and the state types used by each
+     * compilation unit. The index is updated with each checked unit.
+     */
+    public static final String DEPENDENCY_INDEX = "typestate.deps";
+
+    /**
+     * Comma-separated list of changed specs (types, state annotations or stub files). If set together with
+     * {@link #DEPENDENCY_INDEX}, only the compilation units which depend on the changed specs, or which are not yet in
+     * the index, are checked.
+     */
+    public static final String CHANGED_SPECS = "typestate.changedSpecs";
+
+    /**
+     * A unified diff file. If set, only the methods touched by the diff are analysed, and only errors in those methods
+     * are reported.
+     */
+    public static final String DIFF = "typestate.diff";
+
+    /**
+     * If set, timings and counters of the analysis are collected, and written to the file given as the value (by
+     * default {@code typestate-stats.txt}) when the compilation completes (see
+     * {@link TypestateChecker#writeStatistics()}).
+     */
+    public static final String STATS = "typestate.stats";
+
+    /** Number of the slowest methods to include in the statistics report; 10 by default. */
+    public static final String STATS_SLOWEST = "typestate.stats.slowest";
+
+    /**
+     * Class name of the {@link checkers.typestate.events.TypestateEvents} implementation receiving the analysis events.
+     * By default, JDK Flight Recorder events are emitted if their implementation is on the classpath.
+     */
+    public static final String EVENTS = "typestate.events";
+
+    /**
+     * Maximum time, in milliseconds, of the analysis of a single method. If exceeded, only the states of expressions
+     * which don't depend on the flow (e.g. method results) are checked in the method, and a warning is reported.
+     */
+    public static final String BUDGET_TIME = "typestate.budget.time";
+
+    /** Maximum number of transfer steps (visited trees) of the analysis of a single method; as {@link #BUDGET_TIME}. */
+    public static final String BUDGET_STEPS = "typestate.budget.steps";
+
+    /**
+     * If set, each run of straight-line statements is summarised when first scanned, and the summary is applied
+     * instead of scanning the run again (in loops, conditions and finally blocks) with the same relevant states.
+     * Can't be combined with {@link #RECORD_STATES}.
+     */
+    public static final String BLOCK_SUMMARIES = "typestate.blockSummaries";
+
+    /**
+     * The analysis engine: {@code dense} (the default) scans the methods with the flow; {@code sparse} uses the
+     * {@link checkers.typestate.ssa.SparseEngine}, for the methods which it supports. Methods with try statements,
+     * assertions, conditional expressions or nested classes, or using the fields tracked by the flow, are still scanned
+     * by the flow. The sparse engine doesn't check code which can't be reached, so the errors in such code are missing.
+     * Can't be combined with {@link #RECORD_STATES}.
+     */
+    public static final String ENGINE = "typestate.engine";
+
+    /**
+     * If set, the methods of the checked sources are summarised (see
+     * {@link checkers.typestate.summary.MethodSummaries}), and the summaries are used at call sites for parameters
+     * without state annotations. The value is the number of threads computing the summaries; by default, the number of
+     * processors. The methods are summarised per compilation unit only.
+     *
+     * A summary expresses a state which depends on the path by which the method exits as a transition to
+     * {@link checkers.typestate.Any}; hence, if set, after such a transition (or an exception with
+     * {@code onException = Any.class}) the state is unknown, also for transitions declared in the sources. Otherwise,
+     * these transitions are ignored.
+     */
+    public static final String INTERPROCEDURAL = "typestate.interprocedural";
+
+    /**
+     * How the summaries of {@link #INTERPROCEDURAL} are computed: {@code bottomup} (the default) over the call graph,
+     * in parallel; or {@code ifds}, with the {@link checkers.typestate.ifds.TabulationSolver}, analysing the methods
+     * only in the states in which they are called. Both run per compilation unit.
+     */
+    public static final String INTERPROCEDURAL_SOLVER = "typestate.interprocedural.solver";
+
+    /**
+     * Directory into which the call sites whose receivers are proved to be in the required states are written, one
+     * file per class (see {@link checkers.typestate.spec.ProvenSites}). The runtime monitor agent doesn't check the
+     * receivers at these sites.
+     */
+    public static final String PROVEN_SITES_OUT = "typestate.provenSitesOut";
+
+    /**
+     * If set, the states of the local variables are recorded at the statement boundaries of the analysed methods, so
+     * that they can be queried by source positions (see {@link checkers.typestate.query.StateIndex}). The methods must
+     * be scanned by the dense engine, without block summaries, as these skip statements: the option can't be combined
+     * with {@link #BLOCK_SUMMARIES} or with the sparse {@link #ENGINE}.
+     */
+    public static final String RECORD_STATES = "typestate.recordStates";
+
+    /** All options recognized by the typestate checker. */
+    public static final Set<String> ALL = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            SPEC_INDEX, SPEC_INDEX_OUT, DEPENDENCY_INDEX, CHANGED_SPECS, DIFF, STATS, STATS_SLOWEST, EVENTS,
+            BUDGET_TIME, BUDGET_STEPS, BLOCK_SUMMARIES, ENGINE, INTERPROCEDURAL,
+            INTERPROCEDURAL_SOLVER, PROVEN_SITES_OUT, RECORD_STATES)));
+
+    private final Map<String, String> options;
+
+    public TypestateOptions(ProcessingEnvironment env) {
+        this.options = env.getOptions();
+    }
+
+    /**
+     * @param name Name of the option.
+     * @return True iff the option was passed to the compiler, with or without a value.
+     */
+    public boolean isSet(String name) {
+        return options.containsKey(name);
+    }
+
+    /**
+     * @param name Name of the option.
+     * @param defaultValue Value to return if the option isn't set or has no value.
+     * @return Value of the option.
+     */
+    public @Nullable String get(String name, @Nullable String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @param name Name of the option.
+     * @param defaultValue Value to return if the option isn't set.
+     * @return Value of the option, parsed as a long.
+     * @throws IllegalArgumentException If the value of the option is not a number.
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The value of option " + name + " must be a number, got: " + value);
+        }
+    }
+}
@@ -124,6 +124,17 @@ public class TypestateUtil {
 		return getSingleAnnotationElementValue(stateAnnotation, EXCEPTION_ELEMENT_NAME);
     }
 
+	/**
+	 * @param stateAnnotation State annotation from which to read the element.
+	 * @param elementName Name of the transition or "onException" element to read.
+	 * @return True iff the value of the element is the any-state annotation, that is, the object may be in an
+	 * arbitrary state after the transition.
+	 */
+	public boolean isTransitionToAnyState(AnnotationMirror stateAnnotation, String elementName) {
+		AnnotationMirror result = getElementValueWithVisitor(stateAnnotation, elementName, singleAnnotationValueVisitor);
+		return result != null && isAnyStateAnnotation(result);
+	}
+
 	private @Nullable AnnotationMirror getSingleAnnotationElementValue(AnnotationMirror annotation, String elementName) {
 		AnnotationMirror result = getElementValueWithVisitor(annotation, elementName, singleAnnotationValueVisitor);
 
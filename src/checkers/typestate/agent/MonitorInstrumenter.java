@@ -0,0 +1,634 @@
+package checkers.typestate.agent;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.Any;
+import checkers.typestate.TransitionElement;
+import checkers.typestate.classfile.Attribute;
+import checkers.typestate.classfile.Bytecodes;
+import checkers.typestate.classfile.ClassFile;
+import checkers.typestate.classfile.ClassFileException;
+import checkers.typestate.classfile.CodeAttribute;
+import checkers.typestate.classfile.CodeBuilder;
+import checkers.typestate.classfile.CodeEditor;
+import checkers.typestate.classfile.ConstantPool;
+import checkers.typestate.classfile.Descriptors;
+import checkers.typestate.classfile.Member;
+import checkers.typestate.classfile.SpecReader;
+import checkers.typestate.classfile.SpecResolver;
+import checkers.typestate.runtime.RuntimeSpec;
+import checkers.typestate.runtime.TypestateMonitor;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.ProvenSites;
+import checkers.typestate.spec.ProvenSitesIndex;
+import checkers.typestate.spec.SpecIndex;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.spec.StateSpec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Instruments the methods which have state specifications, so that they call the {@link TypestateMonitor}: on entry,
+ * to check the states of the receiver and the parameters; before each return, to apply the transitions and to set
+ * the state of the returned object; and in a handler appended to the method, which catches the exceptions leaving
+ * the method and rethrows them, to apply the transitions on exceptions. Constructors set the state of the
+ * constructed object.
+ *
+ * Only the bodies of existing methods are changed, so that also classes which are already loaded, such as the
+ * platform's streams, can be retransformed.
+ *
+ * With {@link Sampling}, the specs which set the states of new objects carry the sampling rates of their types.
+ * If allocation sites are sampled, constructors don't set the states of the objects; instead, the sampled
+ * {@code new} expressions are instrumented to set the state declared by the called constructor.
+ *
+ * With the call sites which the checker proved correct (see {@link ProvenSites}), the receivers are checked by the
+ * callers instead: each call of a method whose spec requires some states of the receiver is preceded by a check,
+ * unless the site is proved, and the called methods only apply the transitions. The calls made by classes which
+ * aren't instrumented aren't checked then.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class MonitorInstrumenter {
+    private static final String MONITOR = TypestateMonitor.class.getName().replace('.', '/');
+    private static final String OPERAND_DESCRIPTOR = "(Ljava/lang/Object;I)V";
+    private static final String RESULT_DESCRIPTOR = "(ILjava/lang/Object;I)V";
+
+    // Stack slots needed by the inserted code: an object, a spec id and a copy of the result or the exception.
+    private static final int EXTRA_STACK = 3;
+
+    // Classes of the checker and of the agent are never instrumented.
+    private static final List<String> EXCLUDED = Arrays.asList("checkers/typestate/runtime/",
+            "checkers/typestate/agent/", "checkers/typestate/classfile/", "checkers/typestate/spec/");
+
+    private final SpecResolver resolver;
+    private final List<String> included;
+    private final Sampling sampling;
+    private final @Nullable ProvenSitesIndex provenSites;
+
+    // Owners, names and descriptors of the called methods -> ids of their receiver specs, or -1 if there are none.
+    private final Map<String, Integer> calledSpecIds = new ConcurrentHashMap<String, Integer>();
+
+    private final AtomicInteger instrumentedMethods = new AtomicInteger();
+    private final AtomicInteger skippedMethods = new AtomicInteger();
+
+    /**
+     * @param index The index with the specs of classes which aren't annotated themselves, e.g. of the platform.
+     * @param included Prefixes of the binary names of the classes to instrument; all classes if empty.
+     */
+    public MonitorInstrumenter(@Nullable SpecIndex index, List<String> included) {
+        this(index, included, Sampling.NONE);
+    }
+
+    /**
+     * @param index The index with the specs of classes which aren't annotated themselves, e.g. of the platform.
+     * @param included Prefixes of the binary names of the classes to instrument; all classes if empty.
+     * @param sampling Which objects to track.
+     */
+    public MonitorInstrumenter(@Nullable SpecIndex index, List<String> included, Sampling sampling) {
+        this(index, included, sampling, null);
+    }
+
+    /**
+     * @param index The index with the specs of classes which aren't annotated themselves, e.g. of the platform.
+     * @param included Prefixes of the binary names of the classes to instrument; all classes if empty.
+     * @param sampling Which objects to track.
+     * @param provenSites The call sites proved by the checker; if not null, the receivers are checked by the
+     * callers, at the sites which aren't proved.
+     */
+    public MonitorInstrumenter(@Nullable SpecIndex index, List<String> included, Sampling sampling,
+                               @Nullable ProvenSitesIndex provenSites) {
+        this.resolver = new SpecResolver(index);
+        this.sampling = sampling;
+        this.provenSites = provenSites;
+        this.included = new ArrayList<String>();
+        for (String prefix : included) {
+            this.included.add(prefix.replace('.', '/'));
+        }
+    }
+
+    /**
+     * @param internalName Internal name of a class.
+     * @return True iff the class may be instrumented, according to its name.
+     */
+    public boolean isIncluded(String internalName) {
+        for (String excluded : EXCLUDED) {
+            if (internalName.startsWith(excluded)) {
+                return false;
+            }
+        }
+
+        if (included.isEmpty()) {
+            return true;
+        }
+
+        for (String prefix : included) {
+            if (internalName.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param loader Loader of the class; null for the bootstrap loader.
+     * @param internalName Internal name of a class.
+     * @return True iff the class, or one of its supertypes, has specs, so that it may need instrumenting.
+     */
+    public boolean hasSpecs(@Nullable ClassLoader loader, String internalName) {
+        return isIncluded(internalName) && resolver.hasSpecs(loader, internalName);
+    }
+
+    /**
+     * @param loader Loader of the class; null for the bootstrap loader.
+     * @param bytes Content of the class file.
+     * @return The instrumented class file, or null if the class has no methods to instrument.
+     * @throws ClassFileException If the class file is malformed.
+     */
+    public @Nullable byte[] instrument(@Nullable ClassLoader loader, byte[] bytes) throws ClassFileException {
+        ClassFile classFile = ClassFile.parse(bytes);
+        if (!isIncluded(classFile.getName())) {
+            return null;
+        }
+
+        boolean changed = false;
+        for (Member method : classFile.getMethods()) {
+            if (method.is(ClassFile.ACC_ABSTRACT | ClassFile.ACC_NATIVE | ClassFile.ACC_BRIDGE
+                    | ClassFile.ACC_SYNTHETIC) || method.getName().equals("<clinit>")) {
+                continue;
+            }
+
+            MethodSpec spec = resolver.getSpec(loader, classFile, method);
+            try {
+                List<AllocationSite> sites = sampling.samplesSites()
+                        ? allocationSites(loader, classFile, method) : Collections.<AllocationSite>emptyList();
+                List<CallSite> calls = provenSites != null
+                        ? callSites(loader, classFile, method) : Collections.<CallSite>emptyList();
+                if (spec != null || !sites.isEmpty() || !calls.isEmpty()) {
+                    changed |= instrument(classFile, method, spec, sites, calls);
+                }
+            } catch (ClassFileException e) {
+                // The method is left as it is; a class which can't be parsed fails as a whole.
+                skippedMethods.incrementAndGet();
+            }
+        }
+
+        return changed ? classFile.toByteArray() : null;
+    }
+
+    /**
+     * A {@code new} expression, which creates an object of a type with a constructor spec.
+     */
+    private static class AllocationSite {
+        // Offset of the instruction following the constructor call, when the object is on the top of the stack.
+        private final int offset;
+        private final int specId;
+
+        private AllocationSite(int offset, int specId) {
+            this.offset = offset;
+            this.specId = specId;
+        }
+    }
+
+    /**
+     * Finds the sampled allocation sites in the method: {@code new} instructions, followed by a {@code dup}, as
+     * compiled from {@code new} expressions, matched with the constructor calls. The calls of a method are matched
+     * in order, as the arguments may contain nested {@code new} expressions; if they don't match, e.g. in code
+     * which isn't compiled from Java, no sites are returned.
+     */
+    private List<AllocationSite> allocationSites(@Nullable ClassLoader loader, ClassFile classFile, Member method)
+            throws ClassFileException {
+        Attribute codeAttribute = method.getAttribute(Attribute.CODE);
+        if (codeAttribute == null) {
+            return Collections.emptyList();
+        }
+
+        ConstantPool pool = classFile.getPool();
+        byte[] bytecode = CodeAttribute.read(codeAttribute, pool).getCode();
+        List<AllocationSite> sites = new ArrayList<AllocationSite>();
+        // The types of the objects created but not yet initialized, and if the code keeps a copy of them.
+        List<String> pendingTypes = new ArrayList<String>();
+        List<Boolean> pendingCopies = new ArrayList<Boolean>();
+        for (int offset = 0; offset < bytecode.length; offset += Bytecodes.length(bytecode, offset)) {
+            int opcode = bytecode[offset] & 0xFF;
+            if (opcode == Bytecodes.NEW) {
+                pendingTypes.add(pool.getClassName(Bytecodes.poolIndex(bytecode, offset)));
+                pendingCopies.add(offset + 3 < bytecode.length && (bytecode[offset + 3] & 0xFF) == Bytecodes.DUP);
+            } else if (opcode == Bytecodes.INVOKESPECIAL) {
+                int index = Bytecodes.poolIndex(bytecode, offset);
+                String owner = pool.getMemberOwner(index);
+                int last = pendingTypes.size() - 1;
+                // Other constructor calls are the ones of the super- or this-constructor.
+                if (pool.getMemberName(index).equals(SpecKeys.CONSTRUCTOR_NAME) && last >= 0
+                        && pendingTypes.get(last).equals(owner)) {
+                    pendingTypes.remove(last);
+                    String site = classFile.getName() + "." + method.getName() + method.getDescriptor() + "@"
+                            + offset;
+                    if (pendingCopies.remove(last) && sampling.isSampled(site)) {
+                        String descriptor = pool.getMemberDescriptor(index);
+                        MethodSpec spec = resolver.getConstructorSpec(loader, owner, descriptor);
+                        if (spec != null && !spec.getReceiver().isEmpty()) {
+                            sites.add(new AllocationSite(offset + 3, register(Descriptors.binaryName(owner) + "."
+                                    + spec.getKey(), "new object", spec.getReceiver(), owner)));
+                        }
+                    }
+                }
+            }
+        }
+
+        return pendingTypes.isEmpty() ? sites : Collections.<AllocationSite>emptyList();
+    }
+
+    /**
+     * A call of a method whose spec requires some states of the receiver, at a site which isn't proved.
+     */
+    private static class CallSite {
+        // Offset of the call instruction.
+        private final int offset;
+        private final String descriptor;
+        private final int specId;
+
+        private CallSite(int offset, String descriptor, int specId) {
+            this.offset = offset;
+            this.descriptor = descriptor;
+            this.specId = specId;
+        }
+    }
+
+    /**
+     * Finds the instance method calls in the method which need a check of the receiver. The sites are identified
+     * as by the checker, by the line of the call and the called method; without a line number table, no site is
+     * proved.
+     */
+    private List<CallSite> callSites(@Nullable ClassLoader loader, ClassFile classFile, Member method)
+            throws ClassFileException {
+        Attribute codeAttribute = method.getAttribute(Attribute.CODE);
+        if (codeAttribute == null) {
+            return Collections.emptyList();
+        }
+
+        ConstantPool pool = classFile.getPool();
+        CodeAttribute code = CodeAttribute.read(codeAttribute, pool);
+        byte[] bytecode = code.getCode();
+        ProvenSites proven = provenSites.getType(Descriptors.binaryName(classFile.getName()));
+        String methodKey = SpecReader.methodKey(method);
+        List<CallSite> calls = new ArrayList<CallSite>();
+        for (int offset = 0; offset < bytecode.length; offset += Bytecodes.length(bytecode, offset)) {
+            int opcode = bytecode[offset] & 0xFF;
+            if (opcode != Bytecodes.INVOKEVIRTUAL && opcode != Bytecodes.INVOKEINTERFACE
+                    && opcode != Bytecodes.INVOKESPECIAL) {
+                continue;
+            }
+
+            int index = Bytecodes.poolIndex(bytecode, offset);
+            String owner = pool.getMemberOwner(index);
+            String name = pool.getMemberName(index);
+            String descriptor = pool.getMemberDescriptor(index);
+            // Methods of arrays, e.g. clone(), have no specs.
+            if (name.equals(SpecKeys.CONSTRUCTOR_NAME) || owner.startsWith("[")) {
+                continue;
+            }
+
+            int specId = calledSpecId(loader, owner, name, descriptor);
+            if (specId >= 0 && (proven == null || !proven.isProven(methodKey, code.getLineNumber(offset),
+                    SpecReader.methodKey(name, descriptor)))) {
+                calls.add(new CallSite(offset, descriptor, specId));
+            }
+        }
+
+        return calls;
+    }
+
+    private int calledSpecId(@Nullable ClassLoader loader, String owner, String name, String descriptor) {
+        String called = owner + "." + name + descriptor;
+        Integer specId = calledSpecIds.get(called);
+        if (specId == null) {
+            MethodSpec spec = resolver.getCalledSpec(loader, owner, name, descriptor);
+            specId = spec == null || spec.getReceiver().isEmpty() || acceptsAll(spec.getReceiver()) ? -1
+                    : register(Descriptors.binaryName(owner) + "." + spec.getKey(), "receiver", spec.getReceiver(),
+                            null);
+            calledSpecIds.put(called, specId);
+        }
+
+        return specId;
+    }
+
+    private boolean instrument(ClassFile classFile, Member method, @Nullable MethodSpec spec,
+                               List<AllocationSite> sites, List<CallSite> calls) throws ClassFileException {
+        Attribute codeAttribute = method.getAttribute(Attribute.CODE);
+        if (codeAttribute == null) {
+            return false;
+        }
+
+        MethodCode code = new MethodCode(classFile, Descriptors.returnType(method.getDescriptor()).equals("Z"));
+        if (spec != null) {
+            addSpecCode(classFile, method, spec, code);
+        }
+        if (code.entry.isEmpty() && code.exit.isEmpty() && code.handler.isEmpty() && sites.isEmpty()
+                && calls.isEmpty()) {
+            return false;
+        }
+
+        CodeAttribute original = CodeAttribute.read(codeAttribute, classFile.getPool());
+        CodeEditor editor = new CodeEditor(classFile, original);
+        if (!code.entry.isEmpty()) {
+            editor.insertBefore(0, code.entry.toByteArray(), false);
+        }
+        for (AllocationSite site : sites) {
+            CodeBuilder tag = new CodeBuilder(classFile.getPool());
+            tag.op(Bytecodes.DUP).pushInt(site.specId).invokestatic(MONITOR, "returned", OPERAND_DESCRIPTOR);
+            // Jumps to the following instruction don't come from the constructor call, so they skip the code.
+            editor.insertBefore(site.offset, tag.toByteArray(), false);
+        }
+        int spilled = 0;
+        for (CallSite call : calls) {
+            // The arguments are stored in new locals, so that the receiver is on the top of the stack.
+            List<String> parameterTypes = Descriptors.parameterTypes(call.descriptor);
+            int[] slots = new int[parameterTypes.size()];
+            int slot = original.getMaxLocals();
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = slot;
+                slot += Descriptors.size(parameterTypes.get(i));
+            }
+            spilled = Math.max(spilled, slot - original.getMaxLocals());
+
+            CodeBuilder check = new CodeBuilder(classFile.getPool());
+            for (int i = slots.length - 1; i >= 0; i--) {
+                check.store(parameterTypes.get(i), slots[i]);
+            }
+            check.op(Bytecodes.DUP).pushInt(call.specId).invokestatic(MONITOR, "before", OPERAND_DESCRIPTOR);
+            for (int i = 0; i < slots.length; i++) {
+                check.load(parameterTypes.get(i), slots[i]);
+            }
+            // A call following a constructor call may have a tag inserted before it, which jumps skip.
+            boolean tagged = false;
+            for (AllocationSite site : sites) {
+                tagged |= site.offset == call.offset;
+            }
+            editor.insertBefore(call.offset, check.toByteArray(), !tagged);
+        }
+        editor.setExtraLocals(spilled);
+        if (!code.exit.isEmpty()) {
+            byte[] bytecode = original.getCode();
+            for (int offset = 0; offset < bytecode.length; offset += Bytecodes.length(bytecode, offset)) {
+                if (Bytecodes.isReturn(bytecode[offset] & 0xFF)) {
+                    editor.insertBefore(offset, code.exit.toByteArray(), true);
+                }
+            }
+        }
+        if (!code.handler.isEmpty()) {
+            code.handler.op(Bytecodes.ATHROW);
+            editor.setHandler(code.handler.toByteArray(), code.handlerLocals(editor));
+        }
+        editor.setExtraStack(EXTRA_STACK);
+
+        method.setAttribute(editor.apply().toAttribute(classFile.getPool()));
+        instrumentedMethods.incrementAndGet();
+        return true;
+    }
+
+    private void addSpecCode(ClassFile classFile, Member method, MethodSpec spec, MethodCode code) {
+        boolean isConstructor = method.getName().equals(SpecKeys.CONSTRUCTOR_NAME);
+        boolean isStatic = method.is(ClassFile.ACC_STATIC);
+        String descriptor = method.getDescriptor();
+        String returnType = Descriptors.returnType(descriptor);
+        String methodName = Descriptors.binaryName(classFile.getName()) + "." + spec.getKey();
+
+        if (!isStatic && !spec.getReceiver().isEmpty()) {
+            if (isConstructor) {
+                // The receiver can only be used once it's initialized, before the constructor returns. When
+                // allocation sites are sampled, the sampled sites set the state instead.
+                if (!sampling.samplesSites()) {
+                    code.exit.aload(0).pushInt(register(methodName, "receiver", spec.getReceiver(),
+                            classFile.getName())).invokestatic(MONITOR, "returned", OPERAND_DESCRIPTOR);
+                }
+            } else {
+                // With the proven sites, the callers check the receiver.
+                code.addOperand(0, "L" + classFile.getName() + ";", register(methodName, "receiver",
+                        spec.getReceiver(), null), spec.getReceiver(), provenSites == null);
+            }
+        }
+
+        List<String> parameterTypes = Descriptors.parameterTypes(descriptor);
+        int slot = isStatic ? 0 : 1;
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            String parameterType = parameterTypes.get(i);
+            List<StateSpec> parameterSpecs = i < spec.getParameters().size()
+                    ? spec.getParameters().get(i) : new ArrayList<StateSpec>();
+            if (Descriptors.isReference(parameterType) && !parameterSpecs.isEmpty()) {
+                code.addOperand(slot, parameterType, register(methodName, "parameter " + (i + 1), parameterSpecs,
+                        null), parameterSpecs, true);
+            }
+            slot += Descriptors.size(parameterType);
+        }
+
+        // A method returning an object in a declared state is an allocation site too.
+        if (Descriptors.isReference(returnType) && !spec.getReturnType().isEmpty()
+                && sampling.isSampled(classFile.getName() + "." + method.getName() + descriptor + "@return")) {
+            code.exit.op(Bytecodes.DUP).pushInt(register(methodName, "return value", spec.getReturnType(),
+                    Descriptors.internalName(returnType))).invokestatic(MONITOR, "returned", OPERAND_DESCRIPTOR);
+        }
+
+        if (isConstructor) {
+            // The handler would see an uninitialized receiver; objects which fail to construct aren't tracked.
+            code.handler = new CodeBuilder(classFile.getPool());
+        }
+    }
+
+    /**
+     * The code inserted into a single method.
+     */
+    private static class MethodCode {
+        private final CodeBuilder entry;
+        private final CodeBuilder exit;
+        private CodeBuilder handler;
+        private final boolean returnsBoolean;
+
+        // Local variable slots used by the handler, and their types.
+        private final List<Integer> handlerSlots = new ArrayList<Integer>();
+        private final List<String> handlerTypes = new ArrayList<String>();
+
+        private MethodCode(ClassFile classFile, boolean returnsBoolean) {
+            this.entry = new CodeBuilder(classFile.getPool());
+            this.exit = new CodeBuilder(classFile.getPool());
+            this.handler = new CodeBuilder(classFile.getPool());
+            this.returnsBoolean = returnsBoolean;
+        }
+
+        private void addOperand(int slot, String type, int specId, List<StateSpec> specs, boolean check) {
+            if (check && !acceptsAll(specs)) {
+                entry.aload(slot).pushInt(specId).invokestatic(MONITOR, "before", OPERAND_DESCRIPTOR);
+            }
+
+            if (returnsBoolean && hasTransition(specs, TransitionElement.AFTER_TRUE, TransitionElement.AFTER_FALSE)) {
+                exit.op(Bytecodes.DUP).aload(slot).pushInt(specId).invokestatic(MONITOR, "afterResult",
+                        RESULT_DESCRIPTOR);
+            } else if (hasTransition(specs, TransitionElement.AFTER)) {
+                exit.aload(slot).pushInt(specId).invokestatic(MONITOR, "after", OPERAND_DESCRIPTOR);
+            }
+
+            for (StateSpec spec : specs) {
+                if (spec.getOnException() != null) {
+                    handler.aload(slot).pushInt(specId).invokestatic(MONITOR, "failed", OPERAND_DESCRIPTOR);
+                    handlerSlots.add(slot);
+                    handlerTypes.add(type);
+                    break;
+                }
+            }
+        }
+
+        // The types of the locals at the start of the handler: the ones it uses, and "top" for the others.
+        private List<byte[]> handlerLocals(CodeEditor editor) {
+            List<byte[]> locals = new ArrayList<byte[]>();
+            for (int i = 0; i < handlerSlots.size(); i++) {
+                while (locals.size() < handlerSlots.get(i)) {
+                    locals.add(CodeEditor.topType());
+                }
+                locals.add(editor.objectType(Descriptors.internalName(handlerTypes.get(i))));
+            }
+
+            return locals;
+        }
+    }
+
+    private static boolean acceptsAll(List<StateSpec> specs) {
+        for (StateSpec spec : specs) {
+            if (isAny(spec.getAnnotation()) && spec.getExcept().isEmpty()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean hasTransition(List<StateSpec> specs, TransitionElement... elements) {
+        for (StateSpec spec : specs) {
+            for (TransitionElement element : elements) {
+                if (spec.getTransition(element) != null) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isAny(String state) {
+        return state.equals(Any.class.getName());
+    }
+
+    /**
+     * @param sampledType Internal name of the type whose sampling rate applies, if the spec sets the states of new
+     * objects; null otherwise.
+     */
+    private int register(String methodName, String operand, List<StateSpec> specs, @Nullable String sampledType) {
+        int count = specs.size();
+        int[] states = new int[count];
+        int[][] except = new int[count][];
+        int[] after = new int[count];
+        int[] afterTrue = new int[count];
+        int[] afterFalse = new int[count];
+        int[] onException = new int[count];
+        for (int i = 0; i < count; i++) {
+            StateSpec spec = specs.get(i);
+            states[i] = isAny(spec.getAnnotation()) ? TypestateMonitor.UNKNOWN
+                    : TypestateMonitor.stateId(spec.getAnnotation());
+            except[i] = new int[spec.getExcept().size()];
+            for (int j = 0; j < except[i].length; j++) {
+                except[i][j] = TypestateMonitor.stateId(spec.getExcept().get(j));
+            }
+            after[i] = target(spec.getTransition(TransitionElement.AFTER));
+            afterTrue[i] = target(spec.getTransition(TransitionElement.AFTER_TRUE));
+            afterFalse[i] = target(spec.getTransition(TransitionElement.AFTER_FALSE));
+            onException[i] = target(spec.getOnException());
+        }
+
+        return TypestateMonitor.register(new RuntimeSpec(methodName, operand, states, except, after, afterTrue,
+                afterFalse, onException, sampledType == null ? 1.0 : sampling.getTypeRate(sampledType)));
+    }
+
+    private static int target(@Nullable String state) {
+        if (state == null) {
+            return RuntimeSpec.NO_CHANGE;
+        }
+
+        return isAny(state) ? TypestateMonitor.UNKNOWN : TypestateMonitor.stateId(state);
+    }
+
+    /**
+     * Instruments a method of this class, with a spec which needs all kinds of inserted code, and discards the
+     * result; this loads the classes used when instrumenting.
+     * @throws ClassFileException If the class file of this class can't be read.
+     */
+    void warmUp() throws ClassFileException {
+        InputStream in = MonitorInstrumenter.class.getResourceAsStream("MonitorInstrumenter.class");
+        if (in == null) {
+            throw new ClassFileException("Cannot find the class file of the instrumenter.");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            try {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new ClassFileException("Cannot read the class file of the instrumenter: " + e.getMessage());
+        }
+
+        ClassFile classFile = ClassFile.parse(bytes.toByteArray());
+        String any = Any.class.getName();
+        StateSpec spec = new StateSpec(any, any, null, null, any, Collections.singletonList(any));
+        for (Member method : classFile.getMethods()) {
+            if (method.getName().equals("isIncluded") && instrument(classFile, method,
+                    new MethodSpec(SpecReader.methodKey(method), Collections.singletonList(spec),
+                            Collections.<StateSpec>emptyList(),
+                            Collections.singletonList(Collections.<StateSpec>emptyList())),
+                    allocationSites(null, classFile, method), Collections.<CallSite>emptyList())) {
+                instrumentedMethods.decrementAndGet();
+            }
+        }
+        classFile.toByteArray();
+
+        if (provenSites != null) {
+            try {
+                ByteArrayOutputStream sites = new ByteArrayOutputStream();
+                new ProvenSites(classFile.getName()).writeTo(new DataOutputStream(sites));
+                ProvenSites.readFrom(new DataInputStream(new ByteArrayInputStream(sites.toByteArray())))
+                        .isProven("", 0, "");
+            } catch (IOException e) {
+                throw new ClassFileException("Cannot read proven sites: " + e.getMessage());
+            }
+            callSites(null, classFile, classFile.getMethods().get(0));
+        }
+    }
+
+    /**
+     * @return Number of methods instrumented so far.
+     */
+    public int getInstrumentedMethodCount() {
+        return instrumentedMethods.get();
+    }
+
+    /**
+     * @return Number of methods with specs which couldn't be instrumented, e.g. because they are too long.
+     */
+    public int getSkippedMethodCount() {
+        return skippedMethods.get();
+    }
+}
@@ -0,0 +1,54 @@
+package checkers.typestate.agent;
+
+import checkers.nullness.quals.Nullable;
+
+import java.io.PrintStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+/**
+ * Instruments the classes which are loaded, or retransformed, with a {@link MonitorInstrumenter}. Errors are
+ * reported, if requested, and leave the class unchanged. Classes loaded while another class is instrumented are
+ * left unchanged too, as the instrumenter may need them itself.
+ * @author Adam Warski (adam at warski dot org)
+ */
+class MonitorTransformer implements ClassFileTransformer {
+    private final MonitorInstrumenter instrumenter;
+    private final @Nullable PrintStream log;
+
+    private final ThreadLocal<Boolean> transforming = new ThreadLocal<Boolean>();
+
+    /**
+     * @param instrumenter Instrumenter of the classes.
+     * @param log Stream to which the instrumented classes and the errors are reported; null to report nothing.
+     */
+    MonitorTransformer(MonitorInstrumenter instrumenter, @Nullable PrintStream log) {
+        this.instrumenter = instrumenter;
+        this.log = log;
+    }
+
+    public @Nullable byte[] transform(@Nullable ClassLoader loader, @Nullable String className,
+                                      @Nullable Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+                                      byte[] classfileBuffer) {
+        // Hidden classes, e.g. of lambdas, have no name, and are never instrumented.
+        if (className == null || transforming.get() != null || !instrumenter.isIncluded(className)) {
+            return null;
+        }
+
+        transforming.set(Boolean.TRUE);
+        try {
+            byte[] instrumented = instrumenter.instrument(loader, classfileBuffer);
+            if (instrumented != null && log != null) {
+                log.println("[typestate] Instrumented " + className.replace('/', '.'));
+            }
+            return instrumented;
+        } catch (Throwable t) {
+            if (log != null) {
+                log.println("[typestate] Cannot instrument " + className.replace('/', '.') + ": " + t);
+            }
+            return null;
+        } finally {
+            transforming.remove();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package checkers.typestate.agent;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Which objects the runtime monitor tracks, when tracking all objects of popular types would be too expensive. Two
+ * kinds of sampling combine:
+ * <ul>
+ * <li>per type: a fraction of the objects of a type get their declared state when they are constructed or
+ * returned; the fraction is given by the longest matching prefix of the type's name, or by the default rate;</li>
+ * <li>per allocation site: a fraction of the sites, i.e. {@code new} expressions of types with constructor specs
+ * and methods returning objects in declared states, are chosen when instrumenting, and only the objects from these
+ * sites are tracked. The other sites aren't instrumented at all.</li>
+ * </ul>
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class Sampling {
+    /**
+     * Tracks all objects.
+     */
+    public static final Sampling NONE = new Sampling(1.0, new LinkedHashMap<String, Double>(), 1.0);
+
+    private final double defaultRate;
+    private final Map<String, Double> typeRates;
+    private final double siteRate;
+
+    /**
+     * @param defaultRate Fraction of the objects of types without a specific rate to track.
+     * @param typeRates Prefixes of the internal names of types -> fractions of their objects to track.
+     * @param siteRate Fraction of the allocation sites to track; 1 to track objects from all sites, also when
+     * they're created by code which isn't instrumented.
+     */
+    public Sampling(double defaultRate, Map<String, Double> typeRates, double siteRate) {
+        this.defaultRate = defaultRate;
+        this.typeRates = typeRates;
+        this.siteRate = siteRate;
+    }
+
+    /**
+     * @param typeRates Rates of the per-type sampling, separated with semicolons: a default rate, and rates for
+     * types whose binary names start with given prefixes, e.g. {@code 0.01;java.util.:0.001}. Null for none.
+     * @param siteRate Rate of the per-site sampling; null to track objects from all sites.
+     * @return The parsed sampling.
+     */
+    public static Sampling parse(@Nullable String typeRates, @Nullable String siteRate) {
+        double defaultRate = 1.0;
+        Map<String, Double> rates = new LinkedHashMap<String, Double>();
+        if (typeRates != null) {
+            for (String entry : typeRates.split(";")) {
+                entry = entry.trim();
+                int colon = entry.lastIndexOf(':');
+                if (entry.length() == 0) {
+                    continue;
+                } else if (colon < 0) {
+                    defaultRate = parseRate(entry);
+                } else {
+                    rates.put(entry.substring(0, colon).replace('.', '/'), parseRate(entry.substring(colon + 1)));
+                }
+            }
+        }
+
+        return new Sampling(defaultRate, rates, siteRate == null ? 1.0 : parseRate(siteRate));
+    }
+
+    private static double parseRate(String rate) {
+        double value;
+        try {
+            value = Double.parseDouble(rate);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid sampling rate: " + rate + ".");
+        }
+
+        if (!(value >= 0.0 && value <= 1.0)) {
+            throw new IllegalArgumentException("A sampling rate must be between 0 and 1: " + rate + ".");
+        }
+
+        return value;
+    }
+
+    /**
+     * @return True iff only some objects are tracked.
+     */
+    public boolean isEnabled() {
+        if (defaultRate < 1.0 || siteRate < 1.0) {
+            return true;
+        }
+
+        for (double rate : typeRates.values()) {
+            if (rate < 1.0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param internalName Internal name of a type.
+     * @return The fraction of the type's objects to track.
+     */
+    public double getTypeRate(String internalName) {
+        String longest = null;
+        for (String prefix : typeRates.keySet()) {
+            if (internalName.startsWith(prefix) && (longest == null || prefix.length() > longest.length())) {
+                longest = prefix;
+            }
+        }
+
+        return longest == null ? defaultRate : typeRates.get(longest);
+    }
+
+    /**
+     * @return True iff the objects are tracked only if they come from instrumented allocation sites.
+     */
+    public boolean samplesSites() {
+        return siteRate < 1.0;
+    }
+
+    /**
+     * @param site Identifier of an allocation site, the same each time the containing class is instrumented.
+     * @return True iff the objects from the site are tracked.
+     */
+    public boolean isSampled(String site) {
+        if (!samplesSites()) {
+            return true;
+        }
+
+        // Spreads the bits of the string's hash code, which are similar for similar sites.
+        long hash = (site.hashCode() * 0x9E3779B97F4A7C15L) >>> 40;
+        return hash < siteRate * (1L << 24);
+    }
+}
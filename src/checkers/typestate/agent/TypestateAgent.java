@@ -0,0 +1,135 @@
+package checkers.typestate.agent;
+
+import checkers.typestate.classfile.ClassFileException;
+import checkers.typestate.runtime.TypestateMonitor;
+import checkers.typestate.spec.ProvenSitesIndex;
+import checkers.typestate.spec.SpecIndex;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@code java.lang.instrument} agent which enforces the state specifications at run time: the methods with specs
+ * are instrumented to call the {@link TypestateMonitor}, which tracks the states of objects and reports calls made
+ * in a wrong state. Usage:
+ *
+ * <pre>
+ * java -javaagent:typestate-agent.jar=specIndex=dist/spec-index,include=com.example.;java.io.,report=throw ...
+ * </pre>
+ *
+ * The options, separated with commas, are:
+ * <ul>
+ * <li>{@code specIndex}: roots of a spec index (see {@link SpecIndex#fromPath}), with the specs of classes which
+ * aren't annotated themselves, e.g. of the platform;</li>
+ * <li>{@code include}: prefixes of the names of the classes to instrument, separated with semicolons; by default,
+ * all classes with specs are instrumented;</li>
+ * <li>{@code report}: {@code print} (the default) to print violations with their stack traces to the standard error
+ * stream, or {@code throw} to throw them;</li>
+ * <li>{@code sample}: rates of sampling the objects of each type, e.g. {@code 0.01;java.util.:0.001}; see
+ * {@link Sampling#parse};</li>
+ * <li>{@code sampleSites}: rate of sampling the allocation sites;</li>
+ * <li>{@code proofs}: roots with the call sites proved by the checker, written with the
+ * {@code -Atypestate.provenSitesOut} option; the receivers are then checked by the callers, except at these sites;
+ * see {@link MonitorInstrumenter};</li>
+ * <li>{@code verbose}: print the names of the instrumented classes.</li>
+ * </ul>
+ *
+ * The monitor has to be visible to the instrumented platform classes, so the agent's jar puts the monitor's jar on
+ * the bootstrap class path.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateAgent {
+    public static final String SPEC_INDEX = "specIndex";
+    public static final String INCLUDE = "include";
+    public static final String REPORT = "report";
+    public static final String VERBOSE = "verbose";
+    public static final String SAMPLE = "sample";
+    public static final String SAMPLE_SITES = "sampleSites";
+    public static final String PROOFS = "proofs";
+
+    private TypestateAgent() { }
+
+    public static void premain(String args, Instrumentation instrumentation) {
+        start(args, instrumentation);
+    }
+
+    public static void agentmain(String args, Instrumentation instrumentation) {
+        start(args, instrumentation);
+    }
+
+    private static void start(String args, Instrumentation instrumentation) {
+        Map<String, String> options = parseOptions(args);
+
+        String report = options.containsKey(REPORT) ? options.get(REPORT) : "print";
+        if (!report.equals("print") && !report.equals("throw")) {
+            throw new IllegalArgumentException("Unknown value of the " + REPORT + " option: " + report + ".");
+        }
+        Sampling sampling = Sampling.parse(options.get(SAMPLE), options.get(SAMPLE_SITES));
+        // Also initializes the monitor, before any instrumented code calls it.
+        TypestateMonitor.setThrowOnViolation(report.equals("throw"));
+        TypestateMonitor.setSampling(sampling.isEnabled());
+
+        SpecIndex index = options.containsKey(SPEC_INDEX) ? SpecIndex.fromPath(options.get(SPEC_INDEX)) : null;
+        List<String> included = options.containsKey(INCLUDE)
+                ? Arrays.asList(options.get(INCLUDE).split(";")) : new ArrayList<String>();
+        ProvenSitesIndex provenSites = options.containsKey(PROOFS) ? ProvenSitesIndex.fromPath(options.get(PROOFS))
+                : null;
+        MonitorInstrumenter instrumenter = new MonitorInstrumenter(index, included, sampling, provenSites);
+        boolean verbose = options.containsKey(VERBOSE);
+
+        // Classes loaded before the agent started, e.g. the platform's streams, are retransformed.
+        List<Class<?>> loaded = new ArrayList<Class<?>>();
+        for (Class<?> cls : instrumentation.getAllLoadedClasses()) {
+            if (!cls.isArray() && !cls.isPrimitive() && instrumentation.isModifiableClass(cls)
+                    && instrumenter.hasSpecs(cls.getClassLoader(), cls.getName().replace('.', '/'))) {
+                loaded.add(cls);
+            }
+        }
+
+        // The transformer can't load the classes it uses while it transforms another class, so they are loaded now.
+        try {
+            instrumenter.warmUp();
+        } catch (ClassFileException e) {
+            throw new IllegalStateException("Cannot start the typestate agent: " + e.getMessage());
+        }
+        instrumentation.addTransformer(new MonitorTransformer(instrumenter, verbose ? System.err : null), true);
+
+        for (Class<?> cls : loaded) {
+            try {
+                instrumentation.retransformClasses(cls);
+            } catch (Throwable t) {
+                if (verbose) {
+                    System.err.println("[typestate] Cannot retransform " + cls.getName() + ": " + t);
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> parseOptions(String args) {
+        Map<String, String> options = new HashMap<String, String>();
+        if (args == null) {
+            return options;
+        }
+
+        for (String option : args.split(",")) {
+            option = option.trim();
+            if (option.length() == 0) {
+                continue;
+            }
+
+            int equals = option.indexOf('=');
+            String name = equals < 0 ? option : option.substring(0, equals);
+            if (!name.equals(SPEC_INDEX) && !name.equals(INCLUDE) && !name.equals(REPORT) && !name.equals(VERBOSE)
+                    && !name.equals(SAMPLE) && !name.equals(SAMPLE_SITES) && !name.equals(PROOFS)) {
+                throw new IllegalArgumentException("Unknown typestate agent option: " + name + ".");
+            }
+            options.put(name, equals < 0 ? "" : option.substring(equals + 1));
+        }
+
+        return options;
+    }
+}
@@ -0,0 +1,342 @@
+package checkers.typestate.bytecode;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.classfile.Attribute;
+import checkers.typestate.classfile.ClassFile;
+import checkers.typestate.classfile.ClassFileException;
+import checkers.typestate.classfile.CodeAttribute;
+import checkers.typestate.classfile.Descriptors;
+import checkers.typestate.classfile.Member;
+import checkers.typestate.classfile.SpecReader;
+import checkers.typestate.classfile.SpecResolver;
+import checkers.typestate.spec.SpecIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Checks compiled classes, e.g. of dependencies whose sources aren't available, without a compiler: the class files
+ * are parsed, the specs are read from the state annotations (which have runtime retention) and from a spec index, and
+ * each method is analysed on its bytecode (see {@link MethodAnalysis}). Usage:
+ * <br />
+ * <tt>
+ * java checkers.typestate.bytecode.BytecodeChecker -specIndex dist/spec-index -classpath lib/states.jar
+ * -threads 4 lib/dependency.jar build/classes
+ * </tt>
+ * <br />
+ * The arguments are jars, directories and class files to check. The specs of the called methods are read from the
+ * checked classes and from the class path, and the platform's specs from the spec index.
+ *
+ * Jars are read as streams, and the classes are checked in parallel as they are read; as the queue of classes
+ * waiting for a thread is bounded, only a few classes are in memory at once, however large the jars. What is kept
+ * are the specs and the supertypes of the types which are called, and the diagnostics.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class BytecodeChecker {
+    private static final String CLASS_EXTENSION = ".class";
+
+    // Classes read ahead of the checking threads, per thread.
+    private static final int QUEUED_CLASSES_PER_THREAD = 4;
+
+    private final SpecResolver resolver;
+    private final @Nullable ClassLoader loader;
+    private final Properties messages = new Properties();
+
+    private final AtomicInteger checkedClasses = new AtomicInteger();
+    private final AtomicInteger checkedMethods = new AtomicInteger();
+    private final AtomicInteger skippedMethods = new AtomicInteger();
+    private final AtomicInteger skippedClasses = new AtomicInteger();
+
+    /**
+     * @param index The index with the specs of classes which aren't annotated themselves, e.g. of the platform.
+     * @param loader Loader through which the class files of the called methods and of the state annotations are
+     * read; null for the system class loader.
+     */
+    public BytecodeChecker(@Nullable SpecIndex index, @Nullable ClassLoader loader) {
+        this.resolver = new SpecResolver(index);
+        this.loader = loader;
+
+        InputStream in = BytecodeChecker.class.getResourceAsStream("/checkers/typestate/messages.properties");
+        try {
+            try {
+                if (in != null) {
+                    messages.load(in);
+                }
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read the messages of the typestate checker.", e);
+        }
+    }
+
+    /**
+     * @param bytes Content of a class file.
+     * @return The errors in the methods of the class, by methods and lines. Methods which can't be analysed, e.g.
+     * because they use subroutines, are skipped.
+     * @throws ClassFileException If the class file is malformed.
+     */
+    public List<BytecodeDiagnostic> check(byte[] bytes) throws ClassFileException {
+        ClassFile classFile = ClassFile.parse(bytes);
+        String className = Descriptors.binaryName(classFile.getName());
+        String sourceFile = sourcePath(classFile);
+
+        List<BytecodeDiagnostic> diagnostics = new ArrayList<BytecodeDiagnostic>();
+        for (Member method : classFile.getMethods()) {
+            Attribute codeAttribute = method.getAttribute(Attribute.CODE);
+            if (codeAttribute == null || method.is(ClassFile.ACC_BRIDGE)) {
+                continue;
+            }
+
+            List<MethodAnalysis.Report> reports;
+            CodeAttribute code;
+            try {
+                code = CodeAttribute.read(codeAttribute, classFile.getPool());
+                reports = MethodAnalysis.analyse(classFile, method, code, resolver, loader);
+            } catch (ClassFileException e) {
+                skippedMethods.incrementAndGet();
+                continue;
+            }
+
+            checkedMethods.incrementAndGet();
+            String methodKey = SpecReader.methodKey(method);
+            for (MethodAnalysis.Report report : reports) {
+                diagnostics.add(new BytecodeDiagnostic(className, sourceFile, methodKey,
+                        code.getLineNumber(report.offset), report.key, message(report.key, report.args)));
+            }
+        }
+
+        checkedClasses.incrementAndGet();
+        return diagnostics;
+    }
+
+    // The path of the source file relative to the source root, assuming that it's in the directory of its package.
+    private static @Nullable String sourcePath(ClassFile classFile) {
+        String sourceFile = classFile.getSourceFile();
+        if (sourceFile == null) {
+            return null;
+        }
+
+        String name = classFile.getName();
+        return name.substring(0, name.lastIndexOf('/') + 1) + sourceFile;
+    }
+
+    private String message(String key, Object[] args) {
+        String format = messages.getProperty(key);
+        return format == null ? key : String.format(format, args);
+    }
+
+    /**
+     * Checks all classes in the given jars, directories and class files.
+     * @param inputs Jars (or zips), directories and class files.
+     * @param threads Number of threads checking the classes.
+     * @return The errors in the classes, ordered by the paths of the class files in the inputs.
+     * @throws IOException If an input can't be read.
+     * @throws RuntimeException If checking a class failed with an unexpected exception, e.g. because of a bug in
+     * the analysis; it is thrown once all the other classes are checked, with the exception of the first such class
+     * as the cause.
+     */
+    public List<BytecodeDiagnostic> checkAll(List<File> inputs, int threads) throws IOException {
+        final SortedMap<String, List<BytecodeDiagnostic>> results =
+                Collections.synchronizedSortedMap(new TreeMap<String, List<BytecodeDiagnostic>>());
+        final SortedMap<String, RuntimeException> failures =
+                Collections.synchronizedSortedMap(new TreeMap<String, RuntimeException>());
+        // When the queue is full, the reading thread checks the class itself, which stops it reading ahead.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUED_CLASSES_PER_THREAD * threads),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                read(inputs.get(i), inputs.get(i), String.format("%05d", i), executor, results, failures);
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while checking the classes.", e);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            String first = failures.firstKey();
+            throw new RuntimeException("Checking " + failures.size() + " class(es) failed, the first: "
+                    + first.substring(first.indexOf(':') + 1) + ".", failures.get(first));
+        }
+
+        List<BytecodeDiagnostic> diagnostics = new ArrayList<BytecodeDiagnostic>();
+        for (List<BytecodeDiagnostic> classDiagnostics : results.values()) {
+            diagnostics.addAll(classDiagnostics);
+        }
+        return diagnostics;
+    }
+
+    /**
+     * Reads the classes of an input, and submits them for checking.
+     * @param prefix Prefix of the keys of the results of the input's classes, so that they are ordered by inputs.
+     */
+    private void read(File root, File file, String prefix, ThreadPoolExecutor executor,
+                      SortedMap<String, List<BytecodeDiagnostic>> results,
+                      SortedMap<String, RuntimeException> failures) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    read(root, child, prefix, executor, results, failures);
+                }
+            }
+        } else if (file.getName().endsWith(".jar") || file.getName().endsWith(".zip")) {
+            ZipInputStream zip = new ZipInputStream(new FileInputStream(file));
+            try {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (!entry.isDirectory() && entry.getName().endsWith(CLASS_EXTENSION)) {
+                        submit(prefix + ":" + entry.getName(), readFully(zip), executor, results, failures);
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+        } else if (file.getName().endsWith(CLASS_EXTENSION)) {
+            InputStream in = new FileInputStream(file);
+            try {
+                String path = root.equals(file) ? file.getName()
+                        : file.getPath().substring(root.getPath().length() + 1);
+                submit(prefix + ":" + path, readFully(in), executor, results, failures);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private void submit(final String resultKey, final byte[] bytes, ThreadPoolExecutor executor,
+                        final SortedMap<String, List<BytecodeDiagnostic>> results,
+                        final SortedMap<String, RuntimeException> failures) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    List<BytecodeDiagnostic> diagnostics = check(bytes);
+                    if (!diagnostics.isEmpty()) {
+                        results.put(resultKey, diagnostics);
+                    }
+                } catch (ClassFileException e) {
+                    skippedClasses.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // Not a problem of the class file, so the run mustn't look successful; the other classes are
+                    // still checked.
+                    failures.put(resultKey, e);
+                }
+            }
+        });
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return Number of classes checked so far.
+     */
+    public int getCheckedClassCount() {
+        return checkedClasses.get();
+    }
+
+    /**
+     * @return Number of methods analysed so far.
+     */
+    public int getCheckedMethodCount() {
+        return checkedMethods.get();
+    }
+
+    /**
+     * @return Number of methods which couldn't be analysed, e.g. because they use subroutines.
+     */
+    public int getSkippedMethodCount() {
+        return skippedMethods.get();
+    }
+
+    /**
+     * @return Number of class files which couldn't be parsed.
+     */
+    public int getSkippedClassCount() {
+        return skippedClasses.get();
+    }
+
+    public static void main(String[] args) throws IOException {
+        String specIndex = null;
+        List<File> classpath = new ArrayList<File>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-specIndex") && i + 1 < args.length) {
+                specIndex = args[++i];
+            } else if ((args[i].equals("-classpath") || args[i].equals("-cp")) && i + 1 < args.length) {
+                for (String entry : args[++i].split(File.pathSeparator)) {
+                    classpath.add(new File(entry));
+                }
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                inputs.add(new File(args[i]));
+            }
+        }
+
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: BytecodeChecker [-specIndex <path>] [-classpath <path>] [-threads <count>] "
+                    + "<jar, directory or class file>...");
+            System.exit(1);
+        }
+
+        // The called classes are read from the checked ones, from the class path, and from the platform.
+        List<URL> urls = new ArrayList<URL>();
+        for (File file : inputs) {
+            urls.add(file.toURI().toURL());
+        }
+        for (File file : classpath) {
+            urls.add(file.toURI().toURL());
+        }
+        ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), null);
+
+        BytecodeChecker checker = new BytecodeChecker(specIndex == null ? null : SpecIndex.fromPath(specIndex),
+                loader);
+        List<BytecodeDiagnostic> diagnostics = checker.checkAll(inputs, threads);
+        for (BytecodeDiagnostic diagnostic : diagnostics) {
+            System.out.println(diagnostic);
+        }
+        System.err.println("Checked " + checker.getCheckedMethodCount() + " methods in "
+                + checker.getCheckedClassCount() + " classes; skipped " + checker.getSkippedMethodCount()
+                + " methods and " + checker.getSkippedClassCount() + " classes; " + diagnostics.size() + " errors.");
+
+        if (!diagnostics.isEmpty()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package checkers.typestate.bytecode;
+
+import checkers.nullness.quals.Nullable;
+
+/**
+ * An error found by the {@link BytecodeChecker}: a call of a method with an operand in a wrong state.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class BytecodeDiagnostic {
+    private final String className;
+    private final @Nullable String sourceFile;
+    private final String methodKey;
+    private final int line;
+    private final String key;
+    private final String message;
+
+    public BytecodeDiagnostic(String className, @Nullable String sourceFile, String methodKey, int line, String key,
+                              String message) {
+        this.className = className;
+        this.sourceFile = sourceFile;
+        this.methodKey = methodKey;
+        this.line = line;
+        this.key = key;
+        this.message = message;
+    }
+
+    /**
+     * @return Binary name of the class containing the call.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return Path of the source file of the class, relative to the source root, if the class file records it.
+     */
+    public @Nullable String getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * @return Key of the method containing the call, as returned by {@link checkers.typestate.spec.SpecKeys#methodKey}.
+     */
+    public String getMethodKey() {
+        return methodKey;
+    }
+
+    /**
+     * @return Line of the call, or -1 if the class file has no line numbers.
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return Key of the message, as reported by the typestate checker, e.g. {@code receiver.in.wrong.state}.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        String location = sourceFile != null ? sourceFile : className + "." + methodKey;
+        return location + ":" + (line >= 0 ? line + ":" : "") + " (" + key + ") " + message;
+    }
+}
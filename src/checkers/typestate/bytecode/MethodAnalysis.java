@@ -0,0 +1,833 @@
+package checkers.typestate.bytecode;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.Any;
+import checkers.typestate.TransitionElement;
+import checkers.typestate.classfile.Bytecodes;
+import checkers.typestate.classfile.ClassFile;
+import checkers.typestate.classfile.ClassFileException;
+import checkers.typestate.classfile.CodeAttribute;
+import checkers.typestate.classfile.ConstantPool;
+import checkers.typestate.classfile.Descriptors;
+import checkers.typestate.classfile.Member;
+import checkers.typestate.classfile.SpecResolver;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.spec.StateSpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The typestate analysis of a single method, done on its bytecode with the semantics of the
+ * {@link checkers.typestate.TypestateFlow}: the states of the local variables are tracked, and each state set holds
+ * the states in which the object is known to be, so that states are joined by intersecting them. The values on the
+ * operand stack which aren't variables have the states declared by the methods which returned them, or set by the
+ * constructors.
+ *
+ * The method is interpreted over its {@link MethodGraph} until the states at the starts of the blocks are stable,
+ * and then once more to report the calls with operands in wrong states. The stack is modelled with one value per
+ * slot, so that longs and doubles take two.
+ * @author Adam Warski (adam at warski dot org)
+ */
+class MethodAnalysis {
+    private static final String ANY = Any.class.getName();
+    private static final Set<String> NO_STATES = Collections.emptySet();
+
+    // Numbers of stack slots popped and pushed by the instructions which don't need special handling; -1 for the
+    // others.
+    private static final byte[] POPS = new byte[256];
+    private static final byte[] PUSHES = new byte[256];
+
+    static {
+        Arrays.fill(POPS, (byte) -1);
+        setEffect(0, 0, Bytecodes.NOP, Bytecodes.IINC, Bytecodes.GOTO, Bytecodes.GOTO_W, Bytecodes.RETURN);
+        setEffect(0, 1, 1, 11, 12, 13, Bytecodes.LDC, Bytecodes.LDC_W);
+        setEffect(0, 2, 9, 10, 14, 15, Bytecodes.LDC2_W);
+        setEffect(2, 1, 46, 48, 50, 51, 52, 53, 96, 98, 100, 102, 104, 106, 108, 110, 112, 114, 120, 122, 124, 126,
+                128, 130, 136, 137, 142, 144, 149, 150);
+        setEffect(2, 2, 47, 49, 117, 119, 138, 143);
+        setEffect(3, 0, 79, 81, 83, 84, 85, 86);
+        setEffect(4, 0, 80, 82);
+        setEffect(1, 0, Bytecodes.POP, 153, 154, 155, 156, 157, 158, Bytecodes.TABLESWITCH, Bytecodes.LOOKUPSWITCH,
+                172, 174, Bytecodes.ARETURN, Bytecodes.ATHROW, 194, 195, Bytecodes.IFNULL, Bytecodes.IFNONNULL);
+        setEffect(2, 0, 88, 159, 160, 161, 162, 163, 164, 165, Bytecodes.IF_ACMPNE, 173, 175);
+        setEffect(4, 2, 97, 99, 101, 103, 105, 107, 109, 111, 113, 115, 127, 129, 131);
+        setEffect(1, 1, 116, 118, 134, 139, 145, 146, 147, 188, 189, 190, 193);
+        setEffect(3, 2, 121, 123, 125);
+        setEffect(1, 2, 133, 135, 140, 141);
+        setEffect(4, 1, 148, 151, 152);
+    }
+
+    private static void setEffect(int pops, int pushes, int... opcodes) {
+        for (int opcode : opcodes) {
+            POPS[opcode] = (byte) pops;
+            PUSHES[opcode] = (byte) pushes;
+        }
+    }
+
+    private static final int ICONST_M1 = 2;
+    private static final int ICONST_5 = 8;
+    private static final int IF_ICMPEQ = 159;
+    private static final int IF_ICMPNE = 160;
+    private static final int MULTIANEWARRAY = 197;
+
+    /**
+     * A call with an operand in a wrong state.
+     */
+    static class Report {
+        final int offset;
+        final String key;
+        final Object[] args;
+
+        private Report(int offset, String key, Object... args) {
+            this.offset = offset;
+            this.key = key;
+            this.args = args;
+        }
+    }
+
+    /**
+     * The states in which boolean results of calls put their operands: the local variables which are refined when
+     * a branch depends on the result.
+     */
+    private static final class Condition {
+        private final List<Integer> locals = new ArrayList<Integer>();
+        private final List<Set<String>> whenTrue = new ArrayList<Set<String>>();
+        private final List<Set<String>> whenFalse = new ArrayList<Set<String>>();
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Condition)) return false;
+
+            Condition that = (Condition) o;
+            return locals.equals(that.locals) && whenTrue.equals(that.whenTrue) && whenFalse.equals(that.whenFalse);
+        }
+
+        @Override
+        public int hashCode() {
+            return locals.hashCode();
+        }
+    }
+
+    /**
+     * The abstract value of a local variable or of a stack slot. Immutable.
+     */
+    private static final class Value {
+        private static final Value OTHER = new Value(NO_STATES, -1, -1, null, null, null, false);
+
+        // The states in which the object is known to be; empty for primitives and untracked objects.
+        private final Set<String> states;
+        // The local variable which holds the same object, or -1.
+        private final int local;
+        // Offset of the new instruction which created the object, while it isn't initialized; -1 otherwise.
+        private final int created;
+        private final @Nullable Condition condition;
+        private final @Nullable Integer constant;
+        // A description of the expression which produced the value, for reports.
+        private final @Nullable String expression;
+        // True iff the value is the receiver of the analysed method.
+        private final boolean self;
+
+        private Value(Set<String> states, int local, int created, @Nullable Condition condition,
+                      @Nullable Integer constant, @Nullable String expression, boolean self) {
+            this.states = states;
+            this.local = local;
+            this.created = created;
+            this.condition = condition;
+            this.constant = constant;
+            this.expression = expression;
+            this.self = self;
+        }
+
+        private static Value object(Set<String> states, @Nullable String expression) {
+            return new Value(states, -1, -1, null, null, expression, false);
+        }
+
+        private Value withStates(Set<String> newStates) {
+            return new Value(newStates, local, created, null, null, expression, self);
+        }
+
+        private Value atLocal(int newLocal) {
+            return new Value(states, newLocal, created, condition, constant, expression, self);
+        }
+
+        private Value join(Value other) {
+            if (equals(other)) {
+                return this;
+            }
+
+            Set<String> joined = new TreeSet<String>(states);
+            joined.retainAll(other.states);
+            return new Value(joined, local == other.local ? local : -1, created == other.created ? created : -1,
+                    eq(condition, other.condition) ? condition : null, eq(constant, other.constant) ? constant : null,
+                    eq(expression, other.expression) ? expression : null, self && other.self);
+        }
+
+        private static boolean eq(@Nullable Object o1, @Nullable Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Value)) return false;
+
+            Value that = (Value) o;
+            return states.equals(that.states) && local == that.local && created == that.created
+                    && eq(condition, that.condition) && eq(constant, that.constant)
+                    && eq(expression, that.expression) && self == that.self;
+        }
+
+        @Override
+        public int hashCode() {
+            return states.hashCode() + 31 * local;
+        }
+    }
+
+    /**
+     * The values of the local variables and of the stack; a null local has no value (e.g. it's not yet assigned, or
+     * holds different types on different paths).
+     */
+    private static final class Frame {
+        private final Value[] locals;
+        private final List<Value> stack;
+
+        private Frame(Value[] locals, List<Value> stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        private Frame copy() {
+            return new Frame(locals.clone(), new ArrayList<Value>(stack));
+        }
+
+        private void push(Value value) {
+            stack.add(value);
+        }
+
+        private Value pop() throws ClassFileException {
+            if (stack.isEmpty()) {
+                throw new ClassFileException("Stack underflow.");
+            }
+            return stack.remove(stack.size() - 1);
+        }
+
+        private Value local(int slot) throws ClassFileException {
+            if (slot >= locals.length || locals[slot] == null) {
+                throw new ClassFileException("Use of local " + slot + " without a value.");
+            }
+            return locals[slot];
+        }
+
+        private void store(int slot, Value value) throws ClassFileException {
+            if (slot >= locals.length) {
+                throw new ClassFileException("Local " + slot + " out of range.");
+            }
+
+            // The values loaded from the variable no longer refer to the same object.
+            for (int i = 0; i < stack.size(); i++) {
+                if (stack.get(i).local == slot) {
+                    stack.set(i, stack.get(i).atLocal(-1));
+                }
+            }
+            locals[slot] = value.atLocal(slot);
+        }
+
+        /**
+         * Sets the states of the object in the given local, and of its copies on the stack.
+         */
+        private void setStates(int slot, Set<String> states) {
+            locals[slot] = locals[slot].withStates(states);
+            for (int i = 0; i < stack.size(); i++) {
+                if (stack.get(i).local == slot) {
+                    stack.set(i, stack.get(i).withStates(states));
+                }
+            }
+        }
+
+        /**
+         * @return True iff the frame changed.
+         */
+        private boolean join(Frame other) throws ClassFileException {
+            if (stack.size() != other.stack.size()) {
+                throw new ClassFileException("Inconsistent stack heights.");
+            }
+
+            boolean changed = false;
+            for (int i = 0; i < locals.length; i++) {
+                Value joined = locals[i] == null || other.locals[i] == null ? null : locals[i].join(other.locals[i]);
+                changed |= !Value.eq(joined, locals[i]);
+                locals[i] = joined;
+            }
+            for (int i = 0; i < stack.size(); i++) {
+                Value joined = stack.get(i).join(other.stack.get(i));
+                changed |= !joined.equals(stack.get(i));
+                stack.set(i, joined);
+            }
+
+            return changed;
+        }
+    }
+
+    private final ClassFile classFile;
+    private final Member method;
+    private final CodeAttribute code;
+    private final SpecResolver resolver;
+    private final @Nullable ClassLoader loader;
+    private final MethodGraph graph;
+
+    // The frames at the starts of the blocks; null for the blocks not (yet) reached.
+    private final Frame[] entries;
+    private final List<Report> reports = new ArrayList<Report>();
+
+    // The condition on which the last instruction of the interpreted block jumps, if it depends on a call result;
+    // and whether it jumps if the result is true.
+    private @Nullable Condition branchCondition;
+    private boolean branchWhenTrue;
+
+    private MethodAnalysis(ClassFile classFile, Member method, CodeAttribute code, SpecResolver resolver,
+                           @Nullable ClassLoader loader, MethodGraph graph) {
+        this.classFile = classFile;
+        this.method = method;
+        this.code = code;
+        this.resolver = resolver;
+        this.loader = loader;
+        this.graph = graph;
+        this.entries = new Frame[graph.getBlocks().size()];
+    }
+
+    /**
+     * @param classFile The class containing the method.
+     * @param method The method to analyse; it must have code.
+     * @param code The code of the method.
+     * @param resolver Resolves the specs of the analysed and the called methods.
+     * @param loader Loader through which the resolver reads the called classes; null for the system loader.
+     * @return The calls with operands in wrong states, by their offsets.
+     * @throws ClassFileException If the code is malformed, or can't be analysed.
+     */
+    static List<Report> analyse(ClassFile classFile, Member method, CodeAttribute code, SpecResolver resolver,
+                                @Nullable ClassLoader loader) throws ClassFileException {
+        MethodAnalysis analysis = new MethodAnalysis(classFile, method, code, resolver, loader,
+                MethodGraph.build(code));
+        try {
+            analysis.run();
+        } catch (IllegalArgumentException e) {
+            // Thrown by the constant pool for entries of unexpected kinds.
+            throw new ClassFileException(e.getMessage());
+        } catch (IndexOutOfBoundsException e) {
+            throw new ClassFileException("Truncated instruction or constant pool entry.");
+        }
+
+        return analysis.reports;
+    }
+
+    private void run() throws ClassFileException {
+        entries[0] = entryFrame();
+        TreeSet<Integer> worklist = new TreeSet<Integer>();
+        worklist.add(0);
+        while (!worklist.isEmpty()) {
+            MethodGraph.Block block = graph.getBlocks().get(worklist.pollFirst());
+            interpret(block, false, worklist);
+        }
+
+        for (MethodGraph.Block block : graph.getBlocks()) {
+            if (entries[block.index] != null) {
+                interpret(block, true, null);
+            }
+        }
+    }
+
+    private Frame entryFrame() throws ClassFileException {
+        Value[] locals = new Value[code.getMaxLocals()];
+        boolean isStatic = method.is(ClassFile.ACC_STATIC);
+        int slot = 0;
+        if (!isStatic) {
+            checkSlot(locals, slot);
+            locals[slot++] = new Value(NO_STATES, 0, -1, null, null, "this", true);
+        }
+
+        MethodSpec spec = resolver.getSpec(loader, classFile, method);
+        List<String> parameterTypes = Descriptors.parameterTypes(method.getDescriptor());
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            String parameterType = parameterTypes.get(i);
+            checkSlot(locals, slot + Descriptors.size(parameterType) - 1);
+            if (Descriptors.isReference(parameterType) && spec != null && i < spec.getParameters().size()) {
+                locals[slot] = new Value(declared(spec.getParameters().get(i)), slot, -1, null, null, null, false);
+            } else {
+                locals[slot] = Value.OTHER.atLocal(slot);
+                if (Descriptors.size(parameterType) == 2) {
+                    locals[slot + 1] = Value.OTHER.atLocal(slot + 1);
+                }
+            }
+            slot += Descriptors.size(parameterType);
+        }
+
+        return new Frame(locals, new ArrayList<Value>());
+    }
+
+    private static void checkSlot(Value[] locals, int slot) throws ClassFileException {
+        if (slot >= locals.length) {
+            throw new ClassFileException("Too few locals for the parameters.");
+        }
+    }
+
+    // The states declared by the specs of an operand; the any-state annotation doesn't declare a state.
+    private static Set<String> declared(List<StateSpec> specs) {
+        Set<String> states = new TreeSet<String>();
+        for (StateSpec spec : specs) {
+            if (!ANY.equals(spec.getAnnotation())) {
+                states.add(spec.getAnnotation());
+            }
+        }
+
+        return states;
+    }
+
+    /**
+     * Interprets the instructions of the block, starting with its entry frame.
+     * @param report True to report the operands in wrong states; false to propagate the frames to the successors.
+     * @param worklist To which the successors whose entry frames change are added.
+     */
+    private void interpret(MethodGraph.Block block, boolean report, @Nullable Set<Integer> worklist)
+            throws ClassFileException {
+        Frame frame = entries[block.index].copy();
+        byte[] bytecode = code.getCode();
+        branchCondition = null;
+        for (int offset = block.start; offset < block.end; offset += Bytecodes.length(bytecode, offset)) {
+            // The exception handlers see the locals before the instruction, with the transitions on exceptions of
+            // a call.
+            Value[] exceptionLocals = block.handlers.isEmpty() ? null : frame.locals.clone();
+            execute(frame, offset, report, exceptionLocals);
+            if (!report && exceptionLocals != null) {
+                Frame handlerFrame = new Frame(exceptionLocals, new ArrayList<Value>(
+                        Collections.singletonList(Value.OTHER)));
+                for (MethodGraph.Block handler : block.handlers) {
+                    propagate(handlerFrame, handler, worklist);
+                }
+            }
+        }
+
+        if (!report) {
+            for (int i = 0; i < block.successors.size(); i++) {
+                Frame successorFrame = frame;
+                if (branchCondition != null) {
+                    // The first successor is reached by falling through, when the branch isn't taken.
+                    successorFrame = refine(frame, branchCondition, (i == 1) == branchWhenTrue);
+                }
+                propagate(successorFrame, block.successors.get(i), worklist);
+            }
+        }
+    }
+
+    private void propagate(Frame frame, MethodGraph.Block target, @Nullable Set<Integer> worklist)
+            throws ClassFileException {
+        if (entries[target.index] == null) {
+            entries[target.index] = frame.copy();
+            worklist.add(target.index);
+        } else if (entries[target.index].join(frame)) {
+            worklist.add(target.index);
+        }
+    }
+
+    private static Frame refine(Frame frame, Condition condition, boolean result) {
+        Frame refined = frame.copy();
+        for (int i = 0; i < condition.locals.size(); i++) {
+            int slot = condition.locals.get(i);
+            if (refined.locals[slot] != null) {
+                refined.setStates(slot, result ? condition.whenTrue.get(i) : condition.whenFalse.get(i));
+            }
+        }
+
+        return refined;
+    }
+
+    private void execute(Frame frame, int offset, boolean report, @Nullable Value[] exceptionLocals)
+            throws ClassFileException {
+        byte[] bytecode = code.getCode();
+        ConstantPool pool = classFile.getPool();
+        int opcode = bytecode[offset] & 0xFF;
+
+        if (opcode >= Bytecodes.ILOAD && opcode <= Bytecodes.ALOAD + 20) {
+            // iload ... aload, and iload_0 ... aload_3
+            boolean isShort = opcode <= Bytecodes.ALOAD;
+            int type = isShort ? opcode - Bytecodes.ILOAD : (opcode - Bytecodes.ALOAD - 1) / 4;
+            int slot = isShort ? bytecode[offset + 1] & 0xFF : (opcode - Bytecodes.ALOAD - 1) % 4;
+            load(frame, type, slot);
+            return;
+        }
+        if (opcode >= Bytecodes.ISTORE && opcode <= Bytecodes.ASTORE + 20) {
+            boolean isShort = opcode <= Bytecodes.ASTORE;
+            int type = isShort ? opcode - Bytecodes.ISTORE : (opcode - Bytecodes.ASTORE - 1) / 4;
+            int slot = isShort ? bytecode[offset + 1] & 0xFF : (opcode - Bytecodes.ASTORE - 1) % 4;
+            store(frame, type, slot);
+            return;
+        }
+        if (opcode >= ICONST_M1 && opcode <= ICONST_5) {
+            frame.push(new Value(NO_STATES, -1, -1, null, opcode - Bytecodes.ICONST_0, null, false));
+            return;
+        }
+
+        switch (opcode) {
+            case Bytecodes.BIPUSH:
+                frame.push(new Value(NO_STATES, -1, -1, null, (int) bytecode[offset + 1], null, false));
+                return;
+            case Bytecodes.SIPUSH:
+                frame.push(new Value(NO_STATES, -1, -1, null, (int) (short) (((bytecode[offset + 1] & 0xFF) << 8)
+                        | (bytecode[offset + 2] & 0xFF)), null, false));
+                return;
+            case Bytecodes.WIDE: {
+                int widened = bytecode[offset + 1] & 0xFF;
+                int slot = ((bytecode[offset + 2] & 0xFF) << 8) | (bytecode[offset + 3] & 0xFF);
+                if (widened >= Bytecodes.ILOAD && widened <= Bytecodes.ALOAD) {
+                    load(frame, widened - Bytecodes.ILOAD, slot);
+                } else if (widened >= Bytecodes.ISTORE && widened <= Bytecodes.ASTORE) {
+                    store(frame, widened - Bytecodes.ISTORE, slot);
+                } else if (widened != Bytecodes.IINC) {
+                    throw new ClassFileException("Unsupported wide instruction at offset " + offset + ".");
+                }
+                return;
+            }
+            case Bytecodes.DUP: {
+                Value v1 = frame.pop();
+                push(frame, v1, v1);
+                return;
+            }
+            case 90: { // dup_x1
+                Value v1 = frame.pop();
+                Value v2 = frame.pop();
+                push(frame, v1, v2, v1);
+                return;
+            }
+            case 91: { // dup_x2
+                Value v1 = frame.pop();
+                Value v2 = frame.pop();
+                Value v3 = frame.pop();
+                push(frame, v1, v3, v2, v1);
+                return;
+            }
+            case 92: { // dup2
+                Value v1 = frame.pop();
+                Value v2 = frame.pop();
+                push(frame, v2, v1, v2, v1);
+                return;
+            }
+            case 93: { // dup2_x1
+                Value v1 = frame.pop();
+                Value v2 = frame.pop();
+                Value v3 = frame.pop();
+                push(frame, v2, v1, v3, v2, v1);
+                return;
+            }
+            case 94: { // dup2_x2
+                Value v1 = frame.pop();
+                Value v2 = frame.pop();
+                Value v3 = frame.pop();
+                Value v4 = frame.pop();
+                push(frame, v2, v1, v4, v3, v2, v1);
+                return;
+            }
+            case 95: { // swap
+                Value v1 = frame.pop();
+                Value v2 = frame.pop();
+                push(frame, v1, v2);
+                return;
+            }
+            case Bytecodes.CHECKCAST:
+                // The cast object keeps its states.
+                return;
+            case Bytecodes.NEW: {
+                String type = pool.getClassName(Bytecodes.poolIndex(bytecode, offset));
+                frame.push(new Value(NO_STATES, -1, offset, null, null, "new " + simpleName(type) + "()", false));
+                return;
+            }
+            case Bytecodes.GETSTATIC:
+            case Bytecodes.GETFIELD: {
+                int index = Bytecodes.poolIndex(bytecode, offset);
+                if (opcode == Bytecodes.GETFIELD) {
+                    frame.pop();
+                }
+                // Fields aren't tracked.
+                pushResult(frame, pool.getMemberDescriptor(index), Value.object(NO_STATES,
+                        pool.getMemberName(index)));
+                return;
+            }
+            case Bytecodes.PUTSTATIC:
+            case Bytecodes.PUTFIELD: {
+                pop(frame, Descriptors.size(pool.getMemberDescriptor(Bytecodes.poolIndex(bytecode, offset))));
+                if (opcode == Bytecodes.PUTFIELD) {
+                    frame.pop();
+                }
+                return;
+            }
+            case Bytecodes.INVOKEVIRTUAL:
+            case Bytecodes.INVOKESPECIAL:
+            case Bytecodes.INVOKESTATIC:
+            case Bytecodes.INVOKEINTERFACE:
+                call(frame, offset, opcode, report, exceptionLocals);
+                return;
+            case Bytecodes.INVOKEDYNAMIC: {
+                String descriptor = pool.getDynamicDescriptor(Bytecodes.poolIndex(bytecode, offset));
+                popArguments(frame, descriptor);
+                pushResult(frame, Descriptors.returnType(descriptor), Value.OTHER);
+                return;
+            }
+            case MULTIANEWARRAY:
+                pop(frame, bytecode[offset + 3] & 0xFF);
+                frame.push(Value.OTHER);
+                return;
+            case Bytecodes.IFEQ:
+            case Bytecodes.IFEQ + 1: { // ifne
+                Value value = frame.pop();
+                if (value.condition != null) {
+                    branchCondition = value.condition;
+                    branchWhenTrue = opcode != Bytecodes.IFEQ;
+                }
+                return;
+            }
+            case IF_ICMPEQ:
+            case IF_ICMPNE: {
+                Value v2 = frame.pop();
+                Value v1 = frame.pop();
+                Value condition = v1.condition != null ? v1 : v2;
+                Value constant = v1.condition != null ? v2 : v1;
+                if (condition.condition != null && constant.constant != null
+                        && (constant.constant == 0 || constant.constant == 1)) {
+                    branchCondition = condition.condition;
+                    branchWhenTrue = (opcode == IF_ICMPEQ) == (constant.constant == 1);
+                }
+                return;
+            }
+        }
+
+        int pops = POPS[opcode];
+        if (pops < 0) {
+            throw new ClassFileException("Unsupported instruction " + opcode + " at offset " + offset + ".");
+        }
+        pop(frame, pops);
+        for (int i = 0; i < PUSHES[opcode]; i++) {
+            frame.push(Value.OTHER);
+        }
+    }
+
+    // Types of the load and store instructions: int, long, float, double, reference.
+    private static final int LONG = 1;
+    private static final int DOUBLE = 3;
+    private static final int REFERENCE = 4;
+
+    private static void load(Frame frame, int type, int slot) throws ClassFileException {
+        if (type == REFERENCE) {
+            frame.push(frame.local(slot).atLocal(slot));
+        } else {
+            frame.local(slot);
+            push(frame, type == LONG || type == DOUBLE ? new Value[] { Value.OTHER, Value.OTHER }
+                    : new Value[] { Value.OTHER });
+        }
+    }
+
+    private static void store(Frame frame, int type, int slot) throws ClassFileException {
+        if (type == LONG || type == DOUBLE) {
+            frame.pop();
+            frame.pop();
+            frame.store(slot, Value.OTHER);
+            frame.store(slot + 1, Value.OTHER);
+        } else {
+            Value value = frame.pop();
+            frame.store(slot, type == REFERENCE ? value : Value.OTHER);
+        }
+    }
+
+    private static void push(Frame frame, Value... values) {
+        for (Value value : values) {
+            frame.push(value);
+        }
+    }
+
+    private static void pop(Frame frame, int count) throws ClassFileException {
+        for (int i = 0; i < count; i++) {
+            frame.pop();
+        }
+    }
+
+    // Pops the arguments of a call, and returns the values of the parameters.
+    private static List<Value> popArguments(Frame frame, String descriptor) throws ClassFileException {
+        List<String> parameterTypes = Descriptors.parameterTypes(descriptor);
+        Value[] arguments = new Value[parameterTypes.size()];
+        for (int i = arguments.length - 1; i >= 0; i--) {
+            pop(frame, Descriptors.size(parameterTypes.get(i)) - 1);
+            arguments[i] = frame.pop();
+        }
+
+        return Arrays.asList(arguments);
+    }
+
+    private static void pushResult(Frame frame, String type, Value value) {
+        if (!type.equals("V")) {
+            // Boolean results keep their conditions.
+            frame.push(Descriptors.isReference(type) || value.condition != null ? value : Value.OTHER);
+            if (Descriptors.size(type) == 2) {
+                frame.push(Value.OTHER);
+            }
+        }
+    }
+
+    private void call(Frame frame, int offset, int opcode, boolean report, @Nullable Value[] exceptionLocals)
+            throws ClassFileException {
+        byte[] bytecode = code.getCode();
+        ConstantPool pool = classFile.getPool();
+        int index = Bytecodes.poolIndex(bytecode, offset);
+        String owner = pool.getMemberOwner(index);
+        String name = pool.getMemberName(index);
+        String descriptor = pool.getMemberDescriptor(index);
+
+        List<Value> arguments = popArguments(frame, descriptor);
+        Value receiver = opcode == Bytecodes.INVOKESTATIC ? null : frame.pop();
+        if (name.equals(SpecKeys.CONSTRUCTOR_NAME)) {
+            // Calls of the super- or this-constructor don't create new objects.
+            if (receiver.created >= 0) {
+                MethodSpec spec = resolver.getConstructorSpec(loader, owner, descriptor);
+                construct(frame, receiver.created, spec == null ? NO_STATES : declared(spec.getReceiver()));
+            }
+            return;
+        }
+
+        // Methods of arrays, e.g. clone(), have no specs.
+        MethodSpec spec = owner.startsWith("[") ? null : resolver.getCalledSpec(loader, owner, name, descriptor);
+        String returnType = Descriptors.returnType(descriptor);
+        if (spec == null) {
+            pushResult(frame, returnType, Value.object(NO_STATES, name + "()"));
+            return;
+        }
+
+        Condition condition = returnType.equals("Z") ? new Condition() : null;
+        // As with implicit receivers in the source, calls on the receiver of the analysed method aren't checked.
+        if (receiver != null && !receiver.self) {
+            operand(frame, receiver, spec.getReceiver(), "receiver.in.wrong.state", offset, report, exceptionLocals,
+                    condition);
+        }
+        for (int i = 0; i < arguments.size() && i < spec.getParameters().size(); i++) {
+            operand(frame, arguments.get(i), spec.getParameters().get(i), "parameter.in.wrong.state", offset, report,
+                    exceptionLocals, condition);
+        }
+
+        Value result = Value.object(declared(spec.getReturnType()), name + "()");
+        if (condition != null && !condition.locals.isEmpty()) {
+            result = new Value(NO_STATES, -1, -1, condition, null, result.expression, false);
+        }
+        pushResult(frame, returnType, result);
+    }
+
+    // Sets the states of a newly constructed object, in all its copies.
+    private static void construct(Frame frame, int created, Set<String> states) {
+        for (int i = 0; i < frame.stack.size(); i++) {
+            Value value = frame.stack.get(i);
+            if (value.created == created) {
+                frame.stack.set(i, new Value(states, value.local, -1, null, null, value.expression, false));
+            }
+        }
+        for (int i = 0; i < frame.locals.length; i++) {
+            Value value = frame.locals[i];
+            if (value != null && value.created == created) {
+                frame.locals[i] = new Value(states, i, -1, null, null, value.expression, false);
+            }
+        }
+    }
+
+    /**
+     * Checks that the operand of a call is in one of the declared states, and does the transitions. Only the states
+     * of local variables change.
+     * @param condition If not null, to which the states of the operand after the call returns true or false are
+     * added, if they are declared.
+     */
+    private void operand(Frame frame, Value operand, List<StateSpec> specs, String key, int offset, boolean report,
+                         @Nullable Value[] exceptionLocals, @Nullable Condition condition) {
+        if (specs.isEmpty() || operand.created >= 0) {
+            return;
+        }
+
+        if (report && !StateSpec.covers(specs, operand.states)) {
+            reports.add(new Report(offset, key, operandName(operand, offset), expected(specs),
+                    actual(operand.states)));
+        }
+
+        if (operand.local < 0) {
+            return;
+        }
+
+        List<Set<String>> onException = new ArrayList<Set<String>>();
+        Set<String> after = StateSpec.transit(specs, TransitionElement.AFTER, operand.states, onException);
+        if (condition != null && hasTransition(specs, TransitionElement.AFTER_TRUE, TransitionElement.AFTER_FALSE)) {
+            List<Set<String>> ignored = new ArrayList<Set<String>>();
+            Set<String> whenTrue = StateSpec.transit(specs, TransitionElement.AFTER_TRUE, operand.states, ignored);
+            Set<String> whenFalse = StateSpec.transit(specs, TransitionElement.AFTER_FALSE, operand.states, ignored);
+            condition.locals.add(operand.local);
+            condition.whenTrue.add(whenTrue);
+            condition.whenFalse.add(whenFalse);
+            // Until a branch depends on the result, the object is in the states common to both outcomes.
+            after = new TreeSet<String>(whenTrue);
+            after.retainAll(whenFalse);
+        }
+
+        frame.setStates(operand.local, after);
+        if (exceptionLocals != null && exceptionLocals[operand.local] != null) {
+            exceptionLocals[operand.local] = exceptionLocals[operand.local].withStates(onException.get(0));
+        }
+    }
+
+    private static boolean hasTransition(List<StateSpec> specs, TransitionElement... elements) {
+        for (StateSpec spec : specs) {
+            for (TransitionElement element : elements) {
+                if (spec.getTransition(element) != null) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private String operandName(Value operand, int offset) {
+        if (operand.local >= 0) {
+            String name = code.getLocalVariableName(operand.local, offset, classFile.getPool());
+            if (name != null) {
+                return name;
+            }
+            if (!operand.self) {
+                return "local " + operand.local;
+            }
+        }
+
+        return operand.expression != null ? operand.expression : "expression";
+    }
+
+    private static String expected(List<StateSpec> specs) {
+        List<String> expected = new ArrayList<String>();
+        for (StateSpec spec : specs) {
+            String annotation = "@" + spec.getAnnotation();
+            if (!spec.getExcept().isEmpty()) {
+                annotation += "(except=" + spec.getExcept() + ")";
+            }
+            expected.add(annotation);
+        }
+
+        return expected.toString();
+    }
+
+    private static String actual(Set<String> states) {
+        List<String> actual = new ArrayList<String>();
+        for (String state : states) {
+            actual.add("@" + state);
+        }
+
+        return actual.toString();
+    }
+
+    private static String simpleName(String internalName) {
+        return internalName.substring(Math.max(internalName.lastIndexOf('/'), internalName.lastIndexOf('$')) + 1);
+    }
+}
@@ -0,0 +1,164 @@
+package checkers.typestate.bytecode;
+
+import checkers.typestate.classfile.Bytecodes;
+import checkers.typestate.classfile.ClassFileException;
+import checkers.typestate.classfile.CodeAttribute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The control flow graph of a method, reconstructed from its bytecode. The code is split into basic blocks at the
+ * jump targets, after jumps, returns and throws, and at the bounds of the exception handler ranges, so that all
+ * instructions of a block are covered by the same handlers.
+ * @author Adam Warski (adam at warski dot org)
+ */
+class MethodGraph {
+    /**
+     * A basic block: the instructions from {@code start} (inclusive) to {@code end} (exclusive).
+     */
+    static class Block {
+        final int index;
+        final int start;
+        final int end;
+        // The blocks to which the last instruction jumps or falls through; for a conditional jump, the block to which
+        // it falls through is the first one.
+        final List<Block> successors = new ArrayList<Block>();
+        // The handlers of the exceptions thrown by the instructions of the block.
+        final List<Block> handlers = new ArrayList<Block>();
+        // Offset of the last instruction.
+        int last;
+
+        private Block(int index, int start, int end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final List<Block> blocks;
+
+    private MethodGraph(List<Block> blocks) {
+        this.blocks = blocks;
+    }
+
+    /**
+     * @param code The code of a method.
+     * @return The graph of the code.
+     * @throws ClassFileException If the code is malformed, or uses subroutines ({@code jsr} and {@code ret}), which
+     * aren't emitted by compilers since Java 6.
+     */
+    static MethodGraph build(CodeAttribute code) throws ClassFileException {
+        byte[] bytecode = code.getCode();
+        int[] exceptionTable = code.getExceptionTable();
+
+        TreeSet<Integer> leaders = new TreeSet<Integer>();
+        leaders.add(0);
+        for (int offset = 0; offset < bytecode.length; ) {
+            int opcode = bytecode[offset] & 0xFF;
+            if (opcode == Bytecodes.JSR || opcode == Bytecodes.JSR_W || opcode == Bytecodes.RET) {
+                throw new ClassFileException("Subroutines aren't supported, at offset " + offset + ".");
+            }
+
+            int next = offset + Bytecodes.length(bytecode, offset);
+            int[] targets = Bytecodes.branchTargets(bytecode, offset);
+            for (int target : targets) {
+                checkOffset(bytecode, target);
+                leaders.add(target);
+            }
+            if (targets.length > 0 || endsFlow(opcode)) {
+                leaders.add(next);
+            }
+            offset = next;
+        }
+        for (int i = 0; i < exceptionTable.length; i += 4) {
+            leaders.add(exceptionTable[i]);
+            leaders.add(exceptionTable[i + 1]);
+            leaders.add(exceptionTable[i + 2]);
+        }
+        leaders.remove(bytecode.length);
+
+        List<Block> blocks = new ArrayList<Block>(leaders.size());
+        Integer start = leaders.first();
+        while (start != null) {
+            Integer end = leaders.higher(start);
+            blocks.add(new Block(blocks.size(), start, end == null ? bytecode.length : end));
+            start = end;
+        }
+
+        MethodGraph graph = new MethodGraph(blocks);
+        for (Block block : blocks) {
+            int offset = block.start;
+            while (offset + Bytecodes.length(bytecode, offset) < block.end) {
+                offset += Bytecodes.length(bytecode, offset);
+            }
+            if (offset + Bytecodes.length(bytecode, offset) != block.end) {
+                throw new ClassFileException("A jump or handler target isn't an instruction: " + block.end + ".");
+            }
+            block.last = offset;
+
+            int opcode = bytecode[offset] & 0xFF;
+            boolean conditional = Bytecodes.isShortBranch(opcode) && opcode != Bytecodes.GOTO;
+            if (!endsFlow(opcode) && (conditional || Bytecodes.branchTargets(bytecode, offset).length == 0)) {
+                if (block.end == bytecode.length) {
+                    throw new ClassFileException("The code falls off its end.");
+                }
+                block.successors.add(graph.blockAt(block.end));
+            }
+            for (int target : Bytecodes.branchTargets(bytecode, offset)) {
+                block.successors.add(graph.blockAt(target));
+            }
+
+            for (int i = 0; i < exceptionTable.length; i += 4) {
+                if (exceptionTable[i] <= block.start && block.start < exceptionTable[i + 1]) {
+                    Block handler = graph.blockAt(exceptionTable[i + 2]);
+                    if (!block.handlers.contains(handler)) {
+                        block.handlers.add(handler);
+                    }
+                }
+            }
+        }
+
+        return graph;
+    }
+
+    private static void checkOffset(byte[] bytecode, int offset) throws ClassFileException {
+        if (offset < 0 || offset >= bytecode.length) {
+            throw new ClassFileException("Jump outside of the code, to offset " + offset + ".");
+        }
+    }
+
+    // True iff control never falls through the instruction to the next one.
+    private static boolean endsFlow(int opcode) {
+        return Bytecodes.isReturn(opcode) || opcode == Bytecodes.ATHROW || opcode == Bytecodes.GOTO
+                || opcode == Bytecodes.GOTO_W || opcode == Bytecodes.TABLESWITCH
+                || opcode == Bytecodes.LOOKUPSWITCH;
+    }
+
+    List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * @return The block starting at the given offset.
+     */
+    Block blockAt(int offset) throws ClassFileException {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Block block = blocks.get(middle);
+            if (block.start < offset) {
+                low = middle + 1;
+            } else if (block.start > offset) {
+                high = middle - 1;
+            } else {
+                return block;
+            }
+        }
+
+        throw new ClassFileException("No block starts at offset " + offset + ".");
+    }
+}
@@ -0,0 +1,122 @@
+package checkers.typestate.classfile;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An annotation read from an annotations attribute. Of the element values, only classes, enum constants, nested
+ * annotations and arrays are decoded, into respectively a {@link ClassElement}, the name of the constant, an
+ * {@link AnnotationInfo} and a list; other constants are represented by their constant pool index.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class AnnotationInfo {
+    private final String type;
+    private final Map<String, Object> elements;
+
+    /**
+     * The value of a class element.
+     */
+    public static class ClassElement {
+        private final String descriptor;
+
+        public ClassElement(String descriptor) {
+            this.descriptor = descriptor;
+        }
+
+        /**
+         * @return Descriptor of the class, e.g. {@code Ljava/lang/String;}.
+         */
+        public String getDescriptor() {
+            return descriptor;
+        }
+    }
+
+    public AnnotationInfo(String type, Map<String, Object> elements) {
+        this.type = type;
+        this.elements = elements;
+    }
+
+    /**
+     * @return Descriptor of the annotation type.
+     */
+    public String getType() {
+        return type;
+    }
+
+    public @Nullable Object getElement(String name) {
+        return elements.get(name);
+    }
+
+    /**
+     * Reads a list of annotations, starting with their count.
+     * @param bytes The content of an attribute.
+     * @param pool The constant pool of the class.
+     * @param position A one-element array with the position of the count; updated to the end of the annotations.
+     * @return The read annotations.
+     */
+    public static List<AnnotationInfo> readAll(byte[] bytes, ConstantPool pool, int[] position) {
+        int count = ClassFile.u2(bytes, position[0]);
+        position[0] += 2;
+        List<AnnotationInfo> annotations = new ArrayList<AnnotationInfo>(count);
+        for (int i = 0; i < count; i++) {
+            annotations.add(read(bytes, pool, position));
+        }
+
+        return annotations;
+    }
+
+    /**
+     * Reads a single annotation.
+     * @param position A one-element array with the position of the annotation; updated to its end.
+     */
+    public static AnnotationInfo read(byte[] bytes, ConstantPool pool, int[] position) {
+        String type = pool.getUtf8(ClassFile.u2(bytes, position[0]));
+        int count = ClassFile.u2(bytes, position[0] + 2);
+        position[0] += 4;
+        Map<String, Object> elements = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < count; i++) {
+            String name = pool.getUtf8(ClassFile.u2(bytes, position[0]));
+            position[0] += 2;
+            elements.put(name, readValue(bytes, pool, position));
+        }
+
+        return new AnnotationInfo(type, Collections.unmodifiableMap(elements));
+    }
+
+    private static Object readValue(byte[] bytes, ConstantPool pool, int[] position) {
+        char tag = (char) bytes[position[0]];
+        int index = ClassFile.u2(bytes, position[0] + 1);
+        switch (tag) {
+            case 'e':
+                position[0] += 5;
+                return pool.getUtf8(ClassFile.u2(bytes, position[0] - 2));
+            case 'c':
+                position[0] += 3;
+                return new ClassElement(pool.getUtf8(index));
+            case '@':
+                position[0] += 1;
+                return read(bytes, pool, position);
+            case '[': {
+                position[0] += 3;
+                List<Object> values = new ArrayList<Object>(index);
+                for (int i = 0; i < index; i++) {
+                    values.add(readValue(bytes, pool, position));
+                }
+                return values;
+            }
+            default:
+                position[0] += 3;
+                return index;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "@" + type + elements;
+    }
+}
@@ -0,0 +1,43 @@
+package checkers.typestate.classfile;
+
+/**
+ * An attribute of a class, field, method or code attribute, kept in its encoded form.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class Attribute {
+    public static final String CODE = "Code";
+    public static final String SOURCE_FILE = "SourceFile";
+    public static final String STACK_MAP_TABLE = "StackMapTable";
+    public static final String LINE_NUMBER_TABLE = "LineNumberTable";
+    public static final String LOCAL_VARIABLE_TABLE = "LocalVariableTable";
+    public static final String LOCAL_VARIABLE_TYPE_TABLE = "LocalVariableTypeTable";
+    public static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+    public static final String RUNTIME_VISIBLE_PARAMETER_ANNOTATIONS = "RuntimeVisibleParameterAnnotations";
+    public static final String RUNTIME_VISIBLE_TYPE_ANNOTATIONS = "RuntimeVisibleTypeAnnotations";
+    public static final String RUNTIME_INVISIBLE_TYPE_ANNOTATIONS = "RuntimeInvisibleTypeAnnotations";
+
+    private final String name;
+    private final int nameIndex;
+    private final byte[] info;
+
+    public Attribute(String name, int nameIndex, byte[] info) {
+        this.name = name;
+        this.nameIndex = nameIndex;
+        this.info = info;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNameIndex() {
+        return nameIndex;
+    }
+
+    /**
+     * @return The content of the attribute, without the name and length. Shouldn't be modified.
+     */
+    public byte[] getInfo() {
+        return info;
+    }
+}
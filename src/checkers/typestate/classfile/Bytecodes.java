@@ -0,0 +1,186 @@
+package checkers.typestate.classfile;
+
+/**
+ * Opcodes of the JVM instructions used by the class file tools, and the decoding of instruction lengths and branch
+ * targets.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class Bytecodes {
+    public static final int NOP = 0;
+    public static final int ICONST_0 = 3;
+    public static final int BIPUSH = 16;
+    public static final int SIPUSH = 17;
+    public static final int LDC = 18;
+    public static final int LDC_W = 19;
+    public static final int LDC2_W = 20;
+    public static final int ILOAD = 21;
+    public static final int LLOAD = 22;
+    public static final int FLOAD = 23;
+    public static final int DLOAD = 24;
+    public static final int ALOAD = 25;
+    public static final int ALOAD_0 = 42;
+    public static final int ISTORE = 54;
+    public static final int LSTORE = 55;
+    public static final int FSTORE = 56;
+    public static final int DSTORE = 57;
+    public static final int ASTORE = 58;
+    public static final int ASTORE_0 = 75;
+    public static final int POP = 87;
+    public static final int DUP = 89;
+    public static final int IINC = 132;
+    public static final int IFEQ = 153;
+    public static final int IF_ACMPNE = 166;
+    public static final int GOTO = 167;
+    public static final int JSR = 168;
+    public static final int RET = 169;
+    public static final int TABLESWITCH = 170;
+    public static final int LOOKUPSWITCH = 171;
+    public static final int IRETURN = 172;
+    public static final int ARETURN = 176;
+    public static final int RETURN = 177;
+    public static final int GETSTATIC = 178;
+    public static final int PUTSTATIC = 179;
+    public static final int GETFIELD = 180;
+    public static final int PUTFIELD = 181;
+    public static final int INVOKEVIRTUAL = 182;
+    public static final int INVOKESPECIAL = 183;
+    public static final int INVOKESTATIC = 184;
+    public static final int INVOKEINTERFACE = 185;
+    public static final int INVOKEDYNAMIC = 186;
+    public static final int NEW = 187;
+    public static final int ATHROW = 191;
+    public static final int CHECKCAST = 192;
+    public static final int WIDE = 196;
+    public static final int IFNULL = 198;
+    public static final int IFNONNULL = 199;
+    public static final int GOTO_W = 200;
+    public static final int JSR_W = 201;
+
+    // Lengths of the instructions of a fixed length; 0 for the variable-length ones and for undefined opcodes.
+    private static final byte[] LENGTHS = new byte[256];
+
+    static {
+        for (int opcode = 0; opcode <= 201; opcode++) {
+            LENGTHS[opcode] = 1;
+        }
+        setLength(2, BIPUSH, LDC, 21, 22, 23, 24, ALOAD, 54, 55, 56, 57, ASTORE, RET, 188);
+        setLength(3, SIPUSH, LDC_W, LDC2_W, IINC, GETSTATIC, PUTSTATIC, GETFIELD, PUTFIELD, INVOKEVIRTUAL,
+                INVOKESPECIAL, INVOKESTATIC, NEW, 189, CHECKCAST, 193, IFNULL, IFNONNULL);
+        for (int opcode = IFEQ; opcode <= JSR; opcode++) {
+            LENGTHS[opcode] = 3;
+        }
+        setLength(4, 197);
+        setLength(5, INVOKEINTERFACE, INVOKEDYNAMIC, GOTO_W, JSR_W);
+        setLength(0, TABLESWITCH, LOOKUPSWITCH, WIDE);
+        // breakpoint, impdep1, impdep2 and the unused opcodes in between may not appear in class files
+        for (int opcode = 202; opcode < 256; opcode++) {
+            LENGTHS[opcode] = 0;
+        }
+    }
+
+    private static void setLength(int length, int... opcodes) {
+        for (int opcode : opcodes) {
+            LENGTHS[opcode] = (byte) length;
+        }
+    }
+
+    private Bytecodes() { }
+
+    /**
+     * @param code Bytecode of a method.
+     * @param offset Offset of an instruction with a constant pool index operand, e.g. {@code new} or an invoke.
+     * @return The constant pool index.
+     */
+    public static int poolIndex(byte[] code, int offset) {
+        return ClassFile.u2(code, offset + 1);
+    }
+
+    /**
+     * @param code Bytecode of a method.
+     * @param offset Offset of an instruction.
+     * @return Length of the instruction, including its operands and, for switches, padding.
+     * @throws ClassFileException If the opcode is undefined.
+     */
+    public static int length(byte[] code, int offset) throws ClassFileException {
+        int opcode = code[offset] & 0xFF;
+        int length = LENGTHS[opcode];
+        if (length > 0) {
+            return length;
+        }
+
+        switch (opcode) {
+            case TABLESWITCH: {
+                int operands = switchOperands(offset);
+                int low = ClassFile.s4(code, operands + 4);
+                int high = ClassFile.s4(code, operands + 8);
+                return operands - offset + 12 + 4 * (high - low + 1);
+            }
+            case LOOKUPSWITCH: {
+                int operands = switchOperands(offset);
+                return operands - offset + 8 + 8 * ClassFile.s4(code, operands + 4);
+            }
+            case WIDE:
+                return (code[offset + 1] & 0xFF) == IINC ? 6 : 4;
+            default:
+                throw new ClassFileException("Undefined opcode " + opcode + " at offset " + offset + ".");
+        }
+    }
+
+    /**
+     * @return Offset of the first operand (the default target) of a switch at the given offset, after the padding.
+     */
+    public static int switchOperands(int offset) {
+        return (offset + 4) & ~3;
+    }
+
+    /**
+     * @return True iff the opcode is a conditional jump, goto or jsr, with a two-byte offset.
+     */
+    public static boolean isShortBranch(int opcode) {
+        return (opcode >= IFEQ && opcode <= JSR) || opcode == IFNULL || opcode == IFNONNULL;
+    }
+
+    public static boolean isReturn(int opcode) {
+        return opcode >= IRETURN && opcode <= RETURN;
+    }
+
+    /**
+     * @param code Bytecode of a method.
+     * @param offset Offset of an instruction.
+     * @return Offsets of the instructions to which the instruction jumps (not counting falling through), or an empty
+     * array if it isn't a jump.
+     */
+    public static int[] branchTargets(byte[] code, int offset) {
+        int opcode = code[offset] & 0xFF;
+        if (isShortBranch(opcode)) {
+            return new int[] { offset + ClassFile.s2(code, offset + 1) };
+        }
+
+        switch (opcode) {
+            case GOTO_W: case JSR_W:
+                return new int[] { offset + ClassFile.s4(code, offset + 1) };
+            case TABLESWITCH: {
+                int operands = switchOperands(offset);
+                int count = ClassFile.s4(code, operands + 8) - ClassFile.s4(code, operands + 4) + 1;
+                int[] targets = new int[count + 1];
+                targets[0] = offset + ClassFile.s4(code, operands);
+                for (int i = 0; i < count; i++) {
+                    targets[i + 1] = offset + ClassFile.s4(code, operands + 12 + 4 * i);
+                }
+                return targets;
+            }
+            case LOOKUPSWITCH: {
+                int operands = switchOperands(offset);
+                int count = ClassFile.s4(code, operands + 4);
+                int[] targets = new int[count + 1];
+                targets[0] = offset + ClassFile.s4(code, operands);
+                for (int i = 0; i < count; i++) {
+                    targets[i + 1] = offset + ClassFile.s4(code, operands + 12 + 8 * i);
+                }
+                return targets;
+            }
+            default:
+                return new int[0];
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package checkers.typestate.classfile;
+
+import checkers.nullness.quals.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed class file. Only the structure needed to read annotations and to rewrite method bodies is decoded: the
+ * constant pool, the members and their attributes; the content of the attributes is kept as bytes, and decoded on
+ * demand, e.g. by {@link CodeAttribute}. Writing the class back produces the original bytes, plus any added
+ * constants and modified attributes.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class ClassFile {
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_BRIDGE = 0x0040;
+    public static final int ACC_NATIVE = 0x0100;
+    public static final int ACC_INTERFACE = 0x0200;
+    public static final int ACC_ABSTRACT = 0x0400;
+    public static final int ACC_SYNTHETIC = 0x1000;
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private final int minorVersion;
+    private final int majorVersion;
+    private final ConstantPool pool;
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<Member> fields;
+    private final List<Member> methods;
+    private final List<Attribute> attributes;
+
+    private ClassFile(int minorVersion, int majorVersion, ConstantPool pool, int access, int thisClass,
+                      int superClass, int[] interfaces, List<Member> fields, List<Member> methods,
+                      List<Attribute> attributes) {
+        this.minorVersion = minorVersion;
+        this.majorVersion = majorVersion;
+        this.pool = pool;
+        this.access = access;
+        this.thisClass = thisClass;
+        this.superClass = superClass;
+        this.interfaces = interfaces;
+        this.fields = fields;
+        this.methods = methods;
+        this.attributes = attributes;
+    }
+
+    /**
+     * @param bytes Content of a class file.
+     * @return The parsed class.
+     * @throws ClassFileException If the content isn't a well-formed class file.
+     */
+    public static ClassFile parse(byte[] bytes) throws ClassFileException {
+        try {
+            if (s4(bytes, 0) != MAGIC) {
+                throw new ClassFileException("Not a class file.");
+            }
+
+            ConstantPool pool = ConstantPool.read(bytes, 8);
+            int position = 8 + pool.getEncodedLength();
+            int access = u2(bytes, position);
+            int thisClass = u2(bytes, position + 2);
+            int superClass = u2(bytes, position + 4);
+            int[] interfaces = new int[u2(bytes, position + 6)];
+            position += 8;
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaces[i] = u2(bytes, position);
+                position += 2;
+            }
+
+            int[] end = new int[] { position };
+            List<Member> fields = readMembers(bytes, pool, end);
+            List<Member> methods = readMembers(bytes, pool, end);
+            List<Attribute> attributes = readAttributes(bytes, pool, end);
+            if (end[0] != bytes.length) {
+                throw new ClassFileException("Extra bytes at the end of the class file.");
+            }
+
+            return new ClassFile(u2(bytes, 4), u2(bytes, 6), pool, access, thisClass, superClass, interfaces,
+                    fields, methods, attributes);
+        } catch (IndexOutOfBoundsException e) {
+            throw new ClassFileException("Truncated class file.");
+        } catch (IllegalArgumentException e) {
+            throw new ClassFileException(e.getMessage());
+        }
+    }
+
+    private static List<Member> readMembers(byte[] bytes, ConstantPool pool, int[] position) {
+        int count = u2(bytes, position[0]);
+        position[0] += 2;
+        List<Member> members = new ArrayList<Member>(count);
+        for (int i = 0; i < count; i++) {
+            int access = u2(bytes, position[0]);
+            int nameIndex = u2(bytes, position[0] + 2);
+            int descriptorIndex = u2(bytes, position[0] + 4);
+            position[0] += 6;
+            members.add(new Member(access, pool.getUtf8(nameIndex), nameIndex, pool.getUtf8(descriptorIndex),
+                    descriptorIndex, readAttributes(bytes, pool, position)));
+        }
+
+        return members;
+    }
+
+    /**
+     * Reads a list of attributes, starting with their count.
+     * @param position A one-element array with the position of the count; updated to the end of the attributes.
+     */
+    static List<Attribute> readAttributes(byte[] bytes, ConstantPool pool, int[] position) {
+        int count = u2(bytes, position[0]);
+        position[0] += 2;
+        List<Attribute> attributes = new ArrayList<Attribute>(count);
+        for (int i = 0; i < count; i++) {
+            int nameIndex = u2(bytes, position[0]);
+            int length = s4(bytes, position[0] + 2);
+            position[0] += 6;
+            byte[] info = new byte[length];
+            System.arraycopy(bytes, position[0], info, 0, length);
+            position[0] += length;
+            attributes.add(new Attribute(pool.getUtf8(nameIndex), nameIndex, info));
+        }
+
+        return attributes;
+    }
+
+    static void writeAttributes(DataOutputStream out, List<Attribute> attributes) throws IOException {
+        out.writeShort(attributes.size());
+        for (Attribute attribute : attributes) {
+            out.writeShort(attribute.getNameIndex());
+            out.writeInt(attribute.getInfo().length);
+            out.write(attribute.getInfo());
+        }
+    }
+
+    /**
+     * @return The class file, with the constants and attributes added or replaced since it was parsed.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(minorVersion);
+            out.writeShort(majorVersion);
+            pool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int anInterface : interfaces) {
+                out.writeShort(anInterface);
+            }
+            writeMembers(out, fields);
+            writeMembers(out, methods);
+            writeAttributes(out, attributes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeMembers(DataOutputStream out, List<Member> members) throws IOException {
+        out.writeShort(members.size());
+        for (Member member : members) {
+            out.writeShort(member.getAccess());
+            out.writeShort(member.getNameIndex());
+            out.writeShort(member.getDescriptorIndex());
+            writeAttributes(out, member.getAttributes());
+        }
+    }
+
+    public int getMajorVersion() {
+        return majorVersion;
+    }
+
+    public ConstantPool getPool() {
+        return pool;
+    }
+
+    public int getAccess() {
+        return access;
+    }
+
+    public boolean isInterface() {
+        return (access & ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * @return Internal name of the class, e.g. {@code java/util/Map$Entry}.
+     */
+    public String getName() {
+        return pool.getClassName(thisClass);
+    }
+
+    /**
+     * @return Internal name of the superclass, or null for {@code java/lang/Object}.
+     */
+    public @Nullable String getSuperName() {
+        return superClass == 0 ? null : pool.getClassName(superClass);
+    }
+
+    public List<String> getInterfaceNames() {
+        List<String> names = new ArrayList<String>(interfaces.length);
+        for (int anInterface : interfaces) {
+            names.add(pool.getClassName(anInterface));
+        }
+
+        return names;
+    }
+
+    public List<Member> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    public List<Member> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    public List<Attribute> getAttributes() {
+        return Collections.unmodifiableList(attributes);
+    }
+
+    public @Nullable Attribute getAttribute(String name) {
+        for (Attribute attribute : attributes) {
+            if (attribute.getName().equals(name)) {
+                return attribute;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Name of the source file from which the class was compiled, without a directory; null if not recorded.
+     */
+    public @Nullable String getSourceFile() {
+        Attribute sourceFile = getAttribute(Attribute.SOURCE_FILE);
+        return sourceFile == null ? null : pool.getUtf8(u2(sourceFile.getInfo(), 0));
+    }
+
+    static int u1(byte[] bytes, int offset) {
+        return bytes[offset] & 0xFF;
+    }
+
+    static int u2(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    static int s2(byte[] bytes, int offset) {
+        return (short) u2(bytes, offset);
+    }
+
+    static int s4(byte[] bytes, int offset) {
+        return (u2(bytes, offset) << 16) | u2(bytes, offset + 2);
+    }
+
+    static void putU2(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    static void putS4(byte[] bytes, int offset, int value) {
+        putU2(bytes, offset, value >>> 16);
+        putU2(bytes, offset + 2, value);
+    }
+}
@@ -0,0 +1,13 @@
+package checkers.typestate.classfile;
+
+/**
+ * Thrown when a class file is malformed, or uses a construct which can't be handled.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class ClassFileException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ClassFileException(String message) {
+        super(message);
+    }
+}
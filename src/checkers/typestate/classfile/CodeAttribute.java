@@ -0,0 +1,172 @@
+package checkers.typestate.classfile;
+
+import checkers.nullness.quals.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The decoded {@code Code} attribute of a method: the bytecode, the exception table and the nested attributes, which
+ * are kept in their encoded form.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class CodeAttribute {
+    private final int maxStack;
+    private final int maxLocals;
+    private final byte[] code;
+    // (start, end, handler, catch type) quadruples
+    private final int[] exceptionTable;
+    private final List<Attribute> attributes;
+
+    public CodeAttribute(int maxStack, int maxLocals, byte[] code, int[] exceptionTable,
+                         List<Attribute> attributes) {
+        this.maxStack = maxStack;
+        this.maxLocals = maxLocals;
+        this.code = code;
+        this.exceptionTable = exceptionTable;
+        this.attributes = new ArrayList<Attribute>(attributes);
+    }
+
+    /**
+     * @param attribute A code attribute.
+     * @param pool Constant pool of the class containing the attribute.
+     * @return The decoded attribute.
+     * @throws ClassFileException If the attribute is malformed.
+     */
+    public static CodeAttribute read(Attribute attribute, ConstantPool pool) throws ClassFileException {
+        byte[] info = attribute.getInfo();
+        try {
+            int codeLength = ClassFile.s4(info, 4);
+            byte[] code = new byte[codeLength];
+            System.arraycopy(info, 8, code, 0, codeLength);
+
+            int position = 8 + codeLength;
+            int[] exceptionTable = new int[4 * ClassFile.u2(info, position)];
+            position += 2;
+            for (int i = 0; i < exceptionTable.length; i++) {
+                exceptionTable[i] = ClassFile.u2(info, position);
+                position += 2;
+            }
+
+            int[] end = new int[] { position };
+            List<Attribute> attributes = ClassFile.readAttributes(info, pool, end);
+            return new CodeAttribute(ClassFile.u2(info, 0), ClassFile.u2(info, 2), code, exceptionTable, attributes);
+        } catch (IndexOutOfBoundsException e) {
+            throw new ClassFileException("Truncated code attribute.");
+        } catch (IllegalArgumentException e) {
+            throw new ClassFileException(e.getMessage());
+        }
+    }
+
+    /**
+     * @param pool Constant pool of the class which will contain the attribute.
+     * @return The encoded attribute.
+     */
+    public Attribute toAttribute(ConstantPool pool) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(exceptionTable.length / 4);
+            for (int value : exceptionTable) {
+                out.writeShort(value);
+            }
+            ClassFile.writeAttributes(out, attributes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return new Attribute(Attribute.CODE, pool.addUtf8(Attribute.CODE), bytes.toByteArray());
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public int getMaxLocals() {
+        return maxLocals;
+    }
+
+    /**
+     * @return The bytecode. Shouldn't be modified.
+     */
+    public byte[] getCode() {
+        return code;
+    }
+
+    /**
+     * @return The exception table, as (start, end, handler, catch type) quadruples. Shouldn't be modified.
+     */
+    public int[] getExceptionTable() {
+        return exceptionTable;
+    }
+
+    public List<Attribute> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @param offset Offset of an instruction.
+     * @return The source line of the instruction, as given by the line number tables; -1 if unknown.
+     */
+    public int getLineNumber(int offset) {
+        int line = -1;
+        int lineStart = -1;
+        for (Attribute attribute : attributes) {
+            if (attribute.getName().equals(Attribute.LINE_NUMBER_TABLE)) {
+                byte[] info = attribute.getInfo();
+                int count = ClassFile.u2(info, 0);
+                for (int i = 0; i < count; i++) {
+                    int start = ClassFile.u2(info, 2 + 4 * i);
+                    if (start <= offset && start > lineStart) {
+                        lineStart = start;
+                        line = ClassFile.u2(info, 4 + 4 * i);
+                    }
+                }
+            }
+        }
+
+        return line;
+    }
+
+    /**
+     * @param slot Slot of a local variable.
+     * @param offset Offset of an instruction.
+     * @param pool Constant pool of the class containing the attribute.
+     * @return The name of the variable in the slot at the instruction, as given by the local variable tables; null
+     * if unknown.
+     */
+    public @Nullable String getLocalVariableName(int slot, int offset, ConstantPool pool) {
+        for (Attribute attribute : attributes) {
+            if (attribute.getName().equals(Attribute.LOCAL_VARIABLE_TABLE)) {
+                byte[] info = attribute.getInfo();
+                int count = ClassFile.u2(info, 0);
+                for (int i = 0; i < count; i++) {
+                    int start = ClassFile.u2(info, 2 + 10 * i);
+                    int length = ClassFile.u2(info, 4 + 10 * i);
+                    if (ClassFile.u2(info, 10 + 10 * i) == slot && start <= offset && offset < start + length) {
+                        return pool.getUtf8(ClassFile.u2(info, 6 + 10 * i));
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public @Nullable Attribute getAttribute(String name) {
+        for (Attribute attribute : attributes) {
+            if (attribute.getName().equals(name)) {
+                return attribute;
+            }
+        }
+
+        return null;
+    }
+}
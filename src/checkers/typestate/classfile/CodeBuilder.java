@@ -0,0 +1,106 @@
+package checkers.typestate.classfile;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Assembles short, straight-line pieces of bytecode, to be inserted into a method by a {@link CodeEditor}.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class CodeBuilder {
+    private final ConstantPool pool;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+    public CodeBuilder(ConstantPool pool) {
+        this.pool = pool;
+    }
+
+    public CodeBuilder op(int opcode) {
+        code.write(opcode);
+        return this;
+    }
+
+    public CodeBuilder aload(int slot) {
+        if (slot <= 3) {
+            code.write(Bytecodes.ALOAD_0 + slot);
+            return this;
+        }
+
+        return local(Bytecodes.ALOAD, slot);
+    }
+
+    /**
+     * Loads a local of the given type.
+     * @param type Field descriptor of the type of the local.
+     * @param slot Slot of the local.
+     */
+    public CodeBuilder load(String type, int slot) {
+        return local(Bytecodes.ILOAD + typeOffset(type), slot);
+    }
+
+    /**
+     * Stores the value on the top of the stack, of the given type, in a local.
+     * @param type Field descriptor of the type of the value.
+     * @param slot Slot of the local.
+     */
+    public CodeBuilder store(String type, int slot) {
+        return local(Bytecodes.ISTORE + typeOffset(type), slot);
+    }
+
+    // The offset of the opcode for the given type from the opcode for ints, the same for loads and stores.
+    private static int typeOffset(String type) {
+        switch (type.charAt(0)) {
+            case 'J': return Bytecodes.LLOAD - Bytecodes.ILOAD;
+            case 'F': return Bytecodes.FLOAD - Bytecodes.ILOAD;
+            case 'D': return Bytecodes.DLOAD - Bytecodes.ILOAD;
+            case 'L': case '[': return Bytecodes.ALOAD - Bytecodes.ILOAD;
+            default: return 0;
+        }
+    }
+
+    private CodeBuilder local(int opcode, int slot) {
+        if (slot <= 0xFF) {
+            code.write(opcode);
+            code.write(slot);
+        } else {
+            code.write(Bytecodes.WIDE);
+            code.write(opcode);
+            u2(slot);
+        }
+        return this;
+    }
+
+    public CodeBuilder pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.write(Bytecodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(Bytecodes.BIPUSH);
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(Bytecodes.SIPUSH);
+            u2(value);
+        } else {
+            code.write(Bytecodes.LDC_W);
+            u2(pool.addInteger(value));
+        }
+        return this;
+    }
+
+    public CodeBuilder invokestatic(String owner, String name, String descriptor) {
+        code.write(Bytecodes.INVOKESTATIC);
+        u2(pool.addMethodref(owner, name, descriptor));
+        return this;
+    }
+
+    private void u2(int value) {
+        code.write(value >>> 8);
+        code.write(value);
+    }
+
+    public boolean isEmpty() {
+        return code.size() == 0;
+    }
+
+    public byte[] toByteArray() {
+        return code.toByteArray();
+    }
+}
@@ -0,0 +1,393 @@
+package checkers.typestate.classfile;
+
+import checkers.nullness.quals.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inserts straight-line code into a method body, and optionally appends a handler catching all exceptions thrown by
+ * the original code. The instructions which follow an insertion are moved, so branch offsets, the exception table,
+ * the line number and local variable tables and the stack map frames are updated; type annotations on instructions
+ * are dropped.
+ *
+ * Each insertion is padded with {@code nop}s to a multiple of four bytes, so that the padding of the switch
+ * instructions, and hence the length of all original instructions, stays the same.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class CodeEditor {
+    private static final int STACK_MAP_FULL_FRAME = 255;
+
+    private final ConstantPool pool;
+    private final int majorVersion;
+    private final CodeAttribute original;
+
+    // original offset -> insertion before the instruction at that offset
+    private final Map<Integer, Insertion> insertions = new TreeMap<Integer, Insertion>();
+
+    private @Nullable byte[] handler;
+    private List<byte[]> handlerLocals = new ArrayList<byte[]>();
+    private int extraStack;
+    private int extraLocals;
+
+    // Original offsets of the insertions, and the total length inserted before each of them, after apply() starts.
+    private int[] insertionOffsets;
+    private int[] insertedBefore;
+
+    private static class Insertion {
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final boolean jumpedTo;
+
+        private Insertion(boolean jumpedTo) {
+            this.jumpedTo = jumpedTo;
+        }
+
+        private int length() {
+            return (code.size() + 3) & ~3;
+        }
+    }
+
+    public CodeEditor(ClassFile classFile, CodeAttribute original) {
+        this.pool = classFile.getPool();
+        this.majorVersion = classFile.getMajorVersion();
+        this.original = original;
+    }
+
+    /**
+     * Inserts code before the instruction at the given offset. Code inserted at the same offset is executed in the
+     * order of insertion.
+     * @param offset Offset of an instruction of the original code.
+     * @param code Code to insert; it must leave the operand stack as it finds it.
+     * @param jumpedTo True iff the jumps to the instruction, and the exception ranges starting at it, should
+     * include the inserted code; if false, the inserted code is only executed when falling through.
+     */
+    public void insertBefore(int offset, byte[] code, boolean jumpedTo) {
+        Insertion insertion = insertions.get(offset);
+        if (insertion == null) {
+            insertion = new Insertion(jumpedTo);
+            insertions.put(offset, insertion);
+        } else if (insertion.jumpedTo != jumpedTo) {
+            throw new IllegalArgumentException("Conflicting insertions at offset " + offset + ".");
+        }
+
+        insertion.code.write(code, 0, code.length);
+    }
+
+    /**
+     * Appends a handler of all exceptions which are thrown by the original code and not caught by its own handlers.
+     * The handler starts with the exception on the stack, and must end with a jump or a throw.
+     * @param code Code of the handler.
+     * @param locals Verification types of the locals at the start of the handler (see {@link #objectType} and
+     * {@link #topType}); each must be assignable from the type of the local throughout the original code.
+     */
+    public void setHandler(byte[] code, List<byte[]> locals) {
+        this.handler = code;
+        this.handlerLocals = locals;
+    }
+
+    /**
+     * @param extraStack Operand stack slots used by the inserted code, in addition to the stack of the original code.
+     */
+    public void setExtraStack(int extraStack) {
+        this.extraStack = extraStack;
+    }
+
+    /**
+     * @param extraLocals Local variable slots used by the inserted code, following the locals of the original code.
+     */
+    public void setExtraLocals(int extraLocals) {
+        this.extraLocals = extraLocals;
+    }
+
+    public byte[] objectType(String internalName) {
+        int index = pool.addClass(internalName);
+        return new byte[] { 7, (byte) (index >>> 8), (byte) index };
+    }
+
+    public static byte[] topType() {
+        return new byte[] { 0 };
+    }
+
+    /**
+     * @return The modified code attribute.
+     * @throws ClassFileException If the code can't be modified, e.g. because a branch would become too long.
+     */
+    public CodeAttribute apply() throws ClassFileException {
+        byte[] code = original.getCode();
+        boolean[] starts = instructionStarts(code);
+        insertionOffsets = new int[insertions.size()];
+        insertedBefore = new int[insertions.size() + 1];
+        int n = 0;
+        for (Map.Entry<Integer, Insertion> entry : insertions.entrySet()) {
+            if (entry.getKey() >= code.length || !starts[entry.getKey()]) {
+                throw new ClassFileException("Insertion at offset " + entry.getKey() + ", which isn't an instruction.");
+            }
+            insertionOffsets[n] = entry.getKey();
+            insertedBefore[n + 1] = insertedBefore[n] + entry.getValue().length();
+            n++;
+        }
+
+        int codeEnd = newOffset(code.length, true);
+        int handlerOffset = codeEnd;
+        byte[] newCode = new byte[codeEnd + (handler == null ? 0 : handler.length)];
+        for (int offset = 0; offset < code.length; ) {
+            Insertion insertion = insertions.get(offset);
+            int position = newOffset(offset, false);
+            if (insertion != null) {
+                int insertionStart = position - insertion.length();
+                System.arraycopy(insertion.code.toByteArray(), 0, newCode, insertionStart, insertion.code.size());
+            }
+
+            int length = Bytecodes.length(code, offset);
+            System.arraycopy(code, offset, newCode, position, length);
+            relocateBranches(code, offset, newCode, position);
+            offset += length;
+        }
+        if (handler != null) {
+            System.arraycopy(handler, 0, newCode, handlerOffset, handler.length);
+        }
+
+        int[] exceptionTable = original.getExceptionTable();
+        int[] newExceptionTable = Arrays.copyOf(exceptionTable, exceptionTable.length + (handler == null ? 0 : 4));
+        for (int i = 0; i < exceptionTable.length; i += 4) {
+            newExceptionTable[i] = newOffset(exceptionTable[i], true);
+            newExceptionTable[i + 1] = newOffset(exceptionTable[i + 1], true);
+            newExceptionTable[i + 2] = newOffset(exceptionTable[i + 2], true);
+        }
+        if (handler != null) {
+            int i = exceptionTable.length;
+            newExceptionTable[i] = newOffset(0, false);
+            newExceptionTable[i + 1] = codeEnd;
+            newExceptionTable[i + 2] = handlerOffset;
+            newExceptionTable[i + 3] = 0;
+        }
+
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        boolean hasStackMap = false;
+        for (Attribute attribute : original.getAttributes()) {
+            String name = attribute.getName();
+            if (name.equals(Attribute.LINE_NUMBER_TABLE)) {
+                attributes.add(relocateLineNumbers(attribute));
+            } else if (name.equals(Attribute.LOCAL_VARIABLE_TABLE)
+                    || name.equals(Attribute.LOCAL_VARIABLE_TYPE_TABLE)) {
+                attributes.add(relocateLocalVariables(attribute));
+            } else if (name.equals(Attribute.STACK_MAP_TABLE)) {
+                attributes.add(relocateFrames(attribute, handlerOffset));
+                hasStackMap = true;
+            } else if (!name.equals(Attribute.RUNTIME_VISIBLE_TYPE_ANNOTATIONS)
+                    && !name.equals(Attribute.RUNTIME_INVISIBLE_TYPE_ANNOTATIONS)) {
+                attributes.add(attribute);
+            }
+        }
+        // Since version 50, the handler needs a frame, also if the original code had none
+        if (!hasStackMap && handler != null && majorVersion >= 50) {
+            attributes.add(relocateFrames(null, handlerOffset));
+        }
+
+        if (newCode.length > 0xFFFF) {
+            throw new ClassFileException("Method too long after the insertions.");
+        }
+
+        return new CodeAttribute(original.getMaxStack() + extraStack, original.getMaxLocals() + extraLocals,
+                newCode, newExceptionTable, attributes);
+    }
+
+    private static boolean[] instructionStarts(byte[] code) throws ClassFileException {
+        boolean[] starts = new boolean[code.length];
+        for (int offset = 0; offset < code.length; offset += Bytecodes.length(code, offset)) {
+            starts[offset] = true;
+        }
+
+        return starts;
+    }
+
+    /**
+     * @param offset An offset in the original code, or its length.
+     * @param jump True if the offset is the target of a jump (or the bound of a range), which includes the code
+     * inserted before it if that insertion is jumped to; false for the position of the instruction itself.
+     * @return The offset in the new code.
+     */
+    private int newOffset(int offset, boolean jump) {
+        int i = Arrays.binarySearch(insertionOffsets, offset);
+        if (i >= 0) {
+            boolean includeInsertion = jump && insertions.get(offset).jumpedTo;
+            return offset + (includeInsertion ? insertedBefore[i] : insertedBefore[i + 1]);
+        }
+
+        return offset + insertedBefore[-i - 1];
+    }
+
+    private void relocateBranches(byte[] code, int offset, byte[] newCode, int position) throws ClassFileException {
+        int opcode = code[offset] & 0xFF;
+        if (Bytecodes.isShortBranch(opcode)) {
+            int target = newOffset(offset + ClassFile.s2(code, offset + 1), true) - position;
+            if (target < Short.MIN_VALUE || target > Short.MAX_VALUE) {
+                throw new ClassFileException("Branch offset too long at offset " + offset + ".");
+            }
+            ClassFile.putU2(newCode, position + 1, target);
+        } else if (opcode == Bytecodes.GOTO_W || opcode == Bytecodes.JSR_W) {
+            ClassFile.putS4(newCode, position + 1, newOffset(offset + ClassFile.s4(code, offset + 1), true) - position);
+        } else if (opcode == Bytecodes.TABLESWITCH || opcode == Bytecodes.LOOKUPSWITCH) {
+            // The padding stays the same, as the inserted code has a length divisible by four.
+            int operands = Bytecodes.switchOperands(offset);
+            int newOperands = Bytecodes.switchOperands(position);
+            relocateSwitchTarget(code, offset, operands, newCode, position, newOperands);
+            if (opcode == Bytecodes.TABLESWITCH) {
+                int count = ClassFile.s4(code, operands + 8) - ClassFile.s4(code, operands + 4) + 1;
+                for (int i = 0; i < count; i++) {
+                    relocateSwitchTarget(code, offset, operands + 12 + 4 * i, newCode, position,
+                            newOperands + 12 + 4 * i);
+                }
+            } else {
+                int count = ClassFile.s4(code, operands + 4);
+                for (int i = 0; i < count; i++) {
+                    relocateSwitchTarget(code, offset, operands + 12 + 8 * i, newCode, position,
+                            newOperands + 12 + 8 * i);
+                }
+            }
+        }
+    }
+
+    private void relocateSwitchTarget(byte[] code, int offset, int operand, byte[] newCode, int position,
+                                      int newOperand) {
+        ClassFile.putS4(newCode, newOperand, newOffset(offset + ClassFile.s4(code, operand), true) - position);
+    }
+
+    private Attribute relocateLineNumbers(Attribute attribute) {
+        byte[] info = attribute.getInfo().clone();
+        int count = ClassFile.u2(info, 0);
+        for (int i = 0; i < count; i++) {
+            int position = 2 + 4 * i;
+            ClassFile.putU2(info, position, newOffset(ClassFile.u2(info, position), true));
+        }
+
+        return new Attribute(attribute.getName(), attribute.getNameIndex(), info);
+    }
+
+    private Attribute relocateLocalVariables(Attribute attribute) {
+        byte[] info = attribute.getInfo().clone();
+        int count = ClassFile.u2(info, 0);
+        for (int i = 0; i < count; i++) {
+            int position = 2 + 10 * i;
+            int start = ClassFile.u2(info, position);
+            int end = start + ClassFile.u2(info, position + 2);
+            int newStart = newOffset(start, true);
+            ClassFile.putU2(info, position, newStart);
+            ClassFile.putU2(info, position + 2, newOffset(end, true) - newStart);
+        }
+
+        return new Attribute(attribute.getName(), attribute.getNameIndex(), info);
+    }
+
+    /**
+     * Re-encodes the stack map frames at their new offsets, and adds the frame of the handler.
+     */
+    private Attribute relocateFrames(@Nullable Attribute attribute, int handlerOffset) throws ClassFileException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int count = attribute == null ? 0 : ClassFile.u2(attribute.getInfo(), 0);
+            out.writeShort(count + (handler == null ? 0 : 1));
+
+            int previous = -1;
+            int newPrevious = -1;
+            if (attribute != null) {
+                byte[] info = attribute.getInfo();
+                int position = 2;
+                for (int i = 0; i < count; i++) {
+                    int type = info[position++] & 0xFF;
+                    int delta;
+                    if (type < 128) {
+                        delta = type & 63;
+                    } else if (type >= 247) {
+                        delta = ClassFile.u2(info, position);
+                        position += 2;
+                    } else {
+                        throw new ClassFileException("Unknown stack map frame type " + type + ".");
+                    }
+
+                    int offset = previous + delta + 1;
+                    int newOffset = newOffset(offset, true);
+                    int newDelta = newOffset - newPrevious - 1;
+                    previous = offset;
+                    newPrevious = newOffset;
+
+                    if (type < 64 || type == 251) {
+                        // same frame
+                        writeFrameType(out, newDelta, 0, 251);
+                    } else if (type < 128 || type == 247) {
+                        // same locals, one stack item
+                        writeFrameType(out, newDelta, 64, 247);
+                        position = copyVerificationTypes(info, position, 1, out);
+                    } else if (type < 255) {
+                        // chop or append
+                        out.writeByte(type);
+                        out.writeShort(newDelta);
+                        position = copyVerificationTypes(info, position, type > 251 ? type - 251 : 0, out);
+                    } else {
+                        out.writeByte(type);
+                        out.writeShort(newDelta);
+                        int locals = ClassFile.u2(info, position);
+                        out.writeShort(locals);
+                        position = copyVerificationTypes(info, position + 2, locals, out);
+                        int stack = ClassFile.u2(info, position);
+                        out.writeShort(stack);
+                        position = copyVerificationTypes(info, position + 2, stack, out);
+                    }
+                }
+            }
+
+            if (handler != null) {
+                out.writeByte(STACK_MAP_FULL_FRAME);
+                out.writeShort(handlerOffset - newPrevious - 1);
+                out.writeShort(handlerLocals.size());
+                for (byte[] local : handlerLocals) {
+                    out.write(local);
+                }
+                out.writeShort(1);
+                out.write(objectType("java/lang/Throwable"));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return new Attribute(Attribute.STACK_MAP_TABLE, pool.addUtf8(Attribute.STACK_MAP_TABLE),
+                bytes.toByteArray());
+    }
+
+    // Writes the compact frame type if the delta fits in it, and the extended one otherwise.
+    private static void writeFrameType(DataOutputStream out, int delta, int compactBase, int extendedType)
+            throws IOException {
+        if (delta < 64) {
+            out.writeByte(compactBase + delta);
+        } else {
+            out.writeByte(extendedType);
+            out.writeShort(delta);
+        }
+    }
+
+    private int copyVerificationTypes(byte[] info, int position, int count, DataOutputStream out)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            int tag = info[position++] & 0xFF;
+            out.writeByte(tag);
+            if (tag == 7) {
+                // object: the class stays the same
+                out.writeShort(ClassFile.u2(info, position));
+                position += 2;
+            } else if (tag == 8) {
+                // uninitialized: the offset of the "new" instruction
+                out.writeShort(newOffset(ClassFile.u2(info, position), false));
+                position += 2;
+            }
+        }
+
+        return position;
+    }
+}
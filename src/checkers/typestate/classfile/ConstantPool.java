@@ -0,0 +1,283 @@
+package checkers.typestate.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The constant pool of a class file. The entries are kept in their encoded form, and decoded on access; new entries
+ * can be appended, and are written back together with the original ones, whose indexes don't change.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class ConstantPool {
+    public static final int UTF8 = 1;
+    public static final int INTEGER = 3;
+    public static final int FLOAT = 4;
+    public static final int LONG = 5;
+    public static final int DOUBLE = 6;
+    public static final int CLASS = 7;
+    public static final int STRING = 8;
+    public static final int FIELDREF = 9;
+    public static final int METHODREF = 10;
+    public static final int INTERFACE_METHODREF = 11;
+    public static final int NAME_AND_TYPE = 12;
+    public static final int METHOD_HANDLE = 15;
+    public static final int METHOD_TYPE = 16;
+    public static final int DYNAMIC = 17;
+    public static final int INVOKE_DYNAMIC = 18;
+    public static final int MODULE = 19;
+    public static final int PACKAGE = 20;
+
+    // The encoded entries, each starting with its tag, and the offset of each entry; index 0 is unused.
+    private byte[] data;
+    private int length;
+    private int[] offsets;
+    private int count;
+
+    private String[] utf8Cache;
+    // Keys of the entries (see key()) -> their indexes, computed on the first lookup.
+    private Map<String, Integer> indexes;
+
+    private ConstantPool(byte[] data, int length, int[] offsets, int count) {
+        this.data = data;
+        this.length = length;
+        this.offsets = offsets;
+        this.count = count;
+        this.utf8Cache = new String[count];
+    }
+
+    /**
+     * Reads the constant pool, starting with its count, from the given position of a class file.
+     * @param bytes The class file.
+     * @param offset Position of the constant pool count.
+     * @return The read pool; its encoded size is {@link #getEncodedLength()}.
+     * @throws ClassFileException If the pool is malformed.
+     */
+    static ConstantPool read(byte[] bytes, int offset) throws ClassFileException {
+        int count = ClassFile.u2(bytes, offset);
+        int[] offsets = new int[count];
+        int position = offset + 2;
+        for (int i = 1; i < count; i++) {
+            offsets[i] = position - offset - 2;
+            int tag = bytes[position] & 0xFF;
+            switch (tag) {
+                case UTF8: position += 3 + ClassFile.u2(bytes, position + 1); break;
+                case INTEGER: case FLOAT: case FIELDREF: case METHODREF: case INTERFACE_METHODREF:
+                case NAME_AND_TYPE: case DYNAMIC: case INVOKE_DYNAMIC: position += 5; break;
+                case LONG: case DOUBLE: position += 9; i++; break;
+                case CLASS: case STRING: case METHOD_TYPE: case MODULE: case PACKAGE: position += 3; break;
+                case METHOD_HANDLE: position += 4; break;
+                default: throw new ClassFileException("Unknown constant pool tag " + tag + " at entry " + i + ".");
+            }
+        }
+
+        int length = position - offset - 2;
+        byte[] data = Arrays.copyOfRange(bytes, offset + 2, offset + 2 + length + 64);
+        return new ConstantPool(data, length, offsets, count);
+    }
+
+    /**
+     * @return Number of bytes which the pool occupies in the class file, including the count.
+     */
+    int getEncodedLength() {
+        return 2 + length;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeShort(count);
+        out.write(data, 0, length);
+    }
+
+    /**
+     * @return The constant pool count: the largest index plus one.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public int getTag(int index) {
+        return index == 0 ? 0 : data[offsets[index]] & 0xFF;
+    }
+
+    // The n-th two-byte operand of the entry.
+    private int operand(int index, int n) {
+        return ClassFile.u2(data, offsets[index] + 1 + 2 * n);
+    }
+
+    public String getUtf8(int index) {
+        checkTag(index, UTF8);
+        String s = utf8Cache[index];
+        if (s == null) {
+            int offset = offsets[index];
+            try {
+                s = new DataInputStream(new ByteArrayInputStream(data, offset + 1, ClassFile.u2(data, offset + 1) + 2))
+                        .readUTF();
+            } catch (IOException e) {
+                throw new IllegalStateException("Malformed string constant at entry " + index + ".", e);
+            }
+            utf8Cache[index] = s;
+        }
+
+        return s;
+    }
+
+    /**
+     * @return Internal name of the class (or array descriptor) referenced by a class entry.
+     */
+    public String getClassName(int index) {
+        checkTag(index, CLASS);
+        return getUtf8(operand(index, 0));
+    }
+
+    public int getInteger(int index) {
+        checkTag(index, INTEGER);
+        return ClassFile.s4(data, offsets[index] + 1);
+    }
+
+    /**
+     * @return The class entry of a field or method reference.
+     */
+    public String getMemberOwner(int index) {
+        return getClassName(operand(index, 0));
+    }
+
+    public String getMemberName(int index) {
+        return getUtf8(operand(operand(index, 1), 0));
+    }
+
+    public String getMemberDescriptor(int index) {
+        return getUtf8(operand(operand(index, 1), 1));
+    }
+
+    /**
+     * @return The name of an invokedynamic or dynamic constant entry.
+     */
+    public String getDynamicName(int index) {
+        return getUtf8(operand(operand(index, 1), 0));
+    }
+
+    public String getDynamicDescriptor(int index) {
+        return getUtf8(operand(operand(index, 1), 1));
+    }
+
+    private void checkTag(int index, int tag) {
+        if (getTag(index) != tag) {
+            throw new IllegalArgumentException("Constant pool entry " + index + " has tag " + getTag(index)
+                    + " instead of " + tag + ".");
+        }
+    }
+
+    public int addUtf8(String s) {
+        Integer existing = lookup(UTF8 + ":" + s);
+        if (existing != null) {
+            return existing;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(UTF8);
+            out.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return append(bytes.toByteArray(), UTF8 + ":" + s, 1);
+    }
+
+    public int addClass(String internalName) {
+        return addEntry(CLASS, internalName, addUtf8(internalName), -1);
+    }
+
+    public int addInteger(int value) {
+        return addEntry(INTEGER, Integer.toString(value), value >>> 16, value & 0xFFFF);
+    }
+
+    public int addNameAndType(String name, String descriptor) {
+        return addEntry(NAME_AND_TYPE, name + ":" + descriptor, addUtf8(name), addUtf8(descriptor));
+    }
+
+    public int addMethodref(String owner, String name, String descriptor) {
+        return addEntry(METHODREF, owner + "." + name + ":" + descriptor, addClass(owner),
+                addNameAndType(name, descriptor));
+    }
+
+    // Adds an entry with one or two two-byte operands, unless an equal one exists.
+    private int addEntry(int tag, String value, int operand1, int operand2) {
+        String key = tag + ":" + value;
+        Integer existing = lookup(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        byte[] entry = new byte[operand2 < 0 ? 3 : 5];
+        entry[0] = (byte) tag;
+        entry[1] = (byte) (operand1 >>> 8);
+        entry[2] = (byte) operand1;
+        if (operand2 >= 0) {
+            entry[3] = (byte) (operand2 >>> 8);
+            entry[4] = (byte) operand2;
+        }
+
+        return append(entry, key, 1);
+    }
+
+    private int append(byte[] entry, String key, int slots) {
+        if (count + slots > 0xFFFF) {
+            throw new IllegalStateException("The constant pool is full.");
+        }
+
+        if (length + entry.length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + entry.length));
+        }
+        if (count + slots > offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, count + slots));
+            utf8Cache = Arrays.copyOf(utf8Cache, offsets.length);
+        }
+
+        int index = count;
+        offsets[index] = length;
+        System.arraycopy(entry, 0, data, length, entry.length);
+        length += entry.length;
+        count += slots;
+        indexes.put(key, index);
+        return index;
+    }
+
+    private Integer lookup(String key) {
+        if (indexes == null) {
+            indexes = new HashMap<String, Integer>();
+            for (int i = 1; i < count; i++) {
+                String entryKey = key(i);
+                if (entryKey != null && !indexes.containsKey(entryKey)) {
+                    indexes.put(entryKey, i);
+                }
+                int tag = getTag(i);
+                if (tag == LONG || tag == DOUBLE) {
+                    i++;
+                }
+            }
+        }
+
+        return indexes.get(key);
+    }
+
+    // The key under which an added entry equal to the given one would be stored; null for other kinds of entries.
+    private String key(int index) {
+        int tag = getTag(index);
+        switch (tag) {
+            case UTF8: return tag + ":" + getUtf8(index);
+            case CLASS: return tag + ":" + getClassName(index);
+            case INTEGER: return tag + ":" + getInteger(index);
+            case NAME_AND_TYPE: return tag + ":" + getUtf8(operand(index, 0)) + ":" + getUtf8(operand(index, 1));
+            case METHODREF: return tag + ":" + getMemberOwner(index) + "." + getMemberName(index) + ":"
+                    + getMemberDescriptor(index);
+            default: return null;
+        }
+    }
+}
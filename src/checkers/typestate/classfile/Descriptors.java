@@ -0,0 +1,99 @@
+package checkers.typestate.classfile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes field and method descriptors.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class Descriptors {
+    private Descriptors() { }
+
+    /**
+     * @param methodDescriptor A method descriptor, e.g. {@code (I[Ljava/lang/String;)V}.
+     * @return The field descriptors of the parameter types, e.g. {@code I} and {@code [Ljava/lang/String;}.
+     */
+    public static List<String> parameterTypes(String methodDescriptor) {
+        List<String> types = new ArrayList<String>();
+        int position = 1;
+        while (methodDescriptor.charAt(position) != ')') {
+            int end = typeEnd(methodDescriptor, position);
+            types.add(methodDescriptor.substring(position, end));
+            position = end;
+        }
+
+        return types;
+    }
+
+    /**
+     * @return The field descriptor of the return type, or {@code V} for void methods.
+     */
+    public static String returnType(String methodDescriptor) {
+        return methodDescriptor.substring(methodDescriptor.indexOf(')') + 1);
+    }
+
+    private static int typeEnd(String descriptor, int position) {
+        while (descriptor.charAt(position) == '[') {
+            position++;
+        }
+
+        return descriptor.charAt(position) == 'L' ? descriptor.indexOf(';', position) + 1 : position + 1;
+    }
+
+    public static boolean isReference(String fieldDescriptor) {
+        char first = fieldDescriptor.charAt(0);
+        return first == 'L' || first == '[';
+    }
+
+    /**
+     * @return Number of local variable slots taken by a value of the type: two for longs and doubles.
+     */
+    public static int size(String fieldDescriptor) {
+        char first = fieldDescriptor.charAt(0);
+        return first == 'J' || first == 'D' ? 2 : 1;
+    }
+
+    /**
+     * @return The internal name of a class type, e.g. {@code java/util/Map$Entry}, or the descriptor itself for an
+     * array type; this is how the types are referred to from the constant pool.
+     */
+    public static String internalName(String fieldDescriptor) {
+        return fieldDescriptor.charAt(0) == 'L'
+                ? fieldDescriptor.substring(1, fieldDescriptor.length() - 1) : fieldDescriptor;
+    }
+
+    /**
+     * @return The canonical name of the type, e.g. {@code java.util.Map.Entry[]} or {@code int}.
+     */
+    public static String canonicalName(String fieldDescriptor) {
+        switch (fieldDescriptor.charAt(0)) {
+            case 'B': return "byte";
+            case 'C': return "char";
+            case 'D': return "double";
+            case 'F': return "float";
+            case 'I': return "int";
+            case 'J': return "long";
+            case 'S': return "short";
+            case 'Z': return "boolean";
+            case 'V': return "void";
+            case '[': return canonicalName(fieldDescriptor.substring(1)) + "[]";
+            default: return canonicalClassName(internalName(fieldDescriptor));
+        }
+    }
+
+    /**
+     * @return The canonical name of a class given by its internal name; nested classes are assumed to be named
+     * with a {@code $}.
+     */
+    public static String canonicalClassName(String internalName) {
+        return internalName.replace('/', '.').replace('$', '.');
+    }
+
+    /**
+     * @return The binary name of a class given by its internal name, e.g. {@code java.util.Map$Entry}.
+     */
+    public static String binaryName(String internalName) {
+        return internalName.replace('/', '.');
+    }
+}
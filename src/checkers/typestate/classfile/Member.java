@@ -0,0 +1,86 @@
+package checkers.typestate.classfile;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A field or a method of a class file.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class Member {
+    private final int access;
+    private final String name;
+    private final int nameIndex;
+    private final String descriptor;
+    private final int descriptorIndex;
+    private final List<Attribute> attributes;
+
+    public Member(int access, String name, int nameIndex, String descriptor, int descriptorIndex,
+                  List<Attribute> attributes) {
+        this.access = access;
+        this.name = name;
+        this.nameIndex = nameIndex;
+        this.descriptor = descriptor;
+        this.descriptorIndex = descriptorIndex;
+        this.attributes = new ArrayList<Attribute>(attributes);
+    }
+
+    public int getAccess() {
+        return access;
+    }
+
+    public boolean is(int flag) {
+        return (access & flag) != 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int getNameIndex() {
+        return nameIndex;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    int getDescriptorIndex() {
+        return descriptorIndex;
+    }
+
+    public List<Attribute> getAttributes() {
+        return attributes;
+    }
+
+    public @Nullable Attribute getAttribute(String attributeName) {
+        for (Attribute attribute : attributes) {
+            if (attribute.getName().equals(attributeName)) {
+                return attribute;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Replaces the attribute with the same name, or adds the attribute if there's none.
+     */
+    public void setAttribute(Attribute attribute) {
+        for (int i = 0; i < attributes.size(); i++) {
+            if (attributes.get(i).getName().equals(attribute.getName())) {
+                attributes.set(i, attribute);
+                return;
+            }
+        }
+
+        attributes.add(attribute);
+    }
+
+    @Override
+    public String toString() {
+        return name + descriptor;
+    }
+}
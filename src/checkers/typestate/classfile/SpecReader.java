@@ -0,0 +1,212 @@
+package checkers.typestate.classfile;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.Any;
+import checkers.typestate.NoChange;
+import checkers.typestate.TransitionElement;
+import checkers.typestate.TypestateUtil;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.spec.StateSpec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the state specifications of the methods of a compiled class from its annotations, as the
+ * {@link checkers.typestate.spec.SpecIndexBuilder} does from source. State annotations on the parameters and return
+ * types are read from the declaration annotations, and, as well as the receiver annotations, from the type
+ * annotations in the format of Java 8.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class SpecReader {
+    private static final String ANY_DESCRIPTOR = "L" + Any.class.getName().replace('.', '/') + ";";
+    private static final String NO_CHANGE_DESCRIPTOR = "L" + NoChange.class.getName().replace('.', '/') + ";";
+
+    // Targets of type annotations on methods
+    private static final int TARGET_RETURN = 0x14;
+    private static final int TARGET_RECEIVER = 0x15;
+    private static final int TARGET_FORMAL_PARAMETER = 0x16;
+
+    /**
+     * Decides which annotation types are state annotations.
+     */
+    public interface StateAnnotationTypes {
+        /**
+         * @param internalName Internal name of an annotation type, other than the any-state annotation.
+         * @return True iff the type is annotated with {@link checkers.typestate.State}.
+         */
+        boolean isStateAnnotation(String internalName);
+    }
+
+    private final StateAnnotationTypes stateAnnotationTypes;
+
+    public SpecReader(StateAnnotationTypes stateAnnotationTypes) {
+        this.stateAnnotationTypes = stateAnnotationTypes;
+    }
+
+    /**
+     * @param method A method or constructor.
+     * @return The key of the method, as computed by {@link SpecKeys#methodKey} from its declaration.
+     */
+    public static String methodKey(Member method) {
+        return methodKey(method.getName(), method.getDescriptor());
+    }
+
+    /**
+     * @param name Name of a method, or {@code <init>}.
+     * @param descriptor Descriptor of the method.
+     * @return The key of the method, as computed by {@link SpecKeys#methodKey} from its declaration.
+     */
+    public static String methodKey(String name, String descriptor) {
+        List<String> parameterTypes = new ArrayList<String>();
+        for (String parameterType : Descriptors.parameterTypes(descriptor)) {
+            parameterTypes.add(Descriptors.canonicalName(parameterType));
+        }
+
+        return SpecKeys.methodKey(name, parameterTypes);
+    }
+
+    /**
+     * @param classFile A class.
+     * @return The specs of the methods of the class which declare state annotations, by their keys.
+     */
+    public Map<String, MethodSpec> read(ClassFile classFile) {
+        Map<String, MethodSpec> specs = new LinkedHashMap<String, MethodSpec>();
+        for (Member method : classFile.getMethods()) {
+            MethodSpec spec = read(classFile.getPool(), method);
+            if (spec != null) {
+                specs.put(spec.getKey(), spec);
+            }
+        }
+
+        return specs;
+    }
+
+    private @Nullable MethodSpec read(ConstantPool pool, Member method) {
+        int parameterCount = Descriptors.parameterTypes(method.getDescriptor()).size();
+        List<StateSpec> receiver = new ArrayList<StateSpec>();
+        List<StateSpec> returnType = new ArrayList<StateSpec>();
+        List<List<StateSpec>> parameters = new ArrayList<List<StateSpec>>();
+        for (int i = 0; i < parameterCount; i++) {
+            parameters.add(new ArrayList<StateSpec>());
+        }
+
+        Attribute declared = method.getAttribute(Attribute.RUNTIME_VISIBLE_ANNOTATIONS);
+        if (declared != null) {
+            addSpecs(AnnotationInfo.readAll(declared.getInfo(), pool, new int[1]), returnType);
+        }
+
+        Attribute declaredOnParameters = method.getAttribute(Attribute.RUNTIME_VISIBLE_PARAMETER_ANNOTATIONS);
+        if (declaredOnParameters != null) {
+            byte[] info = declaredOnParameters.getInfo();
+            int count = ClassFile.u1(info, 0);
+            int[] position = new int[] { 1 };
+            for (int i = 0; i < count; i++) {
+                List<AnnotationInfo> annotations = AnnotationInfo.readAll(info, pool, position);
+                // Synthetic parameters, e.g. of inner class constructors, may have no entries.
+                if (count == parameterCount) {
+                    addSpecs(annotations, parameters.get(i));
+                }
+            }
+        }
+
+        Attribute typeAnnotations = method.getAttribute(Attribute.RUNTIME_VISIBLE_TYPE_ANNOTATIONS);
+        if (typeAnnotations != null) {
+            readTypeAnnotations(typeAnnotations.getInfo(), pool, receiver, returnType, parameters);
+        }
+
+        MethodSpec spec = new MethodSpec(methodKey(method), receiver, returnType, parameters);
+        return spec.isEmpty() ? null : spec;
+    }
+
+    private void readTypeAnnotations(byte[] info, ConstantPool pool, List<StateSpec> receiver,
+                                     List<StateSpec> returnType, List<List<StateSpec>> parameters) {
+        int count = ClassFile.u2(info, 0);
+        int[] position = new int[] { 2 };
+        for (int i = 0; i < count; i++) {
+            int target = ClassFile.u1(info, position[0]);
+            int parameter = -1;
+            position[0]++;
+            switch (target) {
+                case 0x00: case 0x01: position[0] += 1; break;
+                case 0x10: case 0x11: case 0x12: case 0x17: position[0] += 2; break;
+                case 0x13: case TARGET_RETURN: case TARGET_RECEIVER: break;
+                case TARGET_FORMAL_PARAMETER: parameter = ClassFile.u1(info, position[0]); position[0] += 1; break;
+                // Other targets only appear in code attributes; stop reading if one is found here.
+                default: return;
+            }
+
+            int pathLength = ClassFile.u1(info, position[0]);
+            position[0] += 1 + 2 * pathLength;
+            AnnotationInfo annotation = AnnotationInfo.read(info, pool, position);
+            if (pathLength > 0) {
+                // Annotations of type arguments or array components don't specify the state of the object.
+                continue;
+            }
+
+            List<AnnotationInfo> annotations = Collections.singletonList(annotation);
+            if (target == TARGET_RECEIVER) {
+                addSpecs(annotations, receiver);
+            } else if (target == TARGET_RETURN) {
+                addSpecs(annotations, returnType);
+            } else if (parameter >= 0 && parameter < parameters.size()) {
+                addSpecs(annotations, parameters.get(parameter));
+            }
+        }
+    }
+
+    private void addSpecs(List<AnnotationInfo> annotations, List<StateSpec> specs) {
+        for (AnnotationInfo annotation : annotations) {
+            if (isStateAnnotation(annotation.getType())) {
+                StateSpec spec = toSpec(annotation);
+                if (!specs.contains(spec)) {
+                    specs.add(spec);
+                }
+            }
+        }
+    }
+
+    private boolean isStateAnnotation(String descriptor) {
+        return descriptor.equals(ANY_DESCRIPTOR)
+                || (!descriptor.equals(NO_CHANGE_DESCRIPTOR) && descriptor.startsWith("L")
+                && stateAnnotationTypes.isStateAnnotation(Descriptors.internalName(descriptor)));
+    }
+
+    private StateSpec toSpec(AnnotationInfo annotation) {
+        List<String> except = new ArrayList<String>();
+        Object exceptValue = annotation.getElement(TypestateUtil.EXCEPT_ELEMENT_NAME);
+        if (exceptValue instanceof List) {
+            for (Object value : (List<?>) exceptValue) {
+                String name = stateName(value);
+                if (name != null) {
+                    except.add(name);
+                }
+            }
+        }
+
+        return new StateSpec(Descriptors.canonicalName(annotation.getType()),
+                stateName(annotation.getElement(TransitionElement.AFTER.getElementName())),
+                stateName(annotation.getElement(TransitionElement.AFTER_TRUE.getElementName())),
+                stateName(annotation.getElement(TransitionElement.AFTER_FALSE.getElementName())),
+                stateName(annotation.getElement(TypestateUtil.EXCEPTION_ELEMENT_NAME)),
+                except);
+    }
+
+    // The state named by a class element, or null for NoChange and other values.
+    private static @Nullable String stateName(@Nullable Object value) {
+        if (!(value instanceof AnnotationInfo.ClassElement)) {
+            return null;
+        }
+
+        String descriptor = ((AnnotationInfo.ClassElement) value).getDescriptor();
+        if (descriptor.equals(NO_CHANGE_DESCRIPTOR) || !descriptor.startsWith("L")) {
+            return null;
+        }
+
+        return Descriptors.canonicalName(descriptor);
+    }
+}
@@ -0,0 +1,260 @@
+package checkers.typestate.classfile;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.State;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.SpecIndex;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.spec.TypeSpec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the state specifications of methods of compiled classes. The specs of a type are read from the spec index,
+ * if one is given, and from the annotations in the type's class file. An overriding method inherits the spec of the
+ * method it overrides, as calls through the supertype are checked statically against that spec; the class files of
+ * the supertypes are read as resources of the class loader.
+ *
+ * The information read about each type is cached per class loader. The caches aren't locked, as the resolver is
+ * called while classes are loaded, and taking a lock there could lead to deadlocks with the class loaders' locks; a
+ * type may then be read more than once.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class SpecResolver {
+    private static final String STATE_DESCRIPTOR = "L" + State.class.getName().replace('.', '/') + ";";
+
+    private final @Nullable SpecIndex index;
+
+    // The types read with the bootstrap class loader, and with the other loaders.
+    private final ConcurrentMap<String, TypeInfo> bootstrapTypes = new ConcurrentHashMap<String, TypeInfo>();
+    private final Map<ClassLoader, ConcurrentMap<String, TypeInfo>> loaderTypes =
+            Collections.synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, TypeInfo>>());
+
+    // Internal names of annotation types -> whether they are state annotations
+    private final ConcurrentMap<String, Boolean> stateAnnotations = new ConcurrentHashMap<String, Boolean>();
+
+    private static class TypeInfo {
+        private final @Nullable String superName;
+        private final List<String> interfaces;
+        private final Map<String, MethodSpec> specs;
+
+        private TypeInfo(@Nullable String superName, List<String> interfaces, Map<String, MethodSpec> specs) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.specs = specs;
+        }
+
+        private List<String> getSupertypes() {
+            List<String> supertypes = new ArrayList<String>(interfaces.size() + 1);
+            if (superName != null) {
+                supertypes.add(superName);
+            }
+            supertypes.addAll(interfaces);
+            return supertypes;
+        }
+    }
+
+    private static final TypeInfo UNKNOWN_TYPE = new TypeInfo(null, Collections.<String>emptyList(),
+            Collections.<String, MethodSpec>emptyMap());
+
+    public SpecResolver(@Nullable SpecIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @param loader Loader of the class; null for the bootstrap loader.
+     * @param classFile The class.
+     * @param method A method of the class.
+     * @return The spec of the method, declared in the class or inherited; null if there's none.
+     */
+    public @Nullable MethodSpec getSpec(@Nullable ClassLoader loader, ClassFile classFile, Member method) {
+        String key = SpecReader.methodKey(method);
+        TypeInfo type = getType(loader, classFile.getName(), classFile);
+        if (method.getName().equals(SpecKeys.CONSTRUCTOR_NAME) || method.is(ClassFile.ACC_STATIC)) {
+            return type.specs.get(key);
+        }
+
+        return findSpec(loader, type, key);
+    }
+
+    /**
+     * @param loader Loader of the class which calls the method; null for the bootstrap loader.
+     * @param owner Internal name of the class through which the method is called.
+     * @param name Name of the method.
+     * @param descriptor Descriptor of the method.
+     * @return The spec of the instance method, declared in the class or inherited; null if there's none.
+     */
+    public @Nullable MethodSpec getCalledSpec(@Nullable ClassLoader loader, String owner, String name, String descriptor) {
+        return findSpec(loader, getType(loader, owner, null), SpecReader.methodKey(name, descriptor));
+    }
+
+    private @Nullable MethodSpec findSpec(@Nullable ClassLoader loader, TypeInfo type, String key) {
+        MethodSpec spec = type.specs.get(key);
+        if (spec != null) {
+            return spec;
+        }
+
+        // Breadth-first, so that the nearest supertype's spec is used.
+        LinkedList<String> queue = new LinkedList<String>(type.getSupertypes());
+        Set<String> visited = new HashSet<String>();
+        while (!queue.isEmpty()) {
+            String supertype = queue.removeFirst();
+            if (visited.add(supertype)) {
+                TypeInfo supertypeInfo = getType(loader, supertype, null);
+                spec = supertypeInfo.specs.get(key);
+                if (spec != null) {
+                    return spec;
+                }
+                queue.addAll(supertypeInfo.getSupertypes());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param loader Loader of the class which calls the constructor; null for the bootstrap loader.
+     * @param owner Internal name of the constructed class.
+     * @param descriptor Descriptor of the constructor.
+     * @return The spec of the constructor; null if there's none.
+     */
+    public @Nullable MethodSpec getConstructorSpec(@Nullable ClassLoader loader, String owner, String descriptor) {
+        return getType(loader, owner, null).specs.get(SpecReader.methodKey(SpecKeys.CONSTRUCTOR_NAME, descriptor));
+    }
+
+    /**
+     * @return True iff the type or one of its supertypes has specs.
+     */
+    public boolean hasSpecs(@Nullable ClassLoader loader, String internalName) {
+        LinkedList<String> queue = new LinkedList<String>();
+        queue.add(internalName);
+        Set<String> visited = new HashSet<String>();
+        while (!queue.isEmpty()) {
+            String type = queue.removeFirst();
+            if (visited.add(type)) {
+                TypeInfo typeInfo = getType(loader, type, null);
+                if (!typeInfo.specs.isEmpty()) {
+                    return true;
+                }
+                queue.addAll(typeInfo.getSupertypes());
+            }
+        }
+
+        return false;
+    }
+
+    private TypeInfo getType(@Nullable ClassLoader loader, String internalName, @Nullable ClassFile parsed) {
+        ConcurrentMap<String, TypeInfo> types = typesOf(loader);
+        TypeInfo type = types.get(internalName);
+        if (type == null) {
+            type = readType(loader, internalName, parsed);
+            types.putIfAbsent(internalName, type);
+        }
+
+        return type;
+    }
+
+    private ConcurrentMap<String, TypeInfo> typesOf(@Nullable ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapTypes;
+        }
+
+        synchronized (loaderTypes) {
+            ConcurrentMap<String, TypeInfo> types = loaderTypes.get(loader);
+            if (types == null) {
+                types = new ConcurrentHashMap<String, TypeInfo>();
+                loaderTypes.put(loader, types);
+            }
+            return types;
+        }
+    }
+
+    private TypeInfo readType(@Nullable final ClassLoader loader, String internalName, @Nullable ClassFile parsed) {
+        Map<String, MethodSpec> specs = new HashMap<String, MethodSpec>();
+        TypeSpec indexed = index == null ? null : index.getType(internalName.replace('/', '.'));
+        if (indexed != null) {
+            for (MethodSpec method : indexed.getMethods()) {
+                specs.put(method.getKey(), method);
+            }
+        }
+
+        ClassFile classFile = parsed == null ? readClass(loader, internalName) : parsed;
+        if (classFile == null) {
+            return specs.isEmpty() ? UNKNOWN_TYPE : new TypeInfo(null, Collections.<String>emptyList(), specs);
+        }
+
+        SpecReader reader = new SpecReader(new SpecReader.StateAnnotationTypes() {
+            public boolean isStateAnnotation(String annotationName) {
+                return SpecResolver.this.isStateAnnotation(loader, annotationName);
+            }
+        });
+        for (MethodSpec method : reader.read(classFile).values()) {
+            if (!specs.containsKey(method.getKey())) {
+                specs.put(method.getKey(), method);
+            }
+        }
+
+        return new TypeInfo(classFile.getSuperName(), classFile.getInterfaceNames(), specs);
+    }
+
+    private boolean isStateAnnotation(@Nullable ClassLoader loader, String annotationName) {
+        Boolean isState = stateAnnotations.get(annotationName);
+        if (isState == null) {
+            isState = false;
+            ClassFile annotationClass = readClass(loader, annotationName);
+            Attribute annotations = annotationClass == null ? null
+                    : annotationClass.getAttribute(Attribute.RUNTIME_VISIBLE_ANNOTATIONS);
+            if (annotations != null) {
+                for (AnnotationInfo annotation : AnnotationInfo.readAll(annotations.getInfo(),
+                        annotationClass.getPool(), new int[1])) {
+                    if (annotation.getType().equals(STATE_DESCRIPTOR)) {
+                        isState = true;
+                    }
+                }
+            }
+            stateAnnotations.put(annotationName, isState);
+        }
+
+        return isState;
+    }
+
+    private static @Nullable ClassFile readClass(@Nullable ClassLoader loader, String internalName) {
+        String resource = internalName + ".class";
+        InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(resource)
+                : loader.getResourceAsStream(resource);
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                return ClassFile.parse(bytes.toByteArray());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (ClassFileException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package checkers.typestate.deps;
+
+import com.sun.source.tree.CompilationUnitTree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An index from compilation units to the typestate specifications they depend on: the methods and constructors they
+ * call (as {@code type#method} keys, see {@link checkers.typestate.spec.SpecKeys}), whether state-annotated or not,
+ * as a spec change may annotate any of them, and the state annotation types they use.
+ *
+ * When a spec changes - a state annotation family, or a stub - only the compilation units depending on it have to be
+ * re-checked; see {@link #dependents(Collection)}.
+ *
+ * The index is stored as a text file, with one dependency per line: {@code file <tab> M|S <tab> name}. The
+ * dependencies of each unit are preceded by a {@code file <tab> - <tab>} line.
+ *
+ * Running this class prints the files which depend on the specs given as arguments:
+ * <br />
+ * <tt>
+ * java checkers.typestate.deps.DependencyIndex typestate.deps java.io.InputStream jdk/java/util/Iterator.java
+ * </tt>
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class DependencyIndex {
+    private static final String METHOD = "M";
+    private static final String STATE = "S";
+    private static final String RESET = "-";
+
+    private static final Pattern PACKAGE_PATTERN = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;");
+
+    private final SortedMap<String, Dependencies> units = new TreeMap<String, Dependencies>();
+    // Number of the records in the index file which were overridden by records appended later.
+    private int overriddenRecords;
+
+    /**
+     * Dependencies of a single compilation unit.
+     */
+    public static class Dependencies {
+        private final SortedSet<String> methods = new TreeSet<String>();
+        private final SortedSet<String> states = new TreeSet<String>();
+
+        /**
+         * @param typeKey Binary name of the type declaring the method.
+         * @param methodKey Key of the invoked method.
+         */
+        public void addMethod(String typeKey, String methodKey) {
+            methods.add(typeKey + "#" + methodKey);
+        }
+
+        /**
+         * @param stateAnnotation Qualified name of a state annotation type.
+         */
+        public void addState(String stateAnnotation) {
+            states.add(stateAnnotation);
+        }
+
+        public Set<String> getMethods() {
+            return Collections.unmodifiableSet(methods);
+        }
+
+        public Set<String> getStates() {
+            return Collections.unmodifiableSet(states);
+        }
+
+        boolean dependsOn(String spec) {
+            for (String method : methods) {
+                if (matches(method, spec)) {
+                    return true;
+                }
+            }
+
+            for (String state : states) {
+                if (matches(state, spec)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // A spec matches a dependency if it names it exactly, or names its enclosing type or method.
+        private static boolean matches(String dependency, String spec) {
+            String canonicalDependency = dependency.replace('$', '.');
+            String canonicalSpec = spec.replace('$', '.');
+            return canonicalDependency.equals(canonicalSpec)
+                    || canonicalDependency.startsWith(canonicalSpec + "#")
+                    || canonicalDependency.startsWith(canonicalSpec + ".")
+                    || canonicalDependency.startsWith(canonicalSpec + "(");
+        }
+    }
+
+    /**
+     * @param root A compilation unit.
+     * @return The key under which the compilation unit is stored in the index: the absolute path of its source file.
+     */
+    public static String keyOf(CompilationUnitTree root) {
+        URI uri = root.getSourceFile().toUri();
+        if ("file".equals(uri.getScheme())) {
+            return new File(uri).getAbsolutePath();
+        }
+
+        return uri.toString();
+    }
+
+    /**
+     * Replaces the dependencies recorded for the given compilation unit.
+     * @param unitKey Key of the compilation unit.
+     * @param dependencies The new dependencies.
+     */
+    public synchronized void put(String unitKey, Dependencies dependencies) {
+        units.put(unitKey, dependencies);
+    }
+
+    public synchronized boolean contains(String unitKey) {
+        return units.containsKey(unitKey);
+    }
+
+    public synchronized Set<String> getUnits() {
+        return Collections.unmodifiableSet(new TreeSet<String>(units.keySet()));
+    }
+
+    /**
+     * @param changedSpecs Changed specs. Each spec may be: a type, which is a stub, or which holds a family of state
+     * annotations (e.g. {@code java.io.InputStream} or {@code checkers.typestate.ioexample.InputStreamStates}); a
+     * single state annotation; a single method ({@code type#method}); or a path to a {@code .java} file holding any of
+     * those types.
+     * @return Keys of the compilation units which depend on any of the given specs.
+     * @throws IOException If a spec given as a file cannot be read.
+     */
+    public synchronized SortedSet<String> dependents(Collection<String> changedSpecs) throws IOException {
+        List<String> specs = new ArrayList<String>();
+        for (String changedSpec : changedSpecs) {
+            specs.add(changedSpec.endsWith(".java") ? typeOfSourceFile(new File(changedSpec)) : changedSpec);
+        }
+
+        SortedSet<String> result = new TreeSet<String>();
+        for (String unit : units.keySet()) {
+            for (String spec : specs) {
+                if (units.get(unit).dependsOn(spec)) {
+                    result.add(unit);
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static String typeOfSourceFile(File sourceFile) throws IOException {
+        String typeName = sourceFile.getName().substring(0, sourceFile.getName().length() - ".java".length());
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sourceFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = PACKAGE_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    return matcher.group(1) + "." + typeName;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return typeName;
+    }
+
+    /**
+     * @param indexFile File from which to read the index.
+     * @return The index read from the given file, or an empty index, if the file doesn't exist.
+     * @throws IOException If the file cannot be read.
+     */
+    public static DependencyIndex read(File indexFile) throws IOException {
+        DependencyIndex index = new DependencyIndex();
+        if (!indexFile.isFile()) {
+            return index;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 3) {
+                    throw new IOException("Malformed line in the dependency index " + indexFile + ": " + line);
+                }
+
+                // A unit record starts with a reset line; records appended later override earlier ones.
+                if (RESET.equals(parts[1])) {
+                    if (index.units.put(parts[0], new Dependencies()) != null) {
+                        index.overriddenRecords++;
+                    }
+                    continue;
+                }
+
+                Dependencies dependencies = index.units.get(parts[0]);
+                if (dependencies == null) {
+                    throw new IOException("Dependency before the unit record in " + indexFile + ": " + line);
+                }
+
+                if (METHOD.equals(parts[1])) {
+                    dependencies.methods.add(parts[2]);
+                } else {
+                    dependencies.states.add(parts[2]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return index;
+    }
+
+    /**
+     * Writes the index, replacing the content of the given file.
+     * @param indexFile File to which to write the index.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void write(File indexFile) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+        try {
+            for (String unit : units.keySet()) {
+                writeRecord(writer, unit, units.get(unit));
+            }
+        } finally {
+            writer.close();
+        }
+
+        if ((indexFile.exists() && !indexFile.delete()) || !tmpFile.renameTo(indexFile)) {
+            throw new IOException("Cannot replace the dependency index " + indexFile + ".");
+        }
+        overriddenRecords = 0;
+    }
+
+    /**
+     * @return True if the index file, as read or last written and appended to since, holds more overridden records
+     * than units, so that {@link #write(File)} would at least halve it. Compacting only then keeps the cost of the
+     * writes proportional to the number of the appended records.
+     */
+    public synchronized boolean needsCompaction() {
+        return overriddenRecords > units.size();
+    }
+
+    /**
+     * Replaces the dependencies of the given unit, and appends them to the given index file. Appending keeps the
+     * cost of updating the index proportional to the number of units checked; {@link #write(File)} compacts the file,
+     * see {@link #needsCompaction()}.
+     * @param indexFile File to which to append the record.
+     * @param unitKey Key of the compilation unit.
+     * @param dependencies The new dependencies.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void putAndAppend(File indexFile, String unitKey, Dependencies dependencies)
+            throws IOException {
+        if (units.containsKey(unitKey)) {
+            overriddenRecords++;
+        }
+        put(unitKey, dependencies);
+
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8"));
+        try {
+            writeRecord(writer, unitKey, dependencies);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeRecord(PrintWriter writer, String unit, Dependencies dependencies) {
+        writer.print(unit + "\t" + RESET + "\t" + "\n");
+        for (String method : dependencies.methods) {
+            writer.print(unit + "\t" + METHOD + "\t" + method + "\n");
+        }
+        for (String state : dependencies.states) {
+            writer.print(unit + "\t" + STATE + "\t" + state + "\n");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: DependencyIndex <index file> <changed spec>...");
+            System.exit(1);
+        }
+
+        DependencyIndex index = read(new File(args[0]));
+        List<String> changedSpecs = new ArrayList<String>();
+        Collections.addAll(changedSpecs, args);
+        changedSpecs.remove(0);
+
+        for (String dependent : index.dependents(changedSpecs)) {
+            System.out.println(dependent);
+        }
+    }
+}
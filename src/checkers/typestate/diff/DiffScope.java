@@ -0,0 +1,266 @@
+package checkers.typestate.diff;
+
+import checkers.nullness.quals.Nullable;
+
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.LineMap;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Restricts checking to the methods touched by a unified diff (as produced by {@code diff -u} or {@code git diff}).
+ *
+ * A line of the new version of a file is touched, if it was added or modified; a removal touches the line at which
+ * it happened. A method is in scope if any of its lines is touched. A touched line of a class outside of its methods
+ * and nested classes - e.g. of a field, an initializer or the class header - may change the states in any method of
+ * the class, so all methods of the class are then in scope. Files which don't appear in the diff are out of scope
+ * altogether.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class DiffScope {
+    private static final Pattern HUNK_HEADER =
+            Pattern.compile("^@@ -\\d+(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+
+    // Normalized paths of the changed files (as in the diff), mapped to the touched lines of the new versions.
+    private final Map<String, SortedSet<Long>> touchedLines;
+
+    private DiffScope(Map<String, SortedSet<Long>> touchedLines) {
+        this.touchedLines = touchedLines;
+    }
+
+    /**
+     * @param diffFile A unified diff.
+     * @return The scope defined by the given diff.
+     * @throws IOException If the file cannot be read.
+     */
+    public static DiffScope parse(File diffFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(diffFile), "UTF-8"));
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param reader Reader of a unified diff.
+     * @return The scope defined by the given diff.
+     * @throws IOException If the diff cannot be read.
+     */
+    public static DiffScope parse(BufferedReader reader) throws IOException {
+        Map<String, SortedSet<Long>> touchedLines = new HashMap<String, SortedSet<Long>>();
+
+        SortedSet<Long> currentFile = null;
+        long newLine = 0;
+        // Lines of the old and new version remaining in the current hunk.
+        long oldRemaining = 0;
+        long newRemaining = 0;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (oldRemaining > 0 || newRemaining > 0) {
+                char kind = line.length() == 0 ? ' ' : line.charAt(0);
+                if (kind == '+') {
+                    if (currentFile != null) {
+                        currentFile.add(newLine);
+                    }
+                    newLine++;
+                    newRemaining--;
+                } else if (kind == '-') {
+                    // The removed lines were just before the current line of the new version.
+                    if (currentFile != null) {
+                        currentFile.add(Math.max(newLine, 1));
+                    }
+                    oldRemaining--;
+                } else if (kind != '\\') {
+                    // A context line; "\ No newline at end of file" lines don't count.
+                    newLine++;
+                    oldRemaining--;
+                    newRemaining--;
+                }
+                continue;
+            }
+
+            if (line.startsWith("+++ ")) {
+                String path = line.substring(4).trim();
+                // Stripping the timestamp (diff -u), and the "b/" prefix (git diff).
+                int tab = path.indexOf('\t');
+                if (tab >= 0) {
+                    path = path.substring(0, tab);
+                }
+                if (path.startsWith("b/")) {
+                    path = path.substring(2);
+                }
+
+                if ("/dev/null".equals(path)) {
+                    currentFile = null;
+                } else {
+                    currentFile = new TreeSet<Long>();
+                    touchedLines.put(normalize(path), currentFile);
+                }
+                continue;
+            }
+
+            Matcher hunkHeader = HUNK_HEADER.matcher(line);
+            if (hunkHeader.matches()) {
+                oldRemaining = hunkHeader.group(1) == null ? 1 : Long.parseLong(hunkHeader.group(1));
+                newLine = Long.parseLong(hunkHeader.group(2));
+                newRemaining = hunkHeader.group(3) == null ? 1 : Long.parseLong(hunkHeader.group(3));
+            }
+        }
+
+        return new DiffScope(touchedLines);
+    }
+
+    private static String normalize(String path) {
+        return path.replace(File.separatorChar, '/').replace('\\', '/');
+    }
+
+    /**
+     * @param root A compilation unit.
+     * @return The touched lines of the given unit, or null if the unit's file isn't part of the diff.
+     */
+    public @Nullable SortedSet<Long> getTouchedLines(CompilationUnitTree root) {
+        return getTouchedLines(root.getSourceFile().toUri().getPath());
+    }
+
+    /**
+     * @param sourcePath Path to a source file.
+     * @return The touched lines of the given file, or null if the file isn't part of the diff.
+     */
+    public @Nullable SortedSet<Long> getTouchedLines(String sourcePath) {
+        String normalizedPath = normalize(sourcePath);
+        for (Map.Entry<String, SortedSet<Long>> entry : touchedLines.entrySet()) {
+            String diffPath = entry.getKey();
+            if (normalizedPath.equals(diffPath) || normalizedPath.endsWith("/" + diffPath)) {
+                return entry.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param root A compilation unit.
+     * @param positions Source positions of the unit's trees.
+     * @return Paths to the methods of the given unit which contain touched lines, in source order. Empty if the unit
+     * is not part of the diff.
+     */
+    public List<TreePath> getMethodsInScope(CompilationUnitTree root, final SourcePositions positions) {
+        final SortedSet<Long> lines = getTouchedLines(root);
+        final List<TreePath> methods = new ArrayList<TreePath>();
+        if (lines == null || lines.isEmpty()) {
+            return methods;
+        }
+
+        final CompilationUnitTree unit = root;
+        final LineMap lineMap = root.getLineMap();
+        new TreePathScanner<Void, Void>() {
+            @Override
+            public Void visitClass(ClassTree node, Void p) {
+                if (isTouchedOutsideMembers(node)) {
+                    addAllMethods(getCurrentPath(), methods);
+                    return null;
+                }
+
+                return super.visitClass(node, p);
+            }
+
+            @Override
+            public Void visitMethod(MethodTree node, Void p) {
+                if (isTouched(node)) {
+                    methods.add(getCurrentPath());
+                    // Nested methods are analyzed as part of the enclosing one.
+                    return null;
+                }
+
+                return super.visitMethod(node, p);
+            }
+
+            private boolean isTouched(Tree node) {
+                SortedSet<Long> nodeLines = linesOf(node);
+                return nodeLines != null && !nodeLines.isEmpty();
+            }
+
+            // The touched lines in the given tree; null if its position is unknown.
+            private @Nullable SortedSet<Long> linesOf(Tree node) {
+                long start = positions.getStartPosition(unit, node);
+                long end = positions.getEndPosition(unit, node);
+                if (start < 0 || end < 0) {
+                    return null;
+                }
+
+                return lines.subSet(lineMap.getLineNumber(start), lineMap.getLineNumber(end) + 1);
+            }
+
+            private boolean isTouchedOutsideMembers(ClassTree node) {
+                SortedSet<Long> classLines = linesOf(node);
+                if (classLines == null || classLines.isEmpty()) {
+                    return false;
+                }
+
+                SortedSet<Long> outside = new TreeSet<Long>(classLines);
+                for (Tree member : node.getMembers()) {
+                    if (member.getKind() == Tree.Kind.METHOD || member.getKind() == Tree.Kind.CLASS) {
+                        SortedSet<Long> memberLines = linesOf(member);
+                        if (memberLines != null) {
+                            outside.removeAll(memberLines);
+                        }
+                    }
+                }
+
+                return !outside.isEmpty();
+            }
+        }.scan(root, null);
+
+        return methods;
+    }
+
+    // Adds the methods in the class at the given path, including those of nested classes, but not nested methods.
+    private static void addAllMethods(TreePath classPath, final List<TreePath> methods) {
+        new TreePathScanner<Void, Void>() {
+            @Override
+            public Void visitMethod(MethodTree node, Void p) {
+                methods.add(getCurrentPath());
+                return null;
+            }
+        }.scan(classPath, null);
+    }
+
+    /**
+     * @param methods Paths to methods.
+     * @return Paths to the classes directly enclosing the given methods, without duplicates.
+     */
+    public static List<TreePath> getEnclosingClasses(List<TreePath> methods) {
+        List<TreePath> classes = new ArrayList<TreePath>();
+        Set<Tree> seen = new HashSet<Tree>();
+        for (TreePath method : methods) {
+            TreePath parent = method.getParentPath();
+            if (parent != null && parent.getLeaf().getKind() == Tree.Kind.CLASS && seen.add(parent.getLeaf())) {
+                classes.add(parent);
+            }
+        }
+
+        return classes;
+    }
+}
@@ -0,0 +1,97 @@
+package checkers.typestate.events;
+
+import checkers.nullness.quals.Nullable;
+
+/**
+ * Receives events describing the analysis: one per compilation unit, one per analysed method, and one per expensive
+ * construct (the fixpoint of a loop, a try/finally, a condition split into its true and false transitions).
+ *
+ * Each event is started with a {@code begin} method, which returns a handle, or null if events of that kind are
+ * disabled; only non-null handles are ended. The default implementation, {@link #NONE}, disables all events, so
+ * that the analysis only pays a call and a null check per event.
+ *
+ * An implementation emitting JDK Flight Recorder events, {@code checkers.typestate.jfr.JfrTypestateEvents}, is built
+ * separately (see the "build-jfr" target), as it needs a JDK with {@code jdk.jfr}.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateEvents {
+    /** Events which aren't recorded. */
+    public static final TypestateEvents NONE = new TypestateEvents();
+
+    /** Class name of the events implementation used if it is on the classpath and no other is configured. */
+    public static final String JFR_EVENTS_CLASS = "checkers.typestate.jfr.JfrTypestateEvents";
+
+    public enum Construct { LOOP, TRY, CONDITION }
+
+    protected TypestateEvents() {
+    }
+
+    /**
+     * @return A handle of the started compilation unit event, or null if such events are disabled.
+     */
+    public @Nullable Object beginUnit() {
+        return null;
+    }
+
+    /**
+     * @param event Handle returned by {@link #beginUnit()}.
+     * @param file Path of the source file of the unit.
+     * @param methods Number of analysed methods.
+     * @param states Number of tracked states.
+     */
+    public void endUnit(Object event, String file, int methods, int states) {
+    }
+
+    /**
+     * @return A handle of the started method event, or null if such events are disabled.
+     */
+    public @Nullable Object beginMethod() {
+        return null;
+    }
+
+    /**
+     * @param event Handle returned by {@link #beginMethod()}.
+     * @param method Name of the method.
+     * @param position Source position of the method, as {@code file:line}.
+     * @param trackedVariables Number of variables tracked by the flow at the end of the method.
+     * @param states Number of tracked states.
+     * @param iterations Number of rescans of loops, finally blocks and conditions within the method.
+     */
+    public void endMethod(Object event, String method, String position, int trackedVariables, int states,
+                          int iterations) {
+    }
+
+    /**
+     * @return A handle of the started construct event, or null if such events are disabled.
+     */
+    public @Nullable Object beginConstruct() {
+        return null;
+    }
+
+    /**
+     * @param event Handle returned by {@link #beginConstruct()}.
+     * @param construct Kind of the construct.
+     * @param position Source position of the construct, as {@code file:line}.
+     */
+    public void endConstruct(Object event, Construct construct, String position) {
+    }
+
+    /**
+     * @param className Name of a subclass with a public no-argument constructor.
+     * @param required If false, {@link #NONE} is returned when the class cannot be loaded (e.g. because it isn't on
+     * the classpath, or because the JVM doesn't support the events).
+     * @return A new instance of the given class.
+     * @throws IllegalArgumentException If the class cannot be loaded and is required.
+     */
+    public static TypestateEvents load(String className, boolean required) {
+        try {
+            return (TypestateEvents) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            if (required) {
+                throw new IllegalArgumentException("Cannot create the typestate events " + className + ".", e);
+            }
+        }
+
+        return NONE;
+    }
+}
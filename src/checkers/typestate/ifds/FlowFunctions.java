@@ -0,0 +1,33 @@
+package checkers.typestate.ifds;
+
+/**
+ * The flow functions of an IFDS problem: each maps a single fact to the facts which hold after an edge of the
+ * {@link Supergraph}, by adding them to the given set. Facts are numbered with ints; {@link #ZERO} is the fact which
+ * always holds, from which the other facts are generated. The functions must map it to itself where the edge may be
+ * taken.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public interface FlowFunctions {
+    int ZERO = 0;
+
+    /**
+     * The flow from a node which isn't a call to a successor.
+     */
+    void normal(int node, int successor, int fact, IntSet result);
+
+    /**
+     * The flow from a call node to the start of a called method: gives the facts of the method.
+     */
+    void call(int call, int callee, int fact, IntSet result);
+
+    /**
+     * The flow from a call node to a return site, of the facts which don't pass through the called methods.
+     */
+    void callToReturn(int call, int returnSite, int fact, IntSet result);
+
+    /**
+     * The flow from an exit of a called method to a return site of the call.
+     */
+    void returnFlow(int call, int callee, int exit, int returnSite, int fact, IntSet result);
+}
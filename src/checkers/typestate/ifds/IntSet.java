@@ -0,0 +1,83 @@
+package checkers.typestate.ifds;
+
+import java.util.Arrays;
+
+/**
+ * A set of ints, without boxing: the elements are kept in insertion order in an array, and indexed by an
+ * open-addressing hash table. Elements can't be removed; iterating with {@link #get} while adding is allowed, and
+ * visits the added elements as well.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public final class IntSet {
+    private int[] elements;
+    // Indexes of the elements, incremented by one, as 0 marks an empty slot. The length is a power of two.
+    private int[] slots;
+    // 32 - log2(slots.length); the slot of an element is given by the highest bits of its (Fibonacci) hash.
+    private int shift;
+    private int size;
+
+    public IntSet() {
+        elements = new int[4];
+        slots = new int[8];
+        shift = 29;
+    }
+
+    private int slotOf(int element) {
+        int mask = slots.length - 1;
+        int slot = (element * 0x9E3779B9) >>> shift;
+        while (slots[slot] != 0 && elements[slots[slot] - 1] != element) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return True iff the element wasn't in the set.
+     */
+    public boolean add(int element) {
+        int slot = slotOf(element);
+        if (slots[slot] != 0) {
+            return false;
+        }
+
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+        }
+        elements[size++] = element;
+        slots[slot] = size;
+        // Keeping the load factor at most 1/2.
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    public boolean contains(int element) {
+        return slots[slotOf(element)] != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index Index of the element, in the order of insertion; less than {@link #size()}.
+     */
+    public int get(int index) {
+        return elements[index];
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        shift--;
+        for (int i = 0; i < size; i++) {
+            slots[slotOf(elements[i])] = i + 1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(elements, size));
+    }
+}
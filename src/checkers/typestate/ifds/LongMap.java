@@ -0,0 +1,109 @@
+package checkers.typestate.ifds;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A map with long keys, without boxing: the entries are kept in insertion order in arrays, and indexed by an
+ * open-addressing hash table. Entries can't be removed; iterating with {@link #keyAt} and {@link #valueAt} while
+ * adding is allowed, and visits the added entries as well.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public final class LongMap<V> {
+    private long[] keys;
+    private Object[] values;
+    // Indexes of the entries, incremented by one, as 0 marks an empty slot. The length is a power of two.
+    private int[] slots;
+    // 64 - log2(slots.length); the slot of a key is given by the highest bits of its (Fibonacci) hash.
+    private int shift;
+    private int size;
+
+    public LongMap() {
+        keys = new long[4];
+        values = new Object[4];
+        slots = new int[8];
+        shift = 61;
+    }
+
+    private int slotOf(long key) {
+        int mask = slots.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        while (slots[slot] != 0 && keys[slots[slot] - 1] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public @Nullable V get(long key) {
+        int index = slots[slotOf(key)];
+        return index == 0 ? null : (V) values[index - 1];
+    }
+
+    /**
+     * Sets the value of the key, adding an entry if there is none.
+     */
+    public void put(long key, V value) {
+        int slot = slotOf(key);
+        if (slots[slot] != 0) {
+            values[slots[slot] - 1] = value;
+            return;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size++] = value;
+        slots[slot] = size;
+        // Keeping the load factor at most 1/2.
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index Index of the entry, in the order of insertion; less than {@link #size()}.
+     */
+    public long keyAt(int index) {
+        return keys[index];
+    }
+
+    /**
+     * @param index Index of the entry, in the order of insertion; less than {@link #size()}.
+     */
+    @SuppressWarnings({"unchecked"})
+    public V valueAt(int index) {
+        return (V) values[index];
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        shift--;
+        for (int i = 0; i < size; i++) {
+            slots[slotOf(keys[i])] = i + 1;
+        }
+    }
+
+    /**
+     * @return A key made of two ints, e.g. a node and a fact.
+     */
+    public static long pair(int first, int second) {
+        return ((long) first << 32) | (second & 0xFFFFFFFFL);
+    }
+
+    public static int first(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    public static int second(long pair) {
+        return (int) pair;
+    }
+}
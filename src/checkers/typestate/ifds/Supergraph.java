@@ -0,0 +1,44 @@
+package checkers.typestate.ifds;
+
+/**
+ * The interprocedural control flow graph on which a {@link TabulationSolver} runs: the control flow graphs of the
+ * methods, with call nodes linked to the called methods. Nodes and methods are numbered with consecutive ints.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public interface Supergraph {
+    int getMethodCount();
+
+    int getNodeCount();
+
+    /**
+     * @return The method which contains the node.
+     */
+    int getMethod(int node);
+
+    /**
+     * @return The node at which the method starts.
+     */
+    int getStart(int method);
+
+    /**
+     * @return True iff the node is an exit of its method: the facts at an exit are returned to the callers.
+     */
+    boolean isExit(int node);
+
+    /**
+     * @return True iff the node is a call; the facts at a call are passed to the called methods, and to the return
+     * sites.
+     */
+    boolean isCall(int node);
+
+    /**
+     * @return The successors of the node; for a call, its return sites.
+     */
+    int[] getSuccessors(int node);
+
+    /**
+     * @return The methods which may be called at the call node, among the methods of the graph; may be empty.
+     */
+    int[] getCallees(int call);
+}
@@ -0,0 +1,245 @@
+package checkers.typestate.ifds;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Solves an IFDS problem with the tabulation algorithm of Reps, Horwitz and Sagiv: the facts are propagated along
+ * path edges, each of which tells that a fact at a node holds if a fact held at the start of the method (the
+ * context). When a fact reaches an exit, a summary edge is recorded for the context, and applied at all calls which
+ * start the method in that context, also the ones reached later. Hence, a method is analysed once per context,
+ * regardless of the number and depth of the calls, and recursion needs no special handling.
+ *
+ * The path and summary edges are kept in maps with primitive keys (pairs of a node and a fact), so that the tables
+ * stay compact also for many methods.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TabulationSolver {
+    private final Supergraph graph;
+    private final FlowFunctions functions;
+
+    // (node, context) -> facts at the node
+    private final LongMap<IntSet> pathEdges = new LongMap<IntSet>();
+    // (exit, context) -> facts at the exit
+    private final LongMap<IntSet> summaryEdges = new LongMap<IntSet>();
+    // (start, context) -> (call, fact at the call) -> contexts of the caller, in which the method is called so
+    private final LongMap<LongMap<IntSet>> incoming = new LongMap<LongMap<IntSet>>();
+    // start -> contexts
+    private final LongMap<IntSet> contexts = new LongMap<IntSet>();
+
+    // The exits of each method, computed on first use.
+    private int[][] exits;
+
+    // The path edges to process, as (context, node, fact) triples.
+    private int[] worklist = new int[48];
+    private int worklistSize;
+
+    private int pathEdgeCount;
+    private int summaryReuses;
+
+    public TabulationSolver(Supergraph graph, FlowFunctions functions) {
+        this.graph = graph;
+        this.functions = functions;
+    }
+
+    /**
+     * Makes the fact hold at the start of the given method, in the context of itself.
+     */
+    public void addSeed(int method, int fact) {
+        int start = graph.getStart(method);
+        propagate(fact, start, fact);
+    }
+
+    /**
+     * Propagates the facts until no new path edges are found.
+     */
+    public void solve() {
+        while (worklistSize > 0) {
+            worklistSize -= 3;
+            int context = worklist[worklistSize];
+            int node = worklist[worklistSize + 1];
+            int fact = worklist[worklistSize + 2];
+
+            if (graph.isCall(node)) {
+                processCall(context, node, fact);
+            } else if (graph.isExit(node)) {
+                processExit(context, node, fact);
+            } else {
+                processNormal(context, node, fact);
+            }
+        }
+    }
+
+    private void propagate(int context, int node, int fact) {
+        long key = LongMap.pair(node, context);
+        IntSet facts = pathEdges.get(key);
+        if (facts == null) {
+            facts = new IntSet();
+            pathEdges.put(key, facts);
+            if (context == fact && graph.getStart(graph.getMethod(node)) == node) {
+                setOf(contexts, node).add(context);
+            }
+        }
+
+        if (facts.add(fact)) {
+            pathEdgeCount++;
+            if (worklistSize + 3 > worklist.length) {
+                worklist = Arrays.copyOf(worklist, worklist.length * 2);
+            }
+            worklist[worklistSize++] = context;
+            worklist[worklistSize++] = node;
+            worklist[worklistSize++] = fact;
+        }
+    }
+
+    private void processNormal(int context, int node, int fact) {
+        for (int successor : graph.getSuccessors(node)) {
+            IntSet result = new IntSet();
+            functions.normal(node, successor, fact, result);
+            for (int i = 0; i < result.size(); i++) {
+                propagate(context, successor, result.get(i));
+            }
+        }
+    }
+
+    private void processCall(int context, int call, int fact) {
+        int[] returnSites = graph.getSuccessors(call);
+        for (int callee : graph.getCallees(call)) {
+            int start = graph.getStart(callee);
+            IntSet calleeFacts = new IntSet();
+            functions.call(call, callee, fact, calleeFacts);
+            for (int i = 0; i < calleeFacts.size(); i++) {
+                int calleeContext = calleeFacts.get(i);
+                propagate(calleeContext, start, calleeContext);
+
+                LongMap<IntSet> callers = incoming.get(LongMap.pair(start, calleeContext));
+                if (callers == null) {
+                    callers = new LongMap<IntSet>();
+                    incoming.put(LongMap.pair(start, calleeContext), callers);
+                }
+                setOf(callers, LongMap.pair(call, fact)).add(context);
+
+                // The method may already be summarised in this context.
+                for (int exit : exitsOf(callee)) {
+                    IntSet exitFacts = summaryEdges.get(LongMap.pair(exit, calleeContext));
+                    if (exitFacts == null) {
+                        continue;
+                    }
+
+                    summaryReuses++;
+                    for (int j = 0; j < exitFacts.size(); j++) {
+                        returnFacts(call, callee, exit, exitFacts.get(j), returnSites, context);
+                    }
+                }
+            }
+        }
+
+        for (int returnSite : returnSites) {
+            IntSet result = new IntSet();
+            functions.callToReturn(call, returnSite, fact, result);
+            for (int i = 0; i < result.size(); i++) {
+                propagate(context, returnSite, result.get(i));
+            }
+        }
+    }
+
+    private void processExit(int context, int exit, int fact) {
+        if (!setOf(summaryEdges, LongMap.pair(exit, context)).add(fact)) {
+            return;
+        }
+
+        int method = graph.getMethod(exit);
+        LongMap<IntSet> callers = incoming.get(LongMap.pair(graph.getStart(method), context));
+        if (callers == null) {
+            return;
+        }
+
+        for (int i = 0; i < callers.size(); i++) {
+            int call = LongMap.first(callers.keyAt(i));
+            IntSet callerContexts = callers.valueAt(i);
+            for (int j = 0; j < callerContexts.size(); j++) {
+                returnFacts(call, method, exit, fact, graph.getSuccessors(call), callerContexts.get(j));
+            }
+        }
+    }
+
+    private void returnFacts(int call, int callee, int exit, int exitFact, int[] returnSites, int callerContext) {
+        for (int returnSite : returnSites) {
+            IntSet result = new IntSet();
+            functions.returnFlow(call, callee, exit, returnSite, exitFact, result);
+            for (int i = 0; i < result.size(); i++) {
+                propagate(callerContext, returnSite, result.get(i));
+            }
+        }
+    }
+
+    private int[] exitsOf(int method) {
+        if (exits == null) {
+            int[] counts = new int[graph.getMethodCount()];
+            for (int node = 0; node < graph.getNodeCount(); node++) {
+                if (graph.isExit(node)) {
+                    counts[graph.getMethod(node)]++;
+                }
+            }
+            exits = new int[counts.length][];
+            for (int i = 0; i < counts.length; i++) {
+                exits[i] = new int[counts[i]];
+                counts[i] = 0;
+            }
+            for (int node = 0; node < graph.getNodeCount(); node++) {
+                if (graph.isExit(node)) {
+                    int nodeMethod = graph.getMethod(node);
+                    exits[nodeMethod][counts[nodeMethod]++] = node;
+                }
+            }
+        }
+        return exits[method];
+    }
+
+    private static IntSet setOf(LongMap<IntSet> map, long key) {
+        IntSet set = map.get(key);
+        if (set == null) {
+            set = new IntSet();
+            map.put(key, set);
+        }
+        return set;
+    }
+
+    /**
+     * @return The contexts in which the method was analysed: the facts at its start.
+     */
+    public IntSet getContexts(int method) {
+        IntSet methodContexts = contexts.get(graph.getStart(method));
+        return methodContexts == null ? new IntSet() : methodContexts;
+    }
+
+    /**
+     * @return The facts at the exit, when its method starts with the given context; null if the exit isn't reached.
+     */
+    public @Nullable IntSet getSummary(int exit, int context) {
+        return summaryEdges.get(LongMap.pair(exit, context));
+    }
+
+    /**
+     * @return The facts at the node, when its method starts with the given context; null if the node isn't reached.
+     */
+    public @Nullable IntSet getFacts(int node, int context) {
+        return pathEdges.get(LongMap.pair(node, context));
+    }
+
+    /**
+     * @return Number of path edges found.
+     */
+    public int getPathEdgeCount() {
+        return pathEdgeCount;
+    }
+
+    /**
+     * @return Number of times the summary of a method was applied at a call, instead of analysing the method again.
+     */
+    public int getSummaryReuses() {
+        return summaryReuses;
+    }
+}
@@ -0,0 +1,66 @@
+package checkers.typestate.query;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The states of the local variables recorded by the checker (with the
+ * {@link checkers.typestate.TypestateOptions#RECORD_STATES} option), for each checked compilation unit. The index is
+ * obtained from {@link checkers.typestate.TypestateChecker#getStateIndex()}, and can be queried from other threads
+ * while the checker runs; re-checking a unit replaces its states.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class StateIndex {
+    private final Map<String, UnitStates> units = new HashMap<String, UnitStates>();
+
+    /**
+     * @param unitKey Key of the compilation unit, as returned by
+     * {@link checkers.typestate.deps.DependencyIndex#keyOf}.
+     * @param states The states recorded in the unit.
+     */
+    public synchronized void put(String unitKey, UnitStates states) {
+        units.put(unitKey, states);
+    }
+
+    /**
+     * @return The states recorded in the given unit, or null if it wasn't checked.
+     */
+    public synchronized @Nullable UnitStates get(String unitKey) {
+        return units.get(unitKey);
+    }
+
+    /**
+     * @return Keys of the units whose states are recorded.
+     */
+    public synchronized Set<String> getUnits() {
+        return new TreeSet<String>(units.keySet());
+    }
+
+    /**
+     * @param unitKey Key of the compilation unit.
+     * @param variable Name of a local variable or parameter.
+     * @param position Source position in the unit.
+     * @return The states of the variable at the position, as {@link UnitStates#getStates(String, long)}; null also if
+     * the unit wasn't checked.
+     */
+    public @Nullable Set<String> getStates(String unitKey, String variable, long position) {
+        UnitStates states = get(unitKey);
+        return states == null ? null : states.getStates(variable, position);
+    }
+
+    /**
+     * @param unitKey Key of the compilation unit.
+     * @param declaration Start position of the declaration of a local variable or parameter.
+     * @param position Source position in the unit.
+     * @return The states of the variable at the position, as {@link UnitStates#getStatesOfDeclaration}; null also if
+     * the unit wasn't checked.
+     */
+    public @Nullable Set<String> getStatesOfDeclaration(String unitKey, long declaration, long position) {
+        UnitStates states = get(unitKey);
+        return states == null ? null : states.getStatesOfDeclaration(declaration, position);
+    }
+}
@@ -0,0 +1,285 @@
+package checkers.typestate.query;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The states of the local variables of a compilation unit, as inferred by the flow, by source positions (as given by
+ * {@link com.sun.source.util.SourcePositions}). The variables are identified by the positions of their declarations;
+ * for each variable, the positions of its scope are split into disjoint intervals, in which the variable is in the
+ * same states, and a query finds the interval containing a position with a binary search. Intervals in which a
+ * variable is in the same states are merged, and equal sets of states are shared.
+ *
+ * A variable can also be looked up by its name: the variable of that name whose scope is the innermost one containing
+ * the position is used. So a variable of a nested class hides a variable of the enclosing method with the same name
+ * only within its own scope.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class UnitStates {
+    // The distinct sets of states, to which the intervals refer by indexes.
+    private final List<Set<String>> stateSets;
+    private final Map<Long, Variable> byDeclaration;
+    // The variables of each name, ordered by the starts of their scopes.
+    private final Map<String, List<Variable>> byName;
+
+    /**
+     * A variable, with the intervals of its states, ordered by their starts: from {@code starts[i]} (inclusive) to
+     * {@code ends[i]} (exclusive), the variable is in the states {@code stateSets[states[i]]}.
+     */
+    private static class Variable {
+        private final String name;
+        private final long scopeStart;
+        private final long scopeEnd;
+        private final long[] starts;
+        private final long[] ends;
+        private final int[] states;
+
+        private Variable(String name, long scopeStart, long scopeEnd, long[] starts, long[] ends, int[] states) {
+            this.name = name;
+            this.scopeStart = scopeStart;
+            this.scopeEnd = scopeEnd;
+            this.starts = starts;
+            this.ends = ends;
+            this.states = states;
+        }
+
+        private boolean inScope(long position) {
+            return scopeStart <= position && position < scopeEnd;
+        }
+
+        /**
+         * @return Index of the interval containing the position, or -1 if there's none.
+         */
+        private int find(long position) {
+            // The last interval starting at or before the position.
+            int index = Arrays.binarySearch(starts, position);
+            if (index < 0) {
+                index = -index - 2;
+            }
+
+            return index >= 0 && position < ends[index] ? index : -1;
+        }
+    }
+
+    private UnitStates(List<Set<String>> stateSets, Map<Long, Variable> byDeclaration) {
+        this.stateSets = stateSets;
+        this.byDeclaration = byDeclaration;
+
+        byName = new HashMap<String, List<Variable>>();
+        for (Variable variable : byDeclaration.values()) {
+            List<Variable> variables = byName.get(variable.name);
+            if (variables == null) {
+                variables = new ArrayList<Variable>();
+                byName.put(variable.name, variables);
+            }
+            variables.add(variable);
+        }
+        for (List<Variable> variables : byName.values()) {
+            Collections.sort(variables, new Comparator<Variable>() {
+                public int compare(Variable variable1, Variable variable2) {
+                    return variable1.scopeStart < variable2.scopeStart ? -1
+                            : (variable1.scopeStart == variable2.scopeStart ? 0 : 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param variable Name of a local variable or parameter.
+     * @param position Source position.
+     * @return The states (names of the state annotations) in which the variable is at the position; empty if its
+     * states aren't known. Null if no variable with this name is in scope at the position, or if the enclosing
+     * method wasn't analysed.
+     */
+    public @Nullable Set<String> getStates(String variable, long position) {
+        List<Variable> variables = byName.get(variable);
+        return variables == null ? null : statesAt(innermost(variables, position), position);
+    }
+
+    /**
+     * @param declaration Start position of the declaration of a local variable or parameter.
+     * @param position Source position.
+     * @return The states in which the variable is at the position, as {@link #getStates(String, long)}; null if the
+     * position isn't in the scope of the variable.
+     */
+    public @Nullable Set<String> getStatesOfDeclaration(long declaration, long position) {
+        return statesAt(byDeclaration.get(declaration), position);
+    }
+
+    /**
+     * @param position Source position.
+     * @return The states of all variables in scope at the position, by the names of the variables.
+     */
+    public Map<String, Set<String>> getStates(long position) {
+        Map<String, Set<String>> result = new TreeMap<String, Set<String>>();
+        for (Map.Entry<String, List<Variable>> name : byName.entrySet()) {
+            Set<String> states = statesAt(innermost(name.getValue(), position), position);
+            if (states != null) {
+                result.put(name.getKey(), states);
+            }
+        }
+
+        return result;
+    }
+
+    // The variable with the innermost scope containing the position: as scopes are nested or disjoint, the last one
+    // which starts at or before the position and contains it.
+    private static @Nullable Variable innermost(List<Variable> variables, long position) {
+        for (int i = variables.size() - 1; i >= 0; i--) {
+            if (variables.get(i).inScope(position)) {
+                return variables.get(i);
+            }
+        }
+
+        return null;
+    }
+
+    private @Nullable Set<String> statesAt(@Nullable Variable variable, long position) {
+        if (variable == null) {
+            return null;
+        }
+
+        int index = variable.find(position);
+        return index < 0 ? null : stateSets.get(variable.states[index]);
+    }
+
+    /**
+     * @return Number of the stored intervals, of all variables.
+     */
+    public int getIntervalCount() {
+        int count = 0;
+        for (Variable variable : byDeclaration.values()) {
+            count += variable.starts.length;
+        }
+
+        return count;
+    }
+
+    /**
+     * Collects the states of the variables during the analysis of a unit. A variable is declared with its scope, and
+     * then its states are recorded at positions in the scope; each recorded states hold until the next position at
+     * which the variable's states are recorded, or until the end of its scope. If states are recorded more than once
+     * at the same position (e.g. when a loop is scanned again), the variable is in the states common to all records.
+     */
+    public static class Builder {
+        private final Map<Object, Declared> variables = new LinkedHashMap<Object, Declared>();
+
+        private static class Declared {
+            private final String name;
+            private final long declaration;
+            private final long scopeStart;
+            private final long scopeEnd;
+            private final TreeMap<Long, Set<String>> records = new TreeMap<Long, Set<String>>();
+
+            private Declared(String name, long declaration, long scopeStart, long scopeEnd) {
+                this.name = name;
+                this.declaration = declaration;
+                this.scopeStart = scopeStart;
+                this.scopeEnd = scopeEnd;
+            }
+        }
+
+        /**
+         * @param variable Identity of the variable, e.g. its element.
+         * @param name Name of the variable.
+         * @param declaration Start position of the declaration of the variable, by which it is identified in the
+         * built states.
+         * @param scopeStart First position at which the variable is in scope.
+         * @param scopeEnd Position after the last one at which the variable is in scope.
+         */
+        public void declare(Object variable, String name, long declaration, long scopeStart, long scopeEnd) {
+            variables.put(variable, new Declared(name, declaration, scopeStart, scopeEnd));
+        }
+
+        /**
+         * Removes a variable with its records, e.g. if the analysis of its method was abandoned.
+         */
+        public void forget(Object variable) {
+            variables.remove(variable);
+        }
+
+        /**
+         * Records the states of a declared variable at a position; ignored if the variable isn't declared, or if the
+         * position is outside of its scope.
+         * @param states Names of the state annotations.
+         */
+        public void record(Object variable, long position, Set<String> states) {
+            Declared declared = variables.get(variable);
+            if (declared == null || position < declared.scopeStart || position >= declared.scopeEnd) {
+                return;
+            }
+
+            Set<String> recorded = declared.records.get(position);
+            if (recorded == null) {
+                declared.records.put(position, new TreeSet<String>(states));
+            } else {
+                recorded.retainAll(states);
+            }
+        }
+
+        /**
+         * @return The index of the states recorded so far.
+         */
+        public UnitStates build() {
+            List<Set<String>> stateSets = new ArrayList<Set<String>>();
+            Map<Set<String>, Integer> stateSetIndexes = new HashMap<Set<String>, Integer>();
+
+            Map<Long, Variable> byDeclaration = new HashMap<Long, Variable>();
+            for (Declared variable : variables.values()) {
+                // The intervals of the variable, as (start, end, states) triples.
+                List<long[]> intervals = new ArrayList<long[]>();
+                long[] previous = null;
+                for (Map.Entry<Long, Set<String>> record : variable.records.entrySet()) {
+                    Long next = variable.records.higherKey(record.getKey());
+                    long end = next == null ? variable.scopeEnd : next;
+                    long states = stateSetIndex(record.getValue(), stateSets, stateSetIndexes);
+                    if (previous != null && previous[1] == record.getKey() && previous[2] == states) {
+                        previous[1] = end;
+                    } else {
+                        previous = new long[] { record.getKey(), end, states };
+                        intervals.add(previous);
+                    }
+                }
+
+                int count = intervals.size();
+                long[] starts = new long[count];
+                long[] ends = new long[count];
+                int[] states = new int[count];
+                for (int i = 0; i < count; i++) {
+                    long[] interval = intervals.get(i);
+                    starts[i] = interval[0];
+                    ends[i] = interval[1];
+                    states[i] = (int) interval[2];
+                }
+                byDeclaration.put(variable.declaration, new Variable(variable.name, variable.scopeStart,
+                        variable.scopeEnd, starts, ends, states));
+            }
+
+            return new UnitStates(stateSets, byDeclaration);
+        }
+
+        private static int stateSetIndex(Set<String> states, List<Set<String>> stateSets,
+                                         Map<Set<String>, Integer> stateSetIndexes) {
+            Integer index = stateSetIndexes.get(states);
+            if (index == null) {
+                Set<String> copy = Collections.unmodifiableSet(new TreeSet<String>(states));
+                index = stateSets.size();
+                stateSets.add(copy);
+                stateSetIndexes.put(copy, index);
+            }
+
+            return index;
+        }
+    }
+}
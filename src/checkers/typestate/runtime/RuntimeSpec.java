@@ -0,0 +1,125 @@
+package checkers.typestate.runtime;
+
+/**
+ * The state specifications of a single operand (the receiver, a parameter or the return value) of an instrumented
+ * method, with the states replaced by their ids, as given by {@link TypestateMonitor#stateId}. Each array has an
+ * element per state annotation declared on the operand.
+ *
+ * This class, like the rest of the package, may be loaded by the bootstrap class loader, so that instrumented
+ * platform classes can call the monitor; hence it only depends on the platform classes.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public final class RuntimeSpec {
+    /**
+     * Transition target meaning that the state doesn't change.
+     */
+    public static final int NO_CHANGE = -1;
+
+    // Objects are sampled by the top 24 bits of their mixed identity hash codes.
+    private static final int SAMPLE_ALL = 1 << 24;
+
+    private final String method;
+    private final String operand;
+    private final int[] states;
+    private final int[][] except;
+    private final int[] after;
+    private final int[] afterTrue;
+    private final int[] afterFalse;
+    private final int[] onException;
+    private final int sampleThreshold;
+
+    /**
+     * @param method Name of the method, used in reports.
+     * @param operand Description of the operand, used in reports, e.g. "receiver".
+     * @param states The declared states; {@link TypestateMonitor#UNKNOWN} for the any-state annotation.
+     * @param except For each declared state, the states not covered by an any-state annotation.
+     * @param after For each declared state, the state after the method returns: a state id, {@link #NO_CHANGE}
+     * or {@link TypestateMonitor#UNKNOWN}.
+     * @param afterTrue As {@code after}, when the method returns true; {@link #NO_CHANGE} to use {@code after}.
+     * @param afterFalse As {@code after}, when the method returns false; {@link #NO_CHANGE} to use {@code after}.
+     * @param onException As {@code after}, when the method throws an exception.
+     */
+    public RuntimeSpec(String method, String operand, int[] states, int[][] except, int[] after, int[] afterTrue,
+                       int[] afterFalse, int[] onException) {
+        this(method, operand, states, except, after, afterTrue, afterFalse, onException, 1.0);
+    }
+
+    /**
+     * As the other constructor; {@code sampleRate} is the fraction of the objects, returned or constructed with a
+     * declared state, which get the state and so are tracked.
+     */
+    public RuntimeSpec(String method, String operand, int[] states, int[][] except, int[] after, int[] afterTrue,
+                       int[] afterFalse, int[] onException, double sampleRate) {
+        this.method = method;
+        this.operand = operand;
+        this.states = states;
+        this.except = except;
+        this.after = after;
+        this.afterTrue = afterTrue;
+        this.afterFalse = afterFalse;
+        this.onException = onException;
+        this.sampleThreshold = (int) Math.ceil(Math.max(0.0, Math.min(1.0, sampleRate)) * SAMPLE_ALL);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getOperand() {
+        return operand;
+    }
+
+    int[] getStates() {
+        return states;
+    }
+
+    /**
+     * @return True iff the object is in the sample of objects which get a declared state of this operand. The
+     * decision only depends on the object's identity, so it's the same each time the object is returned.
+     */
+    boolean samples(Object object) {
+        return sampleThreshold == SAMPLE_ALL
+                || ((System.identityHashCode(object) * 0x9E3779B9) >>> 8) < sampleThreshold;
+    }
+
+    /**
+     * @return Index of the first declared state which covers the given state, or -1 if there's none. An unknown
+     * state is covered only by the any-state annotation.
+     */
+    int covering(int state) {
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == TypestateMonitor.UNKNOWN) {
+                if (!contains(except[i], state)) {
+                    return i;
+                }
+            } else if (states[i] == state) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean contains(int[] array, int value) {
+        for (int element : array) {
+            if (element == value) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    int after(int index) {
+        return after[index];
+    }
+
+    int afterResult(int index, boolean result) {
+        int target = result ? afterTrue[index] : afterFalse[index];
+        return target == NO_CHANGE ? after[index] : target;
+    }
+
+    int onException(int index) {
+        return onException[index];
+    }
+}
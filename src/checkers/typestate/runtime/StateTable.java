@@ -0,0 +1,196 @@
+package checkers.typestate.runtime;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps objects, compared by identity, to the ids of their states, without keeping the objects alive.
+ *
+ * The table is split into segments by the identity hash of the objects. Lookups take no locks: they read the
+ * bucket arrays and the entries' states, which are all volatile. Updates of an existing entry are a single
+ * compare-and-set; adding entries, resizing and removing the entries of collected objects lock only the object's
+ * segment. Resizing copies the entries, so that concurrent lookups in the old buckets still find them, and marks the
+ * old entries as moved, so that concurrent updates are redone in the new buckets instead of being lost.
+ * @author Adam Warski (adam at warski dot org)
+ */
+class StateTable {
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The state of entries which were copied to a resized bucket array.
+    private static final int MOVED = Integer.MIN_VALUE;
+
+    private static final AtomicIntegerFieldUpdater<Entry> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    StateTable() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static final class Entry extends WeakReference<Object> {
+        private final int hash;
+        // Not private, so that the updater can access it.
+        volatile int state;
+        // Changed only under the segment's lock.
+        private volatile Entry next;
+
+        private Entry(Object object, int hash, int state, Entry next, ReferenceQueue<Object> queue) {
+            super(object, queue);
+            this.hash = hash;
+            this.state = state;
+            this.next = next;
+        }
+    }
+
+    private static final class Segment {
+        private volatile AtomicReferenceArray<Entry> buckets = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+        private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+        private int size;
+
+        private Entry find(Object object, int hash) {
+            AtomicReferenceArray<Entry> current = buckets;
+            for (Entry e = current.get(index(hash, current)); e != null; e = e.next) {
+                if (e.hash == hash && e.get() == object) {
+                    return e;
+                }
+            }
+
+            return null;
+        }
+
+        private synchronized void put(Object object, int hash, int state) {
+            expunge();
+
+            Entry existing = find(object, hash);
+            if (existing != null) {
+                // Entries of the current buckets are never moved while the lock is held.
+                existing.state = state;
+                return;
+            }
+
+            if (size >= buckets.length() * 3 / 4) {
+                resize();
+            }
+
+            AtomicReferenceArray<Entry> current = buckets;
+            int index = index(hash, current);
+            current.set(index, new Entry(object, hash, state, current.get(index), collected));
+            size++;
+        }
+
+        private void resize() {
+            AtomicReferenceArray<Entry> current = buckets;
+            AtomicReferenceArray<Entry> resized = new AtomicReferenceArray<Entry>(current.length() * 2);
+            int live = 0;
+            for (int i = 0; i < current.length(); i++) {
+                for (Entry e = current.get(i); e != null; e = e.next) {
+                    int state = STATE.getAndSet(e, MOVED);
+                    Object object = e.get();
+                    if (object != null) {
+                        int index = index(e.hash, resized);
+                        resized.set(index, new Entry(object, e.hash, state, resized.get(index), collected));
+                        live++;
+                    }
+                }
+            }
+
+            size = live;
+            buckets = resized;
+        }
+
+        // Removes the entries of collected objects; the entries of old bucket arrays are ignored.
+        private void expunge() {
+            Object reference;
+            while ((reference = collected.poll()) != null) {
+                Entry collectedEntry = (Entry) reference;
+                AtomicReferenceArray<Entry> current = buckets;
+                int index = index(collectedEntry.hash, current);
+                Entry previous = null;
+                for (Entry e = current.get(index); e != null; e = e.next) {
+                    if (e == collectedEntry) {
+                        if (previous == null) {
+                            current.set(index, e.next);
+                        } else {
+                            previous.next = e.next;
+                        }
+                        size--;
+                        break;
+                    }
+                    previous = e;
+                }
+            }
+        }
+
+        private static int index(int hash, AtomicReferenceArray<Entry> buckets) {
+            return (hash >>> SEGMENT_BITS) & (buckets.length() - 1);
+        }
+    }
+
+    private static int hash(Object object) {
+        int h = System.identityHashCode(object);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The state of the object, or {@link TypestateMonitor#UNKNOWN} if it has none.
+     */
+    int get(Object object) {
+        int hash = hash(object);
+        Segment segment = segments[hash & (SEGMENTS - 1)];
+        while (true) {
+            Entry entry = segment.find(object, hash);
+            if (entry == null) {
+                return TypestateMonitor.UNKNOWN;
+            }
+
+            int state = entry.state;
+            if (state != MOVED) {
+                return state;
+            }
+        }
+    }
+
+    /**
+     * Sets the state of the object; setting {@link TypestateMonitor#UNKNOWN} forgets the state.
+     */
+    void put(Object object, int state) {
+        int hash = hash(object);
+        Segment segment = segments[hash & (SEGMENTS - 1)];
+        Entry entry = segment.find(object, hash);
+        if (entry == null && state == TypestateMonitor.UNKNOWN) {
+            return;
+        }
+
+        if (entry != null) {
+            int current;
+            while ((current = entry.state) != MOVED) {
+                if (STATE.compareAndSet(entry, current, state)) {
+                    return;
+                }
+            }
+        }
+
+        segment.put(object, hash, state);
+    }
+
+    /**
+     * @return Number of entries, including the ones of objects which were collected, but not yet removed.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,240 @@
+package checkers.typestate.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the states of objects at run time, and checks them against the specifications of the called methods. The
+ * static methods are called by the code which the typestate agent inserts into instrumented methods: on entry, the
+ * operands are checked with {@link #before}; on a return or an exception, their states are changed with
+ * {@link #after}, {@link #afterResult} or {@link #failed}. The operands' specifications are registered when a class
+ * is instrumented, and referred to by their ids.
+ *
+ * An object has a state once a constructor or a transition sets it. Objects of an unknown state, e.g. created
+ * before the agent started, aren't checked, as the monitor can't tell which state they're in.
+ *
+ * In sampling mode, only a sample of the objects, chosen when they are constructed or returned with a declared
+ * state, get a state; transitions don't start tracking other objects. Calls on the untracked objects then only
+ * cost a lookup of the state table, which finds no entry.
+ *
+ * A violation is printed with its stack trace to the standard error stream, or thrown as a
+ * {@link TypestateViolationException}.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public final class TypestateMonitor {
+    /**
+     * The id of the unknown state, of objects which are not tracked; in specifications, the any-state annotation.
+     */
+    public static final int UNKNOWN = 0;
+
+    private static final StateTable states = new StateTable();
+
+    private static final Map<String, Integer> stateIds = new HashMap<String, Integer>();
+    private static final List<String> stateNames = new ArrayList<String>(Arrays.asList("unknown"));
+
+    private static volatile RuntimeSpec[] specs = new RuntimeSpec[64];
+    private static int specCount;
+
+    private static volatile boolean throwOnViolation;
+    private static volatile boolean sampling;
+    private static final AtomicLong violations = new AtomicLong();
+
+    // Set while a violation is printed, so that the calls made by printing aren't checked.
+    private static final ThreadLocal<Boolean> reporting = new ThreadLocal<Boolean>();
+
+    private TypestateMonitor() { }
+
+    /**
+     * @param name Qualified name of a state annotation.
+     * @return The id of the state, assigning a new one on the first call with the name.
+     */
+    public static synchronized int stateId(String name) {
+        Integer id = stateIds.get(name);
+        if (id == null) {
+            id = stateNames.size();
+            stateIds.put(name, id);
+            stateNames.add(name);
+        }
+
+        return id;
+    }
+
+    public static synchronized String stateName(int id) {
+        return stateNames.get(id);
+    }
+
+    /**
+     * @return The id by which the instrumented code refers to the spec.
+     */
+    public static synchronized int register(RuntimeSpec spec) {
+        RuntimeSpec[] current = specs;
+        if (specCount == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+
+        current[specCount] = spec;
+        // Publishes the spec to the threads executing the instrumented code.
+        specs = current;
+        return specCount++;
+    }
+
+    /**
+     * @param throwOnViolation True to throw violations, false to print them.
+     */
+    public static void setThrowOnViolation(boolean throwOnViolation) {
+        TypestateMonitor.throwOnViolation = throwOnViolation;
+    }
+
+    /**
+     * @param sampling True to only track the objects sampled when they get a declared state; see
+     * {@link RuntimeSpec#RuntimeSpec(String, String, int[], int[][], int[], int[], int[], int[], double)}.
+     */
+    public static void setSampling(boolean sampling) {
+        TypestateMonitor.sampling = sampling;
+    }
+
+    /**
+     * @return Number of violations detected so far.
+     */
+    public static long getViolationCount() {
+        return violations.get();
+    }
+
+    /**
+     * @return The id of the state of the object, or {@link #UNKNOWN}.
+     */
+    public static int getState(Object object) {
+        return states.get(object);
+    }
+
+    /**
+     * Called on entry to a method: checks that the operand is in a state required by the spec.
+     */
+    public static void before(Object operand, int specId) {
+        if (operand == null) {
+            return;
+        }
+
+        int state = states.get(operand);
+        if (state != UNKNOWN) {
+            RuntimeSpec spec = specs[specId];
+            if (spec.covering(state) < 0) {
+                violation(spec, state);
+            }
+        }
+    }
+
+    /**
+     * Called when a method returns: changes the state of the operand as specified by the declared state which
+     * covers it.
+     */
+    public static void after(Object operand, int specId) {
+        if (operand != null) {
+            RuntimeSpec spec = specs[specId];
+            int state = states.get(operand);
+            int covering = tracked(state) ? spec.covering(state) : -1;
+            if (covering >= 0) {
+                transit(operand, spec.after(covering));
+            }
+        }
+    }
+
+    /**
+     * Called when a method returning a boolean returns: as {@link #after}, also taking into account the
+     * transitions depending on the result.
+     */
+    public static void afterResult(int result, Object operand, int specId) {
+        if (operand != null) {
+            RuntimeSpec spec = specs[specId];
+            int state = states.get(operand);
+            int covering = tracked(state) ? spec.covering(state) : -1;
+            if (covering >= 0) {
+                transit(operand, spec.afterResult(covering, result != 0));
+            }
+        }
+    }
+
+    /**
+     * Called when a method throws an exception: changes the state of the operand as specified by the
+     * {@code onException} element of the declared state which covers it.
+     */
+    public static void failed(Object operand, int specId) {
+        if (operand != null) {
+            RuntimeSpec spec = specs[specId];
+            int state = states.get(operand);
+            int covering = tracked(state) ? spec.covering(state) : -1;
+            if (covering >= 0) {
+                transit(operand, spec.onException(covering));
+            }
+        }
+    }
+
+    /**
+     * Called when a method, or a constructor, returns an object (or initializes the receiver) of a declared state:
+     * sets the state of the object.
+     */
+    public static void returned(Object object, int specId) {
+        if (object != null) {
+            RuntimeSpec spec = specs[specId];
+            int[] declared = spec.getStates();
+            if (declared.length == 1 && (spec.samples(object) || states.get(object) != UNKNOWN)) {
+                transit(object, declared[0]);
+            }
+        }
+    }
+
+    // Transitions of objects of an unknown state start tracking them, unless only a sample is tracked.
+    private static boolean tracked(int state) {
+        return state != UNKNOWN || !sampling;
+    }
+
+    private static void transit(Object object, int target) {
+        if (target != RuntimeSpec.NO_CHANGE) {
+            states.put(object, target);
+        }
+    }
+
+    private static void violation(RuntimeSpec spec, int state) {
+        violations.incrementAndGet();
+        if (reporting.get() != null) {
+            return;
+        }
+
+        StringBuilder required = new StringBuilder();
+        for (int declared : spec.getStates()) {
+            if (required.length() > 0) {
+                required.append(" or ");
+            }
+            required.append(declared == UNKNOWN ? "any state" : stateName(declared));
+        }
+
+        TypestateViolationException violation = new TypestateViolationException("The " + spec.getOperand()
+                + " of " + spec.getMethod() + " is in state " + stateName(state) + ", but the method requires "
+                + required + ".");
+        violation.setStackTrace(callerStackTrace(violation.getStackTrace()));
+        if (throwOnViolation) {
+            throw violation;
+        }
+
+        reporting.set(Boolean.TRUE);
+        try {
+            violation.printStackTrace();
+        } finally {
+            reporting.remove();
+        }
+    }
+
+    // Drops the frames of the monitor, so that the trace starts in the instrumented method.
+    private static StackTraceElement[] callerStackTrace(StackTraceElement[] trace) {
+        int first = 0;
+        while (first < trace.length && trace[first].getClassName().equals(TypestateMonitor.class.getName())) {
+            first++;
+        }
+
+        return Arrays.copyOfRange(trace, first, trace.length);
+    }
+}
@@ -0,0 +1,15 @@
+package checkers.typestate.runtime;
+
+/**
+ * Reports a method called on an object which isn't in a state required by the method's specification, as detected
+ * by the {@link TypestateMonitor}. Thrown only if the monitor is configured to throw on violations; otherwise, the
+ * exception is just printed, for its stack trace.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateViolationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public TypestateViolationException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,172 @@
+package checkers.typestate.schedule;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Schedules the analysis for interactive use. An editor integration reports where the cursor is, with
+ * {@link #focus}, and which compilation units are edited, with {@link #edited}; an edit cancels the running analyses
+ * of the unit, as their content is stale. The scheduler then orders the work: the method under the cursor is analysed
+ * first among the methods of its class (see {@link checkers.typestate.TypestateChecker#setScheduler}), and the units
+ * to check are ordered by {@link #orderUnits}: the unit under the cursor first, then the recently edited ones, the
+ * most recent first, then the others.
+ *
+ * The units in which an analysis was cancelled are recorded, so that they are checked again (see
+ * {@link #takeCancelled}): the results of their cancelled methods are missing.
+ *
+ * The methods may be called from any thread; the analysis checks for cancellation on each scanned tree.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class AnalysisScheduler {
+    // Number of recently edited units which are prioritised.
+    private static final int RECENT_EDITS = 16;
+
+    private @Nullable String focusedUnit;
+    private long focusedPosition = -1;
+
+    // The recently edited units, the most recent first.
+    private final LinkedList<String> recentEdits = new LinkedList<String>();
+    // The number of edits of each edited unit.
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+
+    private final Set<AnalysisTask> running = new HashSet<AnalysisTask>();
+    // The units in which analyses were cancelled, since the last call of takeCancelled.
+    private final Set<String> cancelledUnits = new TreeSet<String>();
+
+    /**
+     * @param unitKey Key of the unit under the cursor, as returned by
+     * {@link checkers.typestate.deps.DependencyIndex#keyOf}; null if no unit has the focus.
+     * @param position Source position of the cursor in the unit.
+     */
+    public synchronized void focus(@Nullable String unitKey, long position) {
+        focusedUnit = unitKey;
+        focusedPosition = position;
+    }
+
+    /**
+     * Records an edit of the unit, and cancels the running analyses of it.
+     * @param unitKey Key of the edited unit.
+     */
+    public synchronized void edited(String unitKey) {
+        generations.put(unitKey, generation(unitKey) + 1);
+
+        recentEdits.remove(unitKey);
+        recentEdits.addFirst(unitKey);
+        if (recentEdits.size() > RECENT_EDITS) {
+            recentEdits.removeLast();
+        }
+
+        for (AnalysisTask task : running) {
+            if (task.getUnitKey().equals(unitKey)) {
+                task.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return Number of edits of the unit so far; taken when the analysis of the unit starts, and passed to
+     * {@link #begin}.
+     */
+    public synchronized long generation(String unitKey) {
+        Long generation = generations.get(unitKey);
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Starts the analysis of a method.
+     * @param unitKey Key of the unit containing the method.
+     * @param generation The {@link #generation} of the unit when its analysis started; if the unit was edited since,
+     * the task is cancelled from the start.
+     * @param method Name of the method.
+     * @return The task, which should be passed to {@link #end} when the analysis completes.
+     */
+    public synchronized AnalysisTask begin(String unitKey, long generation, String method) {
+        AnalysisTask task = new AnalysisTask(unitKey, method, generation != generation(unitKey));
+        running.add(task);
+        return task;
+    }
+
+    public synchronized void end(AnalysisTask task) {
+        running.remove(task);
+        if (task.isCancelled()) {
+            cancelledUnits.add(task.getUnitKey());
+        }
+    }
+
+    /**
+     * @return Keys of the units in which an analysis of a method was cancelled since the last call; the units should
+     * be checked again, as the results of the method are missing.
+     */
+    public synchronized Set<String> takeCancelled() {
+        Set<String> result = new TreeSet<String>(cancelledUnits);
+        cancelledUnits.clear();
+        return result;
+    }
+
+    /**
+     * Cancels all running analyses.
+     */
+    public synchronized void cancelAll() {
+        for (AnalysisTask task : running) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * @return The analyses which are running.
+     */
+    public synchronized List<AnalysisTask> getRunning() {
+        return new ArrayList<AnalysisTask>(running);
+    }
+
+    /**
+     * @return True iff the cursor is in the given unit, between the given positions.
+     */
+    public synchronized boolean isFocused(String unitKey, long start, long end) {
+        return unitKey.equals(focusedUnit) && start <= focusedPosition && focusedPosition < end;
+    }
+
+    /**
+     * @return The priority of the unit: 0 for the unit under the cursor, 1 for the most recently edited unit, 2 for
+     * the one edited before, and so on; {@link Integer#MAX_VALUE} for the others.
+     */
+    public synchronized int unitPriority(String unitKey) {
+        if (unitKey.equals(focusedUnit)) {
+            return 0;
+        }
+
+        int index = recentEdits.indexOf(unitKey);
+        return index < 0 ? Integer.MAX_VALUE : index + 1;
+    }
+
+    /**
+     * @param unitKeys Keys of the units to check.
+     * @return The keys, in the order in which the units should be checked; units with the same priority keep their
+     * order.
+     */
+    public List<String> orderUnits(Collection<String> unitKeys) {
+        final Map<String, Integer> priorities = new HashMap<String, Integer>();
+        for (String unitKey : unitKeys) {
+            priorities.put(unitKey, unitPriority(unitKey));
+        }
+
+        List<String> ordered = new ArrayList<String>(unitKeys);
+        Collections.sort(ordered, new Comparator<String>() {
+            public int compare(String unitKey1, String unitKey2) {
+                return priorities.get(unitKey1).compareTo(priorities.get(unitKey2));
+            }
+        });
+        return ordered;
+    }
+}
@@ -0,0 +1,45 @@
+package checkers.typestate.schedule;
+
+import checkers.flow.Cancellation;
+
+/**
+ * The analysis of a single (outermost) method, started with {@link AnalysisScheduler#begin}. The task is cancelled
+ * explicitly, or when its compilation unit is edited after the analysis of the unit started, as the analysed content
+ * is then stale.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class AnalysisTask implements Cancellation {
+    private final String unitKey;
+    private final String method;
+    private volatile boolean cancelled;
+
+    AnalysisTask(String unitKey, String method, boolean cancelled) {
+        this.unitKey = unitKey;
+        this.method = method;
+        this.cancelled = cancelled;
+    }
+
+    public String getUnitKey() {
+        return unitKey;
+    }
+
+    /**
+     * @return Name of the analysed method.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public String toString() {
+        return method + " in " + unitKey + (cancelled ? " (cancelled)" : "");
+    }
+}
@@ -0,0 +1,153 @@
+package checkers.typestate.spec;
+
+import checkers.typestate.TransitionElement;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * State specification of a single method or constructor: the state annotations declared on its receiver, return type
+ * and parameters.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class MethodSpec {
+    private final String key;
+    private final List<StateSpec> receiver;
+    private final List<StateSpec> returnType;
+    private final List<List<StateSpec>> parameters;
+
+    /**
+     * @param key Key of the method, as returned by {@link SpecKeys#methodKey}.
+     * @param receiver Specs declared on the receiver.
+     * @param returnType Specs declared on the return type.
+     * @param parameters Specs declared on each of the parameters.
+     */
+    public MethodSpec(String key, List<StateSpec> receiver, List<StateSpec> returnType,
+                      List<List<StateSpec>> parameters) {
+        this.key = key;
+        this.receiver = Collections.unmodifiableList(new ArrayList<StateSpec>(receiver));
+        this.returnType = Collections.unmodifiableList(new ArrayList<StateSpec>(returnType));
+        this.parameters = Collections.unmodifiableList(new ArrayList<List<StateSpec>>(parameters));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public List<StateSpec> getReceiver() {
+        return receiver;
+    }
+
+    public List<StateSpec> getReturnType() {
+        return returnType;
+    }
+
+    public List<List<StateSpec>> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return True iff no state annotation is declared anywhere on the method.
+     */
+    public boolean isEmpty() {
+        if (!receiver.isEmpty() || !returnType.isEmpty()) {
+            return false;
+        }
+
+        for (List<StateSpec> parameter : parameters) {
+            if (!parameter.isEmpty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    void addStrings(StringTable strings) {
+        strings.add(key);
+        addStrings(receiver, strings);
+        addStrings(returnType, strings);
+        for (List<StateSpec> parameter : parameters) {
+            addStrings(parameter, strings);
+        }
+    }
+
+    private static void addStrings(List<StateSpec> specs, StringTable strings) {
+        for (StateSpec spec : specs) {
+            strings.add(spec.getAnnotation());
+            strings.add(spec.getTransition(TransitionElement.AFTER));
+            strings.add(spec.getTransition(TransitionElement.AFTER_TRUE));
+            strings.add(spec.getTransition(TransitionElement.AFTER_FALSE));
+            strings.add(spec.getOnException());
+            for (String exceptAnnotation : spec.getExcept()) {
+                strings.add(exceptAnnotation);
+            }
+        }
+    }
+
+    void writeTo(DataOutputStream out, StringTable strings) throws IOException {
+        strings.writeIndex(out, key);
+        writeSpecs(receiver, out, strings);
+        writeSpecs(returnType, out, strings);
+        out.writeByte(parameters.size());
+        for (List<StateSpec> parameter : parameters) {
+            writeSpecs(parameter, out, strings);
+        }
+    }
+
+    private static void writeSpecs(List<StateSpec> specs, DataOutputStream out, StringTable strings)
+            throws IOException {
+        out.writeByte(specs.size());
+        for (StateSpec spec : specs) {
+            spec.writeTo(out, strings);
+        }
+    }
+
+    static MethodSpec readFrom(DataInputStream in, StringTable strings) throws IOException {
+        String key = strings.readIndex(in);
+        List<StateSpec> receiver = readSpecs(in, strings);
+        List<StateSpec> returnType = readSpecs(in, strings);
+
+        int parameterCount = in.readUnsignedByte();
+        List<List<StateSpec>> parameters = new ArrayList<List<StateSpec>>(parameterCount);
+        for (int i = 0; i < parameterCount; i++) {
+            parameters.add(readSpecs(in, strings));
+        }
+
+        return new MethodSpec(key, receiver, returnType, parameters);
+    }
+
+    private static List<StateSpec> readSpecs(DataInputStream in, StringTable strings) throws IOException {
+        int count = in.readUnsignedByte();
+        List<StateSpec> specs = new ArrayList<StateSpec>(count);
+        for (int i = 0; i < count; i++) {
+            specs.add(StateSpec.readFrom(in, strings));
+        }
+
+        return specs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MethodSpec)) return false;
+
+        MethodSpec that = (MethodSpec) o;
+        return key.equals(that.key) && receiver.equals(that.receiver) && returnType.equals(that.returnType)
+                && parameters.equals(that.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key + " receiver=" + receiver + " return=" + returnType + " parameters=" + parameters;
+    }
+}
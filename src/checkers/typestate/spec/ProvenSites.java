@@ -0,0 +1,114 @@
+package checkers.typestate.spec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The call sites of a single class at which the checker proved that the receiver is in a state required by the
+ * called method, so that the runtime monitor doesn't have to check it. A site is identified by the method containing
+ * it, its line and the key of the called method; it's only recorded if all calls of the method on that line are
+ * proved, so that it corresponds to every call instruction compiled from the line.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class ProvenSites {
+    public static final String FILE_EXTENSION = ".tsp";
+
+    private static final int MAGIC = 0x54535050; // "TSPP"
+    private static final int VERSION = 1;
+
+    private final String typeKey;
+    // Method keys -> lines and keys of the called methods, e.g. "12:read()"
+    private final Map<String, Set<String>> sites = new LinkedHashMap<String, Set<String>>();
+
+    public ProvenSites(String typeKey) {
+        this.typeKey = typeKey;
+    }
+
+    public String getTypeKey() {
+        return typeKey;
+    }
+
+    /**
+     * @param methodKey Key of the method containing the call, as returned by {@link SpecKeys#methodKey}.
+     * @param line Line of the call.
+     * @param calledKey Key of the called method.
+     */
+    public void add(String methodKey, int line, String calledKey) {
+        Set<String> methodSites = sites.get(methodKey);
+        if (methodSites == null) {
+            methodSites = new LinkedHashSet<String>();
+            sites.put(methodKey, methodSites);
+        }
+
+        methodSites.add(siteKey(line, calledKey));
+    }
+
+    public boolean isProven(String methodKey, int line, String calledKey) {
+        Set<String> methodSites = sites.get(methodKey);
+        return methodSites != null && methodSites.contains(siteKey(line, calledKey));
+    }
+
+    public boolean isEmpty() {
+        return sites.isEmpty();
+    }
+
+    private static String siteKey(int line, String calledKey) {
+        return line + ":" + calledKey;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        StringTable strings = new StringTable();
+        strings.add(typeKey);
+        for (Map.Entry<String, Set<String>> method : sites.entrySet()) {
+            strings.add(method.getKey());
+            for (String site : method.getValue()) {
+                strings.add(site.substring(site.indexOf(':') + 1));
+            }
+        }
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        strings.writeTo(out);
+        strings.writeIndex(out, typeKey);
+        StringTable.writeCount(out, sites.size(), "methods");
+        for (Map.Entry<String, Set<String>> method : sites.entrySet()) {
+            strings.writeIndex(out, method.getKey());
+            StringTable.writeCount(out, method.getValue().size(), "sites");
+            for (String site : method.getValue()) {
+                int colon = site.indexOf(':');
+                out.writeInt(Integer.parseInt(site.substring(0, colon)));
+                strings.writeIndex(out, site.substring(colon + 1));
+            }
+        }
+    }
+
+    public static ProvenSites readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a proven sites file.");
+        }
+
+        int version = in.readUnsignedShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported proven sites file version: " + version + ".");
+        }
+
+        StringTable strings = StringTable.readFrom(in);
+        ProvenSites provenSites = new ProvenSites(strings.readIndex(in));
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            String methodKey = strings.readIndex(in);
+            int siteCount = in.readUnsignedShort();
+            for (int j = 0; j < siteCount; j++) {
+                int line = in.readInt();
+                provenSites.add(methodKey, line, strings.readIndex(in));
+            }
+        }
+
+        return provenSites;
+    }
+}
@@ -0,0 +1,132 @@
+package checkers.typestate.spec;
+
+import checkers.nullness.quals.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The {@link ProvenSites} written by the checker, laid out as a {@link SpecIndex}: a directory (or a jar/zip file)
+ * with one file per class, e.g. {@code com/example/Reader.tsp}. Files are read lazily, and lookups are cached.
+ *
+ * Instances are safe for use by multiple threads.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class ProvenSitesIndex {
+    // Marks classes which were looked up, but have no file.
+    private static final ProvenSites MISSING = new ProvenSites("");
+
+    private final List<File> roots;
+    private final Map<String, ProvenSites> loaded = new HashMap<String, ProvenSites>();
+
+    /**
+     * @param roots Directories or jar files in which to look for the files, in order.
+     */
+    public ProvenSitesIndex(List<File> roots) {
+        this.roots = new ArrayList<File>(roots);
+    }
+
+    /**
+     * @param path A list of index roots separated with the platform path separator.
+     * @return An index reading from the given roots.
+     */
+    public static ProvenSitesIndex fromPath(String path) {
+        List<File> roots = new ArrayList<File>();
+        for (String root : path.split(File.pathSeparator)) {
+            if (root.length() > 0) {
+                roots.add(new File(root));
+            }
+        }
+
+        return new ProvenSitesIndex(roots);
+    }
+
+    /**
+     * @param typeKey Binary name of a class.
+     * @return The proven call sites of the class, or null if the class wasn't checked.
+     */
+    public synchronized @Nullable ProvenSites getType(String typeKey) {
+        ProvenSites sites = loaded.get(typeKey);
+        if (sites == null) {
+            sites = load(typeKey);
+            loaded.put(typeKey, sites == null ? MISSING : sites);
+        }
+
+        return sites == MISSING ? null : sites;
+    }
+
+    private @Nullable ProvenSites load(String typeKey) {
+        String path = filePath(typeKey);
+        for (File root : roots) {
+            try {
+                if (root.isDirectory()) {
+                    File file = new File(root, path);
+                    if (file.isFile()) {
+                        return read(new FileInputStream(file));
+                    }
+                } else if (root.isFile()) {
+                    ZipFile zip = new ZipFile(root);
+                    try {
+                        ZipEntry entry = zip.getEntry(path);
+                        if (entry != null) {
+                            return read(zip.getInputStream(entry));
+                        }
+                    } finally {
+                        zip.close();
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read the proven sites of " + typeKey + " from " + root + ".", e);
+            }
+        }
+
+        return null;
+    }
+
+    private static ProvenSites read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        try {
+            return ProvenSites.readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String filePath(String typeKey) {
+        return typeKey.replace('.', '/') + ProvenSites.FILE_EXTENSION;
+    }
+
+    /**
+     * Writes the file of the given class into an index directory, replacing the one of a previous check.
+     * @param root Root directory of the index.
+     * @param sites Proven sites to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(File root, ProvenSites sites) throws IOException {
+        File file = new File(root, filePath(sites.getTypeKey()));
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent + ".");
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            sites.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+}
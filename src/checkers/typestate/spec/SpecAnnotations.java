@@ -0,0 +1,188 @@
+package checkers.typestate.spec;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.TransitionElement;
+import checkers.typestate.TypestateUtil;
+import checkers.util.AnnotationUtils;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns specs read from a {@link SpecIndex} back into annotation mirrors, so that they can be added to annotated
+ * types as if the annotations were written in the source. The mirrors are cached, as the same specs are used by many
+ * call sites.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class SpecAnnotations {
+    private final Elements elements;
+    private final Map<StateSpec, AnnotationMirror> cache = new HashMap<StateSpec, AnnotationMirror>();
+
+    public SpecAnnotations(ProcessingEnvironment env) {
+        this.elements = env.getElementUtils();
+    }
+
+    /**
+     * @param specs Specs to convert.
+     * @return A set of annotations corresponding to the given specs. Specs, which refer to annotation types that
+     * cannot be resolved, are skipped.
+     */
+    public Set<AnnotationMirror> toAnnotations(List<StateSpec> specs) {
+        Set<AnnotationMirror> result = AnnotationUtils.createAnnotationSet();
+        for (StateSpec spec : specs) {
+            AnnotationMirror annotation = toAnnotation(spec);
+            if (annotation != null) {
+                result.add(annotation);
+            }
+        }
+
+        return result;
+    }
+
+    private @Nullable AnnotationMirror toAnnotation(StateSpec spec) {
+        if (cache.containsKey(spec)) {
+            return cache.get(spec);
+        }
+
+        AnnotationMirror annotation = null;
+        TypeElement annotationElement = elements.getTypeElement(spec.getAnnotation());
+        if (annotationElement != null) {
+            Map<ExecutableElement, AnnotationValue> values = new HashMap<ExecutableElement, AnnotationValue>();
+            for (ExecutableElement element : ElementFilter.methodsIn(annotationElement.getEnclosedElements())) {
+                AnnotationValue value = elementValue(spec, element.getSimpleName().toString());
+                if (value != null) {
+                    values.put(element, value);
+                }
+            }
+
+            annotation = new SpecAnnotationMirror((DeclaredType) annotationElement.asType(), values);
+        }
+
+        cache.put(spec, annotation);
+        return annotation;
+    }
+
+    private @Nullable AnnotationValue elementValue(StateSpec spec, String elementName) {
+        for (TransitionElement transitionElement : TransitionElement.values()) {
+            if (transitionElement.getElementName().equals(elementName)) {
+                return classValue(spec.getTransition(transitionElement));
+            }
+        }
+
+        if (TypestateUtil.EXCEPTION_ELEMENT_NAME.equals(elementName)) {
+            return classValue(spec.getOnException());
+        }
+
+        if (TypestateUtil.EXCEPT_ELEMENT_NAME.equals(elementName) && !spec.getExcept().isEmpty()) {
+            List<AnnotationValue> exceptValues = new ArrayList<AnnotationValue>();
+            for (String exceptAnnotation : spec.getExcept()) {
+                AnnotationValue exceptValue = classValue(exceptAnnotation);
+                if (exceptValue != null) {
+                    exceptValues.add(exceptValue);
+                }
+            }
+
+            return new ArrayValue(exceptValues);
+        }
+
+        return null;
+    }
+
+    private @Nullable AnnotationValue classValue(@Nullable String typeName) {
+        if (typeName == null) {
+            return null;
+        }
+
+        TypeElement typeElement = elements.getTypeElement(typeName);
+        return typeElement == null ? null : new ClassValue(typeElement.asType());
+    }
+
+    private static class SpecAnnotationMirror implements AnnotationMirror {
+        private final DeclaredType annotationType;
+        private final Map<ExecutableElement, AnnotationValue> elementValues;
+
+        SpecAnnotationMirror(DeclaredType annotationType, Map<ExecutableElement, AnnotationValue> elementValues) {
+            this.annotationType = annotationType;
+            this.elementValues = Collections.unmodifiableMap(elementValues);
+        }
+
+        public DeclaredType getAnnotationType() {
+            return annotationType;
+        }
+
+        public Map<? extends ExecutableElement, ? extends AnnotationValue> getElementValues() {
+            return elementValues;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("@").append(annotationType);
+            if (!elementValues.isEmpty()) {
+                sb.append('(');
+                boolean first = true;
+                for (Map.Entry<ExecutableElement, AnnotationValue> entry : elementValues.entrySet()) {
+                    if (!first) {
+                        sb.append(", ");
+                    }
+                    sb.append(entry.getKey().getSimpleName()).append('=').append(entry.getValue());
+                    first = false;
+                }
+                sb.append(')');
+            }
+
+            return sb.toString();
+        }
+    }
+
+    private static class ClassValue implements AnnotationValue {
+        private final TypeMirror type;
+
+        ClassValue(TypeMirror type) {
+            this.type = type;
+        }
+
+        public Object getValue() {
+            return type;
+        }
+
+        public <R, P> R accept(AnnotationValueVisitor<R, P> v, P p) {
+            return v.visitType(type, p);
+        }
+
+        @Override
+        public String toString() {
+            return type + ".class";
+        }
+    }
+
+    private static class ArrayValue implements AnnotationValue {
+        private final List<AnnotationValue> values;
+
+        ArrayValue(List<AnnotationValue> values) {
+            this.values = Collections.unmodifiableList(values);
+        }
+
+        public Object getValue() {
+            return values;
+        }
+
+        public <R, P> R accept(AnnotationValueVisitor<R, P> v, P p) {
+            return v.visitArray(values, p);
+        }
+
+        @Override
+        public String toString() {
+            return values.toString();
+        }
+    }
+}
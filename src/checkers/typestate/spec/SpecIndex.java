@@ -0,0 +1,181 @@
+package checkers.typestate.spec;
+
+import checkers.nullness.quals.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A binary index of state specifications, precompiled from state-annotated stubs by {@link SpecIndexBuilder}.
+ *
+ * The index is a directory (or a jar/zip file) with one spec file per type, laid out as the type's binary name, e.g.
+ * {@code java/io/InputStream.tss}. Specs are read lazily, the first time a type is looked up, so that a run which
+ * only uses a handful of annotated types doesn't pay for the whole index. Lookups, including misses, are cached.
+ * Jar roots are kept open until {@link #close()}.
+ *
+ * Instances are safe for use by multiple threads.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class SpecIndex {
+    public static final String SPEC_FILE_EXTENSION = ".tss";
+
+    // Marks types which were looked up, but have no spec file.
+    private static final TypeSpec MISSING = new TypeSpec("");
+
+    private final List<File> roots;
+    private final Map<String, TypeSpec> loaded = new HashMap<String, TypeSpec>();
+    // The jar roots, opened on the first lookup in them and kept open for the next ones.
+    private final Map<File, ZipFile> openZips = new HashMap<File, ZipFile>();
+
+    // Numbers of lookups answered from the cache, and of lookups which had to read the roots.
+    private long cacheHits;
+    private long cacheMisses;
+
+    /**
+     * @param roots Directories or jar files in which to look for spec files, in order.
+     */
+    public SpecIndex(List<File> roots) {
+        this.roots = new ArrayList<File>(roots);
+    }
+
+    /**
+     * @param path A list of index roots separated with the platform path separator.
+     * @return An index reading from the given roots.
+     */
+    public static SpecIndex fromPath(String path) {
+        List<File> roots = new ArrayList<File>();
+        for (String root : path.split(File.pathSeparator)) {
+            if (root.length() > 0) {
+                roots.add(new File(root));
+            }
+        }
+
+        return new SpecIndex(roots);
+    }
+
+    /**
+     * @param typeKey Binary name of the type, as returned by {@link SpecKeys#typeKey}.
+     * @return The specs of the given type, or null if the index contains no specs for it.
+     */
+    public synchronized @Nullable TypeSpec getType(String typeKey) {
+        TypeSpec typeSpec = loaded.get(typeKey);
+        if (typeSpec == null) {
+            cacheMisses++;
+            typeSpec = load(typeKey);
+            loaded.put(typeKey, typeSpec == null ? MISSING : typeSpec);
+        } else {
+            cacheHits++;
+        }
+
+        return typeSpec == MISSING ? null : typeSpec;
+    }
+
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    public synchronized long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * @param typeKey Binary name of the type declaring the method.
+     * @param methodKey Key of the method, as returned by {@link SpecKeys#methodKey}.
+     * @return The spec of the given method, or null if the index contains no specs for it.
+     */
+    public @Nullable MethodSpec getMethod(String typeKey, String methodKey) {
+        TypeSpec typeSpec = getType(typeKey);
+        return typeSpec == null ? null : typeSpec.getMethod(methodKey);
+    }
+
+    private @Nullable TypeSpec load(String typeKey) {
+        String path = SpecKeys.specFilePath(typeKey);
+        for (File root : roots) {
+            try {
+                if (root.isDirectory()) {
+                    File specFile = new File(root, path);
+                    if (specFile.isFile()) {
+                        return read(new FileInputStream(specFile));
+                    }
+                } else if (root.isFile()) {
+                    ZipFile zip = openZip(root);
+                    ZipEntry entry = zip.getEntry(path);
+                    if (entry != null) {
+                        return read(zip.getInputStream(entry));
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read the typestate spec of " + typeKey + " from " + root + ".", e);
+            }
+        }
+
+        return null;
+    }
+
+    private ZipFile openZip(File root) throws IOException {
+        ZipFile zip = openZips.get(root);
+        if (zip == null) {
+            zip = new ZipFile(root);
+            openZips.put(root, zip);
+        }
+
+        return zip;
+    }
+
+    /**
+     * Closes the jar files of the index which were opened by lookups. Lookups after closing open them again.
+     */
+    public synchronized void close() {
+        for (ZipFile zip : openZips.values()) {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                // Only read from, so nothing is lost.
+            }
+        }
+        openZips.clear();
+    }
+
+    private static TypeSpec read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        try {
+            return TypeSpec.readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the spec file of the given type into an index directory.
+     * @param root Root directory of the index.
+     * @param typeSpec Specs to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(File root, TypeSpec typeSpec) throws IOException {
+        File specFile = new File(root, SpecKeys.specFilePath(typeSpec.getTypeKey()));
+        File parent = specFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent + ".");
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(specFile)));
+        try {
+            typeSpec.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+}
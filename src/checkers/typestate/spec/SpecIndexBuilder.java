@@ -0,0 +1,111 @@
+package checkers.typestate.spec;
+
+import checkers.quals.TypeQualifiers;
+import checkers.quals.Unqualified;
+import checkers.source.SourceChecker;
+import checkers.source.SourceVisitor;
+import checkers.types.AnnotatedTypeMirror;
+import checkers.typestate.TypestateAnnotatedTypeFactory;
+import checkers.typestate.TypestateOptions;
+import checkers.typestate.TypestateUtil;
+import checkers.util.TreeUtils;
+
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles state-annotated stubs into a binary {@link SpecIndex}. Run it as an annotation processor over the stub
+ * sources, e.g.:
+ * <br />
+ * <tt>
+ * javac -proc:only -processor checkers.typestate.spec.SpecIndexBuilder -Atypestate.specIndexOut=spec-index
+ * -sourcepath jdk:states jdk/java/io/InputStream.java ...
+ * </tt>
+ * <br />
+ * For each type, a spec file is written, which holds the state annotations of the receiver, return type and
+ * parameters of all methods and constructors that declare any.
+ * @author Adam Warski (adam at warski dot org)
+ */
+@TypeQualifiers(Unqualified.class)
+public class SpecIndexBuilder extends SourceChecker {
+    private static final String DEFAULT_OUTPUT = "spec-index";
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        Set<String> options = new HashSet<String>(super.getSupportedOptions());
+        options.addAll(TypestateOptions.ALL);
+        return options;
+    }
+
+    protected SourceVisitor<?, ?> createSourceVisitor(CompilationUnitTree root) {
+        final TypestateUtil typestateUtil = new TypestateUtil(getProcessingEnvironment());
+        final TypestateAnnotatedTypeFactory factory = new TypestateAnnotatedTypeFactory(getProcessingEnvironment(),
+                typestateUtil, root);
+        final File output = new File(new TypestateOptions(getProcessingEnvironment())
+                .get(TypestateOptions.SPEC_INDEX_OUT, DEFAULT_OUTPUT));
+
+        return new SourceVisitor<Void, Void>(this, root) {
+            @Override
+            public Void visitClass(ClassTree node, Void p) {
+                TypeElement typeElement = TreeUtils.elementFromDeclaration(node);
+                TypeSpec typeSpec = new TypeSpec(SpecKeys.typeKey(env.getElementUtils(), typeElement));
+
+                for (Tree member : node.getMembers()) {
+                    if (member.getKind() == Tree.Kind.METHOD) {
+                        MethodSpec methodSpec = buildMethodSpec((MethodTree) member);
+                        if (!methodSpec.isEmpty()) {
+                            typeSpec.addMethod(methodSpec);
+                        }
+                    }
+                }
+
+                if (!typeSpec.getMethods().isEmpty()) {
+                    try {
+                        SpecIndex.write(output, typeSpec);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Cannot write the spec of " + typeSpec.getTypeKey() + ".", e);
+                    }
+                }
+
+                // Nested types get their own spec files.
+                return super.visitClass(node, p);
+            }
+
+            private MethodSpec buildMethodSpec(MethodTree method) {
+                ExecutableElement methodElement = TreeUtils.elementFromDeclaration(method);
+                AnnotatedTypeMirror.AnnotatedExecutableType methodType = factory.getAnnotatedType(method);
+
+                List<List<StateSpec>> parameters = new ArrayList<List<StateSpec>>();
+                for (AnnotatedTypeMirror parameter : methodType.getParameterTypes()) {
+                    parameters.add(toSpecs(parameter.getAnnotations()));
+                }
+
+                return new MethodSpec(SpecKeys.methodKey(env.getTypeUtils(), methodElement),
+                        toSpecs(methodType.getReceiverType().getAnnotations()),
+                        toSpecs(methodType.getReturnType().getAnnotations()),
+                        parameters);
+            }
+
+            private List<StateSpec> toSpecs(Set<AnnotationMirror> annotations) {
+                List<StateSpec> specs = new ArrayList<StateSpec>();
+                for (AnnotationMirror annotation : typestateUtil.filterStateAnnotations(annotations)) {
+                    specs.add(StateSpec.fromAnnotation(typestateUtil, annotation));
+                }
+
+                return specs;
+            }
+        };
+    }
+}
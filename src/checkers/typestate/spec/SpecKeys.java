@@ -0,0 +1,69 @@
+package checkers.typestate.spec;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the keys under which types and methods are stored in a spec index. Methods are keyed by their name and
+ * the erased, canonical names of their parameter types, e.g. {@code read(byte[],int,int)}; constructors use the
+ * name {@code <init>}.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class SpecKeys {
+    public static final String CONSTRUCTOR_NAME = "<init>";
+
+    private SpecKeys() { }
+
+    /**
+     * @param elements Element utilities.
+     * @param type Type for which to compute the key.
+     * @return The binary name of the type, e.g. {@code java.util.Map$Entry}.
+     */
+    public static String typeKey(Elements elements, TypeElement type) {
+        return elements.getBinaryName(type).toString();
+    }
+
+    /**
+     * @param types Type utilities.
+     * @param method Method for which to compute the key.
+     * @return The key of the method.
+     */
+    public static String methodKey(Types types, ExecutableElement method) {
+        List<String> parameterTypes = new ArrayList<String>();
+        for (VariableElement parameter : method.getParameters()) {
+            parameterTypes.add(types.erasure(parameter.asType()).toString());
+        }
+
+        return methodKey(method.getSimpleName().toString(), parameterTypes);
+    }
+
+    /**
+     * @param name Simple name of the method, or {@link #CONSTRUCTOR_NAME}.
+     * @param parameterTypes Erased, canonical names of the parameter types.
+     * @return The key of the method.
+     */
+    public static String methodKey(String name, List<String> parameterTypes) {
+        StringBuilder sb = new StringBuilder(name).append('(');
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(parameterTypes.get(i));
+        }
+
+        return sb.append(')').toString();
+    }
+
+    /**
+     * @param typeKey Key of a type.
+     * @return Path, relative to the index root, of the file holding the specs of the given type.
+     */
+    public static String specFilePath(String typeKey) {
+        return typeKey.replace('.', '/') + SpecIndex.SPEC_FILE_EXTENSION;
+    }
+}
@@ -0,0 +1,244 @@
+package checkers.typestate.spec;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.Any;
+import checkers.typestate.TransitionElement;
+import checkers.typestate.TypestateUtil;
+
+import javax.lang.model.element.AnnotationMirror;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A decoded state annotation, as declared on a method receiver, parameter or return type. Annotations are identified
+ * by the qualified name of their type, so that a specification can be stored and read back without a compiler.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class StateSpec {
+    private static final String ANY = Any.class.getName();
+
+    private final String annotation;
+    private final @Nullable String after;
+    private final @Nullable String afterTrue;
+    private final @Nullable String afterFalse;
+    private final @Nullable String onException;
+    private final List<String> except;
+
+    public StateSpec(String annotation, @Nullable String after, @Nullable String afterTrue,
+                     @Nullable String afterFalse, @Nullable String onException, List<String> except) {
+        this.annotation = annotation;
+        this.after = after;
+        this.afterTrue = afterTrue;
+        this.afterFalse = afterFalse;
+        this.onException = onException;
+        this.except = Collections.unmodifiableList(new ArrayList<String>(except));
+    }
+
+    /**
+     * @param typestateUtil Utility used to read the elements of the annotation.
+     * @param annotation A state annotation or the any-state annotation.
+     * @return The specification corresponding to the given annotation.
+     */
+    public static StateSpec fromAnnotation(TypestateUtil typestateUtil, AnnotationMirror annotation) {
+        List<String> except = new ArrayList<String>();
+        List<AnnotationMirror> exceptAnnotations = typestateUtil.getExceptElementValue(annotation);
+        if (exceptAnnotations != null) {
+            for (AnnotationMirror exceptAnnotation : exceptAnnotations) {
+                except.add(nameOf(exceptAnnotation));
+            }
+        }
+
+        return new StateSpec(nameOf(annotation),
+                targetOf(typestateUtil, annotation, TransitionElement.AFTER.getElementName(),
+                        typestateUtil.getTransitionElementValue(annotation, TransitionElement.AFTER)),
+                targetOf(typestateUtil, annotation, TransitionElement.AFTER_TRUE.getElementName(),
+                        typestateUtil.getTransitionElementValue(annotation, TransitionElement.AFTER_TRUE)),
+                targetOf(typestateUtil, annotation, TransitionElement.AFTER_FALSE.getElementName(),
+                        typestateUtil.getTransitionElementValue(annotation, TransitionElement.AFTER_FALSE)),
+                targetOf(typestateUtil, annotation, TypestateUtil.EXCEPTION_ELEMENT_NAME,
+                        typestateUtil.getExceptionElementValue(annotation)),
+                except);
+    }
+
+    private static @Nullable String nameOf(@Nullable AnnotationMirror annotation) {
+        return annotation == null ? null : annotation.getAnnotationType().toString();
+    }
+
+    // The target state of a transition; the any-state annotation is kept, as it means that the state is unknown.
+    private static @Nullable String targetOf(TypestateUtil typestateUtil, AnnotationMirror annotation,
+                                             String elementName, @Nullable AnnotationMirror target) {
+        if (target == null && typestateUtil.isTransitionToAnyState(annotation, elementName)) {
+            return Any.class.getName();
+        }
+
+        return nameOf(target);
+    }
+
+    /**
+     * @return Qualified name of the annotation type.
+     */
+    public String getAnnotation() {
+        return annotation;
+    }
+
+    /**
+     * @param element The transition element to read.
+     * @return Qualified name of the state to which the object transits, or null if there is no transition. The
+     * name of the any-state annotation means that the object may be in any state after the transition.
+     */
+    public @Nullable String getTransition(TransitionElement element) {
+        switch (element) {
+            case AFTER: return after;
+            case AFTER_TRUE: return afterTrue;
+            case AFTER_FALSE: return afterFalse;
+            default: throw new IllegalArgumentException("Unknown transition element: " + element);
+        }
+    }
+
+    /**
+     * @return Qualified name of the state to which the object transits on an exception (possibly the any-state
+     * annotation), or null.
+     */
+    public @Nullable String getOnException() {
+        return onException;
+    }
+
+    /**
+     * @return Qualified names of the states listed in the "except" element; empty if the element is not set.
+     */
+    public List<String> getExcept() {
+        return except;
+    }
+
+    /**
+     * As {@link checkers.typestate.TypestateFlow}: does the transitions of the declared states which match the actual
+     * ones. States are identified by the qualified names of their annotations.
+     * @param specs The declared states of an operand.
+     * @param element The transition to do.
+     * @param actual The states of the operand before the call.
+     * @param onException To which the states if the call throws an exception are added.
+     * @return The states after the call.
+     */
+    public static Set<String> transit(List<StateSpec> specs, TransitionElement element, Set<String> actual,
+                                      List<Set<String>> onException) {
+        Set<String> result = new TreeSet<String>(actual);
+        Set<String> exceptionResult = actual;
+        for (StateSpec spec : specs) {
+            if (!spec.covers(actual)) {
+                continue;
+            }
+
+            String target = spec.getTransition(element);
+            if (target == null && element != TransitionElement.AFTER) {
+                target = spec.getTransition(TransitionElement.AFTER);
+            }
+            if (target != null) {
+                result.removeAll(actual);
+                if (!ANY.equals(target)) {
+                    result.add(target);
+                }
+            }
+
+            if (spec.getOnException() != null) {
+                exceptionResult = ANY.equals(spec.getOnException()) ? Collections.<String>emptySet()
+                        : Collections.singleton(spec.getOnException());
+            }
+        }
+
+        onException.add(exceptionResult);
+        return result;
+    }
+
+    /**
+     * @return True iff an operand in the actual states is in one of the declared states.
+     */
+    public static boolean covers(List<StateSpec> specs, Set<String> actual) {
+        for (StateSpec spec : specs) {
+            if (spec.covers(actual)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean covers(Set<String> actual) {
+        if (ANY.equals(annotation)) {
+            for (String exceptAnnotation : except) {
+                if (actual.contains(exceptAnnotation)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        return actual.contains(annotation);
+    }
+
+    void writeTo(DataOutputStream out, StringTable strings) throws IOException {
+        strings.writeIndex(out, annotation);
+        strings.writeIndex(out, after);
+        strings.writeIndex(out, afterTrue);
+        strings.writeIndex(out, afterFalse);
+        strings.writeIndex(out, onException);
+        out.writeByte(except.size());
+        for (String exceptAnnotation : except) {
+            strings.writeIndex(out, exceptAnnotation);
+        }
+    }
+
+    static StateSpec readFrom(DataInputStream in, StringTable strings) throws IOException {
+        String annotation = strings.readIndex(in);
+        String after = strings.readIndex(in);
+        String afterTrue = strings.readIndex(in);
+        String afterFalse = strings.readIndex(in);
+        String onException = strings.readIndex(in);
+
+        int exceptCount = in.readUnsignedByte();
+        List<String> except = new ArrayList<String>(exceptCount);
+        for (int i = 0; i < exceptCount; i++) {
+            except.add(strings.readIndex(in));
+        }
+
+        return new StateSpec(annotation, after, afterTrue, afterFalse, onException, except);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof StateSpec)) return false;
+
+        StateSpec that = (StateSpec) o;
+        return annotation.equals(that.annotation) && eq(after, that.after) && eq(afterTrue, that.afterTrue)
+                && eq(afterFalse, that.afterFalse) && eq(onException, that.onException)
+                && except.equals(that.except);
+    }
+
+    private static boolean eq(@Nullable String s1, @Nullable String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = annotation.hashCode();
+        result = 31 * result + (after != null ? after.hashCode() : 0);
+        result = 31 * result + (onException != null ? onException.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("@").append(annotation);
+        sb.append("(after=").append(after);
+        sb.append(", afterTrue=").append(afterTrue);
+        sb.append(", afterFalse=").append(afterFalse);
+        sb.append(", onException=").append(onException);
+        sb.append(", except=").append(except).append(")");
+        return sb.toString();
+    }
+}
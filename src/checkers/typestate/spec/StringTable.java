@@ -0,0 +1,112 @@
+package checkers.typestate.spec;
+
+import checkers.nullness.quals.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of strings shared by all entries of a single spec file; annotation and state names repeat a lot, so entries
+ * only store indexes into this table. Indexes are stored as unsigned shorts, with {@link #NULL_INDEX} standing for
+ * null, so a table holds at most {@link #MAX_SIZE} strings.
+ * @author Adam Warski (adam at warski dot org)
+ */
+class StringTable {
+    static final int NULL_INDEX = 0xFFFF;
+    static final int MAX_SIZE = NULL_INDEX;
+
+    private final List<String> strings = new ArrayList<String>();
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    /**
+     * Adds the given string to the table, if it's not already present.
+     * @param s String to add; may be null.
+     */
+    void add(@Nullable String s) {
+        if (s != null && !indexes.containsKey(s)) {
+            indexes.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    int indexOf(@Nullable String s) {
+        if (s == null) {
+            return -1;
+        }
+
+        Integer idx = indexes.get(s);
+        if (idx == null) {
+            throw new IllegalStateException("String not in the table: " + s);
+        }
+
+        return idx;
+    }
+
+    @Nullable String get(int idx) {
+        return idx < 0 ? null : strings.get(idx);
+    }
+
+    /**
+     * Writes the index of the given string, which must be in the table.
+     */
+    void writeIndex(DataOutputStream out, @Nullable String s) throws IOException {
+        int idx = indexOf(s);
+        out.writeShort(idx < 0 ? NULL_INDEX : idx);
+    }
+
+    /**
+     * Reads an index written by {@link #writeIndex}.
+     * @return The string with the read index.
+     */
+    @Nullable String readIndex(DataInputStream in) throws IOException {
+        int idx = in.readUnsignedShort();
+        if (idx == NULL_INDEX) {
+            return null;
+        }
+        if (idx >= strings.size()) {
+            throw new IOException("String index out of the table: " + idx + ".");
+        }
+
+        return strings.get(idx);
+    }
+
+    /**
+     * Writes a count as an unsigned short.
+     * @param what What is counted, for the error message.
+     * @throws IOException If the count doesn't fit.
+     */
+    static void writeCount(DataOutputStream out, int count, String what) throws IOException {
+        if (count > 0xFFFF) {
+            throw new IOException("Too many " + what + " to write: " + count + ".");
+        }
+
+        out.writeShort(count);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        if (strings.size() > MAX_SIZE) {
+            throw new IOException("Too many strings to write: " + strings.size() + ", at most " + MAX_SIZE
+                    + " are supported.");
+        }
+
+        out.writeShort(strings.size());
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    static StringTable readFrom(DataInputStream in) throws IOException {
+        StringTable table = new StringTable();
+        int size = in.readUnsignedShort();
+        for (int i = 0; i < size; i++) {
+            table.add(in.readUTF());
+        }
+
+        return table;
+    }
+}
@@ -0,0 +1,85 @@
+package checkers.typestate.spec;
+
+import checkers.nullness.quals.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The state specifications of all methods and constructors of a single type. This is the unit in which specs are
+ * stored in, and lazily loaded from, a {@link SpecIndex}.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypeSpec {
+    private static final int MAGIC = 0x54535049; // "TSPI"
+    private static final int VERSION = 1;
+
+    private final String typeKey;
+    private final Map<String, MethodSpec> methods = new LinkedHashMap<String, MethodSpec>();
+
+    public TypeSpec(String typeKey) {
+        this.typeKey = typeKey;
+    }
+
+    public String getTypeKey() {
+        return typeKey;
+    }
+
+    public void addMethod(MethodSpec method) {
+        methods.put(method.getKey(), method);
+    }
+
+    /**
+     * @param methodKey Key of the method, as returned by {@link SpecKeys#methodKey}.
+     * @return The spec of the given method, or null if the method declares no state annotations.
+     */
+    public @Nullable MethodSpec getMethod(String methodKey) {
+        return methods.get(methodKey);
+    }
+
+    public Collection<MethodSpec> getMethods() {
+        return Collections.unmodifiableCollection(methods.values());
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        StringTable strings = new StringTable();
+        strings.add(typeKey);
+        for (MethodSpec method : methods.values()) {
+            method.addStrings(strings);
+        }
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        strings.writeTo(out);
+        strings.writeIndex(out, typeKey);
+        StringTable.writeCount(out, methods.size(), "methods");
+        for (MethodSpec method : methods.values()) {
+            method.writeTo(out, strings);
+        }
+    }
+
+    public static TypeSpec readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a typestate spec file.");
+        }
+
+        int version = in.readUnsignedShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported typestate spec file version: " + version + ".");
+        }
+
+        StringTable strings = StringTable.readFrom(in);
+        TypeSpec typeSpec = new TypeSpec(strings.readIndex(in));
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            typeSpec.addMethod(MethodSpec.readFrom(in, strings));
+        }
+
+        return typeSpec;
+    }
+}
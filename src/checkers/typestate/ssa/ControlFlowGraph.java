@@ -0,0 +1,648 @@
+package checkers.typestate.ssa;
+
+import checkers.typestate.TransitionElement;
+import checkers.util.InternalUtils;
+import checkers.util.TreeUtils;
+import com.sun.source.tree.*;
+import com.sun.source.util.TreeScanner;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.VariableElement;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The control flow graph of a method, with basic blocks holding only the operations which concern the typestates:
+ * definitions of the variables declared in the method, and calls. The operations of an expression are in the order
+ * in which {@link checkers.typestate.TypestateFlow} handles them: the states at a call are checked before its
+ * arguments are evaluated.
+ *
+ * A condition whose call has "after true" and "after false" transitions is placed on both outgoing edges, in new
+ * blocks, each with the transition of its edge. Returns, and the normal completion of the method, lead to the exit
+ * block; throws end their block without a successor.
+ *
+ * Try statements, assertions, conditional expressions and nested classes aren't supported; neither are variables
+ * which are tracked by the flow outside of the method (fields). Variables may be observed at all calls: they are then
+ * operands of each call, also if they aren't passed to it.
+ *
+ * The graph is built by the {@link SparseEngine}; it can be read (but not modified) by other analyses, see
+ * {@link SparseEngine#getGraph()}.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class ControlFlowGraph {
+    /** The kinds of operations. */
+    public enum OpKind {
+        /** A method parameter: defined with its declared states. */
+        PARAMETER,
+        /** A local variable declaration without an initializer: defined with its declared states. */
+        DECLARE,
+        /** An assignment, or a declaration with an initializer: defined with the states of the right-hand side. */
+        ASSIGN,
+        /** The variable of an enhanced for loop: defined with the states of the iterated type. */
+        ITERATE,
+        /** A call: the receiver and the arguments are checked, and the variables among them are defined again. */
+        CALL
+    }
+
+    public static class Op {
+        final OpKind kind;
+        final Tree tree;
+        // For assignments, the right-hand side.
+        final ExpressionTree rhs;
+        // For calls, the transition to read.
+        final TransitionElement element;
+        // Indexes of the variables which are read, and of the ones which are defined.
+        final int[] used;
+        final int[] defined;
+
+        Op(OpKind kind, Tree tree, ExpressionTree rhs, TransitionElement element, int[] used, int[] defined) {
+            this.kind = kind;
+            this.tree = tree;
+            this.rhs = rhs;
+            this.element = element;
+            this.used = used;
+            this.defined = defined;
+        }
+
+        public OpKind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return The parameter or variable declaration, the assignment, the enhanced for loop or the call.
+         */
+        public Tree getTree() {
+            return tree;
+        }
+
+        public ExpressionTree getRhs() {
+            return rhs;
+        }
+
+        public TransitionElement getElement() {
+            return element;
+        }
+
+        public int[] getUsed() {
+            return used;
+        }
+
+        public int[] getDefined() {
+            return defined;
+        }
+    }
+
+    public static class Block {
+        final int index;
+        final List<Op> ops = new ArrayList<Op>();
+        final List<Block> successors = new ArrayList<Block>(2);
+        final List<Block> predecessors = new ArrayList<Block>(2);
+
+        Block(int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return The index of the block in {@link ControlFlowGraph#getBlocks()}.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public List<Op> getOps() {
+            return ops;
+        }
+
+        public List<Block> getSuccessors() {
+            return successors;
+        }
+    }
+
+    /**
+     * Decides how the graph is built; see {@link SparseEngine.Semantics}.
+     */
+    interface Conditions {
+        boolean isSplit(ExpressionTree condition);
+
+        boolean isInverted(ExpressionTree condition);
+
+        boolean isTrackedOutside(VariableElement variable);
+
+        boolean isObservedAtCalls(VariableElement variable);
+    }
+
+    private final List<Block> blocks = new ArrayList<Block>();
+    private final List<VariableElement> vars = new ArrayList<VariableElement>();
+    private final Block entry;
+    private final Block exit;
+
+    private ControlFlowGraph(MethodTree method, Conditions conditions) {
+        entry = newBlock();
+        exit = newBlock();
+        new Builder(conditions).build(method);
+    }
+
+    /**
+     * @param method The method whose graph to build.
+     * @param conditions Decides how conditions are split, and which fields are tracked.
+     * @return The control flow graph of the method.
+     * @throws UnsupportedTreeException If the method contains a construct which isn't supported.
+     */
+    static ControlFlowGraph build(MethodTree method, Conditions conditions) {
+        return new ControlFlowGraph(method, conditions);
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    public Block getEntry() {
+        return entry;
+    }
+
+    public Block getExit() {
+        return exit;
+    }
+
+    /**
+     * @return The variables declared in the method; the indexes used by the operations refer to this list.
+     */
+    public List<VariableElement> getVars() {
+        return vars;
+    }
+
+    private Block newBlock() {
+        Block block = new Block(blocks.size());
+        blocks.add(block);
+        return block;
+    }
+
+    private static void edge(Block from, Block to) {
+        if (!from.successors.contains(to)) {
+            from.successors.add(to);
+            to.predecessors.add(from);
+        }
+    }
+
+    // The targets of breaks and continues.
+    private static class Target {
+        private final Name label;
+        private final boolean loop;
+        private final boolean labeledOnly;
+        private final Block breakTarget;
+        private final Block continueTarget;
+
+        private Target(Name label, boolean loop, boolean labeledOnly, Block breakTarget, Block continueTarget) {
+            this.label = label;
+            this.loop = loop;
+            this.labeledOnly = labeledOnly;
+            this.breakTarget = breakTarget;
+            this.continueTarget = continueTarget;
+        }
+    }
+
+    private class Builder {
+        private final Conditions conditions;
+        private final Map<Element, Integer> varIndexes = new HashMap<Element, Integer>();
+        // Variables which are operands of all calls.
+        private final List<Integer> observed = new ArrayList<Integer>();
+        private final Deque<Target> targets = new LinkedList<Target>();
+        // The label of the loop which is built next, if any.
+        private Name pendingLabel;
+        // The block to which operations are added; after a jump, a new block without predecessors.
+        private Block current;
+
+        private Builder(Conditions conditions) {
+            this.conditions = conditions;
+        }
+
+        private void build(MethodTree method) {
+            // All variables are registered up front, so that uses can be resolved regardless of the order of blocks.
+            new TreeScanner<Void, Void>() {
+                @Override
+                public Void visitVariable(VariableTree node, Void p) {
+                    VariableElement variable = TreeUtils.elementFromDeclaration(node);
+                    if (conditions.isObservedAtCalls(variable)) {
+                        observed.add(vars.size());
+                    }
+                    varIndexes.put(variable, vars.size());
+                    vars.add(variable);
+                    return super.visitVariable(node, p);
+                }
+
+                @Override
+                public Void visitClass(ClassTree node, Void p) {
+                    throw new UnsupportedTreeException(node);
+                }
+            }.scan(method, null);
+
+            current = entry;
+            for (VariableTree parameter : method.getParameters()) {
+                add(OpKind.PARAMETER, parameter, null, null, new int[0], indexes(parameter));
+            }
+
+            if (method.getBody() != null) {
+                statement(method.getBody());
+            }
+            edge(current, exit);
+        }
+
+        private int[] indexes(VariableTree variable) {
+            return new int[] { varIndexes.get(TreeUtils.elementFromDeclaration(variable)) };
+        }
+
+        private void add(OpKind kind, Tree tree, ExpressionTree rhs, TransitionElement element, int[] used,
+                         int[] defined) {
+            current.ops.add(new Op(kind, tree, rhs, element, used, defined));
+        }
+
+        /**
+         * @return The index of the variable referenced by the tree, or -1 if it isn't a variable declared in the
+         * method.
+         * @throws UnsupportedTreeException If the tree references a variable tracked outside of the method.
+         */
+        private int varIndex(Tree tree) {
+            Element element = InternalUtils.symbol(tree);
+            Integer index = varIndexes.get(element);
+            if (index != null) {
+                return index;
+            }
+
+            if (element instanceof VariableElement && element.getKind() == ElementKind.FIELD
+                    && conditions.isTrackedOutside((VariableElement) element)) {
+                throw new UnsupportedTreeException(tree);
+            }
+
+            return -1;
+        }
+
+        private void jump(Block target) {
+            edge(current, target);
+            current = newBlock();
+        }
+
+        private void statement(StatementTree tree) {
+            switch (tree.getKind()) {
+                case BLOCK:
+                    for (StatementTree statement : ((BlockTree) tree).getStatements()) {
+                        statement(statement);
+                    }
+                    break;
+                case EMPTY_STATEMENT:
+                    break;
+                case EXPRESSION_STATEMENT:
+                    expression(((ExpressionStatementTree) tree).getExpression(), TransitionElement.AFTER);
+                    break;
+                case VARIABLE:
+                    variable((VariableTree) tree);
+                    break;
+                case IF:
+                    ifStatement((IfTree) tree);
+                    break;
+                case WHILE_LOOP:
+                    whileLoop((WhileLoopTree) tree);
+                    break;
+                case DO_WHILE_LOOP:
+                    doWhileLoop((DoWhileLoopTree) tree);
+                    break;
+                case FOR_LOOP:
+                    forLoop((ForLoopTree) tree);
+                    break;
+                case ENHANCED_FOR_LOOP:
+                    enhancedForLoop((EnhancedForLoopTree) tree);
+                    break;
+                case LABELED_STATEMENT:
+                    labeled((LabeledStatementTree) tree);
+                    break;
+                case SWITCH:
+                    switchStatement((SwitchTree) tree);
+                    break;
+                case SYNCHRONIZED:
+                    expression(((SynchronizedTree) tree).getExpression(), TransitionElement.AFTER);
+                    statement(((SynchronizedTree) tree).getBlock());
+                    break;
+                case BREAK:
+                    jump(target(((BreakTree) tree).getLabel(), false, tree).breakTarget);
+                    break;
+                case CONTINUE:
+                    jump(target(((ContinueTree) tree).getLabel(), true, tree).continueTarget);
+                    break;
+                case RETURN:
+                    if (((ReturnTree) tree).getExpression() != null) {
+                        expression(((ReturnTree) tree).getExpression(), TransitionElement.AFTER);
+                    }
+                    jump(exit);
+                    break;
+                case THROW:
+                    expression(((ThrowTree) tree).getExpression(), TransitionElement.AFTER);
+                    current = newBlock();
+                    break;
+                default:
+                    throw new UnsupportedTreeException(tree);
+            }
+        }
+
+        private void variable(VariableTree tree) {
+            ExpressionTree initializer = tree.getInitializer();
+            if (initializer == null) {
+                add(OpKind.DECLARE, tree, null, null, new int[0], indexes(tree));
+            } else {
+                expression(initializer, TransitionElement.AFTER);
+                add(OpKind.ASSIGN, tree, initializer, null, used(initializer), indexes(tree));
+            }
+        }
+
+        private int[] used(ExpressionTree rhs) {
+            int index = varIndex(rhs);
+            return index >= 0 ? new int[] { index } : new int[0];
+        }
+
+        private void ifStatement(IfTree tree) {
+            Block thenBlock = newBlock();
+            Block after = newBlock();
+            Block elseBlock = tree.getElseStatement() == null ? after : newBlock();
+
+            condition(tree.getCondition(), thenBlock, elseBlock);
+
+            current = thenBlock;
+            statement(tree.getThenStatement());
+            edge(current, after);
+
+            if (tree.getElseStatement() != null) {
+                current = elseBlock;
+                statement(tree.getElseStatement());
+                edge(current, after);
+            }
+
+            current = after;
+        }
+
+        private void whileLoop(WhileLoopTree tree) {
+            Block head = newBlock();
+            Block body = newBlock();
+            Block after = newBlock();
+            edge(current, head);
+
+            current = head;
+            condition(tree.getCondition(), body, after);
+
+            targets.push(loopTarget(after, head));
+            current = body;
+            statement(tree.getStatement());
+            edge(current, head);
+            targets.pop();
+
+            current = after;
+        }
+
+        private void doWhileLoop(DoWhileLoopTree tree) {
+            Block body = newBlock();
+            Block conditionBlock = newBlock();
+            Block after = newBlock();
+            edge(current, body);
+
+            targets.push(loopTarget(after, conditionBlock));
+            current = body;
+            statement(tree.getStatement());
+            edge(current, conditionBlock);
+            targets.pop();
+
+            current = conditionBlock;
+            condition(tree.getCondition(), body, after);
+
+            current = after;
+        }
+
+        private void forLoop(ForLoopTree tree) {
+            Target target = loopTarget(null, null);
+            for (StatementTree initializer : tree.getInitializer()) {
+                statement(initializer);
+            }
+
+            Block head = newBlock();
+            Block body = newBlock();
+            Block update = newBlock();
+            Block after = newBlock();
+            edge(current, head);
+
+            current = head;
+            condition(tree.getCondition(), body, after);
+
+            targets.push(new Target(target.label, true, false, after, update));
+            current = body;
+            statement(tree.getStatement());
+            edge(current, update);
+            targets.pop();
+
+            current = update;
+            for (ExpressionStatementTree statement : tree.getUpdate()) {
+                statement(statement);
+            }
+            edge(current, head);
+
+            current = after;
+        }
+
+        private void enhancedForLoop(EnhancedForLoopTree tree) {
+            Target target = loopTarget(null, null);
+            expression(tree.getExpression(), TransitionElement.AFTER);
+
+            Block head = newBlock();
+            Block body = newBlock();
+            Block after = newBlock();
+            edge(current, head);
+            edge(head, body);
+            edge(head, after);
+
+            targets.push(new Target(target.label, true, false, after, head));
+            current = body;
+            add(OpKind.ITERATE, tree, null, null, new int[0], indexes(tree.getVariable()));
+            statement(tree.getStatement());
+            edge(current, head);
+            targets.pop();
+
+            current = after;
+        }
+
+        private Target loopTarget(Block breakTarget, Block continueTarget) {
+            Name label = pendingLabel;
+            pendingLabel = null;
+            return new Target(label, true, false, breakTarget, continueTarget);
+        }
+
+        private void labeled(LabeledStatementTree tree) {
+            switch (tree.getStatement().getKind()) {
+                case WHILE_LOOP:
+                case DO_WHILE_LOOP:
+                case FOR_LOOP:
+                case ENHANCED_FOR_LOOP:
+                    pendingLabel = tree.getLabel();
+                    statement(tree.getStatement());
+                    break;
+                default:
+                    Block after = newBlock();
+                    targets.push(new Target(tree.getLabel(), false, true, after, null));
+                    statement(tree.getStatement());
+                    edge(current, after);
+                    targets.pop();
+                    current = after;
+            }
+        }
+
+        private void switchStatement(SwitchTree tree) {
+            expression(tree.getExpression(), TransitionElement.AFTER);
+            Block head = current;
+            Block after = newBlock();
+
+            targets.push(new Target(null, false, false, after, null));
+            boolean hasDefault = false;
+            for (CaseTree caseTree : tree.getCases()) {
+                Block caseBlock = newBlock();
+                edge(head, caseBlock);
+                // Falling through from the previous case.
+                if (current != head) {
+                    edge(current, caseBlock);
+                }
+
+                current = caseBlock;
+                for (StatementTree statement : caseTree.getStatements()) {
+                    statement(statement);
+                }
+
+                if (caseTree.getExpression() == null) {
+                    hasDefault = true;
+                }
+            }
+            edge(current, after);
+            if (!hasDefault) {
+                edge(head, after);
+            }
+            targets.pop();
+
+            current = after;
+        }
+
+        private Target target(Name label, boolean loop, Tree jump) {
+            for (Target target : targets) {
+                if (label == null ? !target.labeledOnly && (target.loop || !loop)
+                        : label.equals(target.label) && (target.loop || !loop)) {
+                    return target;
+                }
+            }
+
+            throw new UnsupportedTreeException(jump);
+        }
+
+        /**
+         * Adds the condition, with edges to the given blocks. A null condition is always true.
+         */
+        private void condition(ExpressionTree tree, Block whenTrue, Block whenFalse) {
+            if (tree == null) {
+                edge(current, whenTrue);
+            } else if (conditions.isSplit(tree)) {
+                boolean inverted = conditions.isInverted(tree);
+                Block from = current;
+
+                current = newBlock();
+                edge(from, current);
+                expression(tree, inverted ? TransitionElement.AFTER_FALSE : TransitionElement.AFTER_TRUE);
+                edge(current, whenTrue);
+
+                current = newBlock();
+                edge(from, current);
+                expression(tree, inverted ? TransitionElement.AFTER_TRUE : TransitionElement.AFTER_FALSE);
+                edge(current, whenFalse);
+            } else {
+                expression(tree, TransitionElement.AFTER);
+                edge(current, whenTrue);
+                edge(current, whenFalse);
+            }
+        }
+
+        private void expression(ExpressionTree tree, final TransitionElement element) {
+            new TreeScanner<Void, Void>() {
+                @Override
+                public Void visitMethodInvocation(MethodInvocationTree node, Void p) {
+                    Set<Integer> operands = new LinkedHashSet<Integer>();
+                    if (node.getMethodSelect().getKind() == Tree.Kind.MEMBER_SELECT) {
+                        addOperand(operands, ((MemberSelectTree) node.getMethodSelect()).getExpression());
+                    }
+                    for (ExpressionTree argument : node.getArguments()) {
+                        addOperand(operands, argument);
+                    }
+                    operands.addAll(observed);
+
+                    int[] indexes = new int[operands.size()];
+                    int i = 0;
+                    for (Integer operand : operands) {
+                        indexes[i++] = operand;
+                    }
+                    add(OpKind.CALL, node, null, element, indexes, indexes);
+
+                    super.visitMethodInvocation(node, p);
+
+                    // As in the flow, the code after System.exit() is dead.
+                    ExecutableElement method = TreeUtils.elementFromUse(node);
+                    if (method.getSimpleName().contentEquals("exit")
+                            && method.getEnclosingElement().getSimpleName().contentEquals("System")) {
+                        current = newBlock();
+                    }
+                    return null;
+                }
+
+                private void addOperand(Set<Integer> operands, ExpressionTree operand) {
+                    int index = varIndex(operand);
+                    if (index >= 0) {
+                        operands.add(index);
+                    }
+                }
+
+                @Override
+                public Void visitAssignment(AssignmentTree node, Void p) {
+                    assignment(node, node.getVariable(), node.getExpression());
+                    return null;
+                }
+
+                @Override
+                public Void visitCompoundAssignment(CompoundAssignmentTree node, Void p) {
+                    assignment(node, node.getVariable(), node.getExpression());
+                    return null;
+                }
+
+                private void assignment(ExpressionTree node, ExpressionTree variable, ExpressionTree expression) {
+                    if (!(variable instanceof IdentifierTree)) {
+                        scan(variable, null);
+                    }
+                    scan(expression, null);
+
+                    // Assignments to arrays don't change any states; the states of fields assigned in the method
+                    // can only be read by calls, which aren't supported then.
+                    Integer index = varIndexes.get(InternalUtils.symbol(variable));
+                    if (variable.getKind() != Tree.Kind.ARRAY_ACCESS && index != null) {
+                        add(OpKind.ASSIGN, node, expression, null, used(expression), new int[] { index });
+                    }
+                }
+
+                @Override
+                public Void visitConditionalExpression(ConditionalExpressionTree node, Void p) {
+                    throw new UnsupportedTreeException(node);
+                }
+
+                @Override
+                public Void visitClass(ClassTree node, Void p) {
+                    throw new UnsupportedTreeException(node);
+                }
+            }.scan(tree, null);
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package checkers.typestate.ssa;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.TransitionElement;
+import com.sun.source.tree.EnhancedForLoopTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.VariableTree;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.VariableElement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A sparse alternative to the dense flow analysis: the method is put in SSA form for the variables declared in it,
+ * and the states are propagated along the def-use chains, joining only at phi nodes. Each state value is computed
+ * only at the operations which mention its variable (see {@link ControlFlowGraph}), instead of a vector of all
+ * variables being passed through every statement.
+ *
+ * The values are computed to a fixpoint first, without reporting errors; the joins at phi nodes include the previous
+ * value of the node, so that the values only lose states and the propagation terminates. Then, the calls are checked
+ * once more with the final values, and errors are reported.
+ *
+ * Unlike the flow, which scans the body of a loop at most twice, the states at a loop are the fixpoint of all
+ * iterations. As in the flow, the states at a break are joined into the states after its target, and the states at a
+ * continue into the states at the start of the next iteration. Code which can't be reached is not checked, so errors
+ * which the flow reports in such code (e.g. after {@code System.exit()}) are missing.
+ *
+ * Methods with try statements, assertions, conditional expressions or nested classes, or which use the fields tracked
+ * by the flow, aren't supported (see {@link ControlFlowGraph}): building the engine fails, and the method should be
+ * scanned by the flow instead.
+ *
+ * The values of the variables at the exit of the method are available after the analysis, e.g. to summarise the
+ * transitions of the parameters.
+ *
+ * @param <V> Type of the state values of a single variable.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class SparseEngine<V> {
+    /**
+     * The typestate semantics of the operations.
+     * @param <V> Type of the state values of a single variable.
+     */
+    public interface Semantics<V> {
+        /**
+         * @param variable A parameter, or a local variable without an initializer.
+         * @return The declared states of the variable.
+         */
+        V declared(VariableTree variable);
+
+        /**
+         * @param rhs The right-hand side of an assignment to a variable.
+         * @param rhsValue The states of the right-hand side, if it is a variable declared in the method.
+         * @return The states of the assigned variable.
+         */
+        V assigned(ExpressionTree rhs, @Nullable V rhsValue);
+
+        /**
+         * @param loop An enhanced for loop.
+         * @return The states of the variable of the loop, in each iteration.
+         */
+        V iterated(EnhancedForLoopTree loop);
+
+        /**
+         * Checks the states of the receiver and the arguments of a call, doing the transitions.
+         * @param call The call to check.
+         * @param element The transition to read.
+         * @param values The states of the variables among the receiver and the arguments, and of the observed ones;
+         * updated with their states after the call.
+         * @param report True iff errors should be reported.
+         */
+        void call(MethodInvocationTree call, TransitionElement element, Map<Element, V> values, boolean report);
+
+        /**
+         * @return The states which are in both values.
+         */
+        V join(V value, V other);
+
+        /**
+         * @param condition A condition of a branch or loop.
+         * @return True iff the condition is checked with the "after true" and "after false" transitions.
+         */
+        boolean isSplit(ExpressionTree condition);
+
+        /**
+         * @param condition A split condition.
+         * @return True if the condition is true when the result of its call is false.
+         */
+        boolean isInverted(ExpressionTree condition);
+
+        /**
+         * @param variable A field.
+         * @return True iff the states of the field are tracked by the flow, outside of the analysed method.
+         */
+        boolean isTrackedOutside(VariableElement variable);
+
+        /**
+         * @param variable A variable declared in the method.
+         * @return True iff the states of the variable should be passed to all calls, e.g. to find the states in which
+         * the variable may be when a call throws an exception.
+         */
+        boolean isObservedAtCalls(VariableElement variable);
+    }
+
+    // An SSA value: a definition of a variable, by an operation or a phi node.
+    private static class Def<V> {
+        private V value;
+        private final List<Node<V>> users = new ArrayList<Node<V>>();
+    }
+
+    private abstract static class Node<V> {
+        private boolean queued;
+    }
+
+    private static class OpNode<V> extends Node<V> {
+        private final ControlFlowGraph.Op op;
+        private final List<Def<V>> inputs = new ArrayList<Def<V>>();
+        private final List<Def<V>> outputs = new ArrayList<Def<V>>();
+
+        private OpNode(ControlFlowGraph.Op op) {
+            this.op = op;
+        }
+    }
+
+    private static class PhiNode<V> extends Node<V> {
+        private final int var;
+        private final Def<V> output = new Def<V>();
+        // One operand for each reachable predecessor of the block; null if the variable isn't defined there.
+        private final List<Def<V>> operands = new ArrayList<Def<V>>();
+
+        private PhiNode(int var) {
+            this.var = var;
+        }
+    }
+
+    private final Semantics<V> semantics;
+    private final ControlFlowGraph graph;
+
+    // Reachable blocks in reverse postorder, and for each block index, its position in that order (-1 if unreachable).
+    private final List<ControlFlowGraph.Block> order = new ArrayList<ControlFlowGraph.Block>();
+    private final int[] positions;
+    private final int[] idoms;
+    private final List<List<PhiNode<V>>> phis = new ArrayList<List<PhiNode<V>>>();
+    private final List<List<OpNode<V>>> opNodes = new ArrayList<List<OpNode<V>>>();
+    // For each variable, its definition reaching the exit block; null if there is none, or if the exit is unreachable.
+    private final List<Def<V>> exitDefs = new ArrayList<Def<V>>();
+    private int phiCount;
+
+    private SparseEngine(MethodTree method, Semantics<V> semantics) {
+        this.semantics = semantics;
+        this.graph = ControlFlowGraph.build(method, new ControlFlowGraph.Conditions() {
+            public boolean isSplit(ExpressionTree condition) {
+                return SparseEngine.this.semantics.isSplit(condition);
+            }
+
+            public boolean isInverted(ExpressionTree condition) {
+                return SparseEngine.this.semantics.isInverted(condition);
+            }
+
+            public boolean isTrackedOutside(VariableElement variable) {
+                return SparseEngine.this.semantics.isTrackedOutside(variable);
+            }
+
+            public boolean isObservedAtCalls(VariableElement variable) {
+                return SparseEngine.this.semantics.isObservedAtCalls(variable);
+            }
+        });
+
+        int blocks = graph.getBlocks().size();
+        positions = new int[blocks];
+        idoms = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            phis.add(new ArrayList<PhiNode<V>>());
+            opNodes.add(new ArrayList<OpNode<V>>());
+        }
+
+        orderBlocks();
+        computeDominators();
+        placePhis();
+        rename();
+    }
+
+    /**
+     * Puts the method in SSA form.
+     * @param method The method to analyse.
+     * @param semantics The semantics of the operations.
+     * @return An engine for the method.
+     * @throws UnsupportedTreeException If the method contains a construct which isn't supported.
+     */
+    public static <V> SparseEngine<V> build(MethodTree method, Semantics<V> semantics) {
+        return new SparseEngine<V>(method, semantics);
+    }
+
+    /**
+     * @return The number of phi nodes in the SSA form.
+     */
+    public int getPhiCount() {
+        return phiCount;
+    }
+
+    /**
+     * @return The control flow graph of the method, from which the SSA form is built.
+     */
+    public ControlFlowGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Propagates the states to a fixpoint, and then checks all calls, reporting errors. The values are computed from
+     * scratch on each call, so the method can be analysed again, e.g. when the semantics of its calls change.
+     */
+    public void analyse() {
+        Deque<Node<V>> worklist = new LinkedList<Node<V>>();
+        for (ControlFlowGraph.Block block : order) {
+            for (PhiNode<V> phi : phis.get(block.index)) {
+                phi.output.value = null;
+                enqueue(worklist, phi);
+            }
+            for (OpNode<V> opNode : opNodes.get(block.index)) {
+                for (Def<V> output : opNode.outputs) {
+                    output.value = null;
+                }
+                if (!opNode.outputs.isEmpty()) {
+                    enqueue(worklist, opNode);
+                }
+            }
+        }
+
+        while (!worklist.isEmpty()) {
+            Node<V> node = worklist.poll();
+            node.queued = false;
+
+            List<Def<V>> changed = node instanceof PhiNode ? evaluate((PhiNode<V>) node)
+                    : evaluate((OpNode<V>) node, false);
+            for (Def<V> def : changed) {
+                for (Node<V> user : def.users) {
+                    enqueue(worklist, user);
+                }
+            }
+        }
+
+        for (ControlFlowGraph.Block block : order) {
+            for (OpNode<V> opNode : opNodes.get(block.index)) {
+                if (opNode.op.kind == ControlFlowGraph.OpKind.CALL) {
+                    evaluate(opNode, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The values of the variables at the exit of the method, after the analysis. Variables which aren't
+     * defined at the exit, or all of them if the exit is unreachable, are missing.
+     */
+    public Map<VariableElement, V> getExitValues() {
+        Map<VariableElement, V> result = new LinkedHashMap<VariableElement, V>();
+        for (int var = 0; var < exitDefs.size(); var++) {
+            Def<V> def = exitDefs.get(var);
+            if (def != null && def.value != null) {
+                result.put(graph.getVars().get(var), def.value);
+            }
+        }
+        return result;
+    }
+
+    private static <V> void enqueue(Deque<Node<V>> worklist, Node<V> node) {
+        if (!node.queued) {
+            node.queued = true;
+            worklist.add(node);
+        }
+    }
+
+    private List<Def<V>> evaluate(PhiNode<V> phi) {
+        V value = phi.output.value;
+        for (Def<V> operand : phi.operands) {
+            if (operand != null && operand.value != null) {
+                value = value == null ? operand.value : semantics.join(value, operand.value);
+            }
+        }
+
+        return update(phi.output, value) ? Collections.singletonList(phi.output) : Collections.<Def<V>>emptyList();
+    }
+
+    private List<Def<V>> evaluate(OpNode<V> opNode, boolean report) {
+        ControlFlowGraph.Op op = opNode.op;
+        List<V> inputs = new ArrayList<V>(opNode.inputs.size());
+        for (Def<V> input : opNode.inputs) {
+            // The variable may be not yet defined in the first iteration of a loop.
+            if (input == null || input.value == null) {
+                return Collections.emptyList();
+            }
+            inputs.add(input.value);
+        }
+
+        List<Def<V>> changed = new ArrayList<Def<V>>(opNode.outputs.size());
+        switch (op.kind) {
+            case PARAMETER:
+            case DECLARE:
+                updateOutput(changed, opNode.outputs.get(0), semantics.declared((VariableTree) op.tree));
+                break;
+            case ASSIGN:
+                updateOutput(changed, opNode.outputs.get(0),
+                        semantics.assigned(op.rhs, inputs.isEmpty() ? null : inputs.get(0)));
+                break;
+            case ITERATE:
+                updateOutput(changed, opNode.outputs.get(0), semantics.iterated((EnhancedForLoopTree) op.tree));
+                break;
+            case CALL:
+                List<VariableElement> vars = graph.getVars();
+                Map<Element, V> values = new LinkedHashMap<Element, V>();
+                for (int i = 0; i < op.used.length; i++) {
+                    values.put(vars.get(op.used[i]), inputs.get(i));
+                }
+                semantics.call((MethodInvocationTree) op.tree, op.element, values, report);
+                for (int i = 0; i < op.defined.length; i++) {
+                    updateOutput(changed, opNode.outputs.get(i), values.get(vars.get(op.defined[i])));
+                }
+                break;
+        }
+
+        return changed;
+    }
+
+    private void updateOutput(List<Def<V>> changed, Def<V> output, V value) {
+        if (update(output, value)) {
+            changed.add(output);
+        }
+    }
+
+    private boolean update(Def<V> def, V value) {
+        if (value == null || value.equals(def.value)) {
+            return false;
+        }
+
+        def.value = value;
+        return true;
+    }
+
+    // **********************************************************************
+    // The SSA form.
+
+    private void orderBlocks() {
+        List<ControlFlowGraph.Block> postorder = new ArrayList<ControlFlowGraph.Block>();
+        Set<ControlFlowGraph.Block> visited = new HashSet<ControlFlowGraph.Block>();
+        // Iterative depth-first search, as the graphs of long methods are deep.
+        Deque<ControlFlowGraph.Block> stack = new LinkedList<ControlFlowGraph.Block>();
+        Deque<Integer> nextSuccessor = new LinkedList<Integer>();
+        stack.push(graph.getEntry());
+        nextSuccessor.push(0);
+        visited.add(graph.getEntry());
+        while (!stack.isEmpty()) {
+            ControlFlowGraph.Block block = stack.peek();
+            int next = nextSuccessor.pop();
+            if (next < block.successors.size()) {
+                nextSuccessor.push(next + 1);
+                ControlFlowGraph.Block successor = block.successors.get(next);
+                if (visited.add(successor)) {
+                    stack.push(successor);
+                    nextSuccessor.push(0);
+                }
+            } else {
+                stack.pop();
+                postorder.add(block);
+            }
+        }
+
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = -1;
+        }
+        for (int i = postorder.size() - 1; i >= 0; i--) {
+            positions[postorder.get(i).index] = order.size();
+            order.add(postorder.get(i));
+        }
+    }
+
+    private List<ControlFlowGraph.Block> reachablePredecessors(ControlFlowGraph.Block block) {
+        List<ControlFlowGraph.Block> result = new ArrayList<ControlFlowGraph.Block>(block.predecessors.size());
+        for (ControlFlowGraph.Block predecessor : block.predecessors) {
+            if (positions[predecessor.index] >= 0) {
+                result.add(predecessor);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * "A Simple, Fast Dominance Algorithm", by Cooper, Harvey and Kennedy.
+     */
+    private void computeDominators() {
+        for (int i = 0; i < idoms.length; i++) {
+            idoms[i] = -1;
+        }
+        int entry = graph.getEntry().index;
+        idoms[entry] = entry;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ControlFlowGraph.Block block : order) {
+                if (block.index == entry) {
+                    continue;
+                }
+
+                int idom = -1;
+                for (ControlFlowGraph.Block predecessor : reachablePredecessors(block)) {
+                    if (idoms[predecessor.index] >= 0) {
+                        idom = idom < 0 ? predecessor.index : intersect(predecessor.index, idom);
+                    }
+                }
+
+                if (idoms[block.index] != idom) {
+                    idoms[block.index] = idom;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private int intersect(int block1, int block2) {
+        while (block1 != block2) {
+            while (positions[block1] > positions[block2]) {
+                block1 = idoms[block1];
+            }
+            while (positions[block2] > positions[block1]) {
+                block2 = idoms[block2];
+            }
+        }
+        return block1;
+    }
+
+    /**
+     * Places the phi nodes of each variable at the iterated dominance frontier of the blocks defining it.
+     */
+    private void placePhis() {
+        List<Set<ControlFlowGraph.Block>> frontiers = new ArrayList<Set<ControlFlowGraph.Block>>();
+        for (int i = 0; i < idoms.length; i++) {
+            frontiers.add(new HashSet<ControlFlowGraph.Block>());
+        }
+        for (ControlFlowGraph.Block block : order) {
+            List<ControlFlowGraph.Block> predecessors = reachablePredecessors(block);
+            if (predecessors.size() < 2) {
+                continue;
+            }
+            for (ControlFlowGraph.Block predecessor : predecessors) {
+                int runner = predecessor.index;
+                while (runner != idoms[block.index]) {
+                    frontiers.get(runner).add(block);
+                    runner = idoms[runner];
+                }
+            }
+        }
+
+        int varCount = graph.getVars().size();
+        List<List<ControlFlowGraph.Block>> defBlocks = new ArrayList<List<ControlFlowGraph.Block>>(varCount);
+        for (int i = 0; i < varCount; i++) {
+            defBlocks.add(new ArrayList<ControlFlowGraph.Block>());
+        }
+        for (ControlFlowGraph.Block block : order) {
+            for (ControlFlowGraph.Op op : block.ops) {
+                for (int var : op.defined) {
+                    List<ControlFlowGraph.Block> varDefBlocks = defBlocks.get(var);
+                    if (varDefBlocks.isEmpty() || varDefBlocks.get(varDefBlocks.size() - 1) != block) {
+                        varDefBlocks.add(block);
+                    }
+                }
+            }
+        }
+
+        for (int var = 0; var < varCount; var++) {
+            Set<ControlFlowGraph.Block> hasPhi = new HashSet<ControlFlowGraph.Block>();
+            Deque<ControlFlowGraph.Block> worklist = new LinkedList<ControlFlowGraph.Block>(defBlocks.get(var));
+            Set<ControlFlowGraph.Block> added = new HashSet<ControlFlowGraph.Block>(defBlocks.get(var));
+            while (!worklist.isEmpty()) {
+                for (ControlFlowGraph.Block frontier : frontiers.get(worklist.poll().index)) {
+                    if (hasPhi.add(frontier)) {
+                        phis.get(frontier.index).add(new PhiNode<V>(var));
+                        phiCount++;
+                        if (added.add(frontier)) {
+                            worklist.add(frontier);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Renames the variables, walking the dominator tree, and links the definitions to their uses.
+     */
+    private void rename() {
+        List<List<ControlFlowGraph.Block>> children = new ArrayList<List<ControlFlowGraph.Block>>();
+        for (int i = 0; i < idoms.length; i++) {
+            children.add(new ArrayList<ControlFlowGraph.Block>());
+        }
+        for (ControlFlowGraph.Block block : order) {
+            if (block != graph.getEntry()) {
+                children.get(idoms[block.index]).add(block);
+            }
+        }
+
+        List<Deque<Def<V>>> stacks = new ArrayList<Deque<Def<V>>>();
+        for (int i = 0; i < graph.getVars().size(); i++) {
+            stacks.add(new LinkedList<Def<V>>());
+        }
+
+        // Iterative walk: each block is visited when pushed, and its definitions are popped after its children.
+        Deque<ControlFlowGraph.Block> walk = new LinkedList<ControlFlowGraph.Block>();
+        Deque<List<Integer>> pushedVars = new LinkedList<List<Integer>>();
+        Deque<Integer> nextChild = new LinkedList<Integer>();
+        walk.push(graph.getEntry());
+        pushedVars.push(renameBlock(graph.getEntry(), stacks));
+        nextChild.push(0);
+        while (!walk.isEmpty()) {
+            ControlFlowGraph.Block block = walk.peek();
+            int next = nextChild.pop();
+            if (next < children.get(block.index).size()) {
+                nextChild.push(next + 1);
+                ControlFlowGraph.Block child = children.get(block.index).get(next);
+                walk.push(child);
+                pushedVars.push(renameBlock(child, stacks));
+                nextChild.push(0);
+            } else {
+                walk.pop();
+                for (int var : pushedVars.pop()) {
+                    stacks.get(var).pop();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The variables whose definitions were pushed.
+     */
+    private List<Integer> renameBlock(ControlFlowGraph.Block block, List<Deque<Def<V>>> stacks) {
+        List<Integer> pushed = new ArrayList<Integer>();
+        for (PhiNode<V> phi : phis.get(block.index)) {
+            stacks.get(phi.var).push(phi.output);
+            pushed.add(phi.var);
+        }
+
+        for (ControlFlowGraph.Op op : block.ops) {
+            OpNode<V> opNode = new OpNode<V>(op);
+            for (int var : op.used) {
+                Def<V> input = stacks.get(var).peek();
+                opNode.inputs.add(input);
+                if (input != null) {
+                    input.users.add(opNode);
+                }
+            }
+            for (int var : op.defined) {
+                Def<V> output = new Def<V>();
+                opNode.outputs.add(output);
+                stacks.get(var).push(output);
+                pushed.add(var);
+            }
+            opNodes.get(block.index).add(opNode);
+        }
+
+        if (block == graph.getExit()) {
+            for (Deque<Def<V>> stack : stacks) {
+                exitDefs.add(stack.peek());
+            }
+        }
+
+        for (ControlFlowGraph.Block successor : block.successors) {
+            if (positions[successor.index] < 0) {
+                continue;
+            }
+            int predecessorIndex = reachablePredecessors(successor).indexOf(block);
+            for (PhiNode<V> phi : phis.get(successor.index)) {
+                while (phi.operands.size() <= predecessorIndex) {
+                    phi.operands.add(null);
+                }
+                Def<V> operand = stacks.get(phi.var).peek();
+                phi.operands.set(predecessorIndex, operand);
+                if (operand != null) {
+                    operand.users.add(phi);
+                }
+            }
+        }
+
+        return pushed;
+    }
+}
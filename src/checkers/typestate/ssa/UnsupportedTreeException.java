@@ -0,0 +1,21 @@
+package checkers.typestate.ssa;
+
+import com.sun.source.tree.Tree;
+
+/**
+ * Thrown when a method contains a construct which isn't supported by the {@link SparseEngine}; the method should then
+ * be analysed by the flow.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class UnsupportedTreeException extends RuntimeException {
+    private final Tree tree;
+
+    public UnsupportedTreeException(Tree tree) {
+        super("Unsupported tree: " + tree.getKind());
+        this.tree = tree;
+    }
+
+    public Tree getTree() {
+        return tree;
+    }
+}
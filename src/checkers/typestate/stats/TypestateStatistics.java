@@ -0,0 +1,237 @@
+package checkers.typestate.stats;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Timings and counters of a single run of the typestate checker, enabled with the
+ * {@link checkers.typestate.TypestateOptions#STATS} option.
+ *
+ * Phases may nest (the type factory is queried both by the detector and by the flow); a phase entered again while
+ * it is already running is only timed once, so each phase's time is wall time, but the times of different phases
+ * overlap.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateStatistics {
+    public enum Phase {
+        DETECTOR("state annotations detection"),
+        FLOW("flow analysis"),
+        TYPE_FACTORY("type factory queries");
+
+        private final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+    }
+
+    public enum Counter {
+        UNITS_CHECKED("compilation units checked"),
+        UNITS_SKIPPED("compilation units skipped"),
+        METHODS_ANALYSED("methods analysed"),
+        METHODS_OVER_BUDGET("methods over the analysis budget"),
+        METHODS_CANCELLED("methods whose analysis was cancelled"),
+        METHODS_SPARSE("methods analysed by the sparse engine"),
+        METHODS_SUMMARISED("methods summarised"),
+        SUMMARY_HITS("method summaries used"),
+        IFDS_PATH_EDGES("IFDS path edges"),
+        FLOW_STEPS("flow transfer steps (trees visited in methods)"),
+        CALL_SITES("call sites checked"),
+        STATE_VECTOR_COPIES("state vector copies"),
+        STATE_VECTOR_SHARES("state vector copies shared with an equal one"),
+        STATE_VECTOR_MERGES("state vector merges"),
+        LOOP_RESCANS("loop rescans"),
+        FINALLY_RESCANS("finally rescans"),
+        CONDITION_RESCANS("condition rescans"),
+        VAR_DEF_CACHE_HITS("variable definition cache hits"),
+        VAR_DEF_CACHE_MISSES("variable definition cache misses"),
+        BLOCK_TRANSFERS_RECORDED("straight-line statement runs scanned and summarised"),
+        BLOCK_TRANSFERS_APPLIED("straight-line statement runs replayed from their summary"),
+        SPEC_INDEX_HITS("spec index cache hits"),
+        SPEC_INDEX_MISSES("spec index cache misses");
+
+        private final String description;
+
+        Counter(String description) {
+            this.description = description;
+        }
+    }
+
+    /**
+     * Time spent analysing a single method.
+     */
+    public static class MethodTiming {
+        private final String method;
+        private final String position;
+        private final long nanos;
+
+        public MethodTiming(String method, String position, long nanos) {
+            this.method = method;
+            this.position = position;
+            this.nanos = nanos;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPosition() {
+            return position;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    private static final Comparator<MethodTiming> BY_TIME = new Comparator<MethodTiming>() {
+        public int compare(MethodTiming t1, MethodTiming t2) {
+            return t1.nanos < t2.nanos ? -1 : (t1.nanos == t2.nanos ? 0 : 1);
+        }
+    };
+
+    private final int slowestMethodsCount;
+
+    private final Map<Phase, Long> phaseNanos = new EnumMap<Phase, Long>(Phase.class);
+    private final Map<Phase, Long> phaseStarts = new EnumMap<Phase, Long>(Phase.class);
+    private final Map<Phase, Integer> phaseDepths = new EnumMap<Phase, Integer>(Phase.class);
+    private final long[] counters = new long[Counter.values().length];
+
+    // A min-heap, so that the fastest of the recorded methods can be replaced.
+    private final PriorityQueue<MethodTiming> slowestMethods;
+
+    /**
+     * @param slowestMethodsCount Number of the slowest methods to include in the report.
+     */
+    public TypestateStatistics(int slowestMethodsCount) {
+        this.slowestMethodsCount = slowestMethodsCount;
+        this.slowestMethods = new PriorityQueue<MethodTiming>(Math.max(slowestMethodsCount, 1), BY_TIME);
+
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, 0L);
+            phaseDepths.put(phase, 0);
+        }
+    }
+
+    /**
+     * @return The current time, in nanoseconds; the clock with which the phases are timed.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public void start(Phase phase) {
+        int depth = phaseDepths.get(phase);
+        if (depth == 0) {
+            phaseStarts.put(phase, nanoTime());
+        }
+        phaseDepths.put(phase, depth + 1);
+    }
+
+    public void stop(Phase phase) {
+        int depth = phaseDepths.get(phase) - 1;
+        phaseDepths.put(phase, depth);
+        if (depth == 0) {
+            phaseNanos.put(phase, phaseNanos.get(phase) + nanoTime() - phaseStarts.get(phase));
+        }
+    }
+
+    public void increment(Counter counter) {
+        counters[counter.ordinal()]++;
+    }
+
+    public void add(Counter counter, long value) {
+        counters[counter.ordinal()] += value;
+    }
+
+    public void set(Counter counter, long value) {
+        counters[counter.ordinal()] = value;
+    }
+
+    public long get(Counter counter) {
+        return counters[counter.ordinal()];
+    }
+
+    public long getNanos(Phase phase) {
+        return phaseNanos.get(phase);
+    }
+
+    /**
+     * @param method Name of the analysed method.
+     * @param position Source position of the method, as {@code file:line}.
+     * @param nanos Time spent analysing the method.
+     */
+    public void methodAnalysed(String method, String position, long nanos) {
+        increment(Counter.METHODS_ANALYSED);
+        if (slowestMethodsCount <= 0) {
+            return;
+        }
+
+        if (slowestMethods.size() < slowestMethodsCount) {
+            slowestMethods.add(new MethodTiming(method, position, nanos));
+        } else if (slowestMethods.peek().nanos < nanos) {
+            slowestMethods.poll();
+            slowestMethods.add(new MethodTiming(method, position, nanos));
+        }
+    }
+
+    /**
+     * @return The slowest analysed methods, slowest first.
+     */
+    public List<MethodTiming> getSlowestMethods() {
+        List<MethodTiming> result = new ArrayList<MethodTiming>(slowestMethods);
+        Collections.sort(result, Collections.reverseOrder(BY_TIME));
+        return result;
+    }
+
+    /**
+     * Writes the report, replacing the content of the given file.
+     * @param reportFile File to which to write the report.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(File reportFile) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8"));
+        try {
+            write(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void write(PrintWriter writer) {
+        writer.println("Typestate checker statistics");
+        writer.println();
+        writer.println("Phases (wall time, ms; type factory queries overlap the other phases):");
+        for (Phase phase : Phase.values()) {
+            writer.println(String.format(Locale.US, "  %-40s %12.3f", phase.description, millis(getNanos(phase))));
+        }
+
+        writer.println();
+        writer.println("Counters:");
+        for (Counter counter : Counter.values()) {
+            writer.println(String.format(Locale.US, "  %-40s %12d", counter.description, get(counter)));
+        }
+
+        writer.println();
+        writer.println("Slowest methods (ms):");
+        for (MethodTiming timing : getSlowestMethods()) {
+            writer.println(String.format(Locale.US, "  %12.3f  %s  %s", millis(timing.nanos), timing.method,
+                    timing.position));
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,66 @@
+package checkers.typestate.stream;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A diagnostic reported in an analysed method. The arguments of the message are converted to strings, so that the
+ * diagnostic doesn't refer to the compiler's trees and elements.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class MethodDiagnostic {
+    private final boolean warning;
+    private final String key;
+    private final List<String> args;
+    private final long position;
+    private final long line;
+
+    public MethodDiagnostic(boolean warning, String key, List<String> args, long position, long line) {
+        this.warning = warning;
+        this.key = key;
+        this.args = Collections.unmodifiableList(args);
+        this.position = position;
+        this.line = line;
+    }
+
+    /**
+     * @return True for a warning, false for an error.
+     */
+    public boolean isWarning() {
+        return warning;
+    }
+
+    /**
+     * @return Key of the message, e.g. {@code receiver.in.wrong.state}.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return Arguments of the message.
+     */
+    public List<String> getArgs() {
+        return args;
+    }
+
+    /**
+     * @return Source position of the tree at which the diagnostic is reported, or -1 if unknown.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return Line of the tree at which the diagnostic is reported, or -1 if unknown.
+     */
+    public long getLine() {
+        return line;
+    }
+
+    @Override
+    public String toString() {
+        return ":" + line + ": (" + key + ") " + Arrays.toString(args.toArray());
+    }
+}
@@ -0,0 +1,21 @@
+package checkers.typestate.stream;
+
+/**
+ * Receives the results of the analysis of each method as soon as the method is analysed, instead of when the whole
+ * compilation unit is checked. Registered with {@link checkers.typestate.TypestateChecker#addMethodListener}, the
+ * listener is called on a separate thread, in the order in which the methods are analysed.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public interface MethodListener {
+    /**
+     * Called when the analysis of an outermost method (with the classes nested in it) completes.
+     * @param result The diagnostics and the metadata of the analysis.
+     */
+    void methodAnalysed(MethodResult result);
+
+    /**
+     * Called when all methods of (the scanned classes of) a compilation unit are analysed.
+     * @param unitKey Key of the unit, as returned by {@link checkers.typestate.deps.DependencyIndex#keyOf}.
+     */
+    void unitAnalysed(String unitKey);
+}
@@ -0,0 +1,96 @@
+package checkers.typestate.stream;
+
+import checkers.nullness.quals.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of the analysis of an outermost method: the diagnostics reported in it (and in the classes nested in
+ * it), and metadata of the analysis.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class MethodResult {
+    private final String unitKey;
+    private final String method;
+    private final String position;
+    private final List<MethodDiagnostic> diagnostics;
+    private final long nanos;
+    private final int trackedVariables;
+    private final int rescans;
+    private final @Nullable String exceededBudget;
+
+    public MethodResult(String unitKey, String method, String position, List<MethodDiagnostic> diagnostics,
+                        long nanos, int trackedVariables, int rescans, @Nullable String exceededBudget) {
+        this.unitKey = unitKey;
+        this.method = method;
+        this.position = position;
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.nanos = nanos;
+        this.trackedVariables = trackedVariables;
+        this.rescans = rescans;
+        this.exceededBudget = exceededBudget;
+    }
+
+    /**
+     * @return Key of the compilation unit containing the method.
+     */
+    public String getUnitKey() {
+        return unitKey;
+    }
+
+    /**
+     * @return Name of the method, with its class.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return Source position of the method, as {@code file:line}.
+     */
+    public String getPosition() {
+        return position;
+    }
+
+    /**
+     * @return The diagnostics, in the order in which they were reported.
+     */
+    public List<MethodDiagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * @return Time of the analysis of the method, in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return Number of variables tracked by the flow at the end of the method.
+     */
+    public int getTrackedVariables() {
+        return trackedVariables;
+    }
+
+    /**
+     * @return Number of rescans of loops, finally blocks and conditions within the method.
+     */
+    public int getRescans() {
+        return rescans;
+    }
+
+    /**
+     * @return The budget ("time" or "steps") which the analysis exceeded, so that only the fallback check was done;
+     * null if the method was analysed within the budget.
+     */
+    public @Nullable String getExceededBudget() {
+        return exceededBudget;
+    }
+
+    @Override
+    public String toString() {
+        return method + " (" + position + "): " + diagnostics;
+    }
+}
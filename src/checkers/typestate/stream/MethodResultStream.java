@@ -0,0 +1,158 @@
+package checkers.typestate.stream;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Passes the results of the analysis to a {@link MethodListener} on a separate thread, through a bounded queue. The
+ * analysis doesn't wait for the listener, unless the queue is full: then it waits until the listener takes a result,
+ * so a slow listener slows down the analysis, instead of the queued results using up the memory.
+ *
+ * If the listener throws an exception, no more results are passed to it, and the exception is rethrown (wrapped) to
+ * the analysis on the next result, or on {@link #close()}.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class MethodResultStream implements MethodListener {
+    // Marks the end of the stream in the queue.
+    private static final Object END = new Object();
+
+    private final MethodListener listener;
+    private final BlockingQueue<Object> queue;
+    private final Thread dispatcher;
+
+    private volatile Throwable failure;
+    private boolean closed;
+
+    /**
+     * Starts the thread calling the listener.
+     * @param listener The listener to which the results are passed.
+     * @param capacity Maximum number of results (and unit ends) waiting for the listener.
+     */
+    public MethodResultStream(MethodListener listener, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be positive, got: " + capacity);
+        }
+
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+        this.dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "typestate-method-results");
+        // The thread mustn't keep the compiler running, if the stream isn't closed.
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    private void dispatch() {
+        while (true) {
+            Object element;
+            try {
+                element = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (element == END) {
+                return;
+            }
+            // After a failure, the results are only taken from the queue, so that the analysis doesn't wait.
+            if (failure != null) {
+                continue;
+            }
+
+            try {
+                if (element instanceof MethodResult) {
+                    listener.methodAnalysed((MethodResult) element);
+                } else {
+                    listener.unitAnalysed((String) element);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+
+    public void methodAnalysed(MethodResult result) {
+        put(result);
+    }
+
+    public void unitAnalysed(String unitKey) {
+        put(unitKey);
+    }
+
+    private void put(Object element) {
+        checkFailure();
+        if (closed) {
+            throw new IllegalStateException("The stream is closed.");
+        }
+
+        try {
+            queue.put(element);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the method listener.", e);
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("The method listener failed.", failure);
+        }
+    }
+
+    /**
+     * Waits until the listener receives all queued results, and stops the thread calling it. The thread is stopped
+     * also if the listener failed, or if this thread is interrupted while waiting; then the results which the listener
+     * didn't receive yet are dropped.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        // Set first, so that nothing is queued after the end, also if closing fails.
+        closed = true;
+        boolean delivered = false;
+        try {
+            // After a failure, the dispatcher only drains the queue, so the end is taken.
+            queue.put(END);
+            delivered = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!delivered) {
+                dispatcher.interrupt();
+            }
+            delivered &= join();
+        }
+
+        if (!delivered) {
+            throw new RuntimeException("Interrupted while waiting for the method listener.");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Waits until the dispatcher stops. If this thread is interrupted meanwhile, the dispatcher is interrupted too, so
+     * that it stops without passing the remaining results; the interrupt status of this thread is kept.
+     * @return False iff this thread was interrupted.
+     */
+    private boolean join() {
+        boolean interrupted = false;
+        while (dispatcher.isAlive()) {
+            try {
+                dispatcher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                dispatcher.interrupt();
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return !interrupted;
+    }
+}
@@ -0,0 +1,142 @@
+package checkers.typestate.summary;
+
+import checkers.util.TreeUtils;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.util.TreeScanner;
+
+import javax.lang.model.element.ExecutableElement;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The call graph of the methods of a compilation unit which can be summarised, see
+ * {@link MethodSummaries#isSummarisable}. Only calls between these methods are edges; calls in nested classes are not
+ * attributed to the enclosing method.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+class CallGraph {
+    private final List<MethodTree> methods = new ArrayList<MethodTree>();
+    private final Map<ExecutableElement, MethodTree> methodsByElement = new HashMap<ExecutableElement, MethodTree>();
+    private final Map<MethodTree, Set<MethodTree>> callees = new HashMap<MethodTree, Set<MethodTree>>();
+
+    private CallGraph() { }
+
+    static CallGraph build(CompilationUnitTree root) {
+        final CallGraph graph = new CallGraph();
+        new TreeScanner<Void, Void>() {
+            @Override
+            public Void visitMethod(MethodTree node, Void p) {
+                ExecutableElement method = TreeUtils.elementFromDeclaration(node);
+                if (MethodSummaries.isSummarisable(method) && node.getBody() != null) {
+                    graph.methods.add(node);
+                    graph.methodsByElement.put(method, node);
+                }
+                return super.visitMethod(node, p);
+            }
+        }.scan(root, null);
+
+        for (final MethodTree method : graph.methods) {
+            final Set<MethodTree> methodCallees = new LinkedHashSet<MethodTree>();
+            new TreeScanner<Void, Void>() {
+                @Override
+                public Void visitMethodInvocation(MethodInvocationTree node, Void p) {
+                    MethodTree callee = graph.methodsByElement.get(TreeUtils.elementFromUse(node));
+                    if (callee != null) {
+                        methodCallees.add(callee);
+                    }
+                    return super.visitMethodInvocation(node, p);
+                }
+
+                @Override
+                public Void visitClass(ClassTree node, Void p) {
+                    return null;
+                }
+            }.scan(method.getBody(), null);
+            graph.callees.put(method, methodCallees);
+        }
+
+        return graph;
+    }
+
+    Set<MethodTree> getCallees(MethodTree method) {
+        return callees.get(method);
+    }
+
+    /**
+     * Tarjan's algorithm, iterative, as call chains may be long.
+     * @return The strongly connected components of the graph, in reverse topological order: the callees of the
+     * methods of a component are in the same or in earlier components.
+     */
+    List<List<MethodTree>> getComponents() {
+        List<List<MethodTree>> components = new ArrayList<List<MethodTree>>();
+        Map<MethodTree, Integer> indexes = new HashMap<MethodTree, Integer>();
+        Map<MethodTree, Integer> lowLinks = new HashMap<MethodTree, Integer>();
+        Set<MethodTree> onStack = new HashSet<MethodTree>();
+        Deque<MethodTree> stack = new LinkedList<MethodTree>();
+
+        for (MethodTree start : methods) {
+            if (indexes.containsKey(start)) {
+                continue;
+            }
+
+            Deque<MethodTree> walk = new LinkedList<MethodTree>();
+            Deque<List<MethodTree>> pendingCallees = new LinkedList<List<MethodTree>>();
+            visit(start, indexes, lowLinks, onStack, stack, walk, pendingCallees);
+            while (!walk.isEmpty()) {
+                MethodTree method = walk.peek();
+                List<MethodTree> pending = pendingCallees.peek();
+                if (!pending.isEmpty()) {
+                    MethodTree callee = pending.remove(0);
+                    if (!indexes.containsKey(callee)) {
+                        visit(callee, indexes, lowLinks, onStack, stack, walk, pendingCallees);
+                    } else if (onStack.contains(callee)) {
+                        lowLinks.put(method, Math.min(lowLinks.get(method), indexes.get(callee)));
+                    }
+                    continue;
+                }
+
+                walk.pop();
+                pendingCallees.pop();
+                if (!walk.isEmpty()) {
+                    MethodTree caller = walk.peek();
+                    lowLinks.put(caller, Math.min(lowLinks.get(caller), lowLinks.get(method)));
+                }
+
+                if (lowLinks.get(method).equals(indexes.get(method))) {
+                    List<MethodTree> component = new ArrayList<MethodTree>();
+                    MethodTree member;
+                    do {
+                        member = stack.pop();
+                        onStack.remove(member);
+                        component.add(member);
+                    } while (member != method);
+                    components.add(component);
+                }
+            }
+        }
+
+        return components;
+    }
+
+    private void visit(MethodTree method, Map<MethodTree, Integer> indexes, Map<MethodTree, Integer> lowLinks,
+                       Set<MethodTree> onStack, Deque<MethodTree> stack, Deque<MethodTree> walk,
+                       Deque<List<MethodTree>> pendingCallees) {
+        indexes.put(method, indexes.size());
+        lowLinks.put(method, indexes.get(method));
+        stack.push(method);
+        onStack.add(method);
+        walk.push(method);
+        pendingCallees.push(new LinkedList<MethodTree>(callees.get(method)));
+    }
+}
@@ -0,0 +1,569 @@
+package checkers.typestate.summary;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.Any;
+import checkers.typestate.TransitionElement;
+import checkers.typestate.TypestateAnnotatedTypeFactory;
+import checkers.typestate.TypestateFlow;
+import checkers.typestate.TypestateUtil;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.StateSpec;
+import checkers.typestate.ssa.ControlFlowGraph;
+import checkers.typestate.ssa.SparseEngine;
+import checkers.types.AnnotatedTypeMirror;
+import checkers.types.AnnotatedTypes;
+import checkers.util.InternalUtils;
+import checkers.util.TreeUtils;
+import com.sun.source.tree.*;
+import com.sun.source.util.TreeScanner;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.VariableElement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A method lowered to data which doesn't refer to the compiler: the method is put in SSA form by the
+ * {@link SparseEngine}, and the states which the operations need (declared states, states of the right-hand sides of
+ * assignments and the state annotations of the called methods) are read from the factory up front. Hence, the method
+ * can be summarised on any thread, after its callees are summarised.
+ *
+ * To summarise a method, it is analysed with each parameter in each state which is mentioned by the calls on the
+ * parameter, and once with the declared states of all parameters (none, for the summarised parameters). The analyses
+ * are done at once, the states of a variable holding a component for each. A parameter then either accepts any state
+ * (if the analysis with no state reports no errors on it), or the states for which there are no errors; the
+ * transitions are given by the states of the parameter at the exit of the method, and by the states in which an
+ * exception may leave the method.
+ *
+ * Only parameters without state annotations, and which aren't assigned in the method, are summarised. As the flow
+ * doesn't track the states of the receiver inside the method, no receiver states are summarised.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+class LoweredMethod implements SparseEngine.Semantics<StateSets> {
+    static final String ANY = Any.class.getName();
+
+    /**
+     * The receiver or an argument of a call.
+     */
+    static class Operand {
+        // The variable passed, or null if the operand isn't a variable.
+        final @Nullable Element variable;
+        // The index of the summarised parameter which is passed, or -1.
+        final int parameter;
+        // The states declared by the called method; null if they are given by the summary of the method.
+        final @Nullable List<StateSpec> specs;
+        final @Nullable String calleeKey;
+        // The index of the argument among the arguments of the call, or -1 for the receiver.
+        final int calleePosition;
+
+        private Operand(@Nullable Element variable, int parameter, @Nullable List<StateSpec> specs,
+                        @Nullable String calleeKey, int calleePosition) {
+            this.variable = variable;
+            this.parameter = parameter;
+            this.specs = specs;
+            this.calleeKey = calleeKey;
+            this.calleePosition = calleePosition;
+        }
+    }
+
+    /**
+     * Resolves the keys of methods to their summaries.
+     */
+    interface Summaries {
+        @Nullable MethodSpec get(String key);
+    }
+
+    private final String key;
+    private final int parameterCount;
+    // The summarised parameters, and the indexes of their declarations among all parameters.
+    private final List<VariableElement> parameters = new ArrayList<VariableElement>();
+    private final List<Integer> parameterPositions = new ArrayList<Integer>();
+    private final Map<Tree, Integer> parameterTrees = new HashMap<Tree, Integer>();
+
+    private final Map<Tree, Set<String>> declared = new HashMap<Tree, Set<String>>();
+    private final Map<Tree, Set<String>> rhsStates = new HashMap<Tree, Set<String>>();
+    // Right-hand sides which are array accesses; as in the flow, only their type is used.
+    private final Set<Tree> arrayAccesses = new HashSet<Tree>();
+    private final Map<Tree, Set<String>> iterated = new HashMap<Tree, Set<String>>();
+    private final Map<Tree, List<Operand>> calls = new HashMap<Tree, List<Operand>>();
+    // True iff the method contains throw statements.
+    private boolean throwing;
+
+    private SparseEngine<StateSets> engine;
+
+    // The state of the current summarisation: the callee summaries, and for each component of the analysis, the
+    // assumed entry state of a parameter (component 0 is the analysis with the declared states).
+    private Summaries summaries;
+    private final List<Integer> componentParameters = new ArrayList<Integer>();
+    private final List<String> componentStates = new ArrayList<String>();
+    // For each component and summarised parameter: whether an error is reported on the parameter, and the states in
+    // which an exception may leave the method (null if none may).
+    private boolean[][] failed;
+    private Set<String>[][] exceptional;
+
+    private LoweredMethod(String key, int parameterCount) {
+        this.key = key;
+        this.parameterCount = parameterCount;
+    }
+
+    /**
+     * Lowers the method; must be called on the compiler thread.
+     * @param method The method to lower.
+     * @param key Key of the method, under which its summary is stored.
+     * @param keys Gives the keys of the called methods which are summarised with this one or before it, or null for
+     * other methods.
+     * @return The lowered method.
+     * @throws checkers.typestate.ssa.UnsupportedTreeException If the sparse engine doesn't support the method.
+     */
+    static LoweredMethod lower(MethodTree method, String key, final Map<ExecutableElement, String> keys,
+                               final ProcessingEnvironment env, final TypestateAnnotatedTypeFactory factory,
+                               final TypestateUtil typestateUtil) {
+        final LoweredMethod lowered = new LoweredMethod(key, method.getParameters().size());
+
+        // Parameters with state annotations aren't summarised, nor are ones which are assigned.
+        final Set<Element> assigned = new HashSet<Element>();
+        new TreeScanner<Void, Void>() {
+            @Override
+            public Void visitAssignment(AssignmentTree node, Void p) {
+                assigned.add(InternalUtils.symbol(node.getVariable()));
+                return super.visitAssignment(node, p);
+            }
+
+            @Override
+            public Void visitCompoundAssignment(CompoundAssignmentTree node, Void p) {
+                assigned.add(InternalUtils.symbol(node.getVariable()));
+                return super.visitCompoundAssignment(node, p);
+            }
+
+            @Override
+            public Void visitThrow(ThrowTree node, Void p) {
+                lowered.throwing = true;
+                return super.visitThrow(node, p);
+            }
+        }.scan(method.getBody(), null);
+
+        for (int i = 0; i < method.getParameters().size(); i++) {
+            VariableTree parameter = method.getParameters().get(i);
+            VariableElement element = TreeUtils.elementFromDeclaration(parameter);
+            if (states(factory.getAnnotatedType(parameter), typestateUtil).isEmpty()
+                    && !assigned.contains(element)) {
+                lowered.parameterTrees.put(parameter, lowered.parameters.size());
+                lowered.parameters.add(element);
+                lowered.parameterPositions.add(i);
+            }
+        }
+
+        // The summarised parameters are observed at all calls, as each call may throw an exception.
+        lowered.engine = SparseEngine.build(method, lowered);
+
+        final AnnotatedTypes atypes = new AnnotatedTypes(env, factory);
+        new TreeScanner<Void, Void>() {
+            @Override
+            public Void visitVariable(VariableTree node, Void p) {
+                lowered.declared.put(node, states(factory.getAnnotatedType(node), typestateUtil));
+                if (node.getInitializer() != null) {
+                    rhs(node.getInitializer());
+                }
+                return super.visitVariable(node, p);
+            }
+
+            @Override
+            public Void visitAssignment(AssignmentTree node, Void p) {
+                rhs(node.getExpression());
+                return super.visitAssignment(node, p);
+            }
+
+            @Override
+            public Void visitCompoundAssignment(CompoundAssignmentTree node, Void p) {
+                rhs(node.getExpression());
+                return super.visitCompoundAssignment(node, p);
+            }
+
+            private void rhs(ExpressionTree rhs) {
+                lowered.rhsStates.put(rhs, states(factory.getAnnotatedType(rhs), typestateUtil));
+                if (TreeUtils.skipParens(rhs).getKind() == Tree.Kind.ARRAY_ACCESS) {
+                    lowered.arrayAccesses.add(rhs);
+                }
+            }
+
+            @Override
+            public Void visitEnhancedForLoop(EnhancedForLoopTree node, Void p) {
+                AnnotatedTypeMirror type = atypes.getIteratedType(factory.getAnnotatedType(node.getExpression()));
+                lowered.iterated.put(node, type == null ? states(factory.getAnnotatedType(node.getVariable()),
+                        typestateUtil) : states(type, typestateUtil));
+                return super.visitEnhancedForLoop(node, p);
+            }
+
+            @Override
+            public Void visitMethodInvocation(MethodInvocationTree node, Void p) {
+                lowered.calls.put(node, lowered.operands(node, keys, factory, typestateUtil));
+                return super.visitMethodInvocation(node, p);
+            }
+        }.scan(method, null);
+
+        return lowered;
+    }
+
+    private List<Operand> operands(MethodInvocationTree call, Map<ExecutableElement, String> keys,
+                                   TypestateAnnotatedTypeFactory factory, TypestateUtil typestateUtil) {
+        // The states of summarised methods are read from their declarations, so that the missing ones are taken from
+        // the summaries, when they are computed.
+        ExecutableElement callee = TreeUtils.elementFromUse(call);
+        String calleeKey = keys.get(callee);
+        AnnotatedTypeMirror.AnnotatedExecutableType type = calleeKey == null ? factory.methodFromUse(call)
+                : (AnnotatedTypeMirror.AnnotatedExecutableType) factory.getAnnotatedType(callee);
+
+        List<Operand> operands = new ArrayList<Operand>();
+        if (call.getMethodSelect().getKind() == Tree.Kind.MEMBER_SELECT) {
+            operands.add(operand(((MemberSelectTree) call.getMethodSelect()).getExpression(),
+                    specs(type.getReceiverType(), typestateUtil), null, -1));
+        }
+
+        Iterator<AnnotatedTypeMirror> parameterTypesIter = type.getParameterTypes().iterator();
+        Iterator<? extends ExpressionTree> argumentsIter = call.getArguments().iterator();
+        for (int i = 0; parameterTypesIter.hasNext() && argumentsIter.hasNext(); i++) {
+            List<StateSpec> specs = specs(parameterTypesIter.next(), typestateUtil);
+            operands.add(operand(argumentsIter.next(), specs.isEmpty() && calleeKey != null ? null : specs,
+                    calleeKey, i));
+        }
+
+        return operands;
+    }
+
+    private Operand operand(ExpressionTree tree, @Nullable List<StateSpec> specs, @Nullable String calleeKey,
+                            int calleePosition) {
+        Element variable = InternalUtils.symbol(tree);
+        return new Operand(variable, variable == null ? -1 : parameters.indexOf(variable), specs, calleeKey,
+                calleePosition);
+    }
+
+    private static List<StateSpec> specs(AnnotatedTypeMirror type, TypestateUtil typestateUtil) {
+        List<StateSpec> specs = new ArrayList<StateSpec>();
+        for (AnnotationMirror annotation : typestateUtil.filterStateAnnotations(type.getAnnotations())) {
+            specs.add(StateSpec.fromAnnotation(typestateUtil, annotation));
+        }
+        return specs;
+    }
+
+    private static Set<String> states(AnnotatedTypeMirror type, TypestateUtil typestateUtil) {
+        Set<String> states = new TreeSet<String>();
+        for (AnnotationMirror annotation : type.getAnnotations()) {
+            if (typestateUtil.isStateAnnotation(annotation)) {
+                states.add(annotation.getAnnotationType().toString());
+            }
+        }
+        return states;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    ControlFlowGraph getGraph() {
+        return engine.getGraph();
+    }
+
+    /**
+     * @return The summarised parameters.
+     */
+    List<VariableElement> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return The indexes of the summarised parameters among all parameters of the method.
+     */
+    List<Integer> getParameterPositions() {
+        return parameterPositions;
+    }
+
+    int getParameterCount() {
+        return parameterCount;
+    }
+
+    Set<String> getDeclared(VariableTree variable) {
+        return declared.get(variable);
+    }
+
+    Set<String> getRhsStates(ExpressionTree rhs) {
+        return rhsStates.get(rhs);
+    }
+
+    boolean isArrayAccess(ExpressionTree rhs) {
+        return arrayAccesses.contains(rhs);
+    }
+
+    Set<String> getIterated(EnhancedForLoopTree loop) {
+        return iterated.get(loop);
+    }
+
+    List<Operand> getOperands(MethodInvocationTree call) {
+        return calls.get(call);
+    }
+
+    Iterable<List<Operand>> getAllOperands() {
+        return calls.values();
+    }
+
+    /**
+     * @return True iff the method contains throw statements.
+     */
+    boolean isThrowing() {
+        return throwing;
+    }
+
+    /**
+     * Computes the summary of the method; may be called on any thread, but not concurrently.
+     * @param summaries The summaries of the called methods.
+     * @return The summary of the method.
+     */
+    @SuppressWarnings({"unchecked"})
+    MethodSpec summarise(Summaries summaries) {
+        this.summaries = summaries;
+
+        // The states in which the parameters are assumed to be on entry: all states mentioned by the calls on them.
+        List<Set<String>> candidates = new ArrayList<Set<String>>();
+        for (int i = 0; i < parameters.size(); i++) {
+            candidates.add(new TreeSet<String>());
+        }
+        for (List<Operand> operands : calls.values()) {
+            for (Operand operand : operands) {
+                if (operand.parameter >= 0) {
+                    for (StateSpec spec : specs(operand)) {
+                        addCandidates(candidates.get(operand.parameter), spec);
+                    }
+                }
+            }
+        }
+
+        componentParameters.clear();
+        componentStates.clear();
+        componentParameters.add(-1);
+        componentStates.add(null);
+        for (int i = 0; i < parameters.size(); i++) {
+            for (String state : candidates.get(i)) {
+                componentParameters.add(i);
+                componentStates.add(state);
+            }
+        }
+
+        int components = componentParameters.size();
+        failed = new boolean[components][parameters.size()];
+        exceptional = new Set[components][parameters.size()];
+        for (int component = 0; component < components; component++) {
+            for (int i = 0; i < parameters.size(); i++) {
+                // A throw statement may be reached before any call.
+                exceptional[component][i] = throwing ? entryStates(component, i) : null;
+            }
+        }
+
+        engine.analyse();
+        Map<VariableElement, StateSets> exitValues = engine.getExitValues();
+
+        List<List<StateSpec>> parameterSpecs = new ArrayList<List<StateSpec>>();
+        for (int i = 0; i < parameterCount; i++) {
+            parameterSpecs.add(Collections.<StateSpec>emptyList());
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            StateSets exit = exitValues.get(parameters.get(i));
+            List<StateSpec> specs = new ArrayList<StateSpec>();
+            if (!failed[0][i]) {
+                Set<String> entry = entryStates(0, i);
+                String after = target(entry, exit == null ? null : exit.get(0));
+                String onException = target(entry, exceptionalStates(0, i));
+                if (after != null || onException != null) {
+                    specs.add(new StateSpec(ANY, after, null, null, onException, Collections.<String>emptyList()));
+                }
+            } else {
+                for (int component = 1; component < components; component++) {
+                    if (componentParameters.get(component) == i && !failed[component][i]) {
+                        Set<String> entry = entryStates(component, i);
+                        specs.add(new StateSpec(componentStates.get(component),
+                                target(entry, exit == null ? null : exit.get(component)), null, null,
+                                target(entry, exceptionalStates(component, i)), Collections.<String>emptyList()));
+                    }
+                }
+            }
+            parameterSpecs.set(parameterPositions.get(i), specs);
+        }
+
+        this.summaries = null;
+        return new MethodSpec(key, Collections.<StateSpec>emptyList(), Collections.<StateSpec>emptyList(),
+                parameterSpecs);
+    }
+
+    static void addCandidates(Set<String> candidates, StateSpec spec) {
+        if (!ANY.equals(spec.getAnnotation())) {
+            candidates.add(spec.getAnnotation());
+        }
+        candidates.addAll(spec.getExcept());
+    }
+
+    private Set<String> entryStates(int component, int parameter) {
+        if (componentParameters.get(component) == parameter) {
+            return Collections.singleton(componentStates.get(component));
+        }
+        // Summarised parameters have no declared states.
+        return Collections.emptySet();
+    }
+
+    private Set<String> exceptionalStates(int component, int parameter) {
+        Set<String> states = exceptional[component][parameter];
+        return states == null ? entryStates(component, parameter) : states;
+    }
+
+    /**
+     * @return The target of a transition from the entry states to the given ones: null if the states don't change,
+     * the single state, or the any-state annotation if the states aren't known (or if there are no states, as the
+     * exit is unreachable).
+     */
+    static @Nullable String target(Set<String> entry, @Nullable Set<String> states) {
+        if (states == null) {
+            return ANY;
+        }
+        if (states.equals(entry)) {
+            return null;
+        }
+        return states.size() == 1 ? states.iterator().next() : ANY;
+    }
+
+    private List<StateSpec> specs(Operand operand) {
+        if (operand.specs != null) {
+            return operand.specs;
+        }
+
+        MethodSpec summary = summaries.get(operand.calleeKey);
+        if (summary == null || summary.getParameters().size() <= operand.calleePosition) {
+            return Collections.emptyList();
+        }
+        return summary.getParameters().get(operand.calleePosition);
+    }
+
+    private int components() {
+        return componentParameters.size();
+    }
+
+    private StateSets uniform(Set<String> states) {
+        return StateSets.uniform(states, components());
+    }
+
+    // **********************************************************************
+    // The semantics of the operations, on the lowered data.
+
+    public StateSets declared(VariableTree variable) {
+        Integer parameter = parameterTrees.get(variable);
+        if (parameter == null) {
+            return uniform(declared.get(variable));
+        }
+
+        List<Set<String>> states = new ArrayList<Set<String>>(components());
+        for (int component = 0; component < components(); component++) {
+            states.add(entryStates(component, parameter));
+        }
+        return new StateSets(states);
+    }
+
+    public StateSets assigned(ExpressionTree rhs, @Nullable StateSets rhsValue) {
+        if (rhsValue == null || arrayAccesses.contains(rhs)) {
+            return uniform(rhsStates.get(rhs));
+        }
+
+        List<Set<String>> states = new ArrayList<Set<String>>(components());
+        for (int component = 0; component < components(); component++) {
+            Set<String> componentStates = new TreeSet<String>(rhsStates.get(rhs));
+            componentStates.addAll(rhsValue.get(component));
+            states.add(componentStates);
+        }
+        return new StateSets(states);
+    }
+
+    public StateSets iterated(EnhancedForLoopTree loop) {
+        return uniform(iterated.get(loop));
+    }
+
+    public void call(MethodInvocationTree call, TransitionElement element, Map<Element, StateSets> values,
+                     boolean report) {
+        // The states of the parameters when the call is made, in which they are if the call throws an exception, unless
+        // the called method declares other ones.
+        List<StateSets> exceptionStates = new ArrayList<StateSets>(parameters.size());
+        for (VariableElement parameter : parameters) {
+            exceptionStates.add(values.get(parameter));
+        }
+
+        for (Operand operand : calls.get(call)) {
+            if (operand.variable == null || !values.containsKey(operand.variable)) {
+                continue;
+            }
+
+            List<StateSpec> specs = specs(operand);
+            if (specs.isEmpty()) {
+                continue;
+            }
+
+            StateSets before = values.get(operand.variable);
+            List<Set<String>> after = new ArrayList<Set<String>>(components());
+            List<Set<String>> onException = new ArrayList<Set<String>>(components());
+            for (int component = 0; component < components(); component++) {
+                after.add(StateSpec.transit(specs, element, before.get(component), onException));
+                if (report && operand.parameter >= 0 && !StateSpec.covers(specs, before.get(component))) {
+                    failed[component][operand.parameter] = true;
+                }
+            }
+            values.put(operand.variable, new StateSets(after));
+            if (operand.parameter >= 0) {
+                exceptionStates.set(operand.parameter, new StateSets(onException));
+            }
+        }
+
+        if (report) {
+            for (int i = 0; i < parameters.size(); i++) {
+                if (exceptionStates.get(i) != null) {
+                    for (int component = 0; component < components(); component++) {
+                        addExceptional(component, i, exceptionStates.get(i).get(component));
+                        if (throwing) {
+                            // A throw statement may be reached after the call.
+                            addExceptional(component, i, values.get(parameters.get(i)).get(component));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addExceptional(int component, int parameter, Set<String> states) {
+        Set<String> previous = exceptional[component][parameter];
+        exceptional[component][parameter] = previous == null ? states : StateSets.intersect(previous, states);
+    }
+
+    public StateSets join(StateSets value, StateSets other) {
+        return value.join(other);
+    }
+
+    public boolean isSplit(ExpressionTree condition) {
+        return TypestateFlow.isSupportedLogic(condition);
+    }
+
+    public boolean isInverted(ExpressionTree condition) {
+        return TypestateFlow.inverted(condition);
+    }
+
+    public boolean isTrackedOutside(VariableElement variable) {
+        // Only the states of the parameters are summarised; fields are treated as expressions.
+        return false;
+    }
+
+    public boolean isObservedAtCalls(VariableElement variable) {
+        return parameters.contains(variable);
+    }
+}
@@ -0,0 +1,353 @@
+package checkers.typestate.summary;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.TypestateAnnotatedTypeFactory;
+import checkers.typestate.TypestateUtil;
+import checkers.typestate.ifds.TabulationSolver;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.spec.StateSpec;
+import checkers.typestate.ssa.UnsupportedTreeException;
+import checkers.util.TreeUtils;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.util.TreeScanner;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * State summaries of the methods of the checked sources, which are used at the call sites of the methods instead of
+ * state annotations, for the parameters which don't declare any. A summary gives, for each parameter, the states
+ * required on entry, and the transitions on exit and on an exception, in the form of a {@link MethodSpec}; see
+ * {@link LoweredMethod} for how it is computed.
+ *
+ * The methods of a compilation unit are summarised before the unit is checked. The call graph of the unit is split
+ * into strongly connected components, which are summarised bottom-up: a component is summarised on a thread pool
+ * once all the components which it calls are. The methods of a component which calls itself are summarised again
+ * until their summaries don't change. The summaries are kept for the whole run, so that a method is summarised only
+ * once, also when it is called from other units.
+ *
+ * The summaries are computed per compilation unit only, as when a unit is checked, the other units may not be
+ * attributed yet. Hence the call graph contains only the calls within the unit: a call to a method of another unit
+ * uses its summary only if that unit was checked before, and is otherwise checked as without summaries. So the
+ * errors reported for calls between units depend on the order in which the units are checked, and calls in cycles
+ * which span several units are never summarised.
+ *
+ * Alternatively, the summaries are computed by an IFDS tabulation solver (see {@link TypestateProblem}), which
+ * analyses each method once for each state in which it is called in the unit, instead of for each state which its
+ * body mentions, and handles recursion without iterating. It runs on the compiler thread, and also per compilation
+ * unit: the supergraph contains only the methods of the unit. A method which may be called from other units is
+ * analysed in each state mentioned in its unit, and in an unknown state; a call from another unit in a state which
+ * isn't mentioned in the unit of the method is checked against the summary for the unknown state.
+ *
+ * Only methods which can't be overridden (private, static or final ones, or methods of final classes) are
+ * summarised, as otherwise the summary may not describe the method which is actually called.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class MethodSummaries {
+    /** How the summaries are computed. */
+    public enum Solver {
+        /** Bottom-up over the call graph, in parallel. */
+        BOTTOM_UP,
+        /** With the IFDS tabulation solver. */
+        IFDS
+    }
+
+    // Maximum number of times the methods of a recursive component are summarised; if their summaries still change,
+    // the methods aren't summarised.
+    private static final int MAX_ITERATIONS = 8;
+
+    private final ProcessingEnvironment env;
+    private final int threads;
+    private final Solver solver;
+
+    // Summaries by the keys of the methods. A method which can't be summarised has an empty summary.
+    private final Map<String, MethodSpec> summaries = new ConcurrentHashMap<String, MethodSpec>();
+
+    private int summarised;
+    private int hits;
+    private long pathEdges;
+
+    /**
+     * @param env The processing environment.
+     * @param threads Number of threads on which the summaries are computed bottom-up.
+     * @param solver How the summaries are computed.
+     */
+    public MethodSummaries(ProcessingEnvironment env, int threads, Solver solver) {
+        this.env = env;
+        this.threads = threads;
+        this.solver = solver;
+    }
+
+    /**
+     * @param method A method.
+     * @return True iff a summary may be computed for the method.
+     */
+    public static boolean isSummarisable(ExecutableElement method) {
+        if (method.getKind() != ElementKind.METHOD) {
+            return false;
+        }
+
+        Set<Modifier> modifiers = method.getModifiers();
+        return modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+                || modifiers.contains(Modifier.FINAL)
+                || method.getEnclosingElement().getModifiers().contains(Modifier.FINAL);
+    }
+
+    /**
+     * @param method A method.
+     * @return The summary of the method, or null if it isn't summarised.
+     */
+    public @Nullable MethodSpec get(ExecutableElement method) {
+        if (!isSummarisable(method)) {
+            return null;
+        }
+
+        MethodSpec summary = summaries.get(keyOf(method));
+        if (summary != null) {
+            hits++;
+        }
+        return summary;
+    }
+
+    /**
+     * @return Number of methods summarised so far.
+     */
+    public int getSummarised() {
+        return summarised;
+    }
+
+    /**
+     * @return Number of times a summary was used, instead of analysing the summarised method again.
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of path edges found by the IFDS solver so far.
+     */
+    public long getPathEdges() {
+        return pathEdges;
+    }
+
+    /**
+     * Summarises the methods of the given unit, which aren't summarised yet. Must be called on the compiler thread.
+     * @param root The compilation unit.
+     * @param factory The factory of the unit.
+     * @param typestateUtil Typestate utilities.
+     */
+    public void summarise(CompilationUnitTree root, TypestateAnnotatedTypeFactory factory,
+                          TypestateUtil typestateUtil) {
+        if (solver == Solver.IFDS) {
+            summariseIfds(root, factory, typestateUtil);
+            return;
+        }
+
+        CallGraph graph = CallGraph.build(root);
+        List<List<MethodTree>> components = graph.getComponents();
+
+        Map<MethodTree, Integer> componentIndexes = new HashMap<MethodTree, Integer>();
+        Map<ExecutableElement, String> keys = new HashMap<ExecutableElement, String>();
+        for (int i = 0; i < components.size(); i++) {
+            for (MethodTree method : components.get(i)) {
+                componentIndexes.put(method, i);
+                keys.put(TreeUtils.elementFromDeclaration(method), keyOf(TreeUtils.elementFromDeclaration(method)));
+            }
+        }
+
+        // Lowering the methods which aren't summarised yet, on this thread, as the trees and the factory aren't
+        // thread-safe.
+        List<List<LoweredMethod>> lowered = new ArrayList<List<LoweredMethod>>();
+        List<Boolean> recursive = new ArrayList<Boolean>();
+        for (List<MethodTree> component : components) {
+            List<LoweredMethod> loweredComponent = new ArrayList<LoweredMethod>();
+            for (MethodTree method : component) {
+                String key = keys.get(TreeUtils.elementFromDeclaration(method));
+                if (summaries.containsKey(key)) {
+                    continue;
+                }
+
+                try {
+                    loweredComponent.add(LoweredMethod.lower(method, key, keys, env, factory, typestateUtil));
+                } catch (UnsupportedTreeException e) {
+                    summaries.put(key, emptySummary(key, method.getParameters().size()));
+                }
+            }
+            lowered.add(loweredComponent);
+            recursive.add(component.size() > 1 || graph.getCallees(component.get(0)).contains(component.get(0)));
+        }
+
+        // The components which call each component, and the number of components which each one waits for.
+        List<Set<Integer>> callers = new ArrayList<Set<Integer>>();
+        int[] waitingFor = new int[components.size()];
+        for (int i = 0; i < components.size(); i++) {
+            callers.add(new HashSet<Integer>());
+        }
+        for (int i = 0; i < components.size(); i++) {
+            if (lowered.get(i).isEmpty()) {
+                continue;
+            }
+            Set<Integer> calleeComponents = new HashSet<Integer>();
+            for (MethodTree method : components.get(i)) {
+                for (MethodTree callee : graph.getCallees(method)) {
+                    int calleeComponent = componentIndexes.get(callee);
+                    if (calleeComponent != i && !lowered.get(calleeComponent).isEmpty()) {
+                        calleeComponents.add(calleeComponent);
+                    }
+                }
+            }
+            for (int calleeComponent : calleeComponents) {
+                callers.get(calleeComponent).add(i);
+            }
+            waitingFor[i] = calleeComponents.size();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+            int pending = 0;
+            for (int i = 0; i < components.size(); i++) {
+                if (!lowered.get(i).isEmpty() && waitingFor[i] == 0) {
+                    completion.submit(summariseTask(i, lowered.get(i), recursive.get(i)));
+                    pending++;
+                }
+            }
+
+            while (pending > 0) {
+                int done = completion.take().get();
+                pending--;
+                summarised += lowered.get(done).size();
+                for (int caller : callers.get(done)) {
+                    if (--waitingFor[caller] == 0) {
+                        completion.submit(summariseTask(caller, lowered.get(caller), recursive.get(caller)));
+                        pending++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while summarising the methods.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void summariseIfds(CompilationUnitTree root, TypestateAnnotatedTypeFactory factory,
+                               TypestateUtil typestateUtil) {
+        // All methods are in the supergraph, as they call the summarised ones in the states which are analysed.
+        final List<MethodTree> methods = new ArrayList<MethodTree>();
+        new TreeScanner<Void, Void>() {
+            @Override
+            public Void visitMethod(MethodTree node, Void p) {
+                if (node.getBody() != null) {
+                    methods.add(node);
+                }
+                return super.visitMethod(node, p);
+            }
+        }.scan(root, null);
+
+        Map<ExecutableElement, String> keys = new HashMap<ExecutableElement, String>();
+        for (MethodTree method : methods) {
+            ExecutableElement element = TreeUtils.elementFromDeclaration(method);
+            if (isSummarisable(element)) {
+                keys.put(element, keyOf(element));
+            }
+        }
+
+        TypestateProblem problem = new TypestateProblem();
+        for (MethodTree method : methods) {
+            ExecutableElement element = TreeUtils.elementFromDeclaration(method);
+            String key = keys.get(element);
+            try {
+                problem.addMethod(LoweredMethod.lower(method, key == null ? keyOf(element) : key, keys, env, factory,
+                        typestateUtil), element, key != null);
+            } catch (UnsupportedTreeException e) {
+                if (key != null) {
+                    summaries.put(key, emptySummary(key, method.getParameters().size()));
+                }
+            }
+        }
+        problem.linkCalls();
+
+        TabulationSolver tabulation = new TabulationSolver(problem, problem);
+        problem.seed(tabulation);
+        tabulation.solve();
+        pathEdges += tabulation.getPathEdgeCount();
+
+        for (int method : problem.getSummarisable()) {
+            MethodSpec summary = problem.summarise(method, tabulation);
+            summaries.put(summary.getKey(), summary);
+            summarised++;
+        }
+    }
+
+    private Callable<Integer> summariseTask(final int index, final List<LoweredMethod> component,
+                                            final boolean recursive) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                final Map<String, MethodSpec> componentSummaries = new HashMap<String, MethodSpec>();
+                LoweredMethod.Summaries resolver = new LoweredMethod.Summaries() {
+                    public MethodSpec get(String key) {
+                        MethodSpec summary = componentSummaries.get(key);
+                        return summary == null ? summaries.get(key) : summary;
+                    }
+                };
+
+                boolean changed = true;
+                for (int iteration = 0; changed && iteration < MAX_ITERATIONS; iteration++) {
+                    changed = false;
+                    for (LoweredMethod method : component) {
+                        MethodSpec summary = method.summarise(resolver);
+                        if (!summary.equals(componentSummaries.get(method.getKey()))) {
+                            componentSummaries.put(method.getKey(), summary);
+                            changed = true;
+                        }
+                    }
+                    changed &= recursive;
+                }
+
+                for (LoweredMethod method : component) {
+                    MethodSpec summary = componentSummaries.get(method.getKey());
+                    summaries.put(method.getKey(), changed
+                            ? emptySummary(method.getKey(), summary.getParameters().size()) : summary);
+                }
+                return index;
+            }
+        };
+    }
+
+    private static MethodSpec emptySummary(String key, int parameters) {
+        return new MethodSpec(key, Collections.<StateSpec>emptyList(), Collections.<StateSpec>emptyList(),
+                Collections.nCopies(parameters, Collections.<StateSpec>emptyList()));
+    }
+
+    private String keyOf(ExecutableElement method) {
+        return SpecKeys.typeKey(env.getElementUtils(), (TypeElement) method.getEnclosingElement()) + "#"
+                + SpecKeys.methodKey(env.getTypeUtils(), method);
+    }
+}
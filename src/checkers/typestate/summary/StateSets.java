@@ -0,0 +1,73 @@
+package checkers.typestate.summary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The states of a variable in each of the analyses of a method which are done at once when summarising it, one for
+ * each assumed entry state of a parameter (see {@link LoweredMethod}). States are identified by the qualified names of
+ * their annotations. Immutable.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+final class StateSets {
+    private final List<Set<String>> components;
+
+    StateSets(List<Set<String>> components) {
+        this.components = Collections.unmodifiableList(components);
+    }
+
+    /**
+     * @param states The states in all analyses.
+     * @param count The number of analyses.
+     */
+    static StateSets uniform(Set<String> states, int count) {
+        return new StateSets(new ArrayList<Set<String>>(Collections.nCopies(count, states)));
+    }
+
+    Set<String> get(int component) {
+        return components.get(component);
+    }
+
+    int size() {
+        return components.size();
+    }
+
+    /**
+     * @return The states which are in both sets, in each analysis.
+     */
+    StateSets join(StateSets other) {
+        List<Set<String>> joined = new ArrayList<Set<String>>(components.size());
+        for (int i = 0; i < components.size(); i++) {
+            joined.add(intersect(components.get(i), other.components.get(i)));
+        }
+        return new StateSets(joined);
+    }
+
+    static Set<String> intersect(Set<String> states, Set<String> other) {
+        Set<String> result = new TreeSet<String>(states);
+        result.retainAll(other);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof StateSets)) return false;
+
+        return components.equals(((StateSets) o).components);
+    }
+
+    @Override
+    public int hashCode() {
+        return components.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return components.toString();
+    }
+}
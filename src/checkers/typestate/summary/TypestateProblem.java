@@ -0,0 +1,598 @@
+package checkers.typestate.summary;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.ifds.FlowFunctions;
+import checkers.typestate.ifds.IntSet;
+import checkers.typestate.ifds.LongMap;
+import checkers.typestate.ifds.Supergraph;
+import checkers.typestate.ifds.TabulationSolver;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.StateSpec;
+import checkers.typestate.ssa.ControlFlowGraph;
+import checkers.util.TreeUtils;
+import com.sun.source.tree.EnhancedForLoopTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.VariableTree;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The typestate analysis of the methods of a compilation unit as an IFDS problem, solved by the
+ * {@link TabulationSolver}. The supergraph is made of the control flow graphs of the lowered methods (see
+ * {@link LoweredMethod}): a node for each operation, or for each empty block. Each method has two exits: the exit
+ * of its control flow graph, and an exceptional exit, to which each call leads (and, if the method contains throw
+ * statements, each node).
+ *
+ * A fact is a pair of a variable and a set of states: the variable may have exactly these states. Unlike in the flow,
+ * the sets of different paths aren't intersected, so that each fact is transformed independently by the calls. The
+ * facts of the summarised parameters of the methods which may be summarised are passed to the called methods, which
+ * are thus analysed in the context of each state set in which they are called. A violation of the required states of
+ * a call on a summarised parameter is the fact with the parameter and the error marker, which is returned to the
+ * callers in the same way.
+ *
+ * From the results, a summary is made for each parameter of each such method, as in {@link LoweredMethod}, but from
+ * the contexts which actually occur: the state sets with which the method is called in the unit, the empty one, and
+ * (for methods which may be called from other units, or aren't called at all) each single state mentioned in the
+ * unit.
+ *
+ * @author Adam Warski (adam at warski dot org)
+ */
+class TypestateProblem implements Supergraph, FlowFunctions {
+    // The state set of facts marking a violation of the required states.
+    private static final int ERROR = 0;
+
+    private final List<LoweredMethod> methods = new ArrayList<LoweredMethod>();
+    private final Map<ExecutableElement, Integer> methodIndexes = new HashMap<ExecutableElement, Integer>();
+    // For each method: whether it may be summarised, whether it is private, and whether it is called in the unit by
+    // another method.
+    private final List<Boolean> summarisable = new ArrayList<Boolean>();
+    private final List<Boolean> privateMethods = new ArrayList<Boolean>();
+    private final List<Boolean> called = new ArrayList<Boolean>();
+    // For each method: the indexes of the variables of its graph, the summarised parameters among them, and the
+    // variables of the summarised parameters at each position (or -1).
+    private final List<Map<Element, Integer>> varIndexes = new ArrayList<Map<Element, Integer>>();
+    private final List<boolean[]> entryVars = new ArrayList<boolean[]>();
+    private final List<int[]> positionVars = new ArrayList<int[]>();
+    private final List<Integer> starts = new ArrayList<Integer>();
+    private final List<Integer> exits = new ArrayList<Integer>();
+    private final List<Integer> exceptionalExits = new ArrayList<Integer>();
+
+    // For each node: its method, operation (null for empty blocks), successors and callees.
+    private final List<Integer> nodeMethods = new ArrayList<Integer>();
+    private final List<ControlFlowGraph.Op> nodeOps = new ArrayList<ControlFlowGraph.Op>();
+    private final List<int[]> nodeSuccessors = new ArrayList<int[]>();
+    private final List<int[]> nodeCallees = new ArrayList<int[]>();
+
+    // The facts, and the state sets which they reference; a fact is identified by its method, variable and state set.
+    private final LongMap<Integer> factIds = new LongMap<Integer>();
+    private final List<int[]> facts = new ArrayList<int[]>();
+    private final List<Set<String>> stateSets = new ArrayList<Set<String>>();
+    private final Map<Set<String>, Integer> stateSetIds = new HashMap<Set<String>, Integer>();
+
+    TypestateProblem() {
+        facts.add(null);
+        stateSets.add(null);
+    }
+
+    /**
+     * Adds the graph of the method to the supergraph; must be called on the compiler thread.
+     * @param method The lowered method.
+     * @param element Element of the method.
+     * @param isSummarisable True iff calls to the method are analysed with its graph, and the method is summarised.
+     */
+    void addMethod(LoweredMethod method, ExecutableElement element, boolean isSummarisable) {
+        int index = methods.size();
+        methods.add(method);
+        methodIndexes.put(element, index);
+        summarisable.add(isSummarisable);
+        privateMethods.add(element.getModifiers().contains(Modifier.PRIVATE));
+        called.add(false);
+
+        ControlFlowGraph graph = method.getGraph();
+        Map<Element, Integer> indexes = new HashMap<Element, Integer>();
+        for (int i = 0; i < graph.getVars().size(); i++) {
+            indexes.put(graph.getVars().get(i), i);
+        }
+        varIndexes.add(indexes);
+
+        boolean[] entry = new boolean[graph.getVars().size()];
+        int[] positions = new int[method.getParameterCount()];
+        Arrays.fill(positions, -1);
+        if (isSummarisable) {
+            for (int i = 0; i < method.getParameters().size(); i++) {
+                int var = indexes.get(method.getParameters().get(i));
+                entry[var] = true;
+                positions[method.getParameterPositions().get(i)] = var;
+            }
+        }
+        entryVars.add(entry);
+        positionVars.add(positions);
+
+        // The nodes of each block, and then the exceptional exit.
+        List<ControlFlowGraph.Block> blocks = graph.getBlocks();
+        int[] firstNodes = new int[blocks.size()];
+        int[] lastNodes = new int[blocks.size()];
+        for (ControlFlowGraph.Block block : blocks) {
+            firstNodes[block.getIndex()] = nodeMethods.size();
+            if (block.getOps().isEmpty()) {
+                addNode(index, null);
+            }
+            for (ControlFlowGraph.Op op : block.getOps()) {
+                addNode(index, op);
+            }
+            lastNodes[block.getIndex()] = nodeMethods.size() - 1;
+        }
+        int exceptionalExit = addNode(index, null);
+
+        starts.add(firstNodes[graph.getEntry().getIndex()]);
+        exits.add(firstNodes[graph.getExit().getIndex()]);
+        exceptionalExits.add(exceptionalExit);
+
+        for (ControlFlowGraph.Block block : blocks) {
+            for (int node = firstNodes[block.getIndex()]; node <= lastNodes[block.getIndex()]; node++) {
+                if (block == graph.getExit()) {
+                    nodeSuccessors.set(node, new int[0]);
+                    continue;
+                }
+
+                List<Integer> successors = new ArrayList<Integer>();
+                if (node < lastNodes[block.getIndex()]) {
+                    successors.add(node + 1);
+                } else {
+                    for (ControlFlowGraph.Block successor : block.getSuccessors()) {
+                        successors.add(firstNodes[successor.getIndex()]);
+                    }
+                }
+                // Calls may throw exceptions, and if the method contains throw statements, any node may.
+                if (isCall(node) || method.isThrowing()) {
+                    successors.add(exceptionalExit);
+                }
+                nodeSuccessors.set(node, toArray(successors));
+            }
+        }
+    }
+
+    private int addNode(int method, @Nullable ControlFlowGraph.Op op) {
+        nodeMethods.add(method);
+        nodeOps.add(op);
+        nodeSuccessors.add(new int[0]);
+        nodeCallees.add(new int[0]);
+        return nodeMethods.size() - 1;
+    }
+
+    /**
+     * Links the calls to the called methods which are summarised; to be called once all methods are added.
+     */
+    void linkCalls() {
+        for (int node = 0; node < nodeOps.size(); node++) {
+            if (isCall(node)) {
+                Integer callee = methodIndexes.get(TreeUtils.elementFromUse(call(node)));
+                if (callee != null && summarisable.get(callee)) {
+                    nodeCallees.set(node, new int[] { callee });
+                    if (callee != nodeMethods.get(node)) {
+                        called.set(callee, true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the seeds of the analysis: the zero fact at the start of each method, and the entry facts of the
+     * summarised parameters, with which the methods are analysed even if they aren't called so in the unit: the empty
+     * state set, and each single state mentioned in the unit, unless all calls of the method are known (it is private,
+     * and called by another method of the unit).
+     */
+    void seed(TabulationSolver solver) {
+        Set<String> mentioned = new TreeSet<String>();
+        for (LoweredMethod method : methods) {
+            for (List<LoweredMethod.Operand> operands : method.getAllOperands()) {
+                for (LoweredMethod.Operand operand : operands) {
+                    if (operand.specs != null) {
+                        for (StateSpec spec : operand.specs) {
+                            LoweredMethod.addCandidates(mentioned, spec);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int method = 0; method < methods.size(); method++) {
+            solver.addSeed(method, ZERO);
+            boolean[] entry = entryVars.get(method);
+            for (int var = 0; var < entry.length; var++) {
+                if (!entry[var]) {
+                    continue;
+                }
+
+                solver.addSeed(method, fact(method, var, stateSet(Collections.<String>emptySet())));
+                if (!privateMethods.get(method) || !called.get(method)) {
+                    for (String state : mentioned) {
+                        solver.addSeed(method, fact(method, var, stateSet(Collections.singleton(state))));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The methods which are summarised, by index.
+     */
+    List<Integer> getSummarisable() {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int method = 0; method < methods.size(); method++) {
+            if (summarisable.get(method)) {
+                result.add(method);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The summary of the method, from the contexts in which it was analysed.
+     */
+    MethodSpec summarise(int method, TabulationSolver solver) {
+        LoweredMethod lowered = methods.get(method);
+        List<List<StateSpec>> parameterSpecs = new ArrayList<List<StateSpec>>();
+        for (int i = 0; i < lowered.getParameterCount(); i++) {
+            parameterSpecs.add(Collections.<StateSpec>emptyList());
+        }
+
+        IntSet contexts = solver.getContexts(method);
+        for (int i = 0; i < lowered.getParameters().size(); i++) {
+            int var = varIndexes.get(method).get(lowered.getParameters().get(i));
+            List<StateSpec> specs = new ArrayList<StateSpec>();
+            List<StateSpec> baseline = null;
+            for (int j = 0; j < contexts.size(); j++) {
+                int context = contexts.get(j);
+                if (context == ZERO || factVar(context) != var) {
+                    continue;
+                }
+
+                IntSet exitFacts = solver.getSummary(exits.get(method), context);
+                IntSet exceptionalFacts = solver.getSummary(exceptionalExits.get(method), context);
+                if (hasError(exitFacts, var) || hasError(exceptionalFacts, var)) {
+                    continue;
+                }
+
+                Set<String> entry = stateSets.get(factStates(context));
+                Set<String> exceptional = states(exceptionalFacts, var);
+                String after = LoweredMethod.target(entry, states(exitFacts, var));
+                String onException = LoweredMethod.target(entry, exceptional == null ? entry : exceptional);
+                if (entry.isEmpty()) {
+                    // As with the bottom-up summaries: a parameter which may be in no state accepts any state.
+                    baseline = after == null && onException == null ? Collections.<StateSpec>emptyList()
+                            : Collections.singletonList(new StateSpec(LoweredMethod.ANY, after, null, null,
+                            onException, Collections.<String>emptyList()));
+                } else if (entry.size() == 1) {
+                    specs.add(new StateSpec(entry.iterator().next(), after, null, null, onException,
+                            Collections.<String>emptyList()));
+                }
+            }
+
+            Collections.sort(specs, new Comparator<StateSpec>() {
+                public int compare(StateSpec spec1, StateSpec spec2) {
+                    return spec1.getAnnotation().compareTo(spec2.getAnnotation());
+                }
+            });
+            parameterSpecs.set(lowered.getParameterPositions().get(i), baseline != null ? baseline : specs);
+        }
+
+        return new MethodSpec(lowered.getKey(), Collections.<StateSpec>emptyList(),
+                Collections.<StateSpec>emptyList(), parameterSpecs);
+    }
+
+    private boolean hasError(@Nullable IntSet exitFacts, int var) {
+        if (exitFacts == null) {
+            return false;
+        }
+        for (int i = 0; i < exitFacts.size(); i++) {
+            int fact = exitFacts.get(i);
+            if (fact != ZERO && factVar(fact) == var && factStates(fact) == ERROR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The states which the variable has in all facts at an exit, or null if it has no facts there.
+     */
+    private @Nullable Set<String> states(@Nullable IntSet exitFacts, int var) {
+        if (exitFacts == null) {
+            return null;
+        }
+        Set<String> result = null;
+        for (int i = 0; i < exitFacts.size(); i++) {
+            int fact = exitFacts.get(i);
+            if (fact != ZERO && factVar(fact) == var && factStates(fact) != ERROR) {
+                Set<String> states = stateSets.get(factStates(fact));
+                result = result == null ? states : StateSets.intersect(result, states);
+            }
+        }
+        return result;
+    }
+
+    // **********************************************************************
+    // Facts.
+
+    private int fact(int method, int var, int states) {
+        long key = ((long) method << 40) | ((long) var << 20) | states;
+        Integer id = factIds.get(key);
+        if (id == null) {
+            id = facts.size();
+            factIds.put(key, id);
+            facts.add(new int[] { method, var, states });
+        }
+        return id;
+    }
+
+    private int factVar(int fact) {
+        return facts.get(fact)[1];
+    }
+
+    private int factStates(int fact) {
+        return facts.get(fact)[2];
+    }
+
+    private int stateSet(Set<String> states) {
+        Integer id = stateSetIds.get(states);
+        if (id == null) {
+            id = stateSets.size();
+            Set<String> copy = Collections.unmodifiableSet(new TreeSet<String>(states));
+            stateSetIds.put(copy, id);
+            stateSets.add(copy);
+        }
+        return id;
+    }
+
+    // **********************************************************************
+    // The supergraph.
+
+    public int getMethodCount() {
+        return methods.size();
+    }
+
+    public int getNodeCount() {
+        return nodeMethods.size();
+    }
+
+    public int getMethod(int node) {
+        return nodeMethods.get(node);
+    }
+
+    public int getStart(int method) {
+        return starts.get(method);
+    }
+
+    public boolean isExit(int node) {
+        int method = nodeMethods.get(node);
+        return exits.get(method) == node || exceptionalExits.get(method) == node;
+    }
+
+    public boolean isCall(int node) {
+        ControlFlowGraph.Op op = nodeOps.get(node);
+        return op != null && op.getKind() == ControlFlowGraph.OpKind.CALL;
+    }
+
+    public int[] getSuccessors(int node) {
+        return nodeSuccessors.get(node);
+    }
+
+    public int[] getCallees(int call) {
+        return nodeCallees.get(call);
+    }
+
+    private MethodInvocationTree call(int node) {
+        return (MethodInvocationTree) nodeOps.get(node).getTree();
+    }
+
+    private int varIndex(int method, @Nullable Element variable) {
+        Integer index = variable == null ? null : varIndexes.get(method).get(variable);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return True iff the operand is passed to a summarised parameter of the given method, so that its facts
+     * are passed to the method.
+     */
+    private boolean passesToCallee(int[] callees, LoweredMethod.Operand operand) {
+        return callees.length > 0 && operand.calleePosition >= 0
+                && positionVars.get(callees[0])[operand.calleePosition] >= 0;
+    }
+
+    // **********************************************************************
+    // The flow functions.
+
+    public void normal(int node, int successor, int fact, IntSet result) {
+        int method = nodeMethods.get(node);
+        if (successor == exceptionalExits.get(method)) {
+            // A throw statement: only the states of the summarised parameters matter.
+            if (fact != ZERO && entryVars.get(method)[factVar(fact)]) {
+                result.add(fact);
+            }
+            return;
+        }
+
+        ControlFlowGraph.Op op = nodeOps.get(node);
+        if (op == null) {
+            result.add(fact);
+            return;
+        }
+
+        LoweredMethod lowered = methods.get(method);
+        int defined = op.getDefined()[0];
+        if (fact == ZERO) {
+            result.add(ZERO);
+            switch (op.getKind()) {
+                case PARAMETER:
+                    if (!entryVars.get(method)[defined]) {
+                        result.add(fact(method, defined, stateSet(lowered.getDeclared((VariableTree) op.getTree()))));
+                    }
+                    break;
+                case DECLARE:
+                    result.add(fact(method, defined, stateSet(lowered.getDeclared((VariableTree) op.getTree()))));
+                    break;
+                case ASSIGN:
+                    if (op.getUsed().length == 0 || lowered.isArrayAccess(op.getRhs())) {
+                        result.add(fact(method, defined, stateSet(lowered.getRhsStates(op.getRhs()))));
+                    }
+                    break;
+                case ITERATE:
+                    result.add(fact(method, defined,
+                            stateSet(lowered.getIterated((EnhancedForLoopTree) op.getTree()))));
+                    break;
+            }
+            return;
+        }
+
+        int var = factVar(fact);
+        switch (op.getKind()) {
+            case PARAMETER:
+                // The summarised parameters keep the states of the context.
+                if (var != defined || entryVars.get(method)[var]) {
+                    result.add(fact);
+                }
+                break;
+            case DECLARE:
+            case ITERATE:
+                if (var != defined) {
+                    result.add(fact);
+                }
+                break;
+            case ASSIGN:
+                if (var != defined) {
+                    result.add(fact);
+                }
+                if (op.getUsed().length > 0 && op.getUsed()[0] == var && factStates(fact) != ERROR
+                        && !lowered.isArrayAccess(op.getRhs())) {
+                    Set<String> states = new TreeSet<String>(lowered.getRhsStates(op.getRhs()));
+                    states.addAll(stateSets.get(factStates(fact)));
+                    result.add(fact(method, defined, stateSet(states)));
+                }
+                break;
+            default:
+                result.add(fact);
+        }
+    }
+
+    public void call(int call, int callee, int fact, IntSet result) {
+        if (fact == ZERO) {
+            result.add(ZERO);
+            return;
+        }
+        if (factStates(fact) == ERROR) {
+            return;
+        }
+
+        int method = nodeMethods.get(call);
+        int var = factVar(fact);
+        int[] callees = nodeCallees.get(call);
+        for (LoweredMethod.Operand operand : methods.get(method).getOperands(call(call))) {
+            if (varIndex(method, operand.variable) == var && passesToCallee(callees, operand)) {
+                result.add(fact(callee, positionVars.get(callee)[operand.calleePosition], factStates(fact)));
+            }
+        }
+    }
+
+    public void callToReturn(int call, int returnSite, int fact, IntSet result) {
+        int method = nodeMethods.get(call);
+        boolean exceptional = returnSite == exceptionalExits.get(method);
+        if (fact == ZERO) {
+            if (!exceptional) {
+                result.add(ZERO);
+            }
+            return;
+        }
+
+        int var = factVar(fact);
+        boolean entry = entryVars.get(method)[var];
+        if (exceptional && !entry) {
+            return;
+        }
+        if (factStates(fact) == ERROR) {
+            result.add(fact);
+            return;
+        }
+
+        // As in the flow, the operands are checked and transformed in order.
+        Set<String> actual = stateSets.get(factStates(fact));
+        Set<String> exceptionStates = actual;
+        ControlFlowGraph.Op op = nodeOps.get(call);
+        int[] callees = nodeCallees.get(call);
+        for (LoweredMethod.Operand operand : methods.get(method).getOperands(call(call))) {
+            if (varIndex(method, operand.variable) != var) {
+                continue;
+            }
+            if (passesToCallee(callees, operand)) {
+                // The facts return from the called method.
+                return;
+            }
+            if (operand.specs == null || operand.specs.isEmpty()) {
+                continue;
+            }
+
+            if (entry && !StateSpec.covers(operand.specs, actual)) {
+                result.add(fact(method, var, ERROR));
+            }
+            List<Set<String>> onException = new ArrayList<Set<String>>(1);
+            actual = StateSpec.transit(operand.specs, op.getElement(), actual, onException);
+            exceptionStates = onException.get(0);
+        }
+
+        result.add(fact(method, var, stateSet(exceptional ? exceptionStates : actual)));
+    }
+
+    public void returnFlow(int call, int callee, int exit, int returnSite, int fact, IntSet result) {
+        int method = nodeMethods.get(call);
+        boolean exceptional = returnSite == exceptionalExits.get(method);
+        if (fact == ZERO || exceptional != (exit == exceptionalExits.get(callee))) {
+            return;
+        }
+
+        int calleeVar = factVar(fact);
+        int position = -1;
+        int[] positions = positionVars.get(callee);
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] == calleeVar) {
+                position = i;
+            }
+        }
+        if (position < 0) {
+            return;
+        }
+
+        for (LoweredMethod.Operand operand : methods.get(method).getOperands(call(call))) {
+            int var = varIndex(method, operand.variable);
+            if (operand.calleePosition != position || var < 0) {
+                continue;
+            }
+
+            // Errors are reported at the call, unless they concern a summarised parameter; exceptions only matter
+            // for summarised parameters.
+            boolean entry = entryVars.get(method)[var];
+            if (factStates(fact) == ERROR ? entry : !exceptional || entry) {
+                result.add(fact(method, var, factStates(fact)));
+            }
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,88 @@
+package checkers.typestate.watch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The diagnostics last reported for each compilation unit. When a unit is checked again, {@link #update} returns the
+ * diagnostics which appeared ({@code + diagnostic}) and which disappeared ({@code - diagnostic}) since.
+ *
+ * The diagnostics are compared by their keys, which shouldn't depend on the line of a diagnostic - e.g. the method in
+ * which it is and its message - so that a diagnostic which only moved to another line, as lines were added or removed
+ * above it, isn't reported. Its printed form, with the new line, is kept for the next update.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class DiagnosticsDiff {
+    // The printed forms of the diagnostics of each unit, by their keys.
+    private final Map<String, Map<String, String>> units = new HashMap<String, Map<String, String>>();
+
+    /**
+     * Replaces the diagnostics of the given unit.
+     * @param unitKey Key of the compilation unit.
+     * @param diagnostics The printed forms of the new diagnostics of the unit, by their keys.
+     * @return The printed forms of the removed diagnostics, prefixed with {@code "- "}, followed by those of the added
+     * ones, prefixed with {@code "+ "}; each group sorted.
+     */
+    public List<String> update(String unitKey, Map<String, String> diagnostics) {
+        Map<String, String> previous = units.get(unitKey);
+        if (previous == null) {
+            previous = Collections.emptyMap();
+        }
+        Map<String, String> current = new HashMap<String, String>(diagnostics);
+
+        SortedSet<String> removed = new TreeSet<String>();
+        for (Map.Entry<String, String> diagnostic : previous.entrySet()) {
+            if (!current.containsKey(diagnostic.getKey())) {
+                removed.add(diagnostic.getValue());
+            }
+        }
+        SortedSet<String> added = new TreeSet<String>();
+        for (Map.Entry<String, String> diagnostic : current.entrySet()) {
+            if (!previous.containsKey(diagnostic.getKey())) {
+                added.add(diagnostic.getValue());
+            }
+        }
+
+        List<String> result = new ArrayList<String>();
+        for (String diagnostic : removed) {
+            result.add("- " + diagnostic);
+        }
+        for (String diagnostic : added) {
+            result.add("+ " + diagnostic);
+        }
+
+        if (current.isEmpty()) {
+            units.remove(unitKey);
+        } else {
+            units.put(unitKey, current);
+        }
+
+        return result;
+    }
+
+    /**
+     * Forgets the diagnostics of a deleted unit.
+     * @param unitKey Key of the compilation unit.
+     * @return The diagnostics of the unit, prefixed with {@code "- "}.
+     */
+    public List<String> remove(String unitKey) {
+        return update(unitKey, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @return Number of the diagnostics of all units.
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, String> diagnostics : units.values()) {
+            size += diagnostics.size();
+        }
+
+        return size;
+    }
+}
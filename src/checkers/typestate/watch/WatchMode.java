@@ -0,0 +1,716 @@
+package checkers.typestate.watch;
+
+import checkers.nullness.quals.Nullable;
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.TypestateOptions;
+import checkers.typestate.deps.DependencyIndex;
+import checkers.typestate.schedule.AnalysisScheduler;
+import checkers.typestate.spec.SpecIndex;
+import checkers.typestate.spec.SpecIndexBuilder;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.MethodTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stays resident, and re-checks the sources when they change. The checked roots and all roots of the source path -
+ * e.g. the stubs and the state annotations - are watched; on a change, only the changed compilation units of the
+ * checked roots, and the units which depend on the changed files (see {@link DependencyIndex#dependents}), are checked
+ * again. The dependents are found from the calls recorded for every invoked method, whether state-annotated or not, so
+ * that annotating a method re-checks its callers. The diagnostics which appeared or disappeared since the previous
+ * check are printed (see {@link DiagnosticsDiff}); a diagnostic is identified by the method in which it is and its
+ * message, so that one which only moved to another line isn't printed.
+ *
+ * The changes are watched on a separate thread, which reports the changed units to the {@link AnalysisScheduler}
+ * as soon as they are seen: if a changed unit is being checked, the analysis of its stale content is cancelled. The
+ * units in which an analysis was cancelled are checked again, with the next changes; their diagnostics are printed
+ * only once a check of them completes.
+ *
+ * The stubs and the state annotation types are kept warm between the checks, so that a check parses and attributes
+ * only the checked units, and the sources of the source path which they use. The stubs are compiled into a
+ * {@link SpecIndex} in the cache directory, whose specs stay loaded; the state annotation types are compiled into
+ * class files there, which javac reads instead of their sources. Both are compiled at the start, and again when any
+ * of their files changes. The file manager and the dependency index are kept as well; each check runs a new javac
+ * task, with a new instance of the checker, as javac initialises a processor only once.
+ *
+ * The time of each check is printed; {@code checkers.typestate.bench.WatchLatency} measures the time from an edit to
+ * the printed diagnostics. The dependency index is compacted whenever the records appended to it by the checks
+ * outnumber its units (see {@link DependencyIndex#needsCompaction()}).
+ * <br />
+ * <tt>
+ * java checkers.typestate.watch.WatchMode -stubs example/jdk -states example/states -sourcepath example/src
+ * example/src
+ * </tt>
+ * <br />
+ * Options:
+ * <ul>
+ * <li>{@code -stubs path}: the roots of the state-annotated stubs; indexed, and watched</li>
+ * <li>{@code -states path}: the roots of the state annotation types; compiled, and watched</li>
+ * <li>{@code -sourcepath path}: where the other sources needed by the checked files are found; also watched</li>
+ * <li>{@code -cache dir}: where the stubs and the state annotation types are compiled; {@code typestate-cache} by
+ * default</li>
+ * <li>{@code -deps file}: the dependency index; {@code typestate.deps} by default</li>
+ * <li>{@code -specIndex path}: precompiled spec indexes to use, after those of the stubs</li>
+ * <li>{@code -Aname=value}: an option passed to the checker</li>
+ * </ul>
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class WatchMode {
+    // Time without changes after which a batch of changes is checked, so that saving many files checks them once.
+    private static final long QUIET_MILLIS = 50;
+    // Queued after the changes to stop checking them.
+    private static final File STOP = new File("");
+
+    private final List<File> checkedRoots = new ArrayList<File>();
+    private final List<File> watchedRoots = new ArrayList<File>();
+    private final List<File> stubRoots = new ArrayList<File>();
+    private final List<File> stateRoots = new ArrayList<File>();
+    private final List<String> checkerOptions = new ArrayList<String>();
+    private String sourcepath;
+    private File cacheDir = new File("typestate-cache");
+    private File dependencyIndexFile = new File("typestate.deps");
+    private final List<File> specIndexRoots = new ArrayList<File>();
+    // The index of the stubs, followed by the given spec indexes; replaced when a stub changes.
+    private SpecIndex specIndex;
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private StandardJavaFileManager fileManager;
+    private DependencyIndex dependencyIndex;
+    private final AnalysisScheduler scheduler = new AnalysisScheduler();
+    private final DiagnosticsDiff diagnostics = new DiagnosticsDiff();
+    private final PrintStream out;
+
+    private WatchService watcher;
+    private Thread watcherThread;
+    // The watched directories, and the root in which each is; the directories are changed by the watcher thread.
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+    private final Map<Path, File> rootsOfDirectories = new ConcurrentHashMap<Path, File>();
+    // The changed files, reported to the scheduler, and waiting to be checked.
+    private final BlockingQueue<File> changes = new LinkedBlockingQueue<File>();
+    // The units in which the analysis was cancelled, which are checked again.
+    private final SortedSet<String> cancelled = new TreeSet<String>();
+
+    /**
+     * @param out The stream to which the changes of the diagnostics are printed.
+     */
+    public WatchMode(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        WatchMode watchMode = new WatchMode(System.out);
+        watchMode.parseArgs(args);
+        watchMode.run();
+    }
+
+    /**
+     * @param args The options and the roots to check, as on the command line.
+     */
+    public void parseArgs(String... args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-sourcepath".equals(arg)) {
+                sourcepath = args[++i];
+                watchedRoots.addAll(roots(sourcepath));
+            } else if ("-stubs".equals(arg)) {
+                stubRoots.addAll(roots(args[++i]));
+                watchedRoots.addAll(roots(args[i]));
+            } else if ("-states".equals(arg)) {
+                stateRoots.addAll(roots(args[++i]));
+                watchedRoots.addAll(roots(args[i]));
+            } else if ("-cache".equals(arg)) {
+                cacheDir = new File(args[++i]);
+            } else if ("-deps".equals(arg)) {
+                dependencyIndexFile = new File(args[++i]);
+            } else if ("-specIndex".equals(arg)) {
+                specIndexRoots.addAll(roots(args[++i]));
+            } else if (arg.startsWith("-A")) {
+                checkerOptions.add(arg);
+            } else {
+                checkedRoots.add(new File(arg).getAbsoluteFile());
+            }
+        }
+
+        if (checkedRoots.isEmpty()) {
+            throw new IllegalArgumentException("No roots to check.");
+        }
+        cacheDir = cacheDir.getAbsoluteFile();
+        for (File checkedRoot : checkedRoots) {
+            if (!watchedRoots.contains(checkedRoot)) {
+                watchedRoots.add(checkedRoot);
+            }
+        }
+    }
+
+    private static List<File> roots(String path) {
+        List<File> result = new ArrayList<File>();
+        for (String root : path.split(File.pathSeparator)) {
+            if (root.length() > 0) {
+                result.add(new File(root).getAbsoluteFile());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks all units, and then the changed ones, until {@link #stop()} is called.
+     */
+    public void run() throws IOException, InterruptedException {
+        fileManager = compiler.getStandardFileManager(null, null, null);
+        dependencyIndex = DependencyIndex.read(dependencyIndexFile);
+        compactDependencyIndex();
+
+        watcher = FileSystems.getDefault().newWatchService();
+        for (File root : watchedRoots) {
+            register(root.toPath(), root);
+        }
+        // Started before the first check, so that the edits made meanwhile cancel it.
+        watcherThread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "typestate-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+
+        try {
+            compileStates();
+            indexStubs();
+
+            // The first check records the dependencies and the diagnostics of all units.
+            SortedSet<String> all = new TreeSet<String>();
+            for (File root : checkedRoots) {
+                collectSources(root, all);
+            }
+            check(all);
+            out.println("Watching " + watchedRoots + ".");
+
+            while (true) {
+                SortedSet<File> changed = new TreeSet<File>();
+                // The cancelled units are checked again at once.
+                if (cancelled.isEmpty()) {
+                    changed.add(changes.take());
+                }
+                changes.drainTo(changed);
+                if (changed.remove(STOP)) {
+                    return;
+                }
+
+                recheck(changed);
+            }
+        } finally {
+            watcher.close();
+            watcherThread.join();
+            if (specIndex != null) {
+                specIndex.close();
+            }
+        }
+    }
+
+    /**
+     * Stops {@link #run()}, once the current check completes.
+     */
+    public void stop() {
+        changes.add(STOP);
+    }
+
+    /**
+     * @return The scheduler of the checks, to which the changes are reported.
+     */
+    public AnalysisScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // Runs on the watcher thread, until the watch service is closed.
+    private void watch() {
+        try {
+            while (true) {
+                SortedSet<File> changed = new TreeSet<File>();
+                WatchKey key = watcher.take();
+                do {
+                    collectChanges(key, changed);
+                } while ((key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null);
+
+                // Cancelling the running analyses of the changed units, before they are queued.
+                for (File file : changed) {
+                    scheduler.edited(file.getAbsolutePath());
+                }
+                changes.addAll(changed);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Stopped.
+        } catch (InterruptedException e) {
+            // Stopped.
+        } catch (IOException e) {
+            e.printStackTrace();
+            out.println("Cannot watch the sources any more: " + e.getMessage());
+        }
+    }
+
+    private void register(Path directory, File root) throws IOException {
+        WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watchedDirectories.put(key, directory);
+        rootsOfDirectories.put(directory, root);
+
+        File[] children = directory.toFile().listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    register(child.toPath(), root);
+                }
+            }
+        }
+    }
+
+    private void collectChanges(WatchKey key, SortedSet<File> changed) throws IOException {
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Some events were lost; all files of the directory are treated as changed.
+                collectSourceFiles(directory.toFile(), changed);
+                continue;
+            }
+
+            File file = directory.resolve((Path) event.context()).toFile();
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && file.isDirectory()) {
+                register(file.toPath(), rootsOfDirectories.get(directory));
+                collectSourceFiles(file, changed);
+            } else if (file.getName().endsWith(".java")) {
+                changed.add(file);
+            }
+        }
+
+        if (!key.reset()) {
+            // The directory was deleted.
+            watchedDirectories.remove(key);
+            rootsOfDirectories.remove(directory);
+        }
+    }
+
+    private void recheck(SortedSet<File> changed) throws IOException {
+        SortedSet<String> toCheck = new TreeSet<String>();
+        for (String unitKey : cancelled) {
+            if (new File(unitKey).isFile()) {
+                toCheck.add(unitKey);
+            }
+        }
+        cancelled.clear();
+
+        boolean statesChanged = false;
+        boolean stubsChanged = false;
+        for (File file : changed) {
+            statesChanged |= isUnder(file, stateRoots);
+            stubsChanged |= isUnder(file, stubRoots);
+        }
+        if (statesChanged) {
+            compileStates();
+        }
+        // The specs of the stubs name the state annotation types.
+        if (statesChanged || stubsChanged) {
+            indexStubs();
+        }
+
+        List<String> changedSpecs = new ArrayList<String>();
+        for (File file : changed) {
+            String unitKey = file.getAbsolutePath();
+
+            // A deleted file can't be read, so the changed type is named after the path of the file in its root.
+            String typeName = typeName(file);
+            if (typeName != null) {
+                changedSpecs.add(typeName);
+            }
+
+            if (!file.isFile()) {
+                print(diagnostics.remove(unitKey));
+            } else if (isChecked(file)) {
+                toCheck.add(unitKey);
+            }
+        }
+
+        for (String dependent : dependencyIndex.dependents(changedSpecs)) {
+            if (new File(dependent).isFile()) {
+                toCheck.add(dependent);
+            }
+        }
+
+        if (!toCheck.isEmpty()) {
+            check(toCheck);
+        }
+    }
+
+    private String typeName(File file) {
+        File root = rootsOfDirectories.get(file.getParentFile().toPath());
+        if (root == null) {
+            return null;
+        }
+
+        String relativePath = root.toPath().relativize(file.toPath()).toString();
+        return relativePath.substring(0, relativePath.length() - ".java".length()).replace(File.separatorChar, '.');
+    }
+
+    private boolean isChecked(File file) {
+        return isUnder(file, checkedRoots);
+    }
+
+    private static boolean isUnder(File file, List<File> roots) {
+        for (File root : roots) {
+            if (file.toPath().startsWith(root.toPath())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compiles the state annotation types into class files in the cache directory, replacing the previous ones.
+     */
+    private void compileStates() throws IOException {
+        File classes = clean(new File(cacheDir, "classes"));
+        SortedSet<File> files = new TreeSet<File>();
+        for (File root : stateRoots) {
+            collectSourceFiles(root, files);
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+
+        List<String> options = new ArrayList<String>();
+        options.add("-proc:none");
+        options.add("-d");
+        options.add(classes.getPath());
+        options.add("-classpath");
+        options.add(System.getProperty("java.class.path"));
+        options.add("-sourcepath");
+        options.add(path(stateRoots));
+        compile("the state annotation types", options, files, null);
+    }
+
+    /**
+     * Compiles the stubs into a spec index in the cache directory, and replaces the spec index used by the checks.
+     */
+    private void indexStubs() throws IOException {
+        List<File> roots = new ArrayList<File>();
+        SortedSet<File> files = new TreeSet<File>();
+        for (File root : stubRoots) {
+            collectSourceFiles(root, files);
+        }
+        if (!files.isEmpty()) {
+            File index = clean(new File(cacheDir, "spec-index"));
+            List<String> options = new ArrayList<String>();
+            options.add("-proc:only");
+            options.add("-A" + TypestateOptions.SPEC_INDEX_OUT + "=" + index.getPath());
+            options.add("-classpath");
+            options.add(checkClasspath());
+            options.add("-sourcepath");
+            options.add(path(stubRoots));
+            compile("the stubs", options, files, new SpecIndexBuilder());
+            roots.add(index);
+        }
+        roots.addAll(specIndexRoots);
+
+        if (specIndex != null) {
+            specIndex.close();
+        }
+        specIndex = roots.isEmpty() ? null : new SpecIndex(roots);
+    }
+
+    private void compile(String what, List<String> options, SortedSet<File> files, @Nullable Processor processor) {
+        DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, collector, options, null,
+                fileManager.getJavaFileObjectsFromFiles(files));
+        if (processor != null) {
+            task.setProcessors(Collections.singletonList(processor));
+        }
+        if (!task.call()) {
+            out.println("Compiling " + what + " failed:");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : collector.getDiagnostics()) {
+                String unitKey = diagnostic.getSource() == null ? null : keyOf(diagnostic.getSource().toUri());
+                out.println(format(unitKey, diagnostic));
+            }
+        }
+    }
+
+    // The class path of the checks: the compiled state annotation types, followed by the class path of this JVM.
+    private String checkClasspath() {
+        return new File(cacheDir, "classes").getPath() + File.pathSeparator + System.getProperty("java.class.path");
+    }
+
+    private static String path(List<File> roots) {
+        StringBuilder sb = new StringBuilder();
+        for (File root : roots) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(root.getPath());
+        }
+
+        return sb.toString();
+    }
+
+    // Deletes the content of the given directory, creating it if needed.
+    private static File clean(File dir) throws IOException {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir + ".");
+        }
+
+        return dir;
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            throw new IOException("Cannot delete " + file + ".");
+        }
+    }
+
+    /**
+     * Checks the given units with a new instance of the checker, and prints the changes of their diagnostics. The
+     * units in which an analysis is cancelled are recorded, to be checked again; their diagnostics are kept.
+     */
+    private void check(SortedSet<String> unitKeys) throws IOException {
+        long start = System.nanoTime();
+
+        List<File> files = new ArrayList<File>();
+        for (String unitKey : scheduler.orderUnits(unitKeys)) {
+            files.add(new File(unitKey));
+        }
+
+        List<String> options = new ArrayList<String>();
+        options.add("-proc:only");
+        options.add("-classpath");
+        options.add(checkClasspath());
+        if (sourcepath != null) {
+            options.add("-sourcepath");
+            options.add(sourcepath);
+        }
+        options.addAll(checkerOptions);
+
+        TypestateChecker checker = new TypestateChecker();
+        if (specIndex != null) {
+            checker.setSpecIndex(specIndex);
+        }
+        checker.setDependencyIndex(dependencyIndex, dependencyIndexFile);
+        checker.setScheduler(scheduler);
+
+        DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<JavaFileObject>();
+        JavacTask task = (JavacTask) compiler.getTask(null, fileManager, collector, options, null,
+                fileManager.getJavaFileObjectsFromFiles(files));
+        task.setProcessors(Collections.singletonList(checker));
+        // The trees of the checked units, to find the methods in which the diagnostics are.
+        final Map<String, CompilationUnitTree> roots = new HashMap<String, CompilationUnitTree>();
+        task.setTaskListener(new TaskListener() {
+            public void started(TaskEvent e) { }
+
+            public void finished(TaskEvent e) {
+                if (e.getKind() == TaskEvent.Kind.PARSE) {
+                    roots.put(DependencyIndex.keyOf(e.getCompilationUnit()), e.getCompilationUnit());
+                }
+            }
+        });
+        // Taken before the call, as the task then releases its context.
+        SourcePositions positions = Trees.instance(task).getSourcePositions();
+        task.call();
+        checker.writeStatistics();
+        Set<String> cancelledUnits = scheduler.takeCancelled();
+
+        // The diagnostics of each checked unit, by their keys; those of other units are printed as they are.
+        Map<String, Map<String, String>> unitDiagnostics = new TreeMap<String, Map<String, String>>();
+        for (String unitKey : unitKeys) {
+            unitDiagnostics.put(unitKey, new HashMap<String, String>());
+        }
+        List<String> other = new ArrayList<String>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : collector.getDiagnostics()) {
+            String unitKey = diagnostic.getSource() == null ? null : keyOf(diagnostic.getSource().toUri());
+            if (unitKey != null && unitDiagnostics.containsKey(unitKey)) {
+                Map<String, String> diagnostics = unitDiagnostics.get(unitKey);
+                String key = locationOf(roots.get(unitKey), positions, diagnostic.getPosition()) + ": "
+                        + diagnostic.getKind().toString().toLowerCase() + ": " + diagnostic.getMessage(null);
+                // Numbering the same diagnostics in a method.
+                String numberedKey = key;
+                for (int i = 2; diagnostics.containsKey(numberedKey); i++) {
+                    numberedKey = key + " #" + i;
+                }
+                diagnostics.put(numberedKey, format(unitKey, diagnostic));
+            } else {
+                other.add(format(unitKey, diagnostic));
+            }
+        }
+
+        for (Map.Entry<String, Map<String, String>> entry : unitDiagnostics.entrySet()) {
+            // The diagnostics of a cancelled unit are incomplete.
+            if (cancelledUnits.contains(entry.getKey())) {
+                cancelled.add(entry.getKey());
+            } else {
+                print(diagnostics.update(entry.getKey(), entry.getValue()));
+            }
+        }
+        print(other);
+
+        out.println("Checked " + unitKeys.size() + " unit(s) in " + (System.nanoTime() - start) / 1000000L
+                + " ms; " + diagnostics.size() + " diagnostic(s)."
+                + (cancelled.isEmpty() ? "" : " Cancelled in " + cancelled.size() + " unit(s), checking again."));
+
+        compactDependencyIndex();
+    }
+
+    private void compactDependencyIndex() throws IOException {
+        if (dependencyIndex.needsCompaction()) {
+            dependencyIndex.write(dependencyIndexFile);
+        }
+    }
+
+    /**
+     * @return The classes and the method enclosing the given position in the given unit, e.g.
+     * {@code Outer.Inner.method(int,String)}, or only the classes, outside of methods; an empty string if the unit or
+     * the position is unknown.
+     */
+    private static String locationOf(@Nullable final CompilationUnitTree root, final SourcePositions positions,
+                                     final long position) {
+        if (root == null || position == Diagnostic.NOPOS) {
+            return "";
+        }
+
+        final StringBuilder location = new StringBuilder();
+
+        new TreeScanner<Void, Void>() {
+            @Override
+            public Void visitClass(ClassTree node, Void p) {
+                if (!contains(node)) {
+                    return null;
+                }
+
+                append(node.getSimpleName().length() == 0 ? "<anonymous>" : node.getSimpleName().toString());
+                return super.visitClass(node, p);
+            }
+
+            @Override
+            public Void visitMethod(MethodTree node, Void p) {
+                if (!contains(node)) {
+                    return null;
+                }
+
+                StringBuilder parameters = new StringBuilder();
+                for (VariableTree parameter : node.getParameters()) {
+                    if (parameters.length() > 0) {
+                        parameters.append(",");
+                    }
+                    parameters.append(parameter.getType());
+                }
+                append(node.getName() + "(" + parameters + ")");
+                return super.visitMethod(node, p);
+            }
+
+            private boolean contains(Tree node) {
+                return positions.getStartPosition(root, node) <= position
+                        && position < positions.getEndPosition(root, node);
+            }
+
+            private void append(String name) {
+                if (location.length() > 0) {
+                    location.append(".");
+                }
+                location.append(name);
+            }
+        }.scan(root, null);
+
+        return location.toString();
+    }
+
+    // As DependencyIndex.keyOf, for a file object.
+    private static String keyOf(URI uri) {
+        if ("file".equals(uri.getScheme())) {
+            return new File(uri).getAbsolutePath();
+        }
+
+        return uri.toString();
+    }
+
+    private static String format(String unitKey, Diagnostic<? extends JavaFileObject> diagnostic) {
+        StringBuilder sb = new StringBuilder();
+        if (unitKey != null) {
+            sb.append(unitKey).append(":").append(diagnostic.getLineNumber()).append(": ");
+        }
+        sb.append(diagnostic.getKind().toString().toLowerCase()).append(": ").append(diagnostic.getMessage(null));
+        return sb.toString();
+    }
+
+    private void print(List<String> lines) {
+        for (String line : lines) {
+            out.println(line);
+        }
+    }
+
+    private static void collectSources(File file, SortedSet<String> result) {
+        SortedSet<File> files = new TreeSet<File>();
+        collectSourceFiles(file, files);
+        for (File source : files) {
+            result.add(source.getAbsolutePath());
+        }
+    }
+
+    private static void collectSourceFiles(File file, SortedSet<File> result) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    collectSourceFiles(child, result);
+                }
+            }
+        } else if (file.getName().endsWith(".java")) {
+            result.add(file.getAbsoluteFile());
+        }
+    }
+}
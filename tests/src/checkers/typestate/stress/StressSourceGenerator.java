@@ -0,0 +1,339 @@
+package checkers.typestate.stress;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates compilable sources which stress the typestate checker, for benchmarks and scaling tests. Two files are
+ * generated: a family of state annotations (as {@code InputStreamStates}), and a class with a resource type annotated
+ * with these states, and a single {@code stress()} method using it.
+ *
+ * The knobs are:
+ * <ul>
+ * <li>states: the number of states; the resource cycles through them</li>
+ * <li>locals: the number of resource variables in the method</li>
+ * <li>fields: the number of (final) resource fields, used by the method</li>
+ * <li>call sites: the number of state-checking calls on the locals, half of which change the state</li>
+ * <li>try depth: the number of nested try/finally blocks; the outermost is around the calls, which declare exception
+ * states, and each next one is in the finally block of the previous one, as each finally block is analysed both after
+ * a normal and after an abrupt completion</li>
+ * <li>loop depth: the number of nested loops around the calls</li>
+ * <li>conditions: the number of {@code if}s on a boolean method with {@code afterTrue}/{@code afterFalse}
+ * transitions</li>
+ * </ul>
+ *
+ * The generated code is correct, that is, the checker should report no errors for it.
+ *
+ * Running this class generates the sources into the given directory:
+ * <br />
+ * <tt>
+ * java checkers.typestate.stress.StressSourceGenerator out states=4 locals=8 callSites=200 tryDepth=2
+ * </tt>
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class StressSourceGenerator {
+    private final String packageName;
+    private final String className;
+
+    private int states = 2;
+    private int locals = 1;
+    private int fields = 0;
+    private int callSites = 10;
+    private int tryDepth = 0;
+    private int loopDepth = 0;
+    private int conditions = 0;
+
+    /**
+     * @param packageName Package of the generated classes; can't be empty, as the states are imported.
+     * @param className Name of the generated class; the states are generated in the {@code className + "States"}
+     * class.
+     */
+    public StressSourceGenerator(String packageName, String className) {
+        this.packageName = packageName;
+        this.className = className;
+    }
+
+    public StressSourceGenerator setStates(int states) {
+        if (states < 1) {
+            throw new IllegalArgumentException("At least one state is needed.");
+        }
+        this.states = states;
+        return this;
+    }
+
+    public StressSourceGenerator setLocals(int locals) {
+        if (locals < 1) {
+            throw new IllegalArgumentException("At least one local is needed.");
+        }
+        this.locals = locals;
+        return this;
+    }
+
+    public StressSourceGenerator setFields(int fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    public StressSourceGenerator setCallSites(int callSites) {
+        this.callSites = callSites;
+        return this;
+    }
+
+    public StressSourceGenerator setTryDepth(int tryDepth) {
+        this.tryDepth = tryDepth;
+        return this;
+    }
+
+    public StressSourceGenerator setLoopDepth(int loopDepth) {
+        this.loopDepth = loopDepth;
+        return this;
+    }
+
+    public StressSourceGenerator setConditions(int conditions) {
+        this.conditions = conditions;
+        return this;
+    }
+
+    public String getStatesClassName() {
+        return className + "States";
+    }
+
+    /**
+     * Sets a knob by name, as given on the command line.
+     * @param knob Name of the knob: states, locals, fields, callSites, tryDepth, loopDepth or conditions.
+     * @param value Value of the knob.
+     * @return This generator.
+     */
+    public StressSourceGenerator set(String knob, int value) {
+        if ("states".equals(knob)) {
+            return setStates(value);
+        } else if ("locals".equals(knob)) {
+            return setLocals(value);
+        } else if ("fields".equals(knob)) {
+            return setFields(value);
+        } else if ("callSites".equals(knob)) {
+            return setCallSites(value);
+        } else if ("tryDepth".equals(knob)) {
+            return setTryDepth(value);
+        } else if ("loopDepth".equals(knob)) {
+            return setLoopDepth(value);
+        } else if ("conditions".equals(knob)) {
+            return setConditions(value);
+        }
+
+        throw new IllegalArgumentException("Unknown knob: " + knob);
+    }
+
+    /**
+     * @return Source of the class holding the state annotations.
+     */
+    public String generateStates() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import checkers.typestate.State;\n");
+        sb.append("import checkers.typestate.NoChange;\n\n");
+        sb.append("import java.lang.annotation.Annotation;\n\n");
+        sb.append("public class ").append(getStatesClassName()).append(" {\n");
+        sb.append("\tprivate ").append(getStatesClassName()).append("() { }\n");
+        for (int i = 0; i < states; i++) {
+            sb.append("\n\tpublic static @State @interface State").append(i).append(" {\n");
+            for (String element : new String[] { "after", "afterTrue", "afterFalse", "onException" }) {
+                sb.append("\t\tClass<? extends Annotation> ").append(element).append("() default NoChange.class;\n");
+            }
+            sb.append("\t}\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return Source of the class with the resource type and the stress method.
+     */
+    public String generateSource() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import checkers.typestate.Any;\n");
+        sb.append("import ").append(packageName).append(".").append(getStatesClassName()).append(".*;\n\n");
+        sb.append("public class ").append(className).append(" {\n");
+        appendResource(sb);
+        sb.append("\n");
+        for (int i = 0; i < fields; i++) {
+            sb.append("\tprivate final Resource f").append(i).append(" = new Resource();\n");
+        }
+        sb.append("\n\tpublic void stress() {\n");
+        appendBody(sb);
+        sb.append("\t}\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private void appendResource(StringBuilder sb) {
+        sb.append("\tpublic static class Resource {\n");
+        sb.append("\t\tpublic Resource() /*@State0*/ { }\n");
+        sb.append("\t\tpublic void touch() /*@Any*/ { }\n");
+        for (int i = 0; i < states; i++) {
+            int next = (i + 1) % states;
+            sb.append("\t\tpublic void use").append(i).append("() /*@State").append(i).append("*/ { }\n");
+            sb.append("\t\tpublic void step").append(i).append("() /*@State").append(i)
+                    .append("(after=State").append(next).append(".class, onException=State").append(i)
+                    .append(".class)*/ { }\n");
+            sb.append("\t\tpublic boolean check").append(i).append("() /*@State").append(i)
+                    .append("(afterTrue=State").append(next).append(".class, afterFalse=State").append(i)
+                    .append(".class)*/ { return true; }\n");
+        }
+        sb.append("\t}\n");
+    }
+
+    private void appendBody(StringBuilder sb) {
+        for (int i = 0; i < locals; i++) {
+            sb.append("\t\tResource r").append(i).append(" = new Resource();\n");
+        }
+
+        String indent = "\t\t";
+        for (int i = 0; i < loopDepth; i++) {
+            sb.append(indent).append("for (int i").append(i).append(" = 0; i").append(i).append(" < 2; i")
+                    .append(i).append("++) {\n");
+            indent += "\t";
+        }
+        if (tryDepth > 0) {
+            sb.append(indent).append("try {\n");
+            indent += "\t";
+        }
+
+        // The current states of the locals; the calls start in the state given by the constructor.
+        int[] localStates = new int[locals];
+        int conditionsLeft = conditions;
+        for (int call = 0; call < callSites; call++) {
+            // Spreading the conditions evenly between the calls.
+            while (conditionsLeft > 0 && (long) (conditions - conditionsLeft) * callSites <= (long) call * conditions) {
+                appendCondition(sb, indent, conditions - conditionsLeft, localStates);
+                conditionsLeft--;
+            }
+
+            int local = call % locals;
+            if (call % 2 == 0) {
+                appendCall(sb, indent, "r" + local, "use" + localStates[local]);
+            } else {
+                appendStep(sb, indent, local, localStates);
+            }
+        }
+        while (conditionsLeft > 0) {
+            appendCondition(sb, indent, conditions - conditionsLeft, localStates);
+            conditionsLeft--;
+        }
+
+        for (int i = 0; i < fields; i++) {
+            appendCall(sb, indent, "f" + i, "use0");
+        }
+
+        // Inside loops, the locals have to get back to the states in which the loops were entered.
+        if (loopDepth > 0) {
+            for (int local = 0; local < locals; local++) {
+                while (localStates[local] != 0) {
+                    appendStep(sb, indent, local, localStates);
+                }
+            }
+        }
+
+        for (int i = 0; i < tryDepth; i++) {
+            indent = indent.substring(1);
+            sb.append(indent).append("} finally {\n");
+            indent += "\t";
+            // Whether an exception was thrown or not, the state may differ; any state is accepted.
+            appendCall(sb, indent, "r0", "touch");
+            if (i + 1 < tryDepth) {
+                sb.append(indent).append("try {\n");
+                indent += "\t";
+                appendCall(sb, indent, "r0", "touch");
+            }
+        }
+        for (int i = 0; i < tryDepth; i++) {
+            indent = indent.substring(1);
+            sb.append(indent).append("}\n");
+        }
+        for (int i = 0; i < loopDepth; i++) {
+            indent = indent.substring(1);
+            sb.append(indent).append("}\n");
+        }
+
+        for (int i = 0; i < locals; i++) {
+            appendCall(sb, "\t\t", "r" + i, "use" + localStates[i]);
+        }
+    }
+
+    private void appendCall(StringBuilder sb, String indent, String variable, String method) {
+        sb.append(indent).append(variable).append(".").append(method).append("();\n");
+    }
+
+    private void appendStep(StringBuilder sb, String indent, int local, int[] localStates) {
+        appendCall(sb, indent, "r" + local, "step" + localStates[local]);
+        localStates[local] = (localStates[local] + 1) % states;
+    }
+
+    private void appendCondition(StringBuilder sb, String indent, int condition, int[] localStates) {
+        // Both branches end in the next state.
+        int local = condition % locals;
+        int state = localStates[local];
+        int next = (state + 1) % states;
+        sb.append(indent).append("if (r").append(local).append(".check").append(state).append("()) {\n");
+        appendCall(sb, indent + "\t", "r" + local, "use" + next);
+        sb.append(indent).append("} else {\n");
+        appendCall(sb, indent + "\t", "r" + local, "step" + state);
+        sb.append(indent).append("}\n");
+        localStates[local] = next;
+    }
+
+    /**
+     * Writes the generated sources to the given directory, in subdirectories corresponding to the package.
+     * @param outputDir The base directory of the sources.
+     * @return The generated files: the states and the stress class.
+     * @throws IOException If the files cannot be written.
+     */
+    public List<File> generate(File outputDir) throws IOException {
+        File packageDir = new File(outputDir, packageName.replace('.', File.separatorChar));
+        if (!packageDir.isDirectory() && !packageDir.mkdirs()) {
+            throw new IOException("Cannot create " + packageDir + ".");
+        }
+
+        List<File> files = new ArrayList<File>();
+        files.add(write(new File(packageDir, getStatesClassName() + ".java"), generateStates()));
+        files.add(write(new File(packageDir, className + ".java"), generateSource()));
+        return files;
+    }
+
+    private static File write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+
+        return file;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: StressSourceGenerator <output dir> [knob=value]...");
+            System.exit(1);
+        }
+
+        StressSourceGenerator generator = new StressSourceGenerator("stress", "Stress");
+        for (int i = 1; i < args.length; i++) {
+            String[] knob = args[i].split("=", 2);
+            if (knob.length != 2) {
+                throw new IllegalArgumentException("Knobs must be given as name=value, got: " + args[i]);
+            }
+            generator.set(knob[0], Integer.parseInt(knob[1]));
+        }
+
+        for (File file : generator.generate(new File(args[0]))) {
+            System.out.println(file);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package checkers.typestate.test;
+
+import checkers.typestate.schedule.AnalysisScheduler;
+import checkers.typestate.schedule.AnalysisTask;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class AnalysisSchedulerTest {
+    /** Test that an edit cancels the running analyses of the edited unit only */
+    @Test
+    public void testEditCancels() {
+        AnalysisScheduler scheduler = new AnalysisScheduler();
+        AnalysisTask a = scheduler.begin("A.java", scheduler.generation("A.java"), "A.a()");
+        AnalysisTask b = scheduler.begin("B.java", scheduler.generation("B.java"), "B.b()");
+
+        scheduler.edited("A.java");
+        assertTrue(a.isCancelled());
+        assertFalse(b.isCancelled());
+
+        scheduler.end(a);
+        scheduler.end(b);
+        assertTrue(scheduler.getRunning().isEmpty());
+        assertEquals(Collections.singleton("A.java"), scheduler.takeCancelled());
+        assertTrue(scheduler.takeCancelled().isEmpty());
+    }
+
+    /** Test that the analyses of a unit started before an edit are cancelled from the start */
+    @Test
+    public void testStaleGeneration() {
+        AnalysisScheduler scheduler = new AnalysisScheduler();
+        long generation = scheduler.generation("A.java");
+        scheduler.edited("A.java");
+
+        assertTrue(scheduler.begin("A.java", generation, "A.a()").isCancelled());
+        assertFalse(scheduler.begin("A.java", scheduler.generation("A.java"), "A.a()").isCancelled());
+    }
+
+    /** Test that the focused unit goes first, then the recently edited ones, the most recent first */
+    @Test
+    public void testOrderUnits() {
+        AnalysisScheduler scheduler = new AnalysisScheduler();
+        scheduler.edited("B.java");
+        scheduler.edited("D.java");
+        scheduler.focus("C.java", 10);
+
+        assertEquals(Arrays.asList("C.java", "D.java", "B.java", "A.java", "E.java"),
+                scheduler.orderUnits(Arrays.asList("A.java", "B.java", "C.java", "D.java", "E.java")));
+        assertTrue(scheduler.isFocused("C.java", 5, 20));
+        assertFalse(scheduler.isFocused("C.java", 10, 10));
+        assertFalse(scheduler.isFocused("A.java", 5, 20));
+    }
+}
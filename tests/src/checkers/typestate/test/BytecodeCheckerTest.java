@@ -0,0 +1,222 @@
+package checkers.typestate.test;
+
+import checkers.typestate.NoChange;
+import checkers.typestate.State;
+import checkers.typestate.bytecode.BytecodeChecker;
+import checkers.typestate.bytecode.BytecodeDiagnostic;
+import checkers.typestate.classfile.ClassFileException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class BytecodeCheckerTest {
+    @State @Retention(RetentionPolicy.RUNTIME)
+    public @interface Open {
+        Class<?> after() default NoChange.class;
+        Class<?> afterTrue() default NoChange.class;
+        Class<?> afterFalse() default NoChange.class;
+    }
+
+    @State @Retention(RetentionPolicy.RUNTIME)
+    public @interface Closed {
+        Class<?> after() default NoChange.class;
+    }
+
+    public static class Connection { }
+
+    /**
+     * The annotated methods, which operate on connections passed as parameters.
+     */
+    public static class Connections {
+        public static @Closed Connection create() {
+            return new Connection();
+        }
+
+        public static void open(@Closed(after = Open.class) Connection connection) { }
+
+        public static int read(@Open Connection connection) {
+            return 0;
+        }
+
+        public static boolean hasMore(@Open(afterFalse = Closed.class) Connection connection) {
+            return false;
+        }
+
+        public static void close(@Open(after = Closed.class) Connection connection) { }
+    }
+
+    /**
+     * The checked class; the methods which aren't named "correct..." contain one error each.
+     */
+    public static class Client {
+        public static void correct() {
+            Connection connection = Connections.create();
+            Connections.open(connection);
+            Connections.read(connection);
+            Connections.close(connection);
+        }
+
+        public static void correctLoop() {
+            Connection connection = Connections.create();
+            Connections.open(connection);
+            while (Connections.hasMore(connection)) {
+                Connections.read(connection);
+            }
+        }
+
+        public static void notOpened() {
+            Connection connection = Connections.create();
+            Connections.read(connection);
+        }
+
+        public static void openedInBranch(boolean open) {
+            Connection connection = Connections.create();
+            if (open) {
+                Connections.open(connection);
+            }
+            Connections.read(connection);
+        }
+
+        public static void readAfterLoop() {
+            Connection connection = Connections.create();
+            Connections.open(connection);
+            while (Connections.hasMore(connection)) {
+                Connections.read(connection);
+            }
+            Connections.read(connection);
+        }
+
+        public static void closedTwice() {
+            Connection connection = Connections.create();
+            Connections.open(connection);
+            Connections.close(connection);
+            Connections.close(connection);
+        }
+    }
+
+    private static byte[] readClass(Class<?> cls) throws Exception {
+        InputStream in = cls.getResourceAsStream(cls.getName().substring(cls.getName().lastIndexOf('.') + 1)
+                + ".class");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<String> methods(List<BytecodeDiagnostic> diagnostics) {
+        List<String> methods = new ArrayList<String>();
+        for (BytecodeDiagnostic diagnostic : diagnostics) {
+            methods.add(diagnostic.getMethodKey());
+        }
+        return methods;
+    }
+
+    @Test
+    public void testCheck() throws Exception {
+        BytecodeChecker checker = new BytecodeChecker(null, BytecodeCheckerTest.class.getClassLoader());
+        List<BytecodeDiagnostic> diagnostics = checker.check(readClass(Client.class));
+
+        assertEquals(Arrays.asList("notOpened()", "openedInBranch(boolean)", "readAfterLoop()", "closedTwice()"),
+                methods(diagnostics));
+        for (BytecodeDiagnostic diagnostic : diagnostics) {
+            assertEquals(Client.class.getName(), diagnostic.getClassName());
+            assertEquals("checkers/typestate/test/BytecodeCheckerTest.java", diagnostic.getSourceFile());
+            assertEquals("parameter.in.wrong.state", diagnostic.getKey());
+            assertTrue(diagnostic.getLine() > 0);
+        }
+
+        assertTrue(diagnostics.get(0).getMessage(),
+                diagnostics.get(0).getMessage().contains("Expected: [@" + Open.class.getCanonicalName() + "]"));
+        assertTrue(diagnostics.get(0).getMessage(),
+                diagnostics.get(0).getMessage().contains("actual: [@" + Closed.class.getCanonicalName() + "]"));
+        assertTrue(diagnostics.get(3).getMessage(),
+                diagnostics.get(3).getMessage().contains("Expected: [@" + Open.class.getCanonicalName() + "]"));
+        // The error in the branch is reported at the read, after the branches join.
+        assertTrue(diagnostics.get(1).getLine() > diagnostics.get(0).getLine());
+        assertEquals(0, checker.getSkippedMethodCount());
+    }
+
+    @Test
+    public void testCheckJar() throws Exception {
+        File jar = File.createTempFile("bytecode-checker", ".jar");
+        jar.deleteOnExit();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (Class<?> cls : Arrays.asList(Client.class, Connections.class, Connection.class)) {
+                out.putNextEntry(new ZipEntry(cls.getName().replace('.', '/') + ".class"));
+                out.write(readClass(cls));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+
+        BytecodeChecker checker = new BytecodeChecker(null, BytecodeCheckerTest.class.getClassLoader());
+        List<BytecodeDiagnostic> diagnostics = checker.checkAll(Arrays.asList(jar), 2);
+
+        assertEquals(4, diagnostics.size());
+        assertEquals(3, checker.getCheckedClassCount());
+        assertEquals(diagnostics.toString(), methods(checker.check(readClass(Client.class))), methods(diagnostics));
+    }
+
+    /** Test that an unexpected exception when checking a class fails the whole run, after the other classes */
+    @Test
+    public void testCheckAllFailure() throws Exception {
+        File dir = File.createTempFile("bytecode-checker", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+        for (Class<?> cls : Arrays.asList(Client.class, Connections.class)) {
+            File classFile = new File(dir, cls.getName().substring(cls.getName().lastIndexOf('.') + 1) + ".class");
+            classFile.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(classFile);
+            try {
+                out.write(readClass(cls));
+            } finally {
+                out.close();
+            }
+        }
+
+        final byte[] failing = readClass(Client.class);
+        BytecodeChecker checker = new BytecodeChecker(null, BytecodeCheckerTest.class.getClassLoader()) {
+            @Override
+            public List<BytecodeDiagnostic> check(byte[] bytes) throws ClassFileException {
+                if (Arrays.equals(failing, bytes)) {
+                    throw new IllegalStateException("A bug in the analysis.");
+                }
+                return super.check(bytes);
+            }
+        };
+
+        try {
+            checker.checkAll(Arrays.asList(dir), 2);
+            fail("The failure of a class wasn't reported.");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("BytecodeCheckerTest$Client.class"));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, checker.getCheckedClassCount());
+        assertEquals(0, checker.getSkippedClassCount());
+    }
+}
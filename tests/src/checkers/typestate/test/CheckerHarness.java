@@ -0,0 +1,252 @@
+package checkers.typestate.test;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a checker on test files in-process, comparing the reported diagnostics with the expected ones, in the format
+ * of {@code tests.CheckerTest}: a {@code .out} file next to each test file, with a {@code :line: (key)} line for each
+ * expected diagnostic (the checker is run with {@code -Anomsgtext}). A test file without a {@code .out} file is
+ * expected to have no diagnostics.
+ *
+ * Unlike {@code CheckerTest}, which sets up the whole compiler for each test, the harness uses one compiler for all
+ * files, and checks them in parallel. Each file is checked in a separate compilation task, with its own diagnostic
+ * collector and its own processor instance (a processor can be initialized only once), so the checks are isolated.
+ * Each worker thread has one file manager, which it reuses for all files it checks: javac's file manager caches the
+ * contents of the files in an unsynchronized map, so it can't be shared between threads.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class CheckerHarness {
+    private final Class<? extends Processor> checkerClass;
+    private final List<String> options;
+
+    private final JavaCompiler compiler;
+    // The file manager of each worker thread.
+    private final List<StandardJavaFileManager> fileManagers;
+
+    /**
+     * Creates a harness checking as many files in parallel as there are processors.
+     * @param checkerClass Class of the checker; an instance is created for each checked file.
+     * @param checkerOptions Additional options, e.g. {@code -Atypestate.stats}.
+     */
+    public CheckerHarness(Class<? extends Processor> checkerClass, String... checkerOptions) {
+        this(checkerClass, Runtime.getRuntime().availableProcessors(), checkerOptions);
+    }
+
+    /**
+     * @param checkerClass Class of the checker; an instance is created for each checked file.
+     * @param threads Number of files checked in parallel.
+     * @param checkerOptions Additional options, e.g. {@code -Atypestate.stats}.
+     */
+    public CheckerHarness(Class<? extends Processor> checkerClass, int threads, String... checkerOptions) {
+        this.checkerClass = checkerClass;
+
+        options = new ArrayList<String>();
+        options.addAll(Arrays.asList("-proc:only", "-Anomsgtext", "-classpath", System.getProperty("java.class.path")));
+        options.addAll(Arrays.asList(checkerOptions));
+
+        compiler = ToolProvider.getSystemJavaCompiler();
+        fileManagers = new ArrayList<StandardJavaFileManager>();
+        for (int i = 0; i < threads; i++) {
+            fileManagers.add(compiler.getStandardFileManager(null, null, null));
+        }
+    }
+
+    /**
+     * The result of checking a single file.
+     */
+    public static class Result {
+        private final File file;
+        private final List<String> expected;
+        private final List<String> actual;
+
+        Result(File file, List<String> expected, List<String> actual) {
+            this.file = file;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public List<String> getExpected() {
+            return expected;
+        }
+
+        public List<String> getActual() {
+            return actual;
+        }
+
+        public List<String> getMissing() {
+            return subtract(expected, actual);
+        }
+
+        public List<String> getUnexpected() {
+            return subtract(actual, expected);
+        }
+
+        public boolean isPassed() {
+            return expected.equals(actual);
+        }
+
+        private static List<String> subtract(List<String> from, List<String> what) {
+            List<String> result = new ArrayList<String>(from);
+            for (String diagnostic : what) {
+                result.remove(diagnostic);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            if (isPassed()) {
+                return file.getName() + ": passed";
+            }
+
+            return file.getName() + ": missing " + getMissing() + ", unexpected " + getUnexpected();
+        }
+    }
+
+    /**
+     * @param dir The directory with the test files.
+     * @return The test files in the given directory: the {@code .java} files for which a {@code .out} file exists,
+     * sorted by name.
+     */
+    public static List<File> findTestFiles(File dir) {
+        List<File> result = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".java") && expectedFile(file).isFile()) {
+                    result.add(file);
+                }
+            }
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
+    private static File expectedFile(File testFile) {
+        String name = testFile.getName();
+        return new File(testFile.getParentFile(), name.substring(0, name.length() - ".java".length()) + ".out");
+    }
+
+    /**
+     * Checks the given files in parallel.
+     * @param testFiles The files to check.
+     * @return The results, in the order of the files.
+     * @throws Exception If a check fails with an exception.
+     */
+    public synchronized List<Result> check(final List<File> testFiles) throws Exception {
+        final Result[] results = new Result[testFiles.size()];
+        final AtomicInteger next = new AtomicInteger();
+
+        int threads = Math.min(fileManagers.size(), testFiles.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final StandardJavaFileManager fileManager = fileManagers.get(i);
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        int file;
+                        while ((file = next.getAndIncrement()) < testFiles.size()) {
+                            results[file] = check(testFiles.get(file), fileManager);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Checks a single file, in the current thread.
+     * @param testFile The file to check.
+     * @return The result of the check.
+     * @throws Exception If the checker cannot be created or the expected diagnostics read.
+     */
+    public synchronized Result check(File testFile) throws Exception {
+        return check(testFile, fileManagers.get(0));
+    }
+
+    private Result check(File testFile, StandardJavaFileManager fileManager) throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null,
+                fileManager.getJavaFileObjects(testFile));
+        task.setProcessors(Collections.singleton(checkerClass.getDeclaredConstructor().newInstance()));
+        task.call();
+
+        List<String> actual = new ArrayList<String>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR || diagnostic.getKind() == Diagnostic.Kind.WARNING
+                    || diagnostic.getKind() == Diagnostic.Kind.MANDATORY_WARNING) {
+                actual.add(":" + diagnostic.getLineNumber() + ": " + diagnostic.getMessage(null).trim());
+            }
+        }
+
+        List<String> expected = readExpected(expectedFile(testFile));
+        Collections.sort(actual);
+        Collections.sort(expected);
+        return new Result(testFile, expected, actual);
+    }
+
+    private static List<String> readExpected(File expectedFile) throws IOException {
+        List<String> result = new ArrayList<String>();
+        if (!expectedFile.isFile()) {
+            return result;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(expectedFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() > 0) {
+                    result.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,31 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TypestateChecker;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class CheckerHarnessTest {
+    /** Test that checking the corpus in parallel gives the same diagnostics for each file as checking it serially */
+    @Test
+    public void testParallelSameAsSerial() throws Exception {
+        List<File> testFiles = CheckerHarness.findTestFiles(new File("tests/typestate"));
+        assertFalse("No test files found", testFiles.isEmpty());
+
+        List<CheckerHarness.Result> serial = new CheckerHarness(TypestateChecker.class, 1).check(testFiles);
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        List<CheckerHarness.Result> parallel = new CheckerHarness(TypestateChecker.class, threads).check(testFiles);
+
+        assertEquals(testFiles.size(), parallel.size());
+        for (int i = 0; i < testFiles.size(); i++) {
+            assertEquals(testFiles.get(i), parallel.get(i).getFile());
+            assertEquals(testFiles.get(i).getName(), serial.get(i).getActual(), parallel.get(i).getActual());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.deps.DependencyIndex;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class DependencyIndexTest {
+    private static DependencyIndex.Dependencies readerDependencies() {
+        DependencyIndex.Dependencies dependencies = new DependencyIndex.Dependencies();
+        dependencies.addMethod("java.io.InputStream", "read()");
+        dependencies.addMethod("java.io.InputStream", "close()");
+        dependencies.addState("checkers.typestate.ioexample.InputStreamStates.Open");
+        return dependencies;
+    }
+
+    private static DependencyIndex.Dependencies iteratorDependencies() {
+        DependencyIndex.Dependencies dependencies = new DependencyIndex.Dependencies();
+        dependencies.addMethod("java.util.Iterator", "next()");
+        dependencies.addState("checkers.typestate.iteratorexample.IteratorStates.ReadNext");
+        return dependencies;
+    }
+
+    private static final String LIB_HEADER = "import checkers.typestate.State;\n"
+            + "import checkers.typestate.NoChange;\n"
+            + "public class Lib {\n"
+            + "    @State public static @interface Open { Class<?> after() default NoChange.class; }\n"
+            + "    @State public static @interface Closed { Class<?> after() default NoChange.class; }\n"
+            + "    public Lib() /*@Closed*/ { }\n";
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static SortedSet<String> set(String... elements) {
+        return new TreeSet<String>(Arrays.asList(elements));
+    }
+
+    /** Test finding the units which depend on changed stubs, state families and methods */
+    @Test
+    public void testDependents() throws Exception {
+        DependencyIndex index = new DependencyIndex();
+        index.put("Reader.java", readerDependencies());
+        index.put("Iterating.java", iteratorDependencies());
+        index.put("Plain.java", new DependencyIndex.Dependencies());
+
+        assertEquals(set("Reader.java"), index.dependents(Arrays.asList("java.io.InputStream")));
+        assertEquals(set("Reader.java"), index.dependents(Arrays.asList("java.io.InputStream#close()")));
+        assertEquals(set("Iterating.java"),
+                index.dependents(Arrays.asList("checkers.typestate.iteratorexample.IteratorStates")));
+        assertEquals(set("Reader.java", "Iterating.java"),
+                index.dependents(Arrays.asList("checkers.typestate.ioexample.InputStreamStates.Open",
+                        "java.util.Iterator")));
+        assertEquals(set(), index.dependents(Arrays.asList("java.io.InputStreamReader")));
+    }
+
+    /** Test that a unit calling a method without state annotations is re-checked when a spec change annotates it */
+    @Test
+    public void testNewlyAnnotatedMethod() throws Exception {
+        File dir = File.createTempFile("typestate-deps", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        File lib = new File(dir, "Lib.java");
+        File client = new File(dir, "Client.java");
+        File indexFile = new File(dir, "typestate.deps");
+        try {
+            write(lib, LIB_HEADER + "    public static void use(Lib lib) { }\n}\n");
+            write(client, "public class Client {\n"
+                    + "    public void test() {\n"
+                    + "        Lib lib = new Lib();\n"
+                    + "        Lib.use(lib);\n"
+                    + "    }\n"
+                    + "}\n");
+            write(new File(dir, "Client.out"), "");
+
+            CheckerHarness harness = new CheckerHarness(TypestateChecker.class, "-sourcepath", dir.getPath(),
+                    "-Atypestate.deps=" + indexFile.getPath());
+            CheckerHarness.Result result = harness.check(client);
+            assertTrue(result.toString(), result.isPassed());
+
+            // Lib.use has no state annotations yet, but the call is recorded.
+            DependencyIndex index = DependencyIndex.read(indexFile);
+            assertEquals(set(client.getAbsolutePath()), index.dependents(Arrays.asList("Lib#use(Lib)")));
+
+            // Annotating the method: the client depends on the changed spec, and now has an error.
+            write(lib, LIB_HEADER + "    public static void use(@Open Lib lib) { }\n}\n");
+            write(new File(dir, "Client.out"), ":4: (parameter.in.wrong.state)\n");
+            assertEquals(set(client.getAbsolutePath()), index.dependents(Arrays.asList(lib.getPath())));
+
+            CheckerHarness recheck = new CheckerHarness(TypestateChecker.class, "-sourcepath", dir.getPath(),
+                    "-Atypestate.deps=" + indexFile.getPath(), "-Atypestate.changedSpecs=" + lib.getPath());
+            result = recheck.check(client);
+            assertTrue(result.toString(), result.isPassed());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /** Test that appended records replace earlier ones when the index is read back */
+    @Test
+    public void testAppendAndRead() throws Exception {
+        File indexFile = File.createTempFile("typestate", ".deps");
+
+        DependencyIndex index = new DependencyIndex();
+        index.put("Plain.java", new DependencyIndex.Dependencies());
+        index.write(indexFile);
+        index.putAndAppend(indexFile, "Reader.java", iteratorDependencies());
+        index.putAndAppend(indexFile, "Reader.java", readerDependencies());
+
+        DependencyIndex read = DependencyIndex.read(indexFile);
+        assertEquals(set("Plain.java", "Reader.java"), read.getUnits());
+        assertEquals(set("Reader.java"), read.dependents(Collections.singletonList("java.io.InputStream")));
+        assertEquals(set(), read.dependents(Collections.singletonList("java.util.Iterator")));
+    }
+
+    /** Test that the index needs compacting once the overridden records outnumber the units */
+    @Test
+    public void testNeedsCompaction() throws Exception {
+        File indexFile = File.createTempFile("typestate", ".deps");
+
+        DependencyIndex index = new DependencyIndex();
+        index.putAndAppend(indexFile, "Plain.java", new DependencyIndex.Dependencies());
+        index.putAndAppend(indexFile, "Reader.java", readerDependencies());
+        index.putAndAppend(indexFile, "Reader.java", readerDependencies());
+        index.putAndAppend(indexFile, "Reader.java", readerDependencies());
+        assertFalse(index.needsCompaction());
+
+        index.putAndAppend(indexFile, "Plain.java", new DependencyIndex.Dependencies());
+        assertTrue(index.needsCompaction());
+        assertTrue(DependencyIndex.read(indexFile).needsCompaction());
+
+        index.write(indexFile);
+        assertFalse(index.needsCompaction());
+        assertFalse(DependencyIndex.read(indexFile).needsCompaction());
+        assertEquals(set("Plain.java", "Reader.java"), DependencyIndex.read(indexFile).getUnits());
+    }
+}
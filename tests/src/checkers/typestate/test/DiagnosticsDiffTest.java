@@ -0,0 +1,62 @@
+package checkers.typestate.test;
+
+import checkers.typestate.watch.DiagnosticsDiff;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class DiagnosticsDiffTest {
+    /** Test that only the diagnostics which changed since the previous check of the unit are returned */
+    @Test
+    public void testUpdate() {
+        DiagnosticsDiff diff = new DiagnosticsDiff();
+        assertEquals(Arrays.asList("+ A.java:3: a", "+ A.java:5: b"),
+                diff.update("A.java", diagnostics("A.a(): a", "A.java:3: a", "A.b(): b", "A.java:5: b")));
+        assertEquals(Arrays.asList("+ B.java:1: c"), diff.update("B.java", diagnostics("B: c", "B.java:1: c")));
+
+        assertEquals(Arrays.asList("- A.java:3: a", "+ A.java:7: d"),
+                diff.update("A.java", diagnostics("A.b(): b", "A.java:5: b", "A.d(): d", "A.java:7: d")));
+        assertEquals(Collections.<String>emptyList(),
+                diff.update("A.java", diagnostics("A.b(): b", "A.java:5: b", "A.d(): d", "A.java:7: d")));
+        assertEquals(3, diff.size());
+    }
+
+    /** Test that a diagnostic which moved to another line, with the same key, isn't returned */
+    @Test
+    public void testMoved() {
+        DiagnosticsDiff diff = new DiagnosticsDiff();
+        diff.update("A.java", diagnostics("A.a(): a", "A.java:3: a"));
+
+        assertEquals(Collections.<String>emptyList(), diff.update("A.java", diagnostics("A.a(): a", "A.java:8: a")));
+        // The printed form of the moved diagnostic is updated.
+        assertEquals(Arrays.asList("- A.java:8: a"), diff.remove("A.java"));
+    }
+
+    /** Test that the diagnostics of a removed unit are returned as removed */
+    @Test
+    public void testRemove() {
+        DiagnosticsDiff diff = new DiagnosticsDiff();
+        diff.update("A.java", diagnostics("A.a(): a", "A.java:3: a"));
+
+        assertEquals(Arrays.asList("- A.java:3: a"), diff.remove("A.java"));
+        assertEquals(Collections.<String>emptyList(), diff.remove("A.java"));
+        assertEquals(0, diff.size());
+    }
+
+    // The printed forms of the diagnostics by their keys, given as key, printed form, key, ...
+    private static Map<String, String> diagnostics(String... keysAndForms) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < keysAndForms.length; i += 2) {
+            result.put(keysAndForms[i], keysAndForms[i + 1]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,130 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.diff.DiffScope;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class DiffScopeTest {
+    private static final String DIFF =
+            "diff --git a/src/a/Reader.java b/src/a/Reader.java\n" +
+            "index 1111111..2222222 100644\n" +
+            "--- a/src/a/Reader.java\n" +
+            "+++ b/src/a/Reader.java\n" +
+            "@@ -10,3 +10,4 @@ public class Reader {\n" +
+            "     void read() {\n" +
+            "-        s.read();\n" +
+            "+        s.close();\n" +
+            "+        s.read();\n" +
+            "     }\n" +
+            "@@ -40,3 +41,2 @@\n" +
+            " a\n" +
+            "-b\n" +
+            " c\n" +
+            "diff --git a/src/a/Removed.java b/src/a/Removed.java\n" +
+            "--- a/src/a/Removed.java\n" +
+            "+++ /dev/null\n" +
+            "@@ -1 +0,0 @@\n" +
+            "-class Removed { }\n";
+
+    // Each of the test methods has an error.
+    private static final String SOURCE =
+            "import checkers.typestate.State;\n" +
+            "import checkers.typestate.NoChange;\n" +
+            "public class DiffScoped {\n" +
+            "    @State public static @interface State1 { Class<?> after() default NoChange.class; }\n" +
+            "    @State public static @interface State2 { Class<?> after() default NoChange.class; }\n" +
+            "    public static class Helper {\n" +
+            "        public Helper() /*@State1*/ { }\n" +
+            "    }\n" +
+            "    private int counter;\n" +
+            "    public void acceptHelperInState2(@State2 Helper h) { }\n" +
+            "    public void testError1() {\n" +
+            "        Helper h = new Helper();\n" +
+            "        acceptHelperInState2(h);\n" +
+            "    }\n" +
+            "    public void testError2() {\n" +
+            "        Helper h = new Helper();\n" +
+            "        acceptHelperInState2(h);\n" +
+            "    }\n" +
+            "}\n";
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String diffOfLine(int line, String oldContent, String newContent) {
+        return "--- a/DiffScoped.java\n" +
+                "+++ b/DiffScoped.java\n" +
+                "@@ -" + line + ",1 +" + line + ",1 @@\n" +
+                "-" + oldContent + "\n" +
+                "+" + newContent + "\n";
+    }
+
+    private static CheckerHarness.Result checkWithDiff(File dir, String diff, String expected) throws Exception {
+        File source = new File(dir, "DiffScoped.java");
+        File diffFile = new File(dir, "change.diff");
+        write(source, SOURCE);
+        write(diffFile, diff);
+        write(new File(dir, "DiffScoped.out"), expected);
+
+        return new CheckerHarness(TypestateChecker.class, "-Atypestate.diff=" + diffFile.getPath()).check(source);
+    }
+
+    /** Test that only the errors in the methods touched by a diff are reported */
+    @Test
+    public void testCheckTouchedMethods() throws Exception {
+        File dir = File.createTempFile("diff-scope", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        try {
+            CheckerHarness.Result result = checkWithDiff(dir,
+                    diffOfLine(12, "        Helper h = new Helper( );", "        Helper h = new Helper();"),
+                    ":13: (parameter.in.wrong.state)\n");
+            assertTrue(result.toString(), result.isPassed());
+
+            // A change of a field may change the states in any method of the class.
+            result = checkWithDiff(dir, diffOfLine(9, "    private int count;", "    private int counter;"),
+                    ":13: (parameter.in.wrong.state)\n:17: (parameter.in.wrong.state)\n");
+            assertTrue(result.toString(), result.isPassed());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /** Test computing the touched lines of the new versions of files in a git diff */
+    @Test
+    public void testTouchedLines() throws Exception {
+        DiffScope scope = DiffScope.parse(new BufferedReader(new StringReader(DIFF)));
+
+        assertEquals(new TreeSet<Long>(Arrays.asList(11L, 12L, 42L)),
+                scope.getTouchedLines("/home/user/project/src/a/Reader.java"));
+        assertNull(scope.getTouchedLines("/home/user/project/src/a/Writer.java"));
+        assertNull(scope.getTouchedLines("/home/user/project/src/a/Removed.java"));
+    }
+}
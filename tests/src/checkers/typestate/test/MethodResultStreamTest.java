@@ -0,0 +1,145 @@
+package checkers.typestate.test;
+
+import checkers.typestate.stream.MethodDiagnostic;
+import checkers.typestate.stream.MethodListener;
+import checkers.typestate.stream.MethodResult;
+import checkers.typestate.stream.MethodResultStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class MethodResultStreamTest {
+    private static MethodResult result(String method) {
+        return new MethodResult("A.java", method, "A.java:1", Collections.singletonList(
+                new MethodDiagnostic(false, "receiver.in.wrong.state", Arrays.asList("a"), 10, 1)), 0, 1, 0, null);
+    }
+
+    private static class RecordingListener implements MethodListener {
+        private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        public void methodAnalysed(MethodResult result) {
+            received.add(result.getMethod());
+        }
+
+        public void unitAnalysed(String unitKey) {
+            received.add("end " + unitKey);
+        }
+    }
+
+    /** Test that the results are passed to the listener in order, and that closing waits for them */
+    @Test
+    public void testOrder() {
+        RecordingListener listener = new RecordingListener();
+        MethodResultStream stream = new MethodResultStream(listener, 2);
+        stream.methodAnalysed(result("a()"));
+        stream.methodAnalysed(result("b()"));
+        stream.unitAnalysed("A.java");
+        stream.methodAnalysed(result("c()"));
+        stream.close();
+
+        assertEquals(Arrays.asList("a()", "b()", "end A.java", "c()"), listener.received);
+    }
+
+    /** Test that the analysis waits when the queue is full, until the listener takes a result */
+    @Test
+    public void testBackPressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingListener recording = new RecordingListener();
+        final MethodResultStream stream = new MethodResultStream(new MethodListener() {
+            public void methodAnalysed(MethodResult result) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                recording.methodAnalysed(result);
+            }
+
+            public void unitAnalysed(String unitKey) {
+                recording.unitAnalysed(unitKey);
+            }
+        }, 1);
+
+        final CountDownLatch published = new CountDownLatch(1);
+        Thread analysis = new Thread(new Runnable() {
+            public void run() {
+                // The first result is taken by the listener, the second one is queued, the third one has to wait.
+                stream.methodAnalysed(result("a()"));
+                stream.methodAnalysed(result("b()"));
+                stream.methodAnalysed(result("c()"));
+                published.countDown();
+            }
+        });
+        analysis.start();
+
+        assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(published.await(5, TimeUnit.SECONDS));
+        stream.close();
+        assertEquals(Arrays.asList("a()", "b()", "c()"), recording.received);
+    }
+
+    /** Test that a failure of the listener is rethrown to the analysis */
+    @Test
+    public void testFailure() {
+        MethodResultStream stream = new MethodResultStream(new MethodListener() {
+            public void methodAnalysed(MethodResult result) {
+                throw new IllegalStateException("failed");
+            }
+
+            public void unitAnalysed(String unitKey) {
+            }
+        }, 4);
+        stream.methodAnalysed(result("a()"));
+
+        try {
+            stream.close();
+            fail("The failure of the listener wasn't rethrown");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /** Test that closing after the listener failed stops the thread calling it, and that closing again does nothing */
+    @Test
+    public void testCloseAfterFailure() throws Exception {
+        final Thread[] dispatcher = new Thread[1];
+        final CountDownLatch failing = new CountDownLatch(1);
+        MethodResultStream stream = new MethodResultStream(new MethodListener() {
+            public void methodAnalysed(MethodResult result) {
+                dispatcher[0] = Thread.currentThread();
+                failing.countDown();
+                throw new IllegalStateException("failed");
+            }
+
+            public void unitAnalysed(String unitKey) {
+            }
+        }, 1);
+        stream.methodAnalysed(result("a()"));
+
+        // Waiting until the failure is recorded, and the thread waits for the next result.
+        assertTrue(failing.await(10, TimeUnit.SECONDS));
+        while (dispatcher[0].getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+
+        try {
+            stream.close();
+            fail("The failure of the listener wasn't rethrown");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(dispatcher[0].isAlive());
+        stream.close();
+    }
+}
@@ -0,0 +1,141 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TransitionElement;
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.SpecIndex;
+import checkers.typestate.spec.SpecIndexBuilder;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.spec.StateSpec;
+import checkers.typestate.spec.TypeSpec;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class SpecIndexTest {
+    private static final String OPEN = "checkers.typestate.ioexample.InputStreamStates.Open";
+    private static final String CLOSED = "checkers.typestate.ioexample.InputStreamStates.Closed";
+    private static final String ERROR = "checkers.typestate.ioexample.InputStreamStates.InputStreamError";
+
+    private static File createTempDir() throws Exception {
+        File dir = File.createTempFile("spec-index", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Test writing a spec file and reading it back through the index */
+    @Test
+    public void testWriteAndRead() throws Exception {
+        StateSpec open = new StateSpec(OPEN, null, null, null, ERROR, Collections.<String>emptyList());
+        StateSpec close = new StateSpec("checkers.typestate.Any", CLOSED, null, null, null, Arrays.asList(ERROR));
+        List<StateSpec> none = Collections.emptyList();
+
+        TypeSpec typeSpec = new TypeSpec("java.io.InputStream");
+        typeSpec.addMethod(new MethodSpec(SpecKeys.methodKey("read", Arrays.asList("byte[]", "int", "int")),
+                Arrays.asList(open), none, Arrays.asList(none, none, none)));
+        typeSpec.addMethod(new MethodSpec(SpecKeys.methodKey("close", Collections.<String>emptyList()),
+                Arrays.asList(close), none, Collections.<List<StateSpec>>emptyList()));
+
+        File root = createTempDir();
+        try {
+            SpecIndex.write(root, typeSpec);
+            assertTrue(new File(root, "java/io/InputStream.tss").isFile());
+
+            SpecIndex index = new SpecIndex(Arrays.asList(root));
+            MethodSpec read = index.getMethod("java.io.InputStream", "read(byte[],int,int)");
+            assertNotNull(read);
+            assertEquals(Arrays.asList(open), read.getReceiver());
+            assertEquals(ERROR, read.getReceiver().get(0).getOnException());
+
+            MethodSpec closeSpec = index.getMethod("java.io.InputStream", "close()");
+            assertNotNull(closeSpec);
+            assertEquals(CLOSED, closeSpec.getReceiver().get(0).getTransition(TransitionElement.AFTER));
+            assertEquals(Arrays.asList(ERROR), closeSpec.getReceiver().get(0).getExcept());
+
+            assertNull(index.getMethod("java.io.InputStream", "mark(int)"));
+            assertNull(index.getType("java.util.Iterator"));
+        } finally {
+            delete(root);
+        }
+    }
+
+    /** Test that a spec file with more strings than fit in a signed short is read back correctly */
+    @Test
+    public void testManyStrings() throws Exception {
+        StateSpec open = new StateSpec(OPEN, null, null, null, null, Collections.<String>emptyList());
+        List<StateSpec> none = Collections.emptyList();
+
+        TypeSpec typeSpec = new TypeSpec("test.Large");
+        for (int i = 0; i < 40000; i++) {
+            typeSpec.addMethod(new MethodSpec(SpecKeys.methodKey("m" + i, Collections.<String>emptyList()),
+                    Arrays.asList(open), none, Collections.<List<StateSpec>>emptyList()));
+        }
+
+        File root = createTempDir();
+        try {
+            SpecIndex.write(root, typeSpec);
+
+            SpecIndex index = new SpecIndex(Arrays.asList(root));
+            MethodSpec last = index.getMethod("test.Large", "m39999()");
+            assertNotNull(last);
+            assertEquals("m39999()", last.getKey());
+            assertEquals(Arrays.asList(open), last.getReceiver());
+            assertNull(last.getReceiver().get(0).getOnException());
+        } finally {
+            delete(root);
+        }
+    }
+
+    /** Test that the checker reports the same diagnostics with an index built from the corpus as without it */
+    @Test
+    public void testCheckerWithIndex() throws Exception {
+        List<File> testFiles = CheckerHarness.findTestFiles(new File("tests/typestate"));
+        assertFalse("No test files found", testFiles.isEmpty());
+
+        File root = createTempDir();
+        try {
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null,
+                    Arrays.asList("-proc:only", "-classpath", System.getProperty("java.class.path"),
+                            "-Atypestate.specIndexOut=" + root.getPath()),
+                    null, fileManager.getJavaFileObjectsFromFiles(testFiles));
+            task.setProcessors(Collections.singleton(new SpecIndexBuilder()));
+            assertTrue("Building the index failed", task.call());
+
+            List<CheckerHarness.Result> withoutIndex = new CheckerHarness(TypestateChecker.class).check(testFiles);
+            List<CheckerHarness.Result> withIndex = new CheckerHarness(TypestateChecker.class,
+                    "-Atypestate.specIndex=" + root.getPath()).check(testFiles);
+
+            for (int i = 0; i < testFiles.size(); i++) {
+                assertTrue(withIndex.get(i).toString(), withIndex.get(i).isPassed());
+                assertEquals(testFiles.get(i).getName(), withoutIndex.get(i).getActual(),
+                        withIndex.get(i).getActual());
+            }
+        } finally {
+            delete(root);
+        }
+    }
+}
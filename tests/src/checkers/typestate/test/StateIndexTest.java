@@ -0,0 +1,123 @@
+package checkers.typestate.test;
+
+import checkers.typestate.query.StateIndex;
+import checkers.typestate.query.UnitStates;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class StateIndexTest {
+    private static final String OPEN = "a.Open";
+    private static final String CLOSED = "a.Closed";
+
+    private static Set<String> states(String... states) {
+        return new HashSet<String>(Arrays.asList(states));
+    }
+
+    /** Test that recorded states hold until the next record, or until the end of the scope */
+    @Test
+    public void testIntervals() {
+        Object connection = new Object();
+        UnitStates.Builder builder = new UnitStates.Builder();
+        builder.declare(connection, "connection", 5, 10, 100);
+        builder.record(connection, 10, states(CLOSED));
+        builder.record(connection, 30, states(OPEN));
+        builder.record(connection, 60, states(CLOSED));
+        // Outside of the scope.
+        builder.record(connection, 100, states(OPEN));
+        UnitStates unitStates = builder.build();
+
+        assertNull(unitStates.getStates("connection", 9));
+        assertEquals(states(CLOSED), unitStates.getStates("connection", 10));
+        assertEquals(states(CLOSED), unitStates.getStates("connection", 29));
+        assertEquals(states(OPEN), unitStates.getStates("connection", 30));
+        assertEquals(states(OPEN), unitStates.getStates("connection", 59));
+        assertEquals(states(CLOSED), unitStates.getStates("connection", 99));
+        assertNull(unitStates.getStates("connection", 100));
+        assertNull(unitStates.getStates("other", 50));
+    }
+
+    /** Test that the states recorded at the same position are intersected, and that equal intervals are merged */
+    @Test
+    public void testRescansAndMerging() {
+        Object connection = new Object();
+        UnitStates.Builder builder = new UnitStates.Builder();
+        builder.declare(connection, "connection", 0, 0, 100);
+        builder.record(connection, 0, states(OPEN));
+        builder.record(connection, 20, states(OPEN));
+        builder.record(connection, 40, states(OPEN, CLOSED));
+        // As if a loop was scanned again, with different states.
+        builder.record(connection, 40, states(CLOSED));
+        UnitStates unitStates = builder.build();
+
+        assertEquals(2, unitStates.getIntervalCount());
+        assertEquals(states(OPEN), unitStates.getStates("connection", 25));
+        assertEquals(states(CLOSED), unitStates.getStates("connection", 40));
+    }
+
+    /** Test that variables with the same name in disjoint scopes, and forgotten variables, are handled */
+    @Test
+    public void testScopes() {
+        Object first = new Object();
+        Object second = new Object();
+        Object forgotten = new Object();
+        UnitStates.Builder builder = new UnitStates.Builder();
+        builder.declare(first, "c", 5, 10, 50);
+        builder.declare(second, "c", 55, 60, 90);
+        builder.declare(forgotten, "d", 6, 10, 90);
+        builder.record(first, 10, states(OPEN));
+        builder.record(second, 60, states(CLOSED));
+        builder.record(forgotten, 10, states(OPEN));
+        builder.forget(forgotten);
+        UnitStates unitStates = builder.build();
+
+        assertEquals(states(OPEN), unitStates.getStates("c", 49));
+        assertNull(unitStates.getStates("c", 55));
+        assertEquals(states(CLOSED), unitStates.getStates("c", 60));
+        assertNull(unitStates.getStates("d", 20));
+        assertEquals(Collections.singletonMap("c", states(OPEN)), unitStates.getStates(20));
+
+        StateIndex index = new StateIndex();
+        index.put("A.java", unitStates);
+        assertEquals(states(CLOSED), index.getStates("A.java", "c", 70));
+        assertNull(index.getStates("B.java", "c", 70));
+        assertEquals(states(CLOSED), index.getStatesOfDeclaration("A.java", 55, 70));
+        assertNull(index.getStatesOfDeclaration("A.java", 5, 70));
+    }
+
+    /** Test that a variable of a nested class hides a variable with the same name only within its scope */
+    @Test
+    public void testNestedScopes() {
+        Object outer = new Object();
+        Object inner = new Object();
+        UnitStates.Builder builder = new UnitStates.Builder();
+        builder.declare(outer, "c", 5, 10, 100);
+        builder.declare(inner, "c", 35, 40, 60);
+        builder.record(outer, 10, states(OPEN));
+        builder.record(outer, 70, states(CLOSED));
+        builder.record(inner, 45, states(CLOSED));
+        UnitStates unitStates = builder.build();
+
+        assertEquals(states(OPEN), unitStates.getStates("c", 39));
+        // Declared, but no states recorded yet.
+        assertNull(unitStates.getStates("c", 40));
+        assertEquals(states(CLOSED), unitStates.getStates("c", 45));
+        assertEquals(Collections.singletonMap("c", states(CLOSED)), unitStates.getStates(50));
+        // After the nested scope, the outer variable is visible again.
+        assertEquals(states(OPEN), unitStates.getStates("c", 60));
+        assertEquals(states(CLOSED), unitStates.getStates("c", 70));
+
+        // By declarations, the outer variable is found also in the nested scope.
+        assertEquals(states(OPEN), unitStates.getStatesOfDeclaration(5, 50));
+        assertEquals(states(CLOSED), unitStates.getStatesOfDeclaration(35, 50));
+        assertNull(unitStates.getStatesOfDeclaration(35, 60));
+    }
+}
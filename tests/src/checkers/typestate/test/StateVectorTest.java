@@ -0,0 +1,124 @@
+package checkers.typestate.test;
+
+import checkers.flow.StateVector;
+import checkers.flow.StateVectors;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class StateVectorTest {
+    private static StateVectors<String> vectors(int keys) {
+        List<String> keyList = new ArrayList<String>();
+        for (int i = 0; i < keys; i++) {
+            keyList.add("State" + i);
+        }
+        return new StateVectors<String>(keyList);
+    }
+
+    /** Test that the representation is chosen from the number of bits and keys */
+    @Test
+    public void testChoose() {
+        assertEquals(StateVectors.Kind.LONG, vectors(4).choose(16));
+        assertEquals(StateVectors.Kind.PACKED, vectors(4).choose(17));
+        assertEquals(StateVectors.Kind.PACKED, vectors(4).choose(5000));
+        assertEquals(StateVectors.Kind.PACKED, vectors(32).choose(1000));
+        assertEquals(StateVectors.Kind.PACKED, vectors(512).choose(4));
+        assertEquals(StateVectors.Kind.SPARSE, vectors(512).choose(1000));
+    }
+
+    /** Test that all representations behave as a matrix of booleans, also when merged with each other */
+    @Test
+    public void testRepresentationsAgree() {
+        int keys = 4;
+        int vars = 16;
+        StateVectors<String> vectors = vectors(keys);
+        Random random = new Random(0);
+
+        for (StateVectors.Kind kind : StateVectors.Kind.values()) {
+            for (StateVectors.Kind otherKind : StateVectors.Kind.values()) {
+                boolean[][] expected = new boolean[keys][vars];
+                boolean[][] otherExpected = new boolean[keys][vars];
+                StateVector<String> vector = vectors.create(kind, vars);
+                StateVector<String> other = vectors.create(otherKind, vars);
+
+                for (int i = 0; i < 500; i++) {
+                    int key = random.nextInt(keys);
+                    int var = random.nextInt(vars);
+                    boolean set = random.nextBoolean();
+                    update(vector, expected, key, var, set);
+                    update(other, otherExpected, random.nextInt(keys), random.nextInt(vars), random.nextBoolean());
+                }
+
+                StateVector<String> copy = vector.copy();
+                assertEquals(kind, vectors.getKind(copy));
+                assertMatches(expected, copy);
+
+                copy.and(other);
+                for (int key = 0; key < keys; key++) {
+                    for (int var = 0; var < vars; var++) {
+                        expected[key][var] &= otherExpected[key][var];
+                    }
+                }
+                assertMatches(expected, copy);
+                assertMatches(expected, vectors.convert(copy, 1000));
+            }
+        }
+    }
+
+    /** Test that equal vectors are interned to a single instance, which can't be modified */
+    @Test
+    public void testIntern() {
+        StateVectors<String> vectors = vectors(4);
+        for (StateVectors.Kind kind : StateVectors.Kind.values()) {
+            StateVector<String> vector = vectors.create(kind, 16);
+            vector.set("State1", 3);
+            StateVector<String> other = vectors.create(kind, 16);
+            other.set("State1", 3);
+            other.set("State2", 5);
+            other.clear("State2", 5);
+
+            StateVector<String> interned = vectors.intern(vector);
+            assertSame(interned, vectors.intern(other));
+            assertSame(interned, vectors.intern(interned));
+            assertNotSame(vector, interned);
+
+            try {
+                interned.set("State0", 0);
+                fail("Interned vectors can't be modified");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            StateVector<String> writable = vectors.writable(interned);
+            writable.set("State0", 0);
+            assertTrue(writable.get("State0", 0));
+            assertFalse(interned.get("State0", 0));
+            assertSame(writable, vectors.writable(writable));
+            assertNotSame(interned, vectors.intern(writable));
+        }
+    }
+
+    private static void update(StateVector<String> vector, boolean[][] expected, int key, int var, boolean set) {
+        if (set) {
+            vector.set("State" + key, var);
+        } else {
+            vector.clear("State" + key, var);
+        }
+        expected[key][var] = set;
+    }
+
+    private static void assertMatches(boolean[][] expected, StateVector<String> vector) {
+        for (int key = 0; key < expected.length; key++) {
+            for (int var = 0; var < expected[key].length; var++) {
+                assertEquals("State" + key + ", variable " + var, expected[key][var], vector.get("State" + key, var));
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package checkers.typestate.test;
+
+import checkers.typestate.ifds.FlowFunctions;
+import checkers.typestate.ifds.IntSet;
+import checkers.typestate.ifds.Supergraph;
+import checkers.typestate.ifds.TabulationSolver;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static checkers.typestate.ifds.FlowFunctions.ZERO;
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TabulationSolverTest {
+    /** Test that a recursive method is summarised in each context in which it is called, including by itself */
+    @Test
+    public void testRecursion() {
+        TestGraph graph = new TestGraph();
+        int main = graph.method();
+        int recursive = graph.method();
+        int mainCall = graph.node(main);
+        int mainExit = graph.node(main);
+        graph.gen(graph.getStart(main), 1);
+        graph.edge(graph.getStart(main), mainCall);
+        graph.call(mainCall, recursive);
+        graph.edge(mainCall, mainExit);
+        graph.exit(mainExit);
+
+        // Either exits, or toggles the fact between 1 and 2, and calls itself.
+        int toggle = graph.node(recursive);
+        int recursiveCall = graph.node(recursive);
+        int recursiveExit = graph.node(recursive);
+        graph.edge(graph.getStart(recursive), recursiveExit);
+        graph.edge(graph.getStart(recursive), toggle);
+        graph.map(toggle, 1, 2);
+        graph.map(toggle, 2, 1);
+        graph.edge(toggle, recursiveCall);
+        graph.call(recursiveCall, recursive);
+        graph.edge(recursiveCall, recursiveExit);
+        graph.exit(recursiveExit);
+
+        TabulationSolver solver = new TabulationSolver(graph, graph);
+        solver.addSeed(main, ZERO);
+        solver.solve();
+
+        assertFacts(solver.getContexts(recursive), ZERO, 1, 2);
+        assertFacts(solver.getSummary(recursiveExit, 1), 1, 2);
+        assertFacts(solver.getSummary(recursiveExit, 2), 1, 2);
+        assertFacts(solver.getFacts(mainExit, ZERO), ZERO, 1, 2);
+    }
+
+    /** Test that the facts returned by a method called in two contexts don't mix */
+    @Test
+    public void testContextSensitivity() {
+        TestGraph graph = new TestGraph();
+        int callee = graph.method();
+        int[] callers = new int[2];
+        int[] callerExits = new int[2];
+        for (int i = 0; i < 2; i++) {
+            callers[i] = graph.method();
+            int call = graph.node(callers[i]);
+            callerExits[i] = graph.node(callers[i]);
+            graph.gen(graph.getStart(callers[i]), i + 1);
+            graph.edge(graph.getStart(callers[i]), call);
+            graph.call(call, callee);
+            graph.edge(call, callerExits[i]);
+            graph.exit(callerExits[i]);
+        }
+
+        // Maps the fact 1 to 3, and 2 to 4.
+        int transition = graph.node(callee);
+        int calleeExit = graph.node(callee);
+        graph.edge(graph.getStart(callee), transition);
+        graph.map(transition, 1, 3);
+        graph.map(transition, 2, 4);
+        graph.edge(transition, calleeExit);
+        graph.exit(calleeExit);
+
+        TabulationSolver solver = new TabulationSolver(graph, graph);
+        solver.addSeed(callers[0], ZERO);
+        solver.addSeed(callers[1], ZERO);
+        solver.solve();
+
+        assertFacts(solver.getContexts(callee), ZERO, 1, 2);
+        assertFacts(solver.getSummary(calleeExit, 1), 3);
+        assertFacts(solver.getSummary(calleeExit, 2), 4);
+        assertFacts(solver.getFacts(callerExits[0], ZERO), ZERO, 3);
+        assertFacts(solver.getFacts(callerExits[1], ZERO), ZERO, 4);
+    }
+
+    /** Test that a method called again in the same context isn't analysed again */
+    @Test
+    public void testSummaryReuse() {
+        TestGraph graph = new TestGraph();
+        int main = graph.method();
+        int callee = graph.method();
+        int firstCall = graph.node(main);
+        int secondCall = graph.node(main);
+        int mainExit = graph.node(main);
+        graph.gen(graph.getStart(main), 1);
+        graph.edge(graph.getStart(main), firstCall);
+        graph.call(firstCall, callee);
+        graph.edge(firstCall, secondCall);
+        graph.call(secondCall, callee);
+        graph.edge(secondCall, mainExit);
+        graph.exit(mainExit);
+
+        int transition = graph.node(callee);
+        int calleeExit = graph.node(callee);
+        graph.edge(graph.getStart(callee), transition);
+        graph.map(transition, 1, 1);
+        graph.edge(transition, calleeExit);
+        graph.exit(calleeExit);
+
+        TabulationSolver solver = new TabulationSolver(graph, graph);
+        solver.addSeed(main, ZERO);
+        solver.solve();
+
+        assertFacts(solver.getFacts(mainExit, ZERO), ZERO, 1);
+        assertFacts(solver.getContexts(callee), ZERO, 1);
+        assertTrue(solver.getSummaryReuses() > 0);
+    }
+
+    private static void assertFacts(IntSet actual, int... expected) {
+        assertNotNull(actual);
+        Set<Integer> actualSet = new HashSet<Integer>();
+        for (int i = 0; i < actual.size(); i++) {
+            actualSet.add(actual.get(i));
+        }
+        Set<Integer> expectedSet = new HashSet<Integer>();
+        for (int fact : expected) {
+            expectedSet.add(fact);
+        }
+        assertEquals(expectedSet, actualSet);
+    }
+
+    /**
+     * A supergraph built node by node. A normal node maps the facts by its table, keeping the ones which aren't in
+     * it, and may generate a fact from the zero fact. Calls pass all facts to the callees, which start in the context
+     * of the fact; only the zero fact passes to the return sites directly.
+     */
+    private static class TestGraph implements Supergraph, FlowFunctions {
+        private final List<Integer> methodsOfNodes = new ArrayList<Integer>();
+        private final List<Integer> starts = new ArrayList<Integer>();
+        private final Map<Integer, List<Integer>> successors = new HashMap<Integer, List<Integer>>();
+        private final Map<Integer, Integer> callees = new HashMap<Integer, Integer>();
+        private final Set<Integer> exits = new HashSet<Integer>();
+        private final Map<Integer, Map<Integer, Integer>> mappings = new HashMap<Integer, Map<Integer, Integer>>();
+        private final Map<Integer, Integer> generated = new HashMap<Integer, Integer>();
+
+        /**
+         * @return A new method, with its start node.
+         */
+        int method() {
+            int method = starts.size();
+            starts.add(-1);
+            starts.set(method, node(method));
+            return method;
+        }
+
+        int node(int method) {
+            methodsOfNodes.add(method);
+            return methodsOfNodes.size() - 1;
+        }
+
+        void edge(int from, int to) {
+            if (!successors.containsKey(from)) {
+                successors.put(from, new ArrayList<Integer>());
+            }
+            successors.get(from).add(to);
+        }
+
+        void call(int call, int callee) {
+            callees.put(call, callee);
+        }
+
+        void exit(int node) {
+            exits.add(node);
+        }
+
+        void map(int node, int from, int to) {
+            if (!mappings.containsKey(node)) {
+                mappings.put(node, new HashMap<Integer, Integer>());
+            }
+            mappings.get(node).put(from, to);
+        }
+
+        void gen(int node, int fact) {
+            generated.put(node, fact);
+        }
+
+        public int getMethodCount() {
+            return starts.size();
+        }
+
+        public int getNodeCount() {
+            return methodsOfNodes.size();
+        }
+
+        public int getMethod(int node) {
+            return methodsOfNodes.get(node);
+        }
+
+        public int getStart(int method) {
+            return starts.get(method);
+        }
+
+        public boolean isExit(int node) {
+            return exits.contains(node);
+        }
+
+        public boolean isCall(int node) {
+            return callees.containsKey(node);
+        }
+
+        public int[] getSuccessors(int node) {
+            List<Integer> nodeSuccessors = successors.get(node);
+            int[] result = new int[nodeSuccessors == null ? 0 : nodeSuccessors.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = nodeSuccessors.get(i);
+            }
+            return result;
+        }
+
+        public int[] getCallees(int call) {
+            return callees.containsKey(call) ? new int[] { callees.get(call) } : new int[0];
+        }
+
+        public void normal(int node, int successor, int fact, IntSet result) {
+            if (fact == ZERO && generated.containsKey(node)) {
+                result.add(generated.get(node));
+            }
+
+            Map<Integer, Integer> mapping = mappings.get(node);
+            result.add(mapping != null && mapping.containsKey(fact) ? mapping.get(fact) : fact);
+        }
+
+        public void call(int call, int callee, int fact, IntSet result) {
+            result.add(fact);
+        }
+
+        public void callToReturn(int call, int returnSite, int fact, IntSet result) {
+            if (fact == ZERO) {
+                result.add(fact);
+            }
+        }
+
+        public void returnFlow(int call, int callee, int exit, int returnSite, int fact, IntSet result) {
+            result.add(fact);
+        }
+    }
+}
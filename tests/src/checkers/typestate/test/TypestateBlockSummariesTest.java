@@ -0,0 +1,12 @@
+package checkers.typestate.test;
+
+/**
+ * Checks the corpus of {@link TypestateTest} applying the summaries of straight-line statements, which must give the
+ * same diagnostics as scanning them.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateBlockSummariesTest extends TypestateTest {
+    public TypestateBlockSummariesTest() {
+        super("-Atypestate.blockSummaries");
+    }
+}
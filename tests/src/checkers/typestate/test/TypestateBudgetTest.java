@@ -0,0 +1,22 @@
+package checkers.typestate.test;
+
+import org.junit.Test;
+import tests.CheckerTest;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateBudgetTest extends CheckerTest {
+    public TypestateBudgetTest() {
+        super("checkers.typestate.TypestateChecker", "typestate-budget", "-Anomsgtext", "-Atypestate.budget.steps=60");
+    }
+
+    /**
+     * Test that methods over the step budget are reported, and only checked for the states of receivers and
+     * parameters not depending on the flow
+     */
+    @Test
+    public void testOverBudgetState() {
+        test();
+    }
+}
@@ -0,0 +1,42 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TypestateChecker;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks all files from the typestate test corpus in-process and in parallel, using {@link CheckerHarness}. The
+ * corpus directory and the number of threads can be set with the {@code typestate.test.corpus} and
+ * {@code typestate.test.threads} system properties.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateCorpusTest {
+    private static final String CORPUS_PROPERTY = "typestate.test.corpus";
+    private static final String THREADS_PROPERTY = "typestate.test.threads";
+
+    /** Test that the diagnostics reported for each file of the corpus are the expected ones */
+    @Test
+    public void testCorpus() throws Exception {
+        List<File> testFiles = CheckerHarness.findTestFiles(new File(System.getProperty(CORPUS_PROPERTY,
+                "tests/typestate")));
+        assertFalse("No test files found", testFiles.isEmpty());
+
+        int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        CheckerHarness harness = new CheckerHarness(TypestateChecker.class, threads);
+
+        StringBuilder failures = new StringBuilder();
+        int failed = 0;
+        for (CheckerHarness.Result result : harness.check(testFiles)) {
+            if (!result.isPassed()) {
+                failures.append("\n").append(result);
+                failed++;
+            }
+        }
+
+        assertTrue(failed + " of " + testFiles.size() + " files failed:" + failures, failed == 0);
+    }
+}
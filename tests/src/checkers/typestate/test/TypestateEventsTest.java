@@ -0,0 +1,111 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.events.TypestateEvents;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateEventsTest {
+    /**
+     * Records the ended events, checking that each event is ended after the events started within it.
+     */
+    public static class RecordingEvents extends TypestateEvents {
+        // The instance created by the last check.
+        static RecordingEvents last;
+
+        private final List<String> ended = new ArrayList<String>();
+        private final LinkedList<Object> started = new LinkedList<Object>();
+        private boolean nested = true;
+
+        public RecordingEvents() {
+            last = this;
+        }
+
+        private Object begin() {
+            Object event = new Object();
+            started.addFirst(event);
+            return event;
+        }
+
+        private void end(Object event, String description) {
+            nested &= !started.isEmpty() && started.removeFirst() == event;
+            ended.add(description);
+        }
+
+        @Override
+        public Object beginUnit() {
+            return begin();
+        }
+
+        @Override
+        public void endUnit(Object event, String file, int methods, int states) {
+            end(event, "unit " + new File(file).getName());
+        }
+
+        @Override
+        public Object beginMethod() {
+            return begin();
+        }
+
+        @Override
+        public void endMethod(Object event, String method, String position, int trackedVariables, int states,
+                              int iterations) {
+            end(event, "method " + method);
+        }
+
+        @Override
+        public Object beginConstruct() {
+            return begin();
+        }
+
+        @Override
+        public void endConstruct(Object event, Construct construct, String position) {
+            end(event, construct + " " + position.substring(position.lastIndexOf(':') + 1));
+        }
+    }
+
+    /** Test that the unit, method and construct events are emitted, each nested in the enclosing one */
+    @Test
+    public void testEvents() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null,
+                Arrays.asList("-proc:only", "-classpath", System.getProperty("java.class.path"),
+                        "-Atypestate.events=" + RecordingEvents.class.getName()),
+                null, fileManager.getJavaFileObjects(new File("tests/typestate-events/ConstructEvents.java")));
+        task.setProcessors(Collections.singleton(new TypestateChecker()));
+        task.call();
+
+        RecordingEvents events = RecordingEvents.last;
+        assertNotNull(events);
+        assertTrue(events.nested);
+        assertTrue(events.started.isEmpty());
+
+        // The helper's methods and the constructors have no constructs.
+        List<String> ended = new ArrayList<String>();
+        for (String event : events.ended) {
+            if (!event.startsWith("method ") || event.matches("method ConstructEvents\\.\\w+\\(.*")) {
+                ended.add(event);
+            }
+        }
+        assertEquals(Arrays.asList(
+                "LOOP 18", "method ConstructEvents.loop(int)",
+                "TRY 23", "method ConstructEvents.tryFinally()",
+                "CONDITION 29", "method ConstructEvents.condition(ConstructEvents.Helper)",
+                "unit ConstructEvents.java"), ended);
+    }
+}
@@ -0,0 +1,12 @@
+package checkers.typestate.test;
+
+/**
+ * Checks the corpus of {@link TypestateSummariesTest} with the summaries computed by the IFDS solver, which must give
+ * the same diagnostics.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateIfdsSummariesTest extends TypestateSummariesTest {
+    public TypestateIfdsSummariesTest() {
+        super("-Atypestate.interprocedural", "-Atypestate.interprocedural.solver=ifds");
+    }
+}
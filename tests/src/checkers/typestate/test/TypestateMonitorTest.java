@@ -0,0 +1,346 @@
+package checkers.typestate.test;
+
+import checkers.typestate.agent.MonitorInstrumenter;
+import checkers.typestate.agent.Sampling;
+import checkers.typestate.classfile.Attribute;
+import checkers.typestate.classfile.Bytecodes;
+import checkers.typestate.classfile.ClassFile;
+import checkers.typestate.classfile.CodeAttribute;
+import checkers.typestate.classfile.Member;
+import checkers.typestate.runtime.TypestateMonitor;
+import checkers.typestate.runtime.TypestateViolationException;
+import checkers.typestate.spec.MethodSpec;
+import checkers.typestate.spec.ProvenSites;
+import checkers.typestate.spec.ProvenSitesIndex;
+import checkers.typestate.spec.SpecIndex;
+import checkers.typestate.spec.SpecKeys;
+import checkers.typestate.spec.StateSpec;
+import checkers.typestate.spec.TypeSpec;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateMonitorTest {
+    private static final String OPEN = "checkers.typestate.test.TypestateMonitorTest.Open";
+    private static final String CLOSED = "checkers.typestate.test.TypestateMonitorTest.Closed";
+    private static final String ANY = "checkers.typestate.Any";
+    private static final List<String> NO_STATES = Collections.emptyList();
+    private static final List<StateSpec> NONE = Collections.emptyList();
+
+    /**
+     * The class which is instrumented: it doesn't declare any annotations, the specs are given by an index.
+     */
+    public static class Connection {
+        private int left;
+
+        public Connection() { }
+
+        public void open(int count) {
+            left = count;
+        }
+
+        public int read() {
+            return left--;
+        }
+
+        public boolean hasMore() {
+            return left > 0;
+        }
+
+        public void fail() {
+            throw new IllegalStateException("failed");
+        }
+
+        public void close() { }
+    }
+
+    /**
+     * Creates connections at two allocation sites, and reads from connections at two call sites.
+     */
+    public static class Client {
+        public static Object create() {
+            return new Connection();
+        }
+
+        public static Object createUntracked() {
+            return new Connection();
+        }
+
+        public static int proven(Connection connection) {
+            return connection.read();
+        }
+
+        public static int checked(Connection connection) {
+            return connection.read();
+        }
+    }
+
+    private static SpecIndex writeIndex(boolean initialState) throws Exception {
+        TypeSpec typeSpec = new TypeSpec(Connection.class.getName());
+        if (initialState) {
+            typeSpec.addMethod(method("<init>", NO_STATES, state(CLOSED, null, null, null)));
+        }
+        typeSpec.addMethod(method("open", Arrays.asList("int"), state(CLOSED, OPEN, null, null)));
+        typeSpec.addMethod(method("read", NO_STATES, state(OPEN, null, null, null)));
+        typeSpec.addMethod(method("hasMore", NO_STATES,
+                new StateSpec(OPEN, null, null, CLOSED, null, NO_STATES)));
+        typeSpec.addMethod(method("fail", NO_STATES, state(OPEN, null, CLOSED, null)));
+        typeSpec.addMethod(method("close", NO_STATES, state(ANY, CLOSED, null, null)));
+
+        File root = File.createTempFile("monitor-index", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+        SpecIndex.write(root, typeSpec);
+        return new SpecIndex(Arrays.asList(root));
+    }
+
+    private static StateSpec state(String annotation, String after, String onException, String except) {
+        return new StateSpec(annotation, after, null, null, onException,
+                except == null ? NO_STATES : Arrays.asList(except));
+    }
+
+    private static MethodSpec method(String name, List<String> parameterTypes, StateSpec receiver) {
+        List<List<StateSpec>> parameters = Collections.nCopies(parameterTypes.size(), NONE);
+        return new MethodSpec(SpecKeys.methodKey(name, parameterTypes), Arrays.asList(receiver), NONE, parameters);
+    }
+
+    /**
+     * Loads the instrumented classes; the other classes, including the monitor, come from the parent.
+     */
+    private static class InstrumentingLoader extends ClassLoader {
+        private final Map<String, byte[]> instrumented = new HashMap<String, byte[]>();
+
+        private InstrumentingLoader(byte[] instrumentedConnection) {
+            super(TypestateMonitorTest.class.getClassLoader());
+            instrumented.put(Connection.class.getName(), instrumentedConnection);
+        }
+
+        private InstrumentingLoader add(Class<?> cls, byte[] instrumentedClass) {
+            instrumented.put(cls.getName(), instrumentedClass);
+            return this;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            byte[] bytes = instrumented.get(name);
+            if (bytes != null) {
+                Class<?> loaded = findLoadedClass(name);
+                return loaded != null ? loaded : defineClass(name, bytes, 0, bytes.length);
+            }
+
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    private static byte[] readClass(Class<?> cls) throws Exception {
+        InputStream in = cls.getResourceAsStream(cls.getName().substring(cls.getName().lastIndexOf('.') + 1)
+                + ".class");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The line of the first instance method call in the given method of the class.
+     */
+    private static int callLine(Class<?> cls, String methodName) throws Exception {
+        ClassFile classFile = ClassFile.parse(readClass(cls));
+        for (Member method : classFile.getMethods()) {
+            if (method.getName().equals(methodName)) {
+                CodeAttribute code = CodeAttribute.read(method.getAttribute(Attribute.CODE), classFile.getPool());
+                byte[] bytecode = code.getCode();
+                for (int offset = 0; offset < bytecode.length; offset += Bytecodes.length(bytecode, offset)) {
+                    if ((bytecode[offset] & 0xFF) == Bytecodes.INVOKEVIRTUAL) {
+                        return code.getLineNumber(offset);
+                    }
+                }
+            }
+        }
+
+        throw new NoSuchMethodException(methodName);
+    }
+
+    private static Object call(Object target, String name, Object... args) throws Throwable {
+        for (Method method : target.getClass().getMethods()) {
+            if (method.getName().equals(name)) {
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+
+        throw new NoSuchMethodException(name);
+    }
+
+    private static void assertViolation(Object target, String name) throws Throwable {
+        try {
+            call(target, name);
+            fail("Expected a violation when calling " + name);
+        } catch (TypestateViolationException e) {
+            // expected
+        }
+    }
+
+    @After
+    public void tearDown() {
+        TypestateMonitor.setThrowOnViolation(false);
+        TypestateMonitor.setSampling(false);
+    }
+
+    /** Test that the instrumented methods check and change the states of the receivers */
+    @Test
+    public void testInstrumentedProtocol() throws Throwable {
+        MonitorInstrumenter instrumenter = new MonitorInstrumenter(writeIndex(true),
+                Collections.<String>emptyList());
+        byte[] instrumented = instrumenter.instrument(null, readClass(Connection.class));
+        assertNotNull(instrumented);
+        assertEquals(6, instrumenter.getInstrumentedMethodCount());
+
+        TypestateMonitor.setThrowOnViolation(true);
+        Object connection = new InstrumentingLoader(instrumented).loadClass(Connection.class.getName())
+                .newInstance();
+        assertEquals(TypestateMonitor.stateId(CLOSED), TypestateMonitor.getState(connection));
+        assertViolation(connection, "read");
+
+        call(connection, "open", 2);
+        assertEquals(2, call(connection, "read"));
+        assertEquals(true, call(connection, "hasMore"));
+        assertEquals(1, call(connection, "read"));
+        assertEquals(false, call(connection, "hasMore"));
+        assertViolation(connection, "read");
+
+        call(connection, "open", 1);
+        try {
+            call(connection, "fail");
+            fail("Expected an exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(TypestateMonitor.stateId(CLOSED), TypestateMonitor.getState(connection));
+
+        long violations = TypestateMonitor.getViolationCount();
+        call(connection, "open", 1);
+        call(connection, "close");
+        assertViolation(connection, "hasMore");
+        assertEquals(violations + 1, TypestateMonitor.getViolationCount());
+    }
+
+    /** Test that objects which the monitor doesn't track aren't checked, until a transition sets their state */
+    @Test
+    public void testUntrackedObjects() throws Throwable {
+        MonitorInstrumenter instrumenter = new MonitorInstrumenter(writeIndex(false),
+                Collections.<String>emptyList());
+        byte[] instrumented = instrumenter.instrument(null, readClass(Connection.class));
+        assertEquals(5, instrumenter.getInstrumentedMethodCount());
+        assertNull(instrumenter.instrument(null, readClass(TypestateMonitorTest.class)));
+
+        TypestateMonitor.setThrowOnViolation(true);
+        Object connection = new InstrumentingLoader(instrumented).loadClass(Connection.class.getName())
+                .newInstance();
+        assertEquals(TypestateMonitor.UNKNOWN, TypestateMonitor.getState(connection));
+        call(connection, "read");
+
+        call(connection, "close");
+        assertEquals(TypestateMonitor.stateId(CLOSED), TypestateMonitor.getState(connection));
+        assertViolation(connection, "read");
+    }
+
+    /** Test that only the sampled objects get a state, and that transitions don't track the other objects */
+    @Test
+    public void testSampling() throws Throwable {
+        MonitorInstrumenter instrumenter = new MonitorInstrumenter(writeIndex(true),
+                Collections.<String>emptyList(), Sampling.parse("0", null));
+        byte[] instrumented = instrumenter.instrument(null, readClass(Connection.class));
+
+        TypestateMonitor.setThrowOnViolation(true);
+        TypestateMonitor.setSampling(true);
+        Object connection = new InstrumentingLoader(instrumented).loadClass(Connection.class.getName())
+                .newInstance();
+        call(connection, "close");
+        assertEquals(TypestateMonitor.UNKNOWN, TypestateMonitor.getState(connection));
+        call(connection, "read");
+
+        // Samples the allocation site in create(), but not the one in createUntracked().
+        Sampling sites = new Sampling(1.0, new HashMap<String, Double>(), 0.5) {
+            @Override
+            public boolean isSampled(String site) {
+                return !site.contains("createUntracked");
+            }
+        };
+        instrumenter = new MonitorInstrumenter(writeIndex(true), Collections.<String>emptyList(), sites);
+        instrumented = instrumenter.instrument(null, readClass(Connection.class));
+        byte[] client = instrumenter.instrument(null, readClass(Client.class));
+        assertNotNull(client);
+        // The constructor doesn't set the state, the sampled site does.
+        assertEquals(6, instrumenter.getInstrumentedMethodCount());
+
+        Class<?> clientClass = new InstrumentingLoader(instrumented).add(Client.class, client)
+                .loadClass(Client.class.getName());
+        Object tracked = clientClass.getMethod("create").invoke(null);
+        assertEquals(TypestateMonitor.stateId(CLOSED), TypestateMonitor.getState(tracked));
+        assertViolation(tracked, "read");
+
+        Object untracked = clientClass.getMethod("createUntracked").invoke(null);
+        assertEquals(TypestateMonitor.UNKNOWN, TypestateMonitor.getState(untracked));
+        call(untracked, "read");
+    }
+
+    /** Test that the callers check the receivers, except at the call sites proved by the checker */
+    @Test
+    public void testProvenSites() throws Throwable {
+        ProvenSites sites = new ProvenSites(Client.class.getName());
+        sites.add("proven(" + Connection.class.getCanonicalName() + ")", callLine(Client.class, "proven"), "read()");
+        File root = File.createTempFile("proven-sites", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+        ProvenSitesIndex.write(root, sites);
+
+        MonitorInstrumenter instrumenter = new MonitorInstrumenter(writeIndex(true),
+                Collections.<String>emptyList(), Sampling.NONE, new ProvenSitesIndex(Arrays.asList(root)));
+        byte[] instrumented = instrumenter.instrument(null, readClass(Connection.class));
+        byte[] client = instrumenter.instrument(null, readClass(Client.class));
+        assertNotNull(client);
+        // read() only checks its receiver, so it's left as it is; of the callers, only checked() is instrumented.
+        assertEquals(6, instrumenter.getInstrumentedMethodCount());
+
+        TypestateMonitor.setThrowOnViolation(true);
+        Class<?> clientClass = new InstrumentingLoader(instrumented).add(Client.class, client)
+                .loadClass(Client.class.getName());
+        Object connection = clientClass.getMethod("create").invoke(null);
+        assertEquals(TypestateMonitor.stateId(CLOSED), TypestateMonitor.getState(connection));
+
+        Method proven = clientClass.getMethod("proven", connection.getClass());
+        assertEquals(0, proven.invoke(null, connection));
+        try {
+            clientClass.getMethod("checked", connection.getClass()).invoke(null, connection);
+            fail("Expected a violation");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof TypestateViolationException);
+        }
+    }
+}
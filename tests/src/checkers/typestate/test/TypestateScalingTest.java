@@ -0,0 +1,204 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.stats.TypestateStatistics;
+import checkers.typestate.stress.StressSourceGenerator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the cost of checking generated sources grows linearly, as the sources grow.
+ *
+ * For each knob, sources of a base size and of growing sizes are checked. The cost above the base is compared with
+ * the cost of the first size above the base; the ratio may exceed the ratio of the sizes at most the slack of the
+ * measure times. The measures are:
+ * <ul>
+ * <li>the number of flow transfer steps ({@link TypestateStatistics.Counter#FLOW_STEPS}), which is deterministic;</li>
+ * <li>the bytes allocated by the checking thread, which also catch work growing per step, e.g. copying states;</li>
+ * <li>the CPU time of the checking thread, only in {@link TypestateScalingTimeTest}, as it is noisy.</li>
+ * </ul>
+ * Each check is repeated {@link #REPETITIONS} times, after a warm-up, taking the minimal allocated bytes and CPU time.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateScalingTest {
+    private static final double STEPS_SLACK = 2.0;
+    private static final double ALLOCATION_SLACK = 3.0;
+    private static final double CPU_TIME_SLACK = 4.0;
+    private static final int REPETITIONS = 3;
+
+    private static class Cost {
+        private final long flowSteps;
+        private final long allocatedBytes;
+        private final long cpuNanos;
+
+        Cost(long flowSteps, long allocatedBytes, long cpuNanos) {
+            this.flowSteps = flowSteps;
+            this.allocatedBytes = allocatedBytes;
+            this.cpuNanos = cpuNanos;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final boolean timed;
+
+    public TypestateScalingTest() {
+        this(false);
+    }
+
+    /**
+     * @param timed If the CPU time of the checks should be bounded as well.
+     */
+    protected TypestateScalingTest(boolean timed) {
+        this.timed = timed;
+    }
+
+    @BeforeClass
+    public static void warmUp() throws IOException {
+        // Warming up the compiler and the checker.
+        check(generator().setCallSites(100));
+    }
+
+    private static StressSourceGenerator generator() {
+        return new StressSourceGenerator("stress", "Stress").setStates(3).setLocals(2);
+    }
+
+    /** Test that the work grows linearly with the number of call sites */
+    @Test
+    public void testCallSites() throws IOException {
+        assertLinear("callSites", generator(), 0, new int[] { 250, 500, 1000, 2000 });
+    }
+
+    /** Test that the work grows linearly with the number of locals */
+    @Test
+    public void testLocals() throws IOException {
+        assertLinear("locals", generator().setCallSites(500), 1, new int[] { 25, 50, 100, 200 });
+    }
+
+    /**
+     * Test that the work grows linearly with the depth of try/finally blocks nested in finally blocks, which are
+     * analysed twice each
+     */
+    @Test
+    public void testTryDepth() throws IOException {
+        assertLinear("tryDepth", generator().setCallSites(500), 0, new int[] { 2, 4, 8, 16 });
+    }
+
+    /** Test that the work grows linearly with the number of split conditions */
+    @Test
+    public void testConditions() throws IOException {
+        assertLinear("conditions", generator().setCallSites(100), 0, new int[] { 100, 200, 400, 800 });
+    }
+
+    /**
+     * Test that the work grows linearly with the depth of nested loops, as the second pass of a loop isn't needed
+     * when its body restores the states
+     */
+    @Test
+    public void testLoopDepth() throws IOException {
+        assertLinear("loopDepth", generator().setCallSites(200), 0, new int[] { 2, 4, 8, 16 });
+    }
+
+    private void assertLinear(String knob, StressSourceGenerator generator, int baseSize, int[] sizes)
+            throws IOException {
+        Cost base = check(generator.set(knob, baseSize));
+        Cost first = check(generator.set(knob, sizes[0]));
+        assertTrue("No work for " + knob + "=" + sizes[0] + " above the base", first.flowSteps > base.flowSteps);
+
+        for (int i = 1; i < sizes.length; i++) {
+            Cost cost = check(generator.set(knob, sizes[i]));
+            double sizeRatio = (double) (sizes[i] - baseSize) / (sizes[0] - baseSize);
+
+            assertWithin(knob, "Flow steps", sizes[i], STEPS_SLACK * sizeRatio, base.flowSteps, first.flowSteps,
+                    cost.flowSteps);
+            assertWithin(knob, "Allocated bytes", sizes[i], ALLOCATION_SLACK * sizeRatio, base.allocatedBytes,
+                    first.allocatedBytes, cost.allocatedBytes);
+            if (timed) {
+                assertWithin(knob, "CPU time", sizes[i], CPU_TIME_SLACK * sizeRatio, base.cpuNanos, first.cpuNanos,
+                        cost.cpuNanos);
+            }
+        }
+    }
+
+    private static void assertWithin(String knob, String measure, int size, double allowedRatio, long base,
+                                     long first, long current) {
+        // Guarding against a first size costing (within the noise) as much as the base.
+        double ratio = (double) Math.max(current - base, 0) / Math.max(first - base, 1);
+        assertTrue(measure + " for " + knob + "=" + size + " grew " + ratio + " times, allowed " + allowedRatio,
+                ratio <= allowedRatio);
+    }
+
+    /**
+     * Checks the generated sources {@link #REPETITIONS} times, in the current thread.
+     * @return The number of flow transfer steps of a check, and the minimal bytes allocated and CPU time of a check.
+     */
+    private static Cost check(StressSourceGenerator generator) throws IOException {
+        File dir = File.createTempFile("typestate-scaling", "");
+        assertTrue(dir.delete() && dir.mkdir());
+
+        try {
+            List<File> sources = generator.generate(dir);
+            List<String> options = Arrays.asList("-proc:only", "-classpath", System.getProperty("java.class.path"),
+                    "-Atypestate.stats=" + new File(dir, "stats.txt").getPath());
+
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+            long threadId = Thread.currentThread().getId();
+            long flowSteps = 0;
+            long minAllocatedBytes = Long.MAX_VALUE;
+            long minCpuNanos = Long.MAX_VALUE;
+            for (int i = 0; i < REPETITIONS; i++) {
+                DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+                TypestateChecker checker = new TypestateChecker();
+                JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null,
+                        fileManager.getJavaFileObjectsFromFiles(sources));
+                task.setProcessors(Collections.singleton(checker));
+
+                long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+                long cpuBefore = threads.getCurrentThreadCpuTime();
+                task.call();
+                minCpuNanos = Math.min(minCpuNanos, threads.getCurrentThreadCpuTime() - cpuBefore);
+                minAllocatedBytes = Math.min(minAllocatedBytes,
+                        threads.getThreadAllocatedBytes(threadId) - allocatedBefore);
+
+                checker.writeStatistics();
+                // The generated sources are correct.
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                    assertFalse(diagnostic.toString(), diagnostic.getKind() == Diagnostic.Kind.ERROR);
+                }
+                flowSteps = checker.getStatistics().get(TypestateStatistics.Counter.FLOW_STEPS);
+            }
+
+            return new Cost(flowSteps, minAllocatedBytes, minCpuNanos);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,12 @@
+package checkers.typestate.test;
+
+/**
+ * Checks the scaling of {@link TypestateScalingTest}, bounding the CPU time of the checks as well. The CPU time is
+ * noisy on shared machines, so the test is run by the {@code test-scaling-time} target, not by {@code test}.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateScalingTimeTest extends TypestateScalingTest {
+    public TypestateScalingTimeTest() {
+        super(true);
+    }
+}
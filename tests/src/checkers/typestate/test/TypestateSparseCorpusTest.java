@@ -0,0 +1,12 @@
+package checkers.typestate.test;
+
+/**
+ * Checks the corpus of {@link TypestateTest} with the sparse engine, which must give the same diagnostics as the
+ * flow; the methods it doesn't support are scanned by the flow.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateSparseCorpusTest extends TypestateTest {
+    public TypestateSparseCorpusTest() {
+        super("-Atypestate.engine=sparse");
+    }
+}
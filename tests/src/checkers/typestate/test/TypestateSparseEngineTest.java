@@ -0,0 +1,19 @@
+package checkers.typestate.test;
+
+import org.junit.Test;
+import tests.CheckerTest;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateSparseEngineTest extends CheckerTest {
+    public TypestateSparseEngineTest() {
+        super("checkers.typestate.TypestateChecker", "typestate-sparse", "-Anomsgtext", "-Atypestate.engine=sparse");
+    }
+
+    /** Test that the sparse engine reports the expected diagnostics, joining states only at phi nodes */
+    @Test
+    public void testSparseLoopState() {
+        test();
+    }
+}
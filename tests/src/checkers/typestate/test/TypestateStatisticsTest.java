@@ -0,0 +1,97 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.stats.TypestateStatistics;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateStatisticsTest {
+    /** Test that only the slowest methods are kept, slowest first */
+    @Test
+    public void testSlowestMethods() {
+        TypestateStatistics statistics = new TypestateStatistics(2);
+        statistics.methodAnalysed("A.a()", "A.java:1", 30);
+        statistics.methodAnalysed("A.b()", "A.java:2", 10);
+        statistics.methodAnalysed("A.c()", "A.java:3", 50);
+        statistics.methodAnalysed("A.d()", "A.java:4", 20);
+
+        List<TypestateStatistics.MethodTiming> slowest = statistics.getSlowestMethods();
+        assertEquals(2, slowest.size());
+        assertEquals("A.c()", slowest.get(0).getMethod());
+        assertEquals("A.a()", slowest.get(1).getMethod());
+        assertEquals(4, statistics.get(TypestateStatistics.Counter.METHODS_ANALYSED));
+    }
+
+    /** Test that a nested phase is timed only by its outermost start and stop */
+    @Test
+    public void testNestedPhases() {
+        // Each reading of the clock advances it by 10 ns.
+        TypestateStatistics statistics = new TypestateStatistics(0) {
+            private long now = 0;
+
+            @Override
+            protected long nanoTime() {
+                now += 10;
+                return now;
+            }
+        };
+        statistics.start(TypestateStatistics.Phase.TYPE_FACTORY);
+        statistics.start(TypestateStatistics.Phase.TYPE_FACTORY);
+        statistics.stop(TypestateStatistics.Phase.TYPE_FACTORY);
+        long afterInner = statistics.getNanos(TypestateStatistics.Phase.TYPE_FACTORY);
+        statistics.stop(TypestateStatistics.Phase.TYPE_FACTORY);
+
+        assertEquals(0, afterInner);
+        assertEquals(10, statistics.getNanos(TypestateStatistics.Phase.TYPE_FACTORY));
+        assertEquals(0, statistics.getNanos(TypestateStatistics.Phase.FLOW));
+    }
+
+    private static TypestateStatistics check(File file, String... options) throws Exception {
+        File report = File.createTempFile("typestate-stats", ".txt");
+        try {
+            List<String> allOptions = new ArrayList<String>(Arrays.asList("-proc:only", "-classpath",
+                    System.getProperty("java.class.path"), "-Atypestate.stats=" + report.getPath()));
+            allOptions.addAll(Arrays.asList(options));
+
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+            TypestateChecker checker = new TypestateChecker();
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null, allOptions, null,
+                    fileManager.getJavaFileObjects(file));
+            task.setProcessors(Collections.singleton(checker));
+            task.call();
+
+            checker.writeStatistics();
+            assertTrue(report.length() > 0);
+            return checker.getStatistics();
+        } finally {
+            report.delete();
+        }
+    }
+
+    /** Test that the call sites in replayed statement runs are counted as when they are scanned again */
+    @Test
+    public void testCallSitesWithBlockSummaries() throws Exception {
+        File file = new File("tests/typestate-sparse/SparseLoopState.java");
+        TypestateStatistics scanned = check(file);
+        TypestateStatistics replayed = check(file, "-Atypestate.blockSummaries");
+
+        assertEquals(1, scanned.get(TypestateStatistics.Counter.UNITS_CHECKED));
+        assertTrue(replayed.get(TypestateStatistics.Counter.BLOCK_TRANSFERS_APPLIED) > 0);
+        assertEquals(scanned.get(TypestateStatistics.Counter.CALL_SITES),
+                replayed.get(TypestateStatistics.Counter.CALL_SITES));
+    }
+}
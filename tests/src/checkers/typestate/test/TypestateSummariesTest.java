@@ -0,0 +1,39 @@
+package checkers.typestate.test;
+
+import org.junit.Test;
+import tests.CheckerTest;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateSummariesTest extends CheckerTest {
+    public TypestateSummariesTest() {
+        this("-Atypestate.interprocedural=2");
+    }
+
+    /**
+     * Checks the corpus with the given options of the checker, in addition to {@code -Anomsgtext}.
+     */
+    protected TypestateSummariesTest(String... options) {
+        super("checkers.typestate.TypestateChecker", "typestate-summaries", withNoMsgText(options));
+    }
+
+    private static String[] withNoMsgText(String[] options) {
+        String[] result = new String[options.length + 1];
+        result[0] = "-Anomsgtext";
+        System.arraycopy(options, 0, result, 1, options.length);
+        return result;
+    }
+
+    /** Test that the summaries of unannotated helper methods are used at their call sites */
+    @Test
+    public void testHelperSummaries() {
+        test();
+    }
+
+    /** Test that after a transition, or an exception, to the any-state annotation, the state is unknown */
+    @Test
+    public void testAnyTransitions() {
+        test();
+    }
+}
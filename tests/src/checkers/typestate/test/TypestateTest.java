@@ -1,14 +1,80 @@
 package checkers.typestate.test;
 
+import checkers.typestate.TypestateChecker;
 import org.junit.Test;
-import tests.CheckerTest;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
 
 /**
+ * Checks the files of the corpus in {@code tests/typestate} named after the test methods, e.g.
+ * {@code JumpState.java} for {@link #testJumpState}, comparing the diagnostics with the {@code .out} files.
+ *
+ * All files are checked in parallel by a {@link CheckerHarness}, when the first test method of a class runs; the
+ * test methods then report the results of their files.
  * @author Adam Warski (adam at warski dot org)
  */
-public class TypestateTest extends CheckerTest {
+public class TypestateTest {
+    private static final File CORPUS = new File("tests/typestate");
+
+    // The results of checking the corpus files, by the names of the files, for each test class.
+    private static final Map<Class<?>, Map<String, CheckerHarness.Result>> results =
+            new HashMap<Class<?>, Map<String, CheckerHarness.Result>>();
+
+    private final String[] options;
+
     public TypestateTest() {
-        super("checkers.typestate.TypestateChecker", "typestate", "-Anomsgtext");
+        this(new String[0]);
+    }
+
+    /**
+     * Checks the corpus with the given options of the checker, in addition to {@code -Anomsgtext}; the diagnostics
+     * must be the same.
+     */
+    protected TypestateTest(String... options) {
+        this.options = options;
+    }
+
+    /**
+     * Asserts that the diagnostics of the corpus file named after the calling test method are the expected ones.
+     */
+    protected void test() {
+        String methodName = new Throwable().getStackTrace()[1].getMethodName();
+        CheckerHarness.Result result = getResults().get(methodName.substring("test".length()) + ".java");
+        assertTrue(result.toString(), result.isPassed());
+    }
+
+    private Map<String, CheckerHarness.Result> getResults() {
+        synchronized (results) {
+            Map<String, CheckerHarness.Result> classResults = results.get(getClass());
+            if (classResults == null) {
+                List<File> testFiles = new ArrayList<File>();
+                for (Method method : getClass().getMethods()) {
+                    if (method.isAnnotationPresent(Test.class) && method.getName().startsWith("test")) {
+                        testFiles.add(new File(CORPUS, method.getName().substring("test".length()) + ".java"));
+                    }
+                }
+
+                classResults = new HashMap<String, CheckerHarness.Result>();
+                try {
+                    for (CheckerHarness.Result result : new CheckerHarness(TypestateChecker.class, options)
+                            .check(testFiles)) {
+                        classResults.put(result.getFile().getName(), result);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException("Checking " + testFiles + " failed.", e);
+                }
+                results.put(getClass(), classResults);
+            }
+
+            return classResults;
+        }
     }
 
     /** Test checking the state of a receiver, which is a variable */
@@ -112,4 +178,16 @@ public class TypestateTest extends CheckerTest {
     public void testBooleanMethodReceiverState() {
         test();
     }
+
+    /** Test checking that without summaries, transitions to the any-state annotation are ignored */
+    @Test
+    public void testAnyTransitionState() {
+        test();
+    }
+
+    /** Test checking that the states at breaks and continues are joined into the states at their targets */
+    @Test
+    public void testJumpState() {
+        test();
+    }
 }
@@ -0,0 +1,48 @@
+package checkers.typestate.test;
+
+import checkers.typestate.TypestateAnnotatedTypeFactory;
+import checkers.typestate.TypestateChecker;
+import checkers.typestate.TypestateFlow;
+import checkers.typestate.TypestateUtil;
+import com.sun.source.tree.CompilationUnitTree;
+import org.junit.Test;
+import tests.CheckerTest;
+
+import javax.lang.model.element.AnnotationMirror;
+import java.util.Set;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class TypestateTimeBudgetTest extends CheckerTest {
+    /**
+     * The typestate checker, with a clock advancing 2 ms each time it is read, so that the time budget is exceeded
+     * deterministically.
+     */
+    public static class FakeClockChecker extends TypestateChecker {
+        private long nanos = 0;
+
+        @Override
+        protected TypestateFlow createFlow(Set<AnnotationMirror> stateAnnotations,
+                                           TypestateAnnotatedTypeFactory factory, CompilationUnitTree root,
+                                           TypestateUtil typestateUtil) {
+            return new TypestateFlow(this, stateAnnotations, factory, root, typestateUtil) {
+                @Override
+                protected long nanoTime() {
+                    nanos += 2000000L;
+                    return nanos;
+                }
+            };
+        }
+    }
+
+    public TypestateTimeBudgetTest() {
+        super(FakeClockChecker.class.getName(), "typestate-budget-time", "-Anomsgtext", "-Atypestate.budget.time=1");
+    }
+
+    /** Test that methods over the time budget are reported, and only checked for states not depending on the flow */
+    @Test
+    public void testOverTimeBudgetState() {
+        test();
+    }
+}
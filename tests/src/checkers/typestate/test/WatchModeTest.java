@@ -0,0 +1,180 @@
+package checkers.typestate.test;
+
+import checkers.typestate.watch.WatchMode;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class WatchModeTest {
+    // Number of the statements of the slow method, so that its analysis lasts long enough to be edited meanwhile.
+    private static final int SLOW_STATEMENTS = 20000;
+    private static final long TIMEOUT_MILLIS = 120000;
+
+    /**
+     * Test that an edit of a unit made while it is checked cancels the check, and that the unit is checked again:
+     * only the diagnostics of the edited content are printed
+     */
+    @Test
+    public void testEditDuringCheck() throws Exception {
+        File dir = File.createTempFile("typestate-watch", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File source = new File(dir, "Slow.java");
+        int oldErrorLine = write(source, SLOW_STATEMENTS, 0);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WatchMode watchMode = new WatchMode(new PrintStream(output, true));
+        Thread thread = start(watchMode, dir);
+        try {
+            // Editing while the slow method of the first check is analysed.
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (watchMode.getScheduler().getRunning().isEmpty()) {
+                assertTrue("The check didn't start.", System.currentTimeMillis() < deadline && thread.isAlive());
+                Thread.sleep(1);
+            }
+            int newErrorLine = write(source, SLOW_STATEMENTS, 10);
+
+            waitFor(output, source.getAbsolutePath() + ":" + newErrorLine + ": error", 1, thread);
+        } finally {
+            stop(watchMode, thread);
+            delete(dir);
+        }
+
+        assertTrue(output.toString(), output.toString().contains("Cancelled in 1 unit(s), checking again."));
+        assertFalse(output.toString(), output.toString().contains(":" + oldErrorLine + ": error"));
+    }
+
+    /** Test that a diagnostic which only moved to another line, as lines were added above it, isn't printed again */
+    @Test
+    public void testMovedDiagnostic() throws Exception {
+        File dir = File.createTempFile("typestate-watch", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File source = new File(dir, "Slow.java");
+        int errorLine = write(source, 1, 0);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WatchMode watchMode = new WatchMode(new PrintStream(output, true));
+        Thread thread = start(watchMode, dir);
+        try {
+            waitFor(output, "Watching", 1, thread);
+            write(source, 1, 10);
+            waitFor(output, "Checked 1 unit(s)", 2, thread);
+        } finally {
+            stop(watchMode, thread);
+            delete(dir);
+        }
+
+        // Only the first check printed the diagnostic.
+        int printed = 0;
+        for (String line : output.toString().split("\n")) {
+            assertFalse(output.toString(), line.startsWith("- "));
+            if (line.startsWith("+ ")) {
+                assertTrue(line, line.startsWith("+ " + source.getAbsolutePath() + ":" + errorLine + ": error"));
+                printed++;
+            }
+        }
+        assertEquals(output.toString(), 1, printed);
+    }
+
+    private static Thread start(final WatchMode watchMode, File dir) {
+        watchMode.parseArgs("-deps", new File(dir, "typestate.deps").getPath(), dir.getPath());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    watchMode.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void stop(WatchMode watchMode, Thread thread) throws InterruptedException {
+        watchMode.stop();
+        thread.join(TIMEOUT_MILLIS);
+        assertFalse("The watch mode didn't stop.", thread.isAlive());
+    }
+
+    /**
+     * Waits until the output contains the given text the given number of times.
+     */
+    private static void waitFor(ByteArrayOutputStream output, String text, int times, Thread thread)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (output.toString().split(Pattern.quote(text), -1).length <= times) {
+            assertTrue("No " + text + " in:\n" + output, System.currentTimeMillis() < deadline && thread.isAlive());
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Writes a unit with a slow method, followed by a method with an error.
+     * @param slowStatements Number of the statements of the slow method.
+     * @param padding Number of the empty lines before the method with the error.
+     * @return The line of the error.
+     */
+    private static int write(File file, int slowStatements, int padding) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("import checkers.typestate.State;\n");
+        sb.append("import checkers.typestate.NoChange;\n");
+        sb.append("public class Slow {\n");
+        sb.append("    @State public static @interface State1 {\n");
+        sb.append("        public abstract Class<?> after() default NoChange.class;\n");
+        sb.append("    }\n");
+        sb.append("    @State public static @interface State2 {\n");
+        sb.append("        public abstract Class<?> after() default NoChange.class;\n");
+        sb.append("    }\n");
+        sb.append("    public static class Helper {\n");
+        sb.append("        public Helper() /*@State1*/ { }\n");
+        sb.append("        public void onlyInState1() /*@State1*/ { }\n");
+        sb.append("        public void onlyInState2() /*@State2*/ { }\n");
+        sb.append("    }\n");
+        sb.append("    public void slow(boolean b) {\n");
+        sb.append("        Helper h = new Helper();\n");
+        for (int i = 0; i < slowStatements; i++) {
+            sb.append("        if (b) { h.onlyInState1(); }\n");
+        }
+        sb.append("    }\n");
+        int line = 18 + slowStatements;
+        for (int i = 0; i < padding; i++) {
+            sb.append("\n");
+            line++;
+        }
+        sb.append("    public void error() {\n");
+        sb.append("        Helper h = new Helper();\n");
+        sb.append("        h.onlyInState2();\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+
+        return line + 2;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        assertTrue(file.delete());
+    }
+}
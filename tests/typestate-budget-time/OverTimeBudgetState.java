@@ -0,0 +1,42 @@
+import checkers.typestate.State;
+import checkers.typestate.NoChange;
+
+/**
+ * Checked with a time budget of 1 ms per method, and a clock advancing 2 ms each time it is read; the budget is
+ * exceeded when the clock is first checked, after 256 transfer steps.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class OverTimeBudgetState {
+    @State public static @interface State1 { Class<?> after() default NoChange.class; }
+    @State public static @interface State2 { Class<?> after() default NoChange.class; }
+
+    public static class Helper {
+        public void onlyInState1() /*@State1*/ { }
+        public void fromState1ToState2() /*@State1(after=State2.class)*/ { }
+        public void onlyInState2() /*@State2*/ { }
+    }
+
+    @State1 Helper getHelperInState1() { return null; }
+
+    public void testWithinBudget(@State1 Helper h) {
+        h.fromState1ToState2();
+        h.onlyInState1(); // error
+    }
+
+    public void testOverBudget(@State1 Helper h) { // warning
+        h.fromState1ToState2();
+        h.onlyInState1(); // not reported, as the states of variables aren't checked
+        getHelperInState1().onlyInState2(); // error
+        acceptInState2(getHelperInState1()); // error
+        int sum = 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1
+                + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1
+                + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1
+                + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1
+                + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1
+                + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1
+                + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1
+                + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1 + 1;
+    }
+
+    void acceptInState2(@State2 Helper h) { }
+}
@@ -0,0 +1,51 @@
+import checkers.typestate.State;
+import checkers.typestate.NoChange;
+
+/**
+ * Checked with a budget of 60 transfer steps per method.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class OverBudgetState {
+    @State public static @interface State1 { Class<?> after() default NoChange.class; }
+    @State public static @interface State2 { Class<?> after() default NoChange.class; }
+
+    public static class Helper {
+        public void onlyInState1() /*@State1*/ { }
+        public void fromState1ToState2() /*@State1(after=State2.class)*/ { }
+        public void onlyInState2() /*@State2*/ { }
+    }
+
+    @State1 Helper getHelperInState1() { return null; }
+
+    public void testWithinBudget(@State1 Helper h) {
+        h.onlyInState1();
+        h.fromState1ToState2();
+        h.onlyInState1(); // error
+    }
+
+    public void testOverBudget(@State1 Helper h) { // warning
+        h.onlyInState1();
+        h.fromState1ToState2();
+        h.onlyInState1(); // not reported, as the states of variables aren't checked
+        getHelperInState1().onlyInState2(); // error
+        acceptInState2(getHelperInState1()); // error
+        acceptInState2(h); // not reported
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+        h.onlyInState2();
+    }
+
+    void acceptInState2(@State2 Helper h) { }
+}
@@ -0,0 +1,32 @@
+import checkers.typestate.State;
+import checkers.typestate.NoChange;
+
+/**
+ * Checked with a recording events implementation; each method contains one construct.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class ConstructEvents {
+    @State public static @interface State0 { Class<?> afterTrue() default NoChange.class; Class<?> afterFalse() default NoChange.class; }
+    @State public static @interface State1 { }
+    @State public static @interface State2 { }
+
+    public static class Helper {
+        public boolean modify() /*@State0(afterTrue=State1.class, afterFalse=State2.class)*/ { return true; }
+    }
+
+    public void loop(int n) {
+        for (int i = 0; i < n; i++) {
+        }
+    }
+
+    public void tryFinally() {
+        try {
+        } finally {
+        }
+    }
+
+    public void condition(@State0 Helper h) {
+        if (h.modify()) {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import checkers.typestate.State;
+import checkers.typestate.NoChange;
+
+/**
+ * Checked with the sparse engine.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class SparseLoopState {
+    @State public static @interface State1 { Class<?> after() default NoChange.class; }
+    @State public static @interface State2 { Class<?> after() default NoChange.class; }
+
+    public static class Helper {
+        public void onlyInState1() /*@State1*/ { }
+        public void fromState1ToState2() /*@State1(after=State2.class)*/ { }
+        public void onlyInState2() /*@State2*/ { }
+        public void fromState2ToState1() /*@State2(after=State1.class)*/ { }
+    }
+
+    boolean condition() { return true; }
+
+    public void testBranches(@State1 Helper h) {
+        if (condition()) {
+            h.fromState1ToState2();
+        }
+        h.onlyInState1(); // error
+    }
+
+    public void testLoopRestoringState(@State1 Helper h) {
+        while (condition()) {
+            h.fromState1ToState2();
+            h.onlyInState2();
+            h.fromState2ToState1();
+        }
+        h.onlyInState1();
+    }
+
+    public void testLoopChangingState(@State1 Helper h) {
+        for (int i = 0; i < 10; i++) {
+            h.fromState1ToState2(); // error
+        }
+    }
+
+    public void testBreak(@State1 Helper h) {
+        while (condition()) {
+            h.fromState1ToState2();
+            if (condition()) {
+                break;
+            }
+            h.fromState2ToState1();
+        }
+        h.onlyInState1(); // error: the states at the break are joined after the loop
+    }
+
+    public void testAssignment(@State1 Helper h) {
+        Helper other = h;
+        other.fromState1ToState2();
+        other.onlyInState2();
+        h.onlyInState1();
+    }
+}
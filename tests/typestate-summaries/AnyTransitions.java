@@ -0,0 +1,44 @@
+import checkers.typestate.State;
+import checkers.typestate.NoChange;
+import checkers.typestate.Any;
+
+/**
+ * Checked with interprocedural summaries: after a transition to the any-state annotation, the state is unknown.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class AnyTransitions {
+    @State public static @interface State1 { Class<?> after() default NoChange.class; Class<?> onException() default NoChange.class; }
+
+    public static class Helper {
+        public Helper() /*@State1*/ { }
+
+        public void onlyInState1() /*@State1*/ { }
+        public void toAnyState() /*@State1(after = Any.class)*/ { }
+        public void toAnyStateOnException() /*@State1(onException = Any.class)*/ { }
+        public void fromAnyToState1() /*@Any(after = State1.class)*/ { }
+    }
+
+    public void testAfterAny() {
+        Helper h = new Helper();
+        h.onlyInState1();
+        h.toAnyState();
+        h.onlyInState1(); // error
+    }
+
+    public void testAfterAnyAndTransition() {
+        Helper h = new Helper();
+        h.toAnyState();
+        h.fromAnyToState1();
+        h.onlyInState1();
+    }
+
+    public void testOnExceptionAny() {
+        Helper h = new Helper();
+        try {
+            h.toAnyStateOnException();
+            h.onlyInState1();
+        } catch (Exception e) {
+            h.onlyInState1(); // error
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import checkers.typestate.State;
+import checkers.typestate.NoChange;
+
+/**
+ * Checked with interprocedural summaries: the unannotated helper methods are summarised and the summaries are used
+ * at their call sites.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class HelperSummaries {
+    @State public static @interface State1 { Class<?> after() default NoChange.class; }
+    @State public static @interface State2 { Class<?> after() default NoChange.class; }
+
+    public static class Helper {
+        public void onlyInState1() /*@State1*/ { }
+        public void fromState1ToState2() /*@State1(after=State2.class)*/ { }
+        public void onlyInState2() /*@State2*/ { }
+        public void fromState2ToState1() /*@State2(after=State1.class)*/ { }
+    }
+
+    boolean condition() { return true; }
+
+    private static void toState2(Helper h) {
+        h.fromState1ToState2();
+    }
+
+    private static void toState1(Helper h) {
+        h.fromState2ToState1();
+    }
+
+    private static void roundTrip(Helper h) {
+        toState2(h);
+        h.onlyInState2();
+        toState1(h);
+    }
+
+    private void maybeToState2(Helper h) {
+        if (condition()) {
+            toState2(h);
+        }
+    }
+
+    private static void countDown(Helper h, int n) {
+        if (n > 0) {
+            h.onlyInState1();
+            countDown(h, n - 1);
+        }
+    }
+
+    public void testTransition(@State1 Helper h) {
+        toState2(h);
+        h.onlyInState2();
+        h.onlyInState1(); // error
+    }
+
+    public void testRequiredState(@State1 Helper h) {
+        toState1(h); // error
+    }
+
+    public void testNestedHelpers(@State1 Helper h) {
+        roundTrip(h);
+        h.onlyInState1();
+    }
+
+    public void testUnknownState(@State1 Helper h) {
+        maybeToState2(h);
+        h.onlyInState1(); // error
+    }
+
+    public void testRecursiveHelper(@State1 Helper h) {
+        countDown(h, 3);
+        h.onlyInState1();
+        h.fromState1ToState2();
+        countDown(h, 3); // error
+    }
+}
@@ -0,0 +1,34 @@
+import checkers.typestate.State;
+import checkers.typestate.NoChange;
+import checkers.typestate.Any;
+
+/**
+ * Checked without interprocedural summaries: transitions to the any-state annotation are ignored.
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class AnyTransitionState {
+    @State public static @interface State1 { Class<?> after() default NoChange.class; Class<?> onException() default NoChange.class; }
+
+    public static class Helper {
+        public Helper() /*@State1*/ { }
+
+        public void onlyInState1() /*@State1*/ { }
+        public void toAnyState() /*@State1(after = Any.class)*/ { }
+        public void toAnyStateOnException() /*@State1(onException = Any.class)*/ { }
+    }
+
+    public void testAfterAny() {
+        Helper h = new Helper();
+        h.toAnyState();
+        h.onlyInState1();
+    }
+
+    public void testOnExceptionAny() {
+        Helper h = new Helper();
+        try {
+            h.toAnyStateOnException();
+        } catch (Exception e) {
+            h.onlyInState1();
+        }
+    }
+}
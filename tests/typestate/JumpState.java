@@ -0,0 +1,90 @@
+import checkers.typestate.State;
+import checkers.typestate.NoChange;
+
+/**
+ * @author Adam Warski (adam at warski dot org)
+ */
+public class JumpState {
+    @State public static @interface State1 { Class<?> after() default NoChange.class; }
+    @State public static @interface State2 { Class<?> after() default NoChange.class; }
+
+    public static class Helper {
+        public void onlyInState1() /*@State1*/ { }
+        public void fromState1ToState2() /*@State1(after=State2.class)*/ { }
+        public void fromState2ToState1() /*@State2(after=State1.class)*/ { }
+    }
+
+    boolean condition() { return true; }
+
+    public void testBreak(@State1 Helper h) {
+        while (condition()) {
+            h.fromState1ToState2();
+            if (condition()) {
+                break;
+            }
+            h.fromState2ToState1();
+        }
+        h.onlyInState1(); // error: the states at the break are joined after the loop
+    }
+
+    public void testBreakRestoringState(@State1 Helper h) {
+        while (condition()) {
+            h.fromState1ToState2();
+            if (condition()) {
+                h.fromState2ToState1();
+                break;
+            }
+            h.fromState2ToState1();
+        }
+        h.onlyInState1();
+    }
+
+    public void testContinue(@State1 Helper h) {
+        while (condition()) {
+            h.fromState1ToState2(); // error: the states at the continue are joined at the start of the loop
+            if (condition()) {
+                continue;
+            }
+            h.fromState2ToState1(); // error
+        }
+    }
+
+    public void testLabeledBreak(@State1 Helper h) {
+        outer:
+        while (condition()) {
+            h.fromState1ToState2();
+            for (int i = 0; i < 10; i++) {
+                if (condition()) {
+                    break outer;
+                }
+            }
+            h.fromState2ToState1();
+        }
+        h.onlyInState1(); // error
+    }
+
+    public void testSwitch(@State1 Helper h, int i) {
+        switch (i) {
+            case 0:
+                h.fromState1ToState2();
+                break;
+            case 1:
+                h.onlyInState1();
+                break;
+            default:
+                h.onlyInState1();
+        }
+        h.onlyInState1(); // error: the states at the breaks are joined after the switch
+    }
+
+    public void testSwitchFallThrough(@State1 Helper h, int i) {
+        switch (i) {
+            case 0:
+                h.fromState1ToState2();
+            case 1:
+                h.onlyInState1(); // error
+                break;
+            default:
+        }
+    }
+}